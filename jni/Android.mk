@@ -51,6 +51,14 @@ LOCAL_SYSTEM_EXT_MODULE := true
 LOCAL_MODULE    := libjni_snapmosaic
 include $(BUILD_SHARED_LIBRARY)
 
+# Worker threads shared by the native image kernels
+include $(CLEAR_VARS)
+LOCAL_SDK_VERSION := 9
+LOCAL_MODULE    := libsnapcam_workerpool
+LOCAL_SRC_FILES := worker_pool.cpp
+LOCAL_CFLAGS    += -O3
+include $(BUILD_STATIC_LIBRARY)
+
 # TinyPlanet
 include $(CLEAR_VARS)
 
@@ -60,6 +68,7 @@ LOCAL_SDK_VERSION := 9
 LOCAL_SYSTEM_EXT_MODULE := true
 LOCAL_MODULE    := libjni_snaptinyplanet
 LOCAL_SRC_FILES := tinyplanet.cc
+LOCAL_STATIC_LIBRARIES := libsnapcam_workerpool
 
 LOCAL_CFLAGS    += -ffast-math -O3 -funroll-loops
 LOCAL_ARM_MODE := arm
@@ -74,6 +83,7 @@ LOCAL_SYSTEM_EXT_MODULE := true
 LOCAL_MODULE    := libjni_snapimageutil
 LOCAL_MODULE_TAGS := optional
 LOCAL_SRC_FILES := image_util_jni.cpp
+LOCAL_STATIC_LIBRARIES := libsnapcam_workerpool
 LOCAL_CFLAGS    += -ffast-math -O3 -funroll-loops
 include $(BUILD_SHARED_LIBRARY)
 
@@ -56,6 +56,8 @@ bool gCancelComputation[NR];
 int c;
 int width=0, height=0;
 int mosaicWidth=0, mosaicHeight=0;
+// Set once resultYVU has been repacked as NV21 in place.
+bool resultIsNV21 = false;
 
 //int blendingType = Blend::BLEND_TYPE_FULL;
 //int blendingType = Blend::BLEND_TYPE_CYLPAN;
@@ -199,6 +201,7 @@ int Finalize(int mID)
 
     // Get back the result
     resultYVU = mosaic[mID]->getMosaic(mosaicWidth, mosaicHeight);
+    resultIsNV21 = false;
 
     return ret;
 }
@@ -620,6 +623,24 @@ JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaic(
     return bytes;
 }
 
+// Convert YVU to NV21 format in-place
+static void convertResultToNV21()
+{
+    if (resultIsNV21)
+        return;
+    ImageType V = resultYVU+mosaicWidth*mosaicHeight;
+    ImageType U = V+mosaicWidth*mosaicHeight;
+    for(int j=0; j<mosaicHeight/2; j++)
+    {
+        for(int i=0; i<mosaicWidth; i+=2)
+        {
+            V[j*mosaicWidth+i] = V[(2*j)*mosaicWidth+i];        // V
+            V[j*mosaicWidth+i+1] = U[(2*j)*mosaicWidth+i];        // U
+        }
+    }
+    resultIsNV21 = true;
+}
+
 JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
         JNIEnv* env, jobject thiz)
 {
@@ -632,17 +653,7 @@ JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
 
     int imageSize = 1.5*width * height;
 
-    // Convert YVU to NV21 format in-place
-    ImageType V = resultYVU+mosaicWidth*mosaicHeight;
-    ImageType U = V+mosaicWidth*mosaicHeight;
-    for(int j=0; j<mosaicHeight/2; j++)
-    {
-        for(int i=0; i<mosaicWidth; i+=2)
-        {
-            V[j*mosaicWidth+i] = V[(2*j)*mosaicWidth+i];        // V
-            V[j*mosaicWidth+i+1] = U[(2*j)*mosaicWidth+i];        // U
-        }
-    }
+    convertResultToNV21();
 
     LOGV("MosBytes: %d, W = %d, H = %d", imageSize, width, height);
 
@@ -662,15 +673,75 @@ JNIEXPORT jbyteArray JNICALL Java_com_android_camera_Mosaic_getFinalMosaicNV21(
     if (bytes == 0) {
         LOGE("Error in creating the image.");
         ImageUtils::freeImage(resultYVU);
+        resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
         return 0;
     }
     env->SetByteArrayRegion(bytes, 0, imageSize, (jbyte*) resultYVU);
     env->SetByteArrayRegion(bytes, imageSize, 8, (jbyte*) dims);
     delete[] dims;
     ImageUtils::freeImage(resultYVU);
+    resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
     return bytes;
 }
 
+JNIEXPORT jintArray JNICALL Java_com_android_camera_Mosaic_prepareFinalMosaicNV21(
+        JNIEnv* env, jobject thiz)
+{
+    (void)thiz;
+    if (resultYVU == ImageUtils::IMAGE_TYPE_NOIMAGE || mosaicWidth <= 0 || mosaicHeight <= 0)
+        return 0;
+
+    convertResultToNV21();
+
+    jint dims[2] = { mosaicWidth, mosaicHeight };
+    jintArray result = env->NewIntArray(2);
+    if (result == 0) {
+        LOGE("Error in creating the mosaic size.");
+        return 0;
+    }
+    env->SetIntArrayRegion(result, 0, 2, dims);
+    return result;
+}
+
+JNIEXPORT jint JNICALL Java_com_android_camera_Mosaic_readFinalMosaicNV21(
+        JNIEnv* env, jobject thiz, jbyteArray dst, jint firstRow, jint rows)
+{
+    (void)thiz;
+    if (!resultIsNV21 || resultYVU == ImageUtils::IMAGE_TYPE_NOIMAGE)
+        return -1;
+    if ((firstRow & 1) || rows <= 0 || firstRow < 0 || firstRow + rows > mosaicHeight)
+        return -1;
+
+    int chromaFirst = firstRow / 2;
+    int chromaRows = (rows + 1) / 2;
+    if (chromaFirst + chromaRows > mosaicHeight / 2)
+        chromaRows = mosaicHeight / 2 - chromaFirst;
+    jlong lumaBytes = (jlong) mosaicWidth * rows;
+    jlong total = lumaBytes + (jlong) mosaicWidth * chromaRows;
+
+    if (dst == NULL || env->GetArrayLength(dst) < total)
+        return -1;
+
+    ImageType VU = resultYVU + mosaicWidth * mosaicHeight;
+    env->SetByteArrayRegion(dst, 0, (jsize) lumaBytes,
+            (jbyte*) (resultYVU + (size_t) firstRow * mosaicWidth));
+    env->SetByteArrayRegion(dst, (jsize) lumaBytes, (jsize) (total - lumaBytes),
+            (jbyte*) (VU + (size_t) chromaFirst * mosaicWidth));
+    return (jint) total;
+}
+
+JNIEXPORT void JNICALL Java_com_android_camera_Mosaic_freeFinalMosaic(
+        JNIEnv* env, jobject thiz)
+{
+    (void)env;
+    (void)thiz;
+    if (resultYVU == ImageUtils::IMAGE_TYPE_NOIMAGE)
+        return;
+    ImageUtils::freeImage(resultYVU);
+    resultYVU = ImageUtils::IMAGE_TYPE_NOIMAGE;
+    resultIsNV21 = false;
+}
+
 #ifdef __cplusplus
 }
 #endif
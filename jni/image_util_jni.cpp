@@ -30,6 +30,9 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 #include <jni.h>
 #include <assert.h>
 #include <stdlib.h>
+#include <string.h>
+
+#include "worker_pool.h"
 
 #ifdef __ANDROID__
 #include "android/log.h"
@@ -39,205 +42,476 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 #ifdef __cplusplus
 extern "C" {
 #endif
-JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_FrameProcessor_nativeRotateNV21
-        (JNIEnv* env, jobject thiz, jobjectArray inBuf,
-         jint imageWidth, jint imageHeight, jint degree, jobjectArray outBuf);
-JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_FrameProcessor_nativeNV21toRgb(
-        JNIEnv *env, jobject thiz, jobjectArray yvuBuf, jobjectArray rgbBuf, jint width, jint height, jint stride);
-JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_PostProcessor_nativeFlipNV21(
-        JNIEnv* env, jobject thiz, jbyteArray yvuBytes, jint stride, jint height, jint gap, jboolean isVertical);
-JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_PostProcessor_nativeResizeImage(
-        JNIEnv* env, jobject thiz, jbyteArray oldBuf, jbyteArray newBuf, jint oldWidth, jint oldHeight, jint oldStride, jint newWidth, jint newHeight);
-JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_PostProcessor_nativeNV21Split(
-        JNIEnv* env, jobject thiz, jbyteArray srcYVU, jobjectArray yBuf, jobjectArray vuBuf, jint width, jint height, jint srcStride, jint dstStride);
+JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeRotateNV21
+        (JNIEnv* env, jclass clazz, jobject inBuf,
+         jint imageWidth, jint imageHeight, jint degree, jobject outBuf);
+JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeNV21toRgb(
+        JNIEnv *env, jclass clazz, jobject yvuBuf, jobject rgbBuf, jint width, jint height, jint stride);
+JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeFlipNV21(
+        JNIEnv* env, jclass clazz, jbyteArray yvuBytes, jint stride, jint height, jint gap, jboolean isVertical);
+JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeResizeImage(
+        JNIEnv* env, jclass clazz, jbyteArray oldBuf, jbyteArray newBuf, jint oldWidth, jint oldHeight, jint oldStride, jint newWidth, jint newHeight);
+JNIEXPORT jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeNV21Split(
+        JNIEnv* env, jclass clazz, jbyteArray srcYVU, jobject yBuf, jobject vuBuf, jint width, jint height, jint srcStride, jint dstStride);
 #ifdef __cplusplus
 }
 #endif
 
 typedef unsigned char uint8_t;
 
-void rotateBufAndMerge(uint8_t *in_buf, jint imageWidth, jint imageHeight, jint degree, uint8_t *out_buf)
+/*
+ * Row banding shared by all kernels. A kernel is written as a function
+ * of a row range so each worker owns a disjoint band of the output and
+ * no locking is needed. The bands are handed to the shared worker pool;
+ * small images are run inline since waking the workers would cost more
+ * than the work itself.
+ */
+#define MIN_PARALLEL_BYTES (128 * 1024)
+#define TILE 32
+
+typedef void (*band_fn)(void *ctx, int begin, int end);
+
+struct band_job {
+    band_fn fn;
+    void *ctx;
+    int rows;
+    int band;
+};
+
+static void run_band(void *arg, int item)
 {
-    if(degree == 90) {
-        int i = 0;
-        for (int x = 0; x < imageWidth; x++) {
-            for (int y = imageHeight - 1; y >= 0; y--) {
-                int offset = y * imageWidth + x;
-                out_buf[i] = in_buf[offset];
-                i++;
-            }
-        }
-        i = imageWidth * imageHeight;
-        for (int x = 0; x < imageWidth; x += 2) {
-            for (int y = imageHeight / 2 - 1; y >= 0; y--) {
-                int offset = imageWidth*imageHeight + y * imageWidth + x;
-                out_buf[i] = in_buf[offset];
-                i++;
-                out_buf[i] = in_buf[offset + 1];
-                i++;
-            }
-        }
-    } else if(degree == 270) {
-        int i = 0;
-        for (int x = imageWidth - 1; x >= 0; x--) {
-            for (int y = 0; y < imageHeight; y++) {
-                int offset = y * imageWidth + x;
-                out_buf[i] = in_buf[offset];
-                i++;
+    const band_job *job = (const band_job *)arg;
+    int begin = item * job->band;
+    int end = begin + job->band < job->rows ? begin + job->band : job->rows;
+    if (begin < end) {
+        job->fn(job->ctx, begin, end);
+    }
+}
+
+static int band_count(int rows, long bytes)
+{
+    if (bytes < MIN_PARALLEL_BYTES || rows < 2) {
+        return 1;
+    }
+    int workers = worker_pool_size();
+    return workers > rows ? rows : workers;
+}
+
+/* Splits [0, rows) into one band per pool thread and runs fn on each. */
+static void parallel_rows(int rows, long bytes, band_fn fn, void *ctx)
+{
+    int bands = band_count(rows, bytes);
+    band_job job = { fn, ctx, rows, (rows + bands - 1) / bands };
+    if (bands == 1) {
+        fn(ctx, 0, rows);
+        return;
+    }
+    worker_pool_run(bands, run_band, &job);
+}
+
+/* ---- Rotation ---- */
+
+struct rotate_ctx {
+    const uint8_t *in;
+    uint8_t *out;
+    int width;
+    int height;
+    int degree;
+};
+
+/*
+ * Output rows [begin, end) of the luma plane. For 90 and 270 the source
+ * is walked in TILE x TILE blocks so both the column reads and the row
+ * writes stay within a few cache lines.
+ */
+static void rotate_y_band(void *arg, int begin, int end)
+{
+    const rotate_ctx *c = (const rotate_ctx *)arg;
+    const uint8_t * __restrict in = c->in;
+    uint8_t * __restrict out = c->out;
+    const int w = c->width;
+    const int h = c->height;
+
+    if (c->degree == 180) {
+        for (int r = begin; r < end; r++) {
+            const uint8_t *src = in + (h - 1 - r) * w;
+            uint8_t *dst = out + r * w;
+            for (int x = 0; x < w; x++) {
+                dst[x] = src[w - 1 - x];
             }
         }
-        i = imageWidth * imageHeight;
-        for (int x = imageWidth - 2; x >= 0; x-=2) {
-            for (int y = 0; y < imageHeight/2; y++) {
-                int offset = imageWidth*imageHeight + y * imageWidth + x;
-                out_buf[i] = in_buf[offset];
-                i++;
-                out_buf[i] = in_buf[offset + 1];
-                i++;
+        return;
+    }
+    // Output is h wide and w tall.
+    for (int r0 = begin; r0 < end; r0 += TILE) {
+        int r1 = r0 + TILE < end ? r0 + TILE : end;
+        for (int k0 = 0; k0 < h; k0 += TILE) {
+            int k1 = k0 + TILE < h ? k0 + TILE : h;
+            for (int r = r0; r < r1; r++) {
+                uint8_t *dst = out + r * h;
+                if (c->degree == 90) {
+                    for (int k = k0; k < k1; k++) {
+                        dst[k] = in[(h - 1 - k) * w + r];
+                    }
+                } else {
+                    const int x = w - 1 - r;
+                    for (int k = k0; k < k1; k++) {
+                        dst[k] = in[k * w + x];
+                    }
+                }
             }
         }
-    } else if(degree == 180) {
-        int i = 0;
-        for (int y = imageHeight - 1; y >= 0; y--) {
-            for (int x = imageWidth - 1; x >= 0 ; x--) {
-                int offset = y * imageWidth + x;
-                out_buf[i] = in_buf[offset];
-                i++;
+    }
+}
+
+/* Output rows [begin, end) of the interleaved VU plane, moving whole VU pairs. */
+static void rotate_vu_band(void *arg, int begin, int end)
+{
+    const rotate_ctx *c = (const rotate_ctx *)arg;
+    const int w = c->width;
+    const int h = c->height;
+    const uint8_t * __restrict in = c->in + w * h;
+    uint8_t * __restrict out = c->out + w * h;
+    const int ch = h / 2;
+
+    if (c->degree == 180) {
+        const int pairs = w / 2;
+        for (int r = begin; r < end; r++) {
+            const uint8_t *src = in + (ch - 1 - r) * w;
+            uint8_t *dst = out + r * 2 * pairs;
+            for (int p = 0; p < pairs; p++) {
+                dst[2 * p] = src[w - 2 - 2 * p];
+                dst[2 * p + 1] = src[w - 1 - 2 * p];
             }
         }
-        i = imageWidth * imageHeight;
-        for (int y = imageHeight/2 - 1; y >= 0; y--) {
-            for (int x = imageWidth - 2; x >= 0 ; x-=2) {
-                int offset = imageWidth*imageHeight + y * imageWidth + x;
-                out_buf[i] = in_buf[offset];
-                i++;
-                out_buf[i] = in_buf[offset + 1];
-                i++;
+        return;
+    }
+    // Output is ch pairs wide and w / 2 rows tall.
+    for (int r0 = begin; r0 < end; r0 += TILE) {
+        int r1 = r0 + TILE < end ? r0 + TILE : end;
+        for (int k0 = 0; k0 < ch; k0 += TILE) {
+            int k1 = k0 + TILE < ch ? k0 + TILE : ch;
+            for (int r = r0; r < r1; r++) {
+                uint8_t *dst = out + r * 2 * ch;
+                if (c->degree == 90) {
+                    for (int k = k0; k < k1; k++) {
+                        const uint8_t *src = in + (ch - 1 - k) * w + 2 * r;
+                        dst[2 * k] = src[0];
+                        dst[2 * k + 1] = src[1];
+                    }
+                } else {
+                    const int x = w - 2 - 2 * r;
+                    for (int k = k0; k < k1; k++) {
+                        const uint8_t *src = in + k * w + x;
+                        dst[2 * k] = src[0];
+                        dst[2 * k + 1] = src[1];
+                    }
+                }
             }
         }
     }
 }
 
-jint JNICALL Java_com_android_camera_imageprocessor_FrameProcessor_nativeRotateNV21(
-        JNIEnv* env, jobject thiz, jobjectArray inBuf,
-        jint imageWidth, jint imageHeight, jint degree, jobjectArray outBuf)
+void rotateBufAndMerge(uint8_t *in_buf, jint imageWidth, jint imageHeight, jint degree, uint8_t *out_buf)
 {
-    (void)thiz;
+    if (degree != 90 && degree != 180 && degree != 270) {
+        return;
+    }
+    rotate_ctx c = { in_buf, out_buf, imageWidth, imageHeight, degree };
+    long bytes = (long)imageWidth * imageHeight;
+    int yRows = degree == 180 ? imageHeight : imageWidth;
+    int vuRows = degree == 180 ? imageHeight / 2 : imageWidth / 2;
+    parallel_rows(yRows, bytes, rotate_y_band, &c);
+    parallel_rows(vuRows, bytes / 2, rotate_vu_band, &c);
+}
+
+jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeRotateNV21(
+        JNIEnv* env, jclass clazz, jobject inBuf,
+        jint imageWidth, jint imageHeight, jint degree, jobject outBuf)
+{
+    (void)clazz;
     uint8_t *in_buf = (uint8_t *)env->GetDirectBufferAddress(inBuf);
     uint8_t *out_buf = (uint8_t *)env->GetDirectBufferAddress(outBuf);
+    if (in_buf == NULL || out_buf == NULL) {
+        return -1;
+    }
     rotateBufAndMerge(in_buf, imageWidth, imageHeight, degree, out_buf);
 
     return 0;
 }
 
-jint JNICALL Java_com_android_camera_imageprocessor_FrameProcessor_nativeNV21toRgb(
-        JNIEnv* env, jobject thiz, jobjectArray yvuBuf, jobjectArray rgbBuf, jint width, jint height)
+/* ---- NV21 to RGBA ---- */
+
+struct rgb_ctx {
+    const uint8_t *in;
+    uint8_t *rgb;
+    int width;
+    int height;
+    int stride;
+};
+
+static inline uint8_t clamp_u8(int v)
+{
+    return (uint8_t)(v > 255 ? 255 : (v < 0 ? 0 : v));
+}
+
+/*
+ * BT.601 limited range in Q10 fixed point (1.164, 1.596, 0.813, 0.391,
+ * 2.018), so the loop is plain integer math the compiler can vectorize
+ * and NV21Utils.toRgbaJava can reproduce bit for bit.
+ */
+static void rgb_band(void *arg, int begin, int end)
+{
+    const rgb_ctx *c = (const rgb_ctx *)arg;
+    const int w = c->width;
+    const uint8_t *vuPlane = c->in + c->stride * c->height;
+
+    for (int y = begin; y < end; y++) {
+        const uint8_t * __restrict yRow = c->in + y * c->stride;
+        const uint8_t * __restrict vuRow = vuPlane + (y / 2) * c->stride;
+        uint8_t * __restrict dst = c->rgb + y * w * 4;
+        for (int x = 0; x < w; x++) {
+            int yy = 1192 * yRow[x];
+            int v = vuRow[x & ~1] - 128;
+            int u = vuRow[(x & ~1) + 1] - 128;
+            dst[4 * x] = clamp_u8((yy + 1634 * v) >> 10);
+            dst[4 * x + 1] = clamp_u8((yy - 833 * v - 400 * u) >> 10);
+            dst[4 * x + 2] = clamp_u8((yy + 2066 * u) >> 10);
+            dst[4 * x + 3] = 0xFF;
+        }
+    }
+}
+
+jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeNV21toRgb(
+        JNIEnv* env, jclass clazz, jobject yvuBuf, jobject rgbBuf, jint width, jint height, jint stride)
 {
-    (void)thiz;
+    (void)clazz;
     uint8_t *in_buf = (uint8_t *)env->GetDirectBufferAddress(yvuBuf);
     uint8_t *rgb_buf = (uint8_t *)env->GetDirectBufferAddress(rgbBuf);
-    int ysize = width * height;
-    int y_value;
-    int i, v, u, r, g, b;
-    for(int x=0; x < width; x++) {
-        for(int y=0; y < height; y++) {
-            y_value = (in_buf[y*width+x] & 0xFF);
-            i = ysize + (x/2*2) + ((y/2) * width);
-            v = (in_buf[i] & 0xFF) - 128;
-            u = (in_buf[i + 1] & 0xFF) - 128;
-            r = (int)(1.164f * y_value + 1.596f * v);
-            g = (int)(1.164f * y_value - 0.813f * v - 0.391f * u);
-            b = (int)(1.164f * y_value + 2.018f * u);
-            r = r > 255 ? 255 : r < 0 ? 0 : r;
-            g = g > 255 ? 255 : g < 0 ? 0 : g;
-            b = b > 255 ? 255 : b < 0 ? 0 : b;
-            rgb_buf[(y*width + x) * 4 + 3] = (uint8_t)(0xFF);
-            rgb_buf[(y*width + x) * 4 + 2] = (uint8_t)(b & 0xFF);
-            rgb_buf[(y*width + x) * 4 + 1] = (uint8_t)(g & 0xFF);
-            rgb_buf[(y*width + x) * 4 + 0] = (uint8_t)(r & 0xFF);
-        }
+    if (in_buf == NULL || rgb_buf == NULL) {
+        return -1;
     }
+    rgb_ctx c = { in_buf, rgb_buf, width, height, stride };
+    parallel_rows(height, (long)width * height * 4, rgb_band, &c);
     return 0;
 }
 
-jint JNICALL Java_com_android_camera_imageprocessor_PostProcessor_nativeFlipNV21(
-        JNIEnv* env, jobject thiz, jbyteArray yvuBytes, jint stride, jint height, jint gap, jboolean isVertical)
+/* ---- Mirror ---- */
+
+struct flip_ctx {
+    uint8_t *buf;
+    int stride;
+    int height;
+    int width;
+};
+
+/* Swaps luma rows y and height - 1 - y for y in [begin, end). */
+static void flip_y_vertical_band(void *arg, int begin, int end)
 {
-    (void)thiz;
-    jbyte* imageDataNV21Array = env->GetByteArrayElements(yvuBytes, NULL);
-    uint8_t *buf = (uint8_t *)imageDataNV21Array;
-    int ysize = stride * height;
-    uint8_t temp1, temp2;
-
-    if(isVertical) {
-        for (int x = 0; x < stride; x++) {
-            for (int y = 0; y < height / 2; y++) {
-                temp1 = buf[y * stride + x];
-                buf[y * stride + x] = buf[(height - 1 - y) * stride + x];
-                buf[(height - 1 - y) * stride + x] = temp1;
-            }
+    const flip_ctx *c = (const flip_ctx *)arg;
+    const int s = c->stride;
+    for (int y = begin; y < end; y++) {
+        uint8_t * __restrict a = c->buf + y * s;
+        uint8_t * __restrict b = c->buf + (c->height - 1 - y) * s;
+        for (int x = 0; x < s; x++) {
+            uint8_t t = a[x];
+            a[x] = b[x];
+            b[x] = t;
         }
-        for (int x = 0; x < stride; x += 2) {
-            for (int y = 0; y < height / 4; y++) {
-                temp1 = buf[ysize + y * stride + x];
-                temp2 = buf[ysize + y * stride + x + 1];
-                buf[ysize + y * stride + x] = buf[ysize + (height / 2 - 1 - y) * stride + x];
-                buf[ysize + y * stride + x + 1] = buf[ysize + (height / 2 - 1 - y) * stride + x + 1];
-                buf[ysize + (height / 2 - 1 - y) * stride + x] = temp1;
-                buf[ysize + (height / 2 - 1 - y) * stride + x + 1] = temp2;
-            }
+    }
+}
+
+static void flip_vu_vertical_band(void *arg, int begin, int end)
+{
+    const flip_ctx *c = (const flip_ctx *)arg;
+    const int s = c->stride;
+    uint8_t *vu = c->buf + s * c->height;
+    const int ch = c->height / 2;
+    for (int y = begin; y < end; y++) {
+        uint8_t * __restrict a = vu + y * s;
+        uint8_t * __restrict b = vu + (ch - 1 - y) * s;
+        for (int x = 0; x < s; x++) {
+            uint8_t t = a[x];
+            a[x] = b[x];
+            b[x] = t;
         }
-    } else {
-        int width = stride - gap;
-        for (int x = 0; x < width/2; x++) {
-            for (int y = 0; y < height; y++) {
-                temp1 = buf[y * stride + x];
-                buf[y * stride + x] = buf[y * stride + (width - 1 - x)];
-                buf[y * stride + (width - 1 - x)] = temp1;
+    }
+}
+
+/*
+ * Mirrors row pairs [begin, end): luma rows 2p and 2p + 1 and chroma row
+ * p, so each worker owns its chroma rows too. Luma rows reverse their
+ * first width bytes, chroma rows reverse the order of their VU pairs.
+ */
+static void flip_horizontal_band(void *arg, int begin, int end)
+{
+    const flip_ctx *c = (const flip_ctx *)arg;
+    const int s = c->stride;
+    const int w = c->width;
+    const int ch = c->height / 2;
+    uint8_t *vu = c->buf + s * c->height;
+    for (int p = begin; p < end; p++) {
+        for (int y = 2 * p; y < 2 * p + 2 && y < c->height; y++) {
+            uint8_t *row = c->buf + y * s;
+            for (int x = 0; x < w / 2; x++) {
+                uint8_t t = row[x];
+                row[x] = row[w - 1 - x];
+                row[w - 1 - x] = t;
             }
         }
-        for (int x = 0; x < width/2; x += 2) {
-            for (int y = 0; y < height / 2; y++) {
-                temp1 = buf[ysize + y * stride + x];
-                temp2 = buf[ysize + y * stride + x + 1];
-                buf[ysize + y * stride + x] = buf[ysize + y * stride + (width - 1 - x - 1)];
-                buf[ysize + y * stride + x + 1] = buf[ysize + y * stride + (width - 1 - x)];
-                buf[ysize + y * stride + (width - 1 - x - 1)] = temp1;
-                buf[ysize + y * stride + (width - 1 - x)] = temp2;
-            }
+        if (p >= ch) {
+            continue;
         }
+        uint8_t *row = vu + p * s;
+        for (int x = 0; x < w / 2; x += 2) {
+            uint8_t t1 = row[x];
+            uint8_t t2 = row[x + 1];
+            row[x] = row[w - 2 - x];
+            row[x + 1] = row[w - 1 - x];
+            row[w - 2 - x] = t1;
+            row[w - 1 - x] = t2;
+        }
+    }
+}
+
+jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeFlipNV21(
+        JNIEnv* env, jclass clazz, jbyteArray yvuBytes, jint stride, jint height, jint gap, jboolean isVertical)
+{
+    (void)clazz;
+    jbyte* imageDataNV21Array = env->GetByteArrayElements(yvuBytes, NULL);
+    if (imageDataNV21Array == NULL) {
+        return -1;
+    }
+    flip_ctx c = { (uint8_t *)imageDataNV21Array, stride, height, stride - gap };
+    long bytes = (long)stride * height;
+
+    if (isVertical) {
+        parallel_rows(height / 2, bytes, flip_y_vertical_band, &c);
+        parallel_rows(height / 4, bytes / 2, flip_vu_vertical_band, &c);
+    } else {
+        parallel_rows((height + 1) / 2, bytes, flip_horizontal_band, &c);
     }
 
-    env->ReleaseByteArrayElements(yvuBytes, imageDataNV21Array, JNI_ABORT);
+    // Mode 0 copies back if the VM handed us a copy; JNI_ABORT would drop the flip.
+    env->ReleaseByteArrayElements(yvuBytes, imageDataNV21Array, 0);
     return 0;
 }
 
-jint JNICALL Java_com_android_camera_imageprocessor_PostProcessor_nativeNV21Split(
-        JNIEnv* env, jobject thiz, jbyteArray srcYVU, jobjectArray yBuf, jobjectArray vuBuf, jint width, jint height, jint srcStride, jint dstStride) {
-    (void)thiz;
-    uint8_t *old_buf = (uint8_t *) env->GetByteArrayElements(srcYVU, NULL);
+/* ---- Plane split ---- */
+
+struct split_ctx {
+    const uint8_t *src;
+    uint8_t *y;
+    uint8_t *vu;
+    int width;
+    int height;
+    int srcStride;
+    int dstStride;
+};
+
+static void split_band(void *arg, int begin, int end)
+{
+    const split_ctx *c = (const split_ctx *)arg;
+    const uint8_t *srcVu = c->src + c->srcStride * c->height;
+    for (int j = begin; j < end; j++) {
+        memcpy(c->y + j * c->dstStride, c->src + j * c->srcStride, c->width);
+        if (j < c->height / 2) {
+            memcpy(c->vu + j * c->dstStride, srcVu + j * c->srcStride, c->width);
+        }
+    }
+}
+
+jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeNV21Split(
+        JNIEnv* env, jclass clazz, jbyteArray srcYVU, jobject yBuf, jobject vuBuf, jint width, jint height, jint srcStride, jint dstStride) {
+    (void)clazz;
     uint8_t *y_buf = (uint8_t *)env->GetDirectBufferAddress(yBuf);
     uint8_t *vu_buf = (uint8_t *)env->GetDirectBufferAddress(vuBuf);
-    int ySize = srcStride*height;
+    if (y_buf == NULL || vu_buf == NULL) {
+        return -1;
+    }
+    uint8_t *old_buf = (uint8_t *) env->GetByteArrayElements(srcYVU, NULL);
+    if (old_buf == NULL) {
+        return -1;
+    }
+    split_ctx c = { old_buf, y_buf, vu_buf, width, height, srcStride, dstStride };
+    parallel_rows(height, (long)width * height, split_band, &c);
+    env->ReleaseByteArrayElements(srcYVU, (jbyte *)old_buf, JNI_ABORT);
+
+    return 0;
+}
 
-    for(int j=0; j < height; j++) {
-        for (int i = 0; i < width; i++) {
-            y_buf[j*dstStride+i] = old_buf[j*srcStride + i];
-            if (j < height / 2) {
-                vu_buf[j*dstStride + i] = old_buf[ySize + j*srcStride + i];
+/* ---- Box downscale ---- */
+
+struct resize_ctx {
+    const uint8_t *src;
+    uint8_t *dst;
+    int oldWidth;
+    int oldStride;
+    int oldHeight;
+    int newWidth;
+    int newHeight;
+    int r;
+    int wC;
+    int hC;
+};
+
+/* Output luma rows [begin, end); each output pixel averages an R x R block. */
+static void resize_y_band(void *arg, int begin, int end)
+{
+    const resize_ctx *c = (const resize_ctx *)arg;
+    const int R = c->r;
+    for (int oy = begin; oy < end; oy++) {
+        int j = c->hC / 2 + oy * R;
+        uint8_t *dst = c->dst + oy * c->newWidth;
+        for (int ox = 0; ox < c->newWidth; ox++) {
+            int i = c->wC / 2 + ox * R;
+            unsigned int cv = 0;
+            for (int y = 0; y < R; y++) {
+                const uint8_t *src = c->src + (j + y) * c->oldStride + i;
+                for (int x = 0; x < R; x++) {
+                    cv += src[x];
+                }
             }
+            dst[ox] = (unsigned char)(cv / (R * R));
         }
     }
-    env->ReleaseByteArrayElements(srcYVU, (jbyte *)old_buf, JNI_ABORT);
+}
 
-    return 0;
+/* Output VU rows [begin, end); each output pair averages R x R chroma samples. */
+static void resize_vu_band(void *arg, int begin, int end)
+{
+    const resize_ctx *c = (const resize_ctx *)arg;
+    const int R = c->r;
+    const uint8_t *vu = c->src + c->oldStride * c->oldHeight;
+    const int cols = (c->newWidth + 1) / 2;
+    // An odd target size makes the last block overhang the frame; clamp it to the edge.
+    const int lastRow = c->oldHeight / 2 - 1;
+    const int lastCol = (c->oldWidth - 2) & ~1;
+    for (int oy = begin; oy < end; oy++) {
+        int j = c->hC / 2 + oy * R * 2;
+        uint8_t *dst = c->dst + c->newWidth * c->newHeight + oy * cols * 2;
+        for (int ox = 0; ox < cols; ox++) {
+            int i = c->wC / 2 + ox * R * 2;
+            unsigned int cv1 = 0;
+            unsigned int cv2 = 0;
+            for (int y = 0; y < R * 2; y += 2) {
+                int row = (j + y) / 2 < lastRow ? (j + y) / 2 : lastRow;
+                const uint8_t *src = vu + row * c->oldStride;
+                for (int x = 0; x < R * 2; x += 2) {
+                    int col = (i + x) / 2 * 2 < lastCol ? (i + x) / 2 * 2 : lastCol;
+                    cv1 += src[col];
+                    cv2 += src[col + 1];
+                }
+            }
+            dst[2 * ox] = (unsigned char)(cv1 / (R * R));
+            dst[2 * ox + 1] = (unsigned char)(cv2 / (R * R));
+        }
+    }
 }
 
-jint JNICALL Java_com_android_camera_imageprocessor_PostProcessor_nativeResizeImage(
-        JNIEnv* env, jobject thiz, jbyteArray oldBuf, jbyteArray newBuf, jint oldWidth, jint oldHeight, jint oldStride, jint newWidth, jint newHeight) {
-    (void)thiz;
-    uint8_t *old_buf = (uint8_t *) env->GetByteArrayElements(oldBuf, NULL);
-    uint8_t *new_buf = (uint8_t *) env->GetByteArrayElements(newBuf, NULL);
+jint JNICALL Java_com_android_camera_imageprocessor_NV21Utils_nativeResizeImage(
+        JNIEnv* env, jclass clazz, jbyteArray oldBuf, jbyteArray newBuf, jint oldWidth, jint oldHeight, jint oldStride, jint newWidth, jint newHeight) {
+    (void)clazz;
     int adjustedOldWidth = oldWidth;
 
     if((float)oldWidth/oldHeight != (float)newWidth/newHeight) {
@@ -253,46 +527,25 @@ jint JNICALL Java_com_android_camera_imageprocessor_PostProcessor_nativeResizeIm
         hR++;
     }
     int R = wR < hR ? wR : hR;
-    int wC = oldWidth - (newWidth*R);
-    int hC = oldHeight - (newHeight*R);
-    unsigned int cv1, cv2;
-
-    int index = 0;
-    for(int j=hC/2; j < newHeight*R + hC/2; j+=R) {
-        for(int i=wC/2; i < newWidth*R + wC/2; i+=R) {
-            cv1 = 0;
-            for(int y = 0; y < R; y++) {
-                for (int x = 0; x < R; x++) {
-                    cv1 += old_buf[(j+y)*oldStride + i+x];
-                }
-            }
-            cv1 /= R*R;
-            new_buf[index] = (unsigned char)cv1;
-            index++;
-        }
+    if (R < 1) {
+        return 0;
     }
-    int ySize = oldStride*oldHeight;
-    index = newWidth*newHeight;
-    for(int j=hC/2; j < newHeight*R + hC/2; j+=R*2) {
-        for(int i=wC/2; i < newWidth*R + wC/2; i+=R*2) {
-            cv1 = 0;
-            cv2 = 0;
-            for(int y = 0; y < R*2; y+=2) {
-                for (int x = 0; x < R*2; x+=2) {
-                    cv1 += old_buf[ySize + (j+y)/2*oldStride + (i+x)/2*2];
-                    cv2 += old_buf[ySize + (j+y)/2*oldStride + (i+x)/2*2 + 1];
-                }
-            }
-            cv1 /= R*R;
-            cv2 /= R*R;
-            new_buf[index] = (unsigned char)cv1;
-            index++;
-            new_buf[index] = (unsigned char)cv2;
-            index++;
-        }
+
+    uint8_t *old_buf = (uint8_t *) env->GetByteArrayElements(oldBuf, NULL);
+    uint8_t *new_buf = (uint8_t *) env->GetByteArrayElements(newBuf, NULL);
+    if (old_buf == NULL || new_buf == NULL) {
+        if (old_buf != NULL) env->ReleaseByteArrayElements(oldBuf, (jbyte *)old_buf, JNI_ABORT);
+        if (new_buf != NULL) env->ReleaseByteArrayElements(newBuf, (jbyte *)new_buf, JNI_ABORT);
+        return 0;
     }
+    resize_ctx c = { old_buf, new_buf, oldWidth, oldStride, oldHeight, newWidth, newHeight, R,
+            oldWidth - (newWidth*R), oldHeight - (newHeight*R) };
+    long bytes = (long)oldWidth * oldHeight;
+    parallel_rows(newHeight, bytes, resize_y_band, &c);
+    parallel_rows((newHeight + 1) / 2, bytes / 2, resize_vu_band, &c);
+
     env->ReleaseByteArrayElements(oldBuf, (jbyte *)old_buf, JNI_ABORT);
-    env->ReleaseByteArrayElements(newBuf, (jbyte *)new_buf, JNI_ABORT);
+    env->ReleaseByteArrayElements(newBuf, (jbyte *)new_buf, 0);
 
     return R;
 }
@@ -16,8 +16,12 @@
 
 #include <jni.h>
 #include <math.h>
+#include <pthread.h>
+#include <stdlib.h>
 #include <android/bitmap.h>
 
+#include "worker_pool.h"
+
 #ifdef __cplusplus
 extern "C" {
 #endif
@@ -25,11 +29,21 @@ extern "C" {
 
 #define PI_F 3.141592653589f
 
+// Output rows handed to a worker at a time. Rows are walked in memory order
+// and every tile is a multiple of the preview steps, so workers never write
+// to the same rows.
+#define TILE_ROWS 16
+#define MAX_STEP TILE_ROWS
+
+// Largest output, in pixels, the polar lookup table is kept for. This covers
+// the preview; a full resolution tiny planet is rendered once, so it is
+// computed directly instead of spending the memory.
+#define MAX_LUT_PIXELS (1600 * 1600)
+
 class ImageRGBA {
  public:
-  ImageRGBA(unsigned char* image, int width, int height)
-   : image_(image), width_(width), height_(height) {
-    width_step_ = width * 4;
+  ImageRGBA(unsigned char* image, int width, int height, int width_step)
+   : image_(image), width_(width), height_(height), width_step_(width_step) {
   }
 
   int Width() const {
@@ -55,32 +69,32 @@ class ImageRGBA {
   int width_step_;
 };
 
-// Interpolate a pixel in a 3 channel image.
+// Interpolate a pixel in a 3 channel image. x wraps around the globe, y is
+// clamped at the poles.
 inline void InterpolatePixel(const ImageRGBA &image, float x, float y,
                              unsigned char* dest) {
+  int x0 = static_cast<int>(x);
+  int y0 = static_cast<int>(y);
+  if (x0 >= image.Width()) x0 = 0;
+  if (y0 >= image.Height()) y0 = image.Height() - 1;
+  int x1 = x0 + 1 < image.Width() ? x0 + 1 : 0;
+  int y1 = y0 + 1 < image.Height() ? y0 + 1 : y0;
+
   // Get pointers and scale factors for the source pixels.
-  float ax = x - floor(x);
-  float ay = y - floor(y);
+  float ax = x - x0;
+  float ay = y - y0;
   float axn = 1.0f - ax;
   float ayn = 1.0f - ay;
-  const unsigned char *p = image(x, y);
-  const unsigned char *p2 = image(x, y + 1);
+  const unsigned char *p = image(x0, y0);
+  const unsigned char *px = image(x1, y0);
+  const unsigned char *p2 = image(x0, y1);
+  const unsigned char *p2x = image(x1, y1);
 
   // Interpolate each image color plane.
-  dest[0] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-  p++;
-  p2++;
-
-  dest[1] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-  p++;
-  p2++;
-
-  dest[2] = static_cast<unsigned char>(axn * ayn * p[0] + ax * ayn * p[4] +
-             ax * ay * p2[4] + axn * ay * p2[0] + 0.5f);
-  p++;
-  p2++;
+  for (int c = 0; c < 3; c++) {
+    dest[c] = static_cast<unsigned char>(axn * ayn * p[c] + ax * ayn * px[c] +
+               ax * ay * p2x[c] + axn * ay * p2[c] + 0.5f);
+  }
   dest[3] = 0xFF;
 }
 
@@ -89,64 +103,193 @@ inline float wrap(float value, float dimension) {
   return value - (dimension * floor(value/dimension));
 }
 
-void StereographicProjection(float scale, float angle, unsigned char* input_image,
-                             int input_width, int input_height,
-                             unsigned char* output_image, int output_width,
-                             int output_height) {
-  ImageRGBA input(input_image, input_width, input_height);
-  ImageRGBA output(output_image, output_width, output_height);
+// Polar coordinates of a centered and scaled output position, as fractions of
+// the panorama: u is the turn around the planet before the angle is applied,
+// v is the distance from the top edge. The angle only shifts u, so these can
+// be kept for as long as the output size and scale stay the same.
+inline void PolarCoordinates(float xf, float yf, float* u, float* v) {
+  // Convert to polar
+  float r = hypotf(xf, yf);
+  *u = atan2f(yf, xf) / (2 * PI_F);
+
+  // Project onto plane
+  *v = 2 * atanf(1 / r) / PI_F;
+}
+
+// Polar lookup table for the last preview size and scale, two floats (u, v)
+// per output pixel. Guarded by lut_lock, which is held for a whole render so
+// the table cannot be released while it is read.
+static pthread_mutex_t lut_lock = PTHREAD_MUTEX_INITIALIZER;
+static float* lut = NULL;
+static int lut_size = 0;
+static float lut_scale = 0;
 
-  const float image_scale = output_width * scale;
+struct LutJob {
+  float* lut;
+  int size;
+  float image_scale;
+};
+
+static void BuildLutTile(void* ctx, int tile) {
+  LutJob* job = static_cast<LutJob*>(ctx);
+  int y_end = (tile + 1) * TILE_ROWS < job->size ? (tile + 1) * TILE_ROWS : job->size;
+  for (int y = tile * TILE_ROWS; y < y_end; y++) {
+    float yf = (y - job->size / 2.0f) / job->image_scale;
+    float* row = job->lut + 2 * y * job->size;
+    for (int x = 0; x < job->size; x++) {
+      float xf = (x - job->size / 2.0f) / job->image_scale;
+      PolarCoordinates(xf, yf, &row[2 * x], &row[2 * x + 1]);
+    }
+  }
+}
 
-  for (int x = 0; x < output_width; x++) {
-    // Center and scale x
-    float xf = (x - output_width / 2.0f) / image_scale;
+// Returns the table for size and scale, building it if needed, or NULL if the
+// output is too large to keep one. Call with lut_lock held.
+static const float* GetLut(int size, float scale) {
+  if (lut != NULL && lut_size == size && lut_scale == scale) {
+    return lut;
+  }
+  free(lut);
+  lut = NULL;
+  lut_size = 0;
+  if (size <= 0 || size * size > MAX_LUT_PIXELS) {
+    return NULL;
+  }
+  lut = static_cast<float*>(malloc(sizeof(float) * 2 * size * size));
+  if (lut == NULL) {
+    return NULL;
+  }
+  LutJob job;
+  job.lut = lut;
+  job.size = size;
+  job.image_scale = size * scale;
+  worker_pool_run((size + TILE_ROWS - 1) / TILE_ROWS, BuildLutTile, &job);
+  lut_size = size;
+  lut_scale = scale;
+  return lut;
+}
 
-    for (int y = 0; y < output_height; y++) {
-      // Center and scale y
-      float yf = (y - output_height / 2.0f) / image_scale;
+struct ProjectionJob {
+  const ImageRGBA* input;
+  ImageRGBA* output;
+  const float* lut;
+  float image_scale;
+  float turn;
+  int step;
+};
 
-      // Convert to polar
-      float r = hypotf(xf, yf);
-      float theta = angle+atan2(yf, xf);
-      if (theta>PI_F) theta-=2*PI_F;
+static void ProjectTile(void* ctx, int tile) {
+  ProjectionJob* job = static_cast<ProjectionJob*>(ctx);
+  const ImageRGBA& input = *job->input;
+  ImageRGBA& output = *job->output;
+  const int size = output.Width();
+  const int step = job->step;
+  const float input_width = input.Width();
+  const float input_height = input.Height();
+  int y_end = (tile + 1) * TILE_ROWS < size ? (tile + 1) * TILE_ROWS : size;
 
-      // Project onto plane
-      float phi = 2 * atan(1 / r);
-      // (theta stays the same)
+  for (int y = tile * TILE_ROWS; y < y_end; y += step) {
+    // Center and scale y
+    float yf = (y - size / 2.0f) / job->image_scale;
+    const float* row = job->lut != NULL ? job->lut + 2 * y * size : NULL;
+    int block_rows = y + step <= size ? step : size - y;
 
-      // Map to panorama image
-      float px = (theta / (2 * PI_F)) * input_width;
-      float py = (phi / PI_F) * input_height;
+    for (int x = 0; x < size; x += step) {
+      float u, v;
+      if (row != NULL) {
+        u = row[2 * x];
+        v = row[2 * x + 1];
+      } else {
+        // Center and scale x
+        float xf = (x - size / 2.0f) / job->image_scale;
+        PolarCoordinates(xf, yf, &u, &v);
+      }
 
-      // Wrap around the globe
-      px = wrap(px, input_width);
-      py = wrap(py, input_height);
+      // Map to panorama image and wrap around the globe
+      float px = wrap((u + job->turn) * input_width, input_width);
+      float py = wrap(v * input_height, input_height);
 
       // Write the interpolated pixel
-      InterpolatePixel(input, px, py, output(x, y));
+      unsigned char* dest = output(x, y);
+      InterpolatePixel(input, px, py, dest);
+
+      // A coarse pass fills the whole block with its sample.
+      if (step > 1) {
+        unsigned int pixel = *reinterpret_cast<unsigned int*>(dest);
+        int block_cols = x + step <= size ? step : size - x;
+        for (int dy = 0; dy < block_rows; dy++) {
+          unsigned int* block = reinterpret_cast<unsigned int*>(output(x, y + dy));
+          for (int dx = 0; dx < block_cols; dx++) {
+            block[dx] = pixel;
+          }
+        }
+      }
     }
   }
 }
 
+// Renders every step-th pixel of every step-th row and fills the blocks in
+// between; step 1 is the full quality projection.
+void StereographicProjection(float scale, float angle, const ImageRGBA& input,
+                             ImageRGBA& output, int step) {
+  pthread_mutex_lock(&lut_lock);
+  ProjectionJob job;
+  job.input = &input;
+  job.output = &output;
+  job.lut = GetLut(output.Width(), scale);
+  job.image_scale = output.Width() * scale;
+  job.turn = angle / (2 * PI_F);
+  job.step = step;
+  worker_pool_run((output.Height() + TILE_ROWS - 1) / TILE_ROWS, ProjectTile, &job);
+  pthread_mutex_unlock(&lut_lock);
+}
+
 
-JNIEXPORT void JNICALL Java_com_android_camera_tinyplanet_TinyPlanetNative_process(JNIEnv* env, jobject obj, jobject bitmap_in, jint width, jint height, jobject bitmap_out, jint output_size, jfloat scale, jfloat angle)
+JNIEXPORT void JNICALL Java_com_android_camera_tinyplanet_TinyPlanetNative_render(JNIEnv* env, jobject obj, jobject bitmap_in, jint width, jint height, jobject bitmap_out, jint output_size, jfloat scale, jfloat angle, jint step)
 {
     (void)obj;
+    AndroidBitmapInfo info_in;
+    AndroidBitmapInfo info_out;
+    if (AndroidBitmap_getInfo(env, bitmap_in, &info_in) < 0
+            || AndroidBitmap_getInfo(env, bitmap_out, &info_out) < 0
+            || (int)info_in.width < width || (int)info_in.height < height
+            || (int)info_out.width < output_size || (int)info_out.height < output_size) {
+        return;
+    }
+    // Round the step down to a power of two so blocks never cross a tile.
+    int block = 1;
+    while (block * 2 <= step && block * 2 <= MAX_STEP) {
+        block *= 2;
+    }
+
     char* source = 0;
     char* destination = 0;
-    AndroidBitmap_lockPixels(env, bitmap_in, (void**) &source);
-    AndroidBitmap_lockPixels(env, bitmap_out, (void**) &destination);
-    unsigned char * rgb_in = (unsigned char * )source;
-    unsigned char * rgb_out = (unsigned char * )destination;
+    if (AndroidBitmap_lockPixels(env, bitmap_in, (void**) &source) < 0) {
+        return;
+    }
+    if (AndroidBitmap_lockPixels(env, bitmap_out, (void**) &destination) < 0) {
+        AndroidBitmap_unlockPixels(env, bitmap_in);
+        return;
+    }
+    ImageRGBA input((unsigned char *)source, width, height, info_in.stride);
+    ImageRGBA output((unsigned char *)destination, output_size, output_size, info_out.stride);
 
-    StereographicProjection(scale, angle, rgb_in, width, height, rgb_out, output_size, output_size);
+    StereographicProjection(scale, angle, input, output, block);
     AndroidBitmap_unlockPixels(env, bitmap_in);
     AndroidBitmap_unlockPixels(env, bitmap_out);
 }
 
+JNIEXPORT void JNICALL Java_com_android_camera_tinyplanet_TinyPlanetNative_releaseLookupTable(JNIEnv* env, jobject obj)
+{
+    (void)env;
+    (void)obj;
+    pthread_mutex_lock(&lut_lock);
+    free(lut);
+    lut = NULL;
+    lut_size = 0;
+    pthread_mutex_unlock(&lut_lock);
+}
+
 #ifdef __cplusplus
 }
 #endif
-
-
@@ -0,0 +1,138 @@
+/*
+Copyright (c) 2024, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+#include <pthread.h>
+#include <stddef.h>
+#include <unistd.h>
+
+#include "worker_pool.h"
+
+struct pool_job {
+    worker_item_fn fn;
+    void *ctx;
+    int items;
+    volatile int next;
+    // Pool threads currently inside this job, guarded by s_lock.
+    int active;
+};
+
+static pthread_once_t s_once = PTHREAD_ONCE_INIT;
+static pthread_mutex_t s_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t s_work = PTHREAD_COND_INITIALIZER;
+static pthread_cond_t s_idle = PTHREAD_COND_INITIALIZER;
+static pthread_mutex_t s_owner = PTHREAD_MUTEX_INITIALIZER;
+static pool_job *s_job = NULL;
+static unsigned s_generation = 0;
+static int s_size = 1;
+
+static void drain(pool_job *job)
+{
+    int item;
+    while ((item = __sync_fetch_and_add(&job->next, 1)) < job->items) {
+        job->fn(job->ctx, item);
+    }
+}
+
+static void *worker_main(void *arg)
+{
+    (void)arg;
+    unsigned seen = 0;
+    pthread_mutex_lock(&s_lock);
+    for (;;) {
+        while (s_generation == seen) {
+            pthread_cond_wait(&s_work, &s_lock);
+        }
+        seen = s_generation;
+        pool_job *job = s_job;
+        if (job == NULL) {
+            // Woken too late; the caller already finished this job.
+            continue;
+        }
+        job->active++;
+        pthread_mutex_unlock(&s_lock);
+        drain(job);
+        pthread_mutex_lock(&s_lock);
+        if (--job->active == 0) {
+            pthread_cond_signal(&s_idle);
+        }
+    }
+    return NULL;
+}
+
+static void start_pool()
+{
+    long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+    int wanted = cpus > WORKER_POOL_MAX_THREADS ? WORKER_POOL_MAX_THREADS
+            : (cpus < 1 ? 1 : (int)cpus);
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+    for (int i = 1; i < wanted; i++) {
+        pthread_t thread;
+        if (pthread_create(&thread, &attr, worker_main, NULL) != 0) {
+            break;
+        }
+        s_size++;
+    }
+    pthread_attr_destroy(&attr);
+}
+
+int worker_pool_size()
+{
+    pthread_once(&s_once, start_pool);
+    return s_size;
+}
+
+void worker_pool_run(int items, worker_item_fn fn, void *ctx)
+{
+    pool_job job = { fn, ctx, items, 0, 0 };
+    if (items <= 1 || worker_pool_size() == 1
+            || pthread_mutex_trylock(&s_owner) != 0) {
+        drain(&job);
+        return;
+    }
+
+    pthread_mutex_lock(&s_lock);
+    s_job = &job;
+    s_generation++;
+    pthread_cond_broadcast(&s_work);
+    pthread_mutex_unlock(&s_lock);
+
+    drain(&job);
+
+    // No thread may join once the job is unpublished; wait out the ones
+    // still finishing their last item before the job leaves the stack.
+    pthread_mutex_lock(&s_lock);
+    s_job = NULL;
+    while (job.active > 0) {
+        pthread_cond_wait(&s_idle, &s_lock);
+    }
+    pthread_mutex_unlock(&s_lock);
+    pthread_mutex_unlock(&s_owner);
+}
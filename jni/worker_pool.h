@@ -0,0 +1,54 @@
+/*
+Copyright (c) 2024, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+#ifndef WORKER_POOL_H
+#define WORKER_POOL_H
+
+/*
+ * A small pool of threads shared by the native image kernels. The
+ * threads are started on first use and then kept, so handing out work
+ * costs a wake-up instead of a pthread_create and join per call.
+ *
+ * Work is a count of independent items; the pool's threads and the
+ * calling thread take the next item from a shared counter until all are
+ * done, so uneven items still balance. Only one caller owns the pool at a
+ * time; a caller that finds it busy runs its items itself.
+ */
+
+#define WORKER_POOL_MAX_THREADS 4
+
+typedef void (*worker_item_fn)(void *ctx, int item);
+
+/* Number of threads, including the caller's, that worker_pool_run can use. */
+int worker_pool_size();
+
+/* Runs fn(ctx, i) for every i in [0, items) and returns once all have finished. */
+void worker_pool_run(int items, worker_item_fn fn, void *ctx);
+
+#endif
@@ -34,7 +34,6 @@ import android.app.ProgressDialog;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.graphics.Point;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -52,11 +51,11 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.support.v4.app.FragmentActivity;
 import android.widget.CheckBox;
+import android.widget.ImageView;
 import android.widget.PopupWindow;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.android.camera.exif.ExifInterface;
 import com.android.camera.ui.BestPictureActionDialogLayout;
 import com.android.camera.ui.DotsView;
 import com.android.camera.ui.DotsViewItem;
@@ -69,7 +68,6 @@ import org.codeaurora.snapcam.R;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.RandomAccessFile;
 
 import static android.app.Activity.RESULT_OK;
@@ -96,7 +94,8 @@ public class BestpictureActivity extends FragmentActivity {
     private BestpictureActivity mActivity;
     private DotsView mDotsView;
     private ImageItems mImageItems;
-    private ImageLoadingThread mLoadingThread;
+    private BestpictureLoader mLoader;
+    private boolean mLoaderStarted;
     private PhotoModule.NamedImages mNamedImages;
     private Uri mPlaceHolderUri;
     private Dialog mDialog;
@@ -106,13 +105,17 @@ public class BestpictureActivity extends FragmentActivity {
 
     public static int BESTPICTURE_ACTIVITY_CODE = 11;
 
-    static class ImageItems implements DotsViewItem {
+    static class ImageItems implements DotsViewItem, BestpictureLoader.Callback {
+        // Bitmaps of the pages on screen only; the loader keeps the others compressed.
         private Bitmap[] mBitmap;
+        private ImageView[] mViews;
         private boolean[] mChosen;
         private BestpictureActivity mActivity;
+        private BestpictureLoader mLoader;
 
         public ImageItems(BestpictureActivity activity) {
             mBitmap = new Bitmap[NUM_IMAGES];
+            mViews = new ImageView[NUM_IMAGES];
             mChosen = new boolean[NUM_IMAGES];
             for (int i = 0; i < mChosen.length; i++) {
                 if (i == 0) {
@@ -128,8 +131,42 @@ public class BestpictureActivity extends FragmentActivity {
             return mBitmap[index];
         }
 
-        public void setBitmap(int index, Bitmap bitmap) {
+        public void setLoader(BestpictureLoader loader) {
+            mLoader = loader;
+        }
+
+        /** Shows the image in view as soon as it is loaded. */
+        public void attach(int index, ImageView view) {
+            mViews[index] = view;
+            if (mBitmap[index] != null) {
+                view.setImageBitmap(mBitmap[index]);
+            } else if (mLoader != null) {
+                mLoader.request(index);
+            }
+        }
+
+        /** Called when the page goes off screen; its bitmap is handed back for reuse. */
+        public void detach(int index) {
+            if (mViews[index] != null) {
+                mViews[index].setImageDrawable(null);
+                mViews[index] = null;
+            }
+            if (mBitmap[index] != null && mLoader != null) {
+                mLoader.release(mBitmap[index]);
+            }
+            mBitmap[index] = null;
+        }
+
+        @Override
+        public void onPageLoaded(int index, Bitmap bitmap) {
+            mActivity.dismissProgressDialog();
+            if (mViews[index] == null || mBitmap[index] != null) {
+                // The page went away, or was already answered by an earlier request.
+                mLoader.release(bitmap);
+                return;
+            }
             mBitmap[index] = bitmap;
+            mViews[index].setImageBitmap(bitmap);
         }
 
         @Override
@@ -186,11 +223,17 @@ public class BestpictureActivity extends FragmentActivity {
         Display display = getWindowManager().getDefaultDisplay();
         Point size = new Point();
         display.getSize(size);
-        mWidth = size.x/4;
-        mHeight = size.y/4;
+        mWidth = size.x;
+        mHeight = size.y;
         mNamedImages = new PhotoModule.NamedImages();
 
         mImageItems = new ImageItems(mActivity);
+        String[] paths = new String[NUM_IMAGES];
+        for (int i = 0; i < NUM_IMAGES; i++) {
+            paths[i] = mFilesPath + "/" + NAMES[i] + ".jpg";
+        }
+        mLoader = new BestpictureLoader(paths, mWidth, mHeight, mImageItems);
+        mImageItems.setLoader(mLoader);
         mDotsView = (DotsView) findViewById(R.id.dots_view);
         mDotsView.setItems(mImageItems);
         mPlaceHolderUri = getIntent().getData();
@@ -509,52 +552,21 @@ public class BestpictureActivity extends FragmentActivity {
     }
 
 
-    private class ImageLoadingThread extends Thread {
-        public void run() {
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (!mLoaderStarted) {
+            mLoaderStarted = true;
+            // Only until the first page shows, the others fill in as they load.
             showProgressDialog();
-            for(int i=0; i < NUM_IMAGES; i++) {
-                String path = mFilesPath + "/" + BestpictureActivity.NAMES[i] + ".jpg";
-                final BitmapFactory.Options o = new BitmapFactory.Options();
-                o.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(path, o);
-                ExifInterface exif = new ExifInterface();
-                int orientation = 0;
-                try {
-                    exif.readExif(path);
-                    orientation = Exif.getOrientation(exif);
-                } catch (IOException e) {
-                }
-                int h = o.outHeight;
-                int w = o.outWidth;
-                int sample = 1;
-                if (h > mHeight || w > mWidth) {
-                    while (h / sample / 2 > mHeight && w / sample / 2 > mWidth) {
-                        sample *= 2;
-                    }
-                }
-
-                o.inJustDecodeBounds = false;
-                o.inSampleSize = sample;
-                Bitmap bitmap = BitmapFactory.decodeFile(path, o);
-                if (orientation != 0) {
-                    Matrix matrix = new Matrix();
-                    matrix.setRotate(orientation);
-                    bitmap = Bitmap.createBitmap(bitmap, 0, 0,
-                            bitmap.getWidth(), bitmap.getHeight(), matrix, false);
-                }
-                mImageItems.setBitmap(i, bitmap);
-            }
-            dismissProgressDialog();
+            mLoader.start();
         }
     }
 
     @Override
-    public void onResume() {
-        super.onResume();
-        if (mLoadingThread == null) {
-            mLoadingThread = new ImageLoadingThread();
-            mLoadingThread.start();
-        }
+    public void onDestroy() {
+        mLoader.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -596,12 +608,6 @@ public class BestpictureActivity extends FragmentActivity {
 
         @Override
         public android.app.Fragment getItem(int imageNum) {
-           while(mImageItems.getBitmap(imageNum) == null) {
-                try {
-                    Thread.sleep(5);
-                } catch (Exception e) {
-                }
-            }
             return BestpictureFragment.create(imageNum, mImageItems);
         }
 
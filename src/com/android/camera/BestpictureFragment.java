@@ -72,7 +72,7 @@ public class BestpictureFragment extends Fragment {
         mPictureSelectButton = (ImageView) rootView.findViewById(R.id.picture_select);
         if (mImageItems != null) {
             initSelectButton();
-            mImageView.setImageBitmap(mImageItems.getBitmap(mImageNum));
+            mImageItems.attach(mImageNum, mImageView);
             rootView.findViewById(R.id.picture_select).setOnClickListener(
                     new View.OnClickListener() {
                 @Override
@@ -93,6 +93,14 @@ public class BestpictureFragment extends Fragment {
         }
     }
 
+    @Override
+    public void onDestroyView() {
+        if (mImageItems != null) {
+            mImageItems.detach(mImageNum);
+        }
+        super.onDestroyView();
+    }
+
     @Override
     public void onDestroy() {
         mImageItems = null;
@@ -0,0 +1,384 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.camera.exif.ExifView;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the Best Picture burst frames for the pager.
+ *
+ * Frames are decoded on a small pool of threads, sampled and drawn upright
+ * at the viewer's size. Each page is then kept only as a compressed JPEG;
+ * a bitmap exists just while a page is shown, and bitmaps of pages that
+ * went off screen are reused for the next one. Memory therefore depends on
+ * the number of pages on screen, not on the size of the burst.
+ */
+class BestpictureLoader {
+    private static final String TAG = "BestpictureLoader";
+    private static final int THREAD_COUNT = 2;
+    private static final int KEEP_ALIVE_SECONDS = 1;
+    private static final int PAGE_QUALITY = 90;
+    // Free page bitmaps kept for reuse; the pager holds the rest.
+    private static final int MAX_FREE_PAGES = 2;
+
+    public interface Callback {
+        /**
+         * Called on the main thread with the bitmap of a requested page, or
+         * null if the frame could not be loaded. The bitmap belongs to the
+         * callee until it is handed back with {@link #release(Bitmap)}.
+         */
+        void onPageLoaded(int index, Bitmap bitmap);
+    }
+
+    private final String[] mPaths;
+    private final int mViewWidth;
+    private final int mViewHeight;
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Holds only PageTasks, so pages on screen are taken first.
+    private final PriorityBlockingQueue<Runnable> mQueue = new PriorityBlockingQueue<Runnable>();
+    private final ThreadPoolExecutor mExecutor;
+    private final PageTask[] mLoads;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // Guarded by this.
+    private final byte[][] mPages;
+    private final boolean[] mFailed;
+    private final boolean[] mWanted;
+    private final ArrayDeque<Bitmap> mFreePages = new ArrayDeque<Bitmap>();
+    private final ArrayDeque<Bitmap> mFreeFrames = new ArrayDeque<Bitmap>();
+    private boolean mShutdown;
+
+    public BestpictureLoader(String[] paths, int viewWidth, int viewHeight, Callback callback) {
+        mPaths = paths;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mCallback = callback;
+        mPages = new byte[paths.length][];
+        mFailed = new boolean[paths.length];
+        mWanted = new boolean[paths.length];
+        mLoads = new PageTask[paths.length];
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, mQueue, new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "Bestpicture-" + mCount.incrementAndGet());
+                    }
+                });
+    }
+
+    /**
+     * A decode of one page. Pages on screen run before frames loaded ahead
+     * of time; otherwise pages run in page order.
+     */
+    private abstract static class PageTask implements Runnable, Comparable<PageTask> {
+        final int mIndex;
+        // Only changed while the task is out of the queue.
+        boolean mOnScreen;
+
+        PageTask(int index, boolean onScreen) {
+            mIndex = index;
+            mOnScreen = onScreen;
+        }
+
+        @Override
+        public int compareTo(PageTask other) {
+            if (mOnScreen != other.mOnScreen) {
+                return mOnScreen ? -1 : 1;
+            }
+            return mIndex < other.mIndex ? -1 : (mIndex == other.mIndex ? 0 : 1);
+        }
+    }
+
+    /** Queues the first decode of every frame, in page order. */
+    public void start() {
+        for (int i = 0; i < mPaths.length; i++) {
+            mLoads[i] = new PageTask(i, false) {
+                @Override
+                public void run() {
+                    loadFrame(mIndex);
+                }
+            };
+            mExecutor.execute(mLoads[i]);
+        }
+    }
+
+    /**
+     * Asks for the bitmap of a page that is about to be shown. The answer
+     * comes through the callback once the page is ready.
+     */
+    public void request(final int index) {
+        boolean loading;
+        synchronized (this) {
+            if (mShutdown) return;
+            if (mFailed[index]) {
+                deliver(index, null);
+                return;
+            }
+            loading = mPages[index] == null;
+            if (loading) {
+                // Still loading, the first decode hands it over.
+                mWanted[index] = true;
+            }
+        }
+        if (loading) {
+            PageTask load = mLoads[index];
+            if (load != null && mQueue.remove(load)) {
+                // Not started yet; requeue it ahead of frames nobody is looking at.
+                load.mOnScreen = true;
+                mExecutor.execute(load);
+            }
+            return;
+        }
+        mExecutor.execute(new PageTask(index, true) {
+            @Override
+            public void run() {
+                deliver(index, decodePage(index));
+            }
+        });
+    }
+
+    /** Hands back a page bitmap that is no longer shown. */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null) return;
+        if (mShutdown || mFreePages.size() >= MAX_FREE_PAGES) {
+            bitmap.recycle();
+        } else {
+            mFreePages.add(bitmap);
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        synchronized (this) {
+            mShutdown = true;
+            for (Bitmap bitmap : mFreePages) {
+                bitmap.recycle();
+            }
+            mFreePages.clear();
+            for (Bitmap bitmap : mFreeFrames) {
+                bitmap.recycle();
+            }
+            mFreeFrames.clear();
+        }
+    }
+
+    private void deliver(final int index, final Bitmap bitmap) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BestpictureLoader.this) {
+                    if (mShutdown) {
+                        if (bitmap != null) bitmap.recycle();
+                        return;
+                    }
+                }
+                mCallback.onPageLoaded(index, bitmap);
+            }
+        });
+    }
+
+    private void loadFrame(int index) {
+        Bitmap page = null;
+        byte[] compressed = null;
+        try {
+            page = decodeFrame(mPaths[index]);
+            if (page != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                page.compress(Bitmap.CompressFormat.JPEG, PAGE_QUALITY, out);
+                compressed = out.toByteArray();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load " + mPaths[index], e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory loading " + mPaths[index], e);
+        }
+
+        if (compressed == null) {
+            release(page);
+            page = null;
+        }
+        boolean wanted;
+        synchronized (this) {
+            wanted = mWanted[index];
+            mWanted[index] = false;
+            if (compressed == null) {
+                mFailed[index] = true;
+            } else {
+                mPages[index] = compressed;
+            }
+        }
+        if (wanted) {
+            deliver(index, page);
+        } else {
+            release(page);
+        }
+    }
+
+    /** Decodes a burst frame into an upright page bitmap that fits the viewer. */
+    private Bitmap decodeFrame(String path) throws IOException {
+        byte[] jpeg = readFile(path);
+        int orientation = new ExifView(jpeg).getOrientation();
+
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, o);
+        if (o.outWidth <= 0 || o.outHeight <= 0) return null;
+        boolean swap = orientation % 180 != 0;
+        int w = swap ? o.outHeight : o.outWidth;
+        int h = swap ? o.outWidth : o.outHeight;
+        float scale = Math.min(1f, Math.min((float) mViewWidth / w, (float) mViewHeight / h));
+        int sample = 1;
+        while (sample * 2 * scale <= 1f) {
+            sample *= 2;
+        }
+
+        o.inJustDecodeBounds = false;
+        o.inSampleSize = sample;
+        o.inMutable = true;
+        o.inBitmap = obtainFree(mFreeFrames);
+        Bitmap frame;
+        try {
+            frame = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, o);
+        } catch (IllegalArgumentException e) {
+            // The free frame could not be reused for this one.
+            recycle(o.inBitmap);
+            o.inBitmap = null;
+            frame = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, o);
+        }
+        if (frame == null) {
+            recycle(o.inBitmap);
+            return null;
+        }
+
+        int pageWidth = Math.max(1, Math.round(w * scale));
+        int pageHeight = Math.max(1, Math.round(h * scale));
+        Bitmap page = obtainPage(pageWidth, pageHeight);
+        int fw = frame.getWidth();
+        int fh = frame.getHeight();
+        float drawScale = (float) pageWidth / (swap ? fh : fw);
+        Matrix matrix = new Matrix();
+        matrix.setTranslate(-fw / 2f, -fh / 2f);
+        matrix.postRotate(orientation);
+        matrix.postScale(drawScale, drawScale);
+        matrix.postTranslate(pageWidth / 2f, pageHeight / 2f);
+        new Canvas(page).drawBitmap(frame, matrix, mPaint);
+        synchronized (this) {
+            mFreeFrames.add(frame);
+        }
+        return page;
+    }
+
+    /** Decodes a compressed page, reusing a free page bitmap if there is one. */
+    private Bitmap decodePage(int index) {
+        byte[] compressed;
+        synchronized (this) {
+            compressed = mPages[index];
+        }
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inMutable = true;
+        o.inBitmap = obtainFree(mFreePages);
+        try {
+            return BitmapFactory.decodeByteArray(compressed, 0, compressed.length, o);
+        } catch (IllegalArgumentException e) {
+            recycle(o.inBitmap);
+            o.inBitmap = null;
+            return BitmapFactory.decodeByteArray(compressed, 0, compressed.length, o);
+        }
+    }
+
+    private Bitmap obtainPage(int width, int height) {
+        Bitmap page = obtainFree(mFreePages);
+        if (page != null && page.getWidth() == width && page.getHeight() == height) {
+            page.eraseColor(0);
+            return page;
+        }
+        recycle(page);
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private synchronized Bitmap obtainFree(ArrayDeque<Bitmap> free) {
+        return free.poll();
+    }
+
+    private static void recycle(Bitmap bitmap) {
+        if (bitmap != null) bitmap.recycle();
+    }
+
+    private static byte[] readFile(String path) throws IOException {
+        File file = new File(path);
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int read = in.read(data, n, data.length - n);
+                if (read < 0) break;
+                n += read;
+            }
+            if (n < data.length) {
+                throw new IOException("Short read " + n + "/" + data.length + " of " + path);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
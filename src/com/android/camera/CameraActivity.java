@@ -104,6 +104,7 @@ import com.android.camera.data.LocalMediaObserver;
 import com.android.camera.data.MediaDetails;
 import com.android.camera.data.SimpleViewData;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifView;
 import com.android.camera.tinyplanet.TinyPlanetFragment;
 import com.android.camera.multi.MultiCameraModule;
 import com.android.camera.ui.ModuleSwitcher;
@@ -119,13 +120,16 @@ import com.android.camera.util.IntentHelper;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.PhotoSphereHelper;
 import com.android.camera.util.PhotoSphereHelper.PanoramaViewHelper;
+import com.android.camera.util.StartupTimeline;
 import com.android.camera.util.UsageStatistics;
 import org.codeaurora.snapcam.R;
 
 import org.lineageos.quickreader.ScannerActivity;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import static com.android.camera.CameraManager.CameraOpenErrorCallback;
 
@@ -273,6 +277,7 @@ public class CameraActivity extends Activity
     private UpdateThumbnailTask mUpdateThumbnailTask;
     private CircularDrawable mThumbnailDrawable;
     private Bitmap mThumbnailBitmap;
+    private ThumbnailProvider mThumbnailProvider;
     // FilmStripView.setDataAdapter fires 2 onDataLoaded calls before any data is actually loaded
     // Keep track of data request here to avoid creating useless UpdateThumbnailTask.
     private boolean mDataRequested;
@@ -310,6 +315,7 @@ public class CameraActivity extends Activity
         public void onServiceConnected(ComponentName className, IBinder b) {
             mMediaSaveService = ((MediaSaveService.LocalBinder) b).getService();
             mCurrentModule.onMediaSaveServiceConnected(mMediaSaveService);
+            StartupTimeline.endPhase(StartupTimeline.MEDIA_SAVE_BIND);
         }
 
         @Override
@@ -787,15 +793,47 @@ public class CameraActivity extends Activity
     }
 
     public void updateThumbnail(final byte[] jpegData) {
+        updateThumbnail(jpegData, -1);
+    }
+
+    /**
+     * Same as {@link #updateThumbnail(byte[])} for callers that already know
+     * the orientation, which saves parsing the EXIF again. Pass -1 if unknown.
+     */
+    public void updateThumbnail(final byte[] jpegData, int orientation) {
+        updateThumbnail(jpegData, null, orientation);
+    }
+
+    /**
+     * Same as {@link #updateThumbnail(byte[], int)} reusing the EXIF the
+     * caller already read from jpegData, or null to index it here.
+     */
+    public void updateThumbnail(final byte[] jpegData, ExifView exif, int orientation) {
         if (mUpdateThumbnailTask != null) mUpdateThumbnailTask.cancel(true);
         mUpdateThumbnailTask = new UpdateThumbnailTask(jpegData, true);
+        mUpdateThumbnailTask.mExif = exif;
+        mUpdateThumbnailTask.mOrientation = orientation;
+        mUpdateThumbnailTask.execute();
+    }
+
+    /**
+     * Same as {@link #updateThumbnail(byte[], ExifView, int)} for a capture
+     * still in its buffer. Takes over the caller's reference to image.
+     */
+    public void updateThumbnail(EncodedImage image, ExifView exif, int orientation) {
+        if (mUpdateThumbnailTask != null) mUpdateThumbnailTask.cancel(true);
+        mUpdateThumbnailTask = new UpdateThumbnailTask(null, true);
+        mUpdateThumbnailTask.mEncoded = image;
+        mUpdateThumbnailTask.mExif = exif;
+        mUpdateThumbnailTask.mOrientation = orientation;
         mUpdateThumbnailTask.execute();
     }
 
     public void updateThumbnail(final Bitmap bitmap) {
         if (bitmap == null) return;
-        if (mThumbnailBitmap != null)
-            mThumbnailBitmap.recycle();
+        if (mThumbnailBitmap != bitmap) {
+            mThumbnailProvider.recycle(mThumbnailBitmap);
+        }
         mThumbnailBitmap = bitmap;
         mThumbnailDrawable = new CircularDrawable(bitmap);
         if (mThumbnail != null) {
@@ -851,8 +889,14 @@ public class CameraActivity extends Activity
         }
     }
 
+    public ThumbnailProvider getThumbnailProvider() {
+        return mThumbnailProvider;
+    }
+
     private class UpdateThumbnailTask extends AsyncTask<Void, Void, Bitmap> {
         private byte[] mJpegData;
+        private EncodedImage mEncoded;
+        private ExifView mExif;
         private boolean mCheckOrientation;
         private int mOrientation = -1;
 
@@ -863,7 +907,7 @@ public class CameraActivity extends Activity
 
         @Override
         protected Bitmap doInBackground(Void... params) {
-            if (mJpegData != null)
+            if (mJpegData != null || mEncoded != null)
                 return decodeImageCenter(null);
 
             LocalDataAdapter adapter = getDataAdapter();
@@ -901,15 +945,25 @@ public class CameraActivity extends Activity
             }
 
             mJpegData = null;
+            mExif = null;
+            releaseEncoded();
         }
 
         @Override
         protected void onCancelled(Bitmap bitmap) {
-            if(bitmap != null)
-                bitmap.recycle();
+            mThumbnailProvider.recycle(bitmap);
 
             bitmap = null;
             mJpegData = null;
+            mExif = null;
+            releaseEncoded();
+        }
+
+        private void releaseEncoded() {
+            if (mEncoded != null) {
+                mEncoded.release();
+                mEncoded = null;
+            }
         }
 
         private Bitmap decodeImageCenter(final String path) {
@@ -917,17 +971,20 @@ public class CameraActivity extends Activity
             // Panorama module generates thumbnail bitmap with orientation adjustment but only
             // saves jpeg with orientation tag set.
             int orientation = 0;
+            ExifView jpegExif = mExif;
+            if (jpegExif == null) {
+                jpegExif = mJpegData != null ? new ExifView(mJpegData)
+                        : mEncoded != null ? new ExifView(mEncoded.getBuffer()) : null;
+            }
             if (mCheckOrientation) {
                 if (mOrientation != -1) {
                     orientation = mOrientation;
+                } else if (jpegExif != null) {
+                    orientation = jpegExif.getOrientation();
                 } else {
                     ExifInterface exif = new ExifInterface();
                     try {
-                        if (mJpegData != null) {
-                            exif.readExif(mJpegData);
-                        } else {
-                            exif.readExif(path);
-                        }
+                        exif.readExif(path);
                         orientation = Exif.getOrientation(exif);
                     } catch (IOException e) {
                         // ignore
@@ -935,6 +992,21 @@ public class CameraActivity extends Activity
                 }
             }
 
+            // Most captures carry a small thumbnail in the EXIF, which is far
+            // cheaper than decoding even a region of the full picture.
+            if (jpegExif != null) {
+                Bitmap thumbnail = mJpegData != null
+                        ? mThumbnailProvider.fromJpeg(mJpegData, jpegExif, orientation)
+                        : mThumbnailProvider.fromJpeg(mEncoded.getBuffer(), jpegExif, orientation);
+                if (thumbnail != null) {
+                    return thumbnail;
+                }
+            }
+            if (mJpegData == null && mEncoded != null) {
+                // No usable EXIF thumbnail, the region decoder needs the bytes.
+                mJpegData = mEncoded.toByteArray();
+            }
+
             final BitmapFactory.Options opt = new BitmapFactory.Options();
             opt.inJustDecodeBounds = true;
             if (mJpegData != null) {
@@ -969,15 +1041,13 @@ public class CameraActivity extends Activity
             } catch (IOException e) {
                 return null;
             }
-            Bitmap bitmap = decoder.decodeRegion(rect, opt);
-            if (orientation != 0) {
-                Matrix matrix = new Matrix();
-                matrix.setRotate(orientation);
-                bitmap =  Bitmap.createBitmap(bitmap, 0, 0,
-                        bitmap.getWidth(), bitmap.getHeight(), matrix, false);
+            Bitmap region = decoder.decodeRegion(rect, opt);
+            decoder.recycle();
+            if (region == null) {
+                return null;
             }
-            if (decoder != null)
-                decoder.recycle();
+            Bitmap bitmap = mThumbnailProvider.draw(region, orientation);
+            region.recycle();
             return bitmap;
         }
     }
@@ -1367,6 +1437,7 @@ public class CameraActivity extends Activity
     }
 
     private void bindMediaSaveService() {
+        StartupTimeline.beginPhase(StartupTimeline.MEDIA_SAVE_BIND);
         Intent intent = new Intent(this, MediaSaveService.class);
         bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
     }
@@ -1525,6 +1596,8 @@ public class CameraActivity extends Activity
 
     @Override
     public void onCreate(Bundle state) {
+        StartupTimeline.beginLaunch(StartupTimeline.COLD);
+        StartupTimeline.beginPhase(StartupTimeline.ACTIVITY_CREATE);
         super.onCreate(state);
         if (PersistUtil.isTraceEnable())
             Trace.beginSection("CameraActivity onCreate");
@@ -1537,6 +1610,8 @@ public class CameraActivity extends Activity
         }
 
         mContext = getApplicationContext();
+        mThumbnailProvider = new ThumbnailProvider(
+                getResources().getDimensionPixelSize(R.dimen.capture_size));
 
         // Check if this is in the secure camera mode.
         Intent intent = getIntent();
@@ -1631,7 +1706,9 @@ public class CameraActivity extends Activity
         mOrientationListener = new MyOrientationEventListener(this);
         setContentView(R.layout.camera_filmstrip);
         mFilmStripView = (FilmStripView) findViewById(R.id.filmstrip_view);
+        StartupTimeline.beginPhase(StartupTimeline.MODULE_INIT);
         setModuleFromIndex(moduleIndex);
+        StartupTimeline.endPhase(StartupTimeline.MODULE_INIT);
 
         mActionBar = getActionBar();
         mActionBar.addOnMenuVisibilityListener(this);
@@ -1674,6 +1751,7 @@ public class CameraActivity extends Activity
             mDataAdapter = mWrappedDataAdapter;
             mFilmStripView.setDataAdapter(mDataAdapter);
             if (!isCaptureIntent()) {
+                StartupTimeline.beginPhase(StartupTimeline.FILMSTRIP_LOAD);
                 mDataAdapter.requestLoad(getContentResolver());
                 mDataRequested = true;
             }
@@ -1731,6 +1809,7 @@ public class CameraActivity extends Activity
             registerAutoTestReceiver();
         }
 
+        StartupTimeline.endPhase(StartupTimeline.ACTIVITY_CREATE);
         if (PersistUtil.isTraceEnable())
             Trace.endSection();
     }
@@ -1778,6 +1857,7 @@ public class CameraActivity extends Activity
             super.onPause();
             return;
         }
+        StartupTimeline.abortLaunch();
         // Delete photos that are pending deletion
         performDeletion();
         mOrientationListener.disable();
@@ -1869,6 +1949,7 @@ public class CameraActivity extends Activity
     public void onResume() {
         if (PersistUtil.isTraceEnable())
             Trace.beginSection("CameraActivity onResume");
+        StartupTimeline.beginPhase(StartupTimeline.ACTIVITY_RESUME);
         if (mSecureCamera && !hasCriticalPermissions()) {
             super.onResume();
             showOpenCameraErrorDialog();
@@ -1887,7 +1968,9 @@ public class CameraActivity extends Activity
         }
         mSettingsManager = SettingsManager.getInstance();
         if (mSettingsManager == null) {
+            StartupTimeline.beginPhase(StartupTimeline.SETTINGS_MANAGER);
             mSettingsManager = SettingsManager.createInstance(this);
+            StartupTimeline.endPhase(StartupTimeline.SETTINGS_MANAGER);
         }
         // Hide action bar first since we are in full screen mode first, and
         // switch the system UI to lights-out mode.
@@ -1926,9 +2009,11 @@ public class CameraActivity extends Activity
         if (!mSecureCamera) {
             // If it's secure camera, requestLoad() should not be called
             // as it will load all the data.
+            StartupTimeline.beginPhase(StartupTimeline.FILMSTRIP_LOAD);
             mDataAdapter.requestLoad(getContentResolver());
             mThumbnailDrawable = null;
         }
+        StartupTimeline.endPhase(StartupTimeline.ACTIVITY_RESUME);
         if (PersistUtil.isTraceEnable())
             Trace.endSection();
     }
@@ -1957,6 +2042,18 @@ public class CameraActivity extends Activity
         }
     }
 
+    @Override
+    protected void onRestart() {
+        super.onRestart();
+        StartupTimeline.beginLaunch(StartupTimeline.WARM);
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        StartupTimeline.dump(prefix, writer);
+    }
+
     @Override
     public void onStart() {
         super.onStart();
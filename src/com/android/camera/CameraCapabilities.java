@@ -0,0 +1,341 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera;
+
+import android.content.Context;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.graphics.ImageFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts of a camera's CameraCharacteristics that SettingsManager needs
+ * to build its option lists, kept in a file so later launches do not have
+ * to ask cameraserver for every camera. The file is tied to the build
+ * fingerprint and the list of camera ids, and is ignored and rewritten
+ * when either changes.
+ */
+public class CameraCapabilities {
+    private static final String TAG = "SnapCam_CameraCapabilities";
+    private static final String CACHE_FILE = "camera_capabilities";
+    private static final int MAGIC = 0x43415053; // "CAPS"
+    // Bump whenever the layout or the way a field is derived changes.
+    private static final int VERSION = 1;
+
+    public final String id;
+    public final int facing;
+    // CaptureModule.TYPE_*, or -1 if the HAL does not report one.
+    public final int logicalCameraType;
+    public final boolean monoOnly;
+    public final boolean flashAvailable;
+    public final int[] aeModes;
+    public final int[] awbModes;
+    public final int[] effects;
+    public final int[] sceneModes;
+    public final String[] isoValues;
+    public final Size[] jpegSizes;
+    public final Size[] jpegHighResolutionSizes;
+    public final Size[] recorderSizes;
+
+    private CameraCapabilities(String id, int facing, int logicalCameraType, boolean monoOnly, boolean flashAvailable,
+            int[] aeModes, int[] awbModes, int[] effects, int[] sceneModes,
+            String[] isoValues, Size[] jpegSizes, Size[] jpegHighResolutionSizes,
+            Size[] recorderSizes) {
+        this.id = id;
+        this.facing = facing;
+        this.logicalCameraType = logicalCameraType;
+        this.monoOnly = monoOnly;
+        this.flashAvailable = flashAvailable;
+        this.aeModes = aeModes;
+        this.awbModes = awbModes;
+        this.effects = effects;
+        this.sceneModes = sceneModes;
+        this.isoValues = isoValues;
+        this.jpegSizes = jpegSizes;
+        this.jpegHighResolutionSizes = jpegHighResolutionSizes;
+        this.recorderSizes = recorderSizes;
+    }
+
+    public static CameraCapabilities from(String id, CameraCharacteristics characteristics) {
+        byte monoOnly = 0;
+        try {
+            monoOnly = characteristics.get(CaptureModule.MetaDataMonoOnlyKey);
+        } catch (Exception e) {
+        }
+        int logicalCameraType = -1;
+        try {
+            Byte type = characteristics.get(CaptureModule.logical_camera_type);
+            if (type != null) logicalCameraType = type;
+        } catch (IllegalArgumentException e) {
+            // No vendor tag
+        }
+        Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        StreamConfigurationMap map = characteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        return new CameraCapabilities(id,
+                characteristics.get(CameraCharacteristics.LENS_FACING),
+                logicalCameraType,
+                monoOnly == 1,
+                flash != null && flash,
+                nonNull(characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_MODES)),
+                nonNull(characteristics.get(CameraCharacteristics.CONTROL_AWB_AVAILABLE_MODES)),
+                nonNull(characteristics.get(CameraCharacteristics.CONTROL_AVAILABLE_EFFECTS)),
+                nonNull(characteristics.get(CameraCharacteristics.CONTROL_AVAILABLE_SCENE_MODES)),
+                isoValues(characteristics),
+                nonNull(map.getOutputSizes(ImageFormat.JPEG)),
+                nonNull(map.getHighResolutionOutputSizes(ImageFormat.JPEG)),
+                nonNull(map.getOutputSizes(MediaRecorder.class)));
+    }
+
+    private static int[] nonNull(int[] values) {
+        return values == null ? new int[0] : values;
+    }
+
+    private static Size[] nonNull(Size[] values) {
+        return values == null ? new Size[0] : values;
+    }
+
+    private static String[] isoValues(CameraCharacteristics characteristics) {
+        List<String> supportedIso = new ArrayList<>();
+        supportedIso.add("auto");
+        try {
+            int[] modes = characteristics.get(CaptureModule.ISO_AVAILABLE_MODES);
+            if (modes != null) {
+                for (int iso : modes) {
+                    for (String key : SettingsManager.KEY_ISO_INDEX.keySet()) {
+                        if (SettingsManager.KEY_ISO_INDEX.get(key).equals(iso)) {
+                            supportedIso.add(key);
+                        }
+                    }
+                }
+            } else {
+                Log.w(TAG, "Supported ISO range is null.");
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "IllegalArgumentException Supported ISO_AVAILABLE_MODES is wrong.");
+
+            Range<Integer> range = characteristics.get(
+                    CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+            if (range != null) {
+                int max = range.getUpper();
+                int value = 50;
+                while (value <= max) {
+                    if (range.contains(value)) {
+                        supportedIso.add(String.valueOf(value));
+                    }
+                    value += 50;
+                }
+            } else {
+                Log.w(TAG, "Supported ISO range is null.");
+            }
+        }
+        return supportedIso.toArray(new String[supportedIso.size()]);
+    }
+
+    public static File getCacheFile(Context context) {
+        return new File(context.getCacheDir(), CACHE_FILE);
+    }
+
+    /**
+     * Returns the cached capabilities of the given cameras, or null if there
+     * is no cache or it was written by another build or for other cameras.
+     */
+    public static CameraCapabilities[] read(Context context, String[] cameraIds) {
+        File file = getCacheFile(context);
+        if (!file.exists()) return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || !Build.FINGERPRINT.equals(readString(buffer))) {
+                return null;
+            }
+            int count = buffer.getInt();
+            if (count != cameraIds.length) return null;
+            CameraCapabilities[] capabilities = new CameraCapabilities[count];
+            for (int i = 0; i < count; i++) {
+                capabilities[i] = read(buffer);
+                if (!capabilities[i].id.equals(cameraIds[i])) return null;
+            }
+            return capabilities;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Ignoring unreadable capability cache", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /** Replaces the cache file. Safe to call off the main thread. */
+    public static void write(Context context, CameraCapabilities[] capabilities) {
+        File file = getCacheFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, Build.FINGERPRINT);
+            out.writeInt(capabilities.length);
+            for (CameraCapabilities c : capabilities) {
+                c.write(out);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "Failed to replace " + file);
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write capability cache", e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        writeString(out, id);
+        out.writeInt(facing);
+        out.writeInt(logicalCameraType);
+        out.writeBoolean(monoOnly);
+        out.writeBoolean(flashAvailable);
+        writeInts(out, aeModes);
+        writeInts(out, awbModes);
+        writeInts(out, effects);
+        writeInts(out, sceneModes);
+        out.writeInt(isoValues.length);
+        for (String iso : isoValues) {
+            writeString(out, iso);
+        }
+        writeSizes(out, jpegSizes);
+        writeSizes(out, jpegHighResolutionSizes);
+        writeSizes(out, recorderSizes);
+    }
+
+    private static CameraCapabilities read(ByteBuffer in) {
+        String id = readString(in);
+        int facing = in.getInt();
+        int logicalCameraType = in.getInt();
+        boolean monoOnly = in.get() != 0;
+        boolean flashAvailable = in.get() != 0;
+        int[] aeModes = readInts(in);
+        int[] awbModes = readInts(in);
+        int[] effects = readInts(in);
+        int[] sceneModes = readInts(in);
+        String[] isoValues = new String[readLength(in)];
+        for (int i = 0; i < isoValues.length; i++) {
+            isoValues[i] = readString(in);
+        }
+        return new CameraCapabilities(id, facing, logicalCameraType, monoOnly, flashAvailable, aeModes, awbModes,
+                effects, sceneModes, isoValues, readSizes(in), readSizes(in), readSizes(in));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[readLength(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] values = new int[readLength(in)];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + values.length * 4);
+        return values;
+    }
+
+    private static void writeSizes(DataOutputStream out, Size[] sizes) throws IOException {
+        out.writeInt(sizes.length);
+        for (Size size : sizes) {
+            out.writeInt(size.getWidth());
+            out.writeInt(size.getHeight());
+        }
+    }
+
+    private static Size[] readSizes(ByteBuffer in) {
+        Size[] sizes = new Size[readLength(in)];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new Size(in.getInt(), in.getInt());
+        }
+        return sizes;
+    }
+
+    // A corrupt length must not turn into a huge allocation.
+    private static int readLength(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Bad length " + length);
+        }
+        return length;
+    }
+
+}
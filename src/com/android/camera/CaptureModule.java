@@ -106,6 +106,7 @@ import com.android.camera.deepportrait.CamGLRenderer;
 import com.android.camera.deepportrait.DPImage;
 import com.android.camera.deepportrait.GLCameraPreview;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifView;
 import com.android.camera.imageprocessor.filter.BlurbusterFilter;
 import com.android.camera.imageprocessor.filter.ChromaflashFilter;
 import com.android.camera.imageprocessor.filter.DeepPortraitFilter;
@@ -128,6 +129,7 @@ import com.android.camera.util.ApiHelper;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.PersistUtil;
 import com.android.camera.util.SettingTranslation;
+import com.android.camera.util.StartupTimeline;
 import com.android.camera.util.AccessibilityUtils;
 import com.android.camera.util.VendorTagUtil;
 
@@ -245,6 +247,8 @@ public class CaptureModule implements CameraModule, PhotoController,
     private boolean mLongshoting = false;
     private AtomicInteger mNumFramesArrived = new AtomicInteger(0);
     private final int MAX_IMAGEREADERS = 10;
+    // Buffers of the capture reader never handed out as EncodedImages.
+    private static final int JPEG_READER_RESERVE = 2;
 
     private boolean mIsRTBCameraId = false;
 
@@ -673,12 +677,22 @@ public class CaptureModule implements CameraModule, PhotoController,
     private HeifWriter mInitHeifWriter;
     private OutputConfiguration mHeifOutput;
     private HeifImage mHeifImage;
+    private HeifBurstSession mHeifBurst;
+    private CaptureRequest.Builder mHeifBurstCaptureBuilder;
+    private CaptureRequest.Builder mHeifBurstPreviewBuilder;
+    private int mHeifBurstPreviewPadding;
     private HeifWriter mLiveShotInitHeifWriter;
     private OutputConfiguration mLiveShotOutput;
     private HeifImage mLiveShotImage;
     private NamedImages mNamedImages;
     private ContentResolver mContentResolver;
     private byte[] mLastJpegData;
+    private int mLastJpegOrientation = -1;
+    private ExifView mLastJpegExif;
+    // Longshot keeps the newest capture for the thumbnail shown once saving catches up.
+    private final Object mLastJpegLock = new Object();
+    private EncodedImage mLastJpegImage;
+    private EncodedImage.Budget[] mJpegImageBudget = new EncodedImage.Budget[MAX_NUM_CAM];
     private int mJpegFileSizeEstimation;
     private boolean mFirstPreviewLoaded;
     private int[] mPrecaptureRequestHashCode = new int[MAX_NUM_CAM];
@@ -809,7 +823,23 @@ public class CaptureModule implements CameraModule, PhotoController,
                     if (uri != null)
                         mActivity.notifyNewMedia(uri);
                     mActivity.updateStorageSpaceAndHint();
-                    if (mLastJpegData != null) mActivity.updateThumbnail(mLastJpegData);
+                    EncodedImage lastImage = null;
+                    byte[] lastData;
+                    ExifView lastExif;
+                    int lastOrientation;
+                    synchronized (mLastJpegLock) {
+                        if (mLastJpegImage != null) {
+                            lastImage = mLastJpegImage.retain();
+                        }
+                        lastData = mLastJpegData;
+                        lastExif = mLastJpegExif;
+                        lastOrientation = mLastJpegOrientation;
+                    }
+                    if (lastImage != null) {
+                        mActivity.updateThumbnail(lastImage, lastExif, lastOrientation);
+                    } else if (lastData != null) {
+                        mActivity.updateThumbnail(lastData, lastExif, lastOrientation);
+                    }
                 }
             });
             mediaSaveNotifyThread = null;
@@ -817,7 +847,37 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     public void updateThumbnailJpegData(byte[] jpegData) {
-        mLastJpegData = jpegData;
+        updateThumbnailJpegData(jpegData, -1);
+    }
+
+    // orientation is in degrees, or -1 to read it from the jpeg.
+    public void updateThumbnailJpegData(byte[] jpegData, int orientation) {
+        updateThumbnailJpegData(jpegData, null, orientation);
+    }
+
+    // exif is the view the caller already read over jpegData, or null.
+    public void updateThumbnailJpegData(byte[] jpegData, ExifView exif, int orientation) {
+        setLastJpeg(jpegData, null, exif, orientation);
+    }
+
+    // Takes over the caller's reference to image.
+    private void updateThumbnailJpegData(EncodedImage image, ExifView exif, int orientation) {
+        setLastJpeg(null, image, exif, orientation);
+    }
+
+    private void setLastJpeg(byte[] jpegData, EncodedImage image, ExifView exif,
+            int orientation) {
+        EncodedImage old;
+        synchronized (mLastJpegLock) {
+            old = mLastJpegImage;
+            mLastJpegImage = image;
+            mLastJpegData = jpegData;
+            mLastJpegExif = exif;
+            mLastJpegOrientation = orientation;
+        }
+        if (old != null) {
+            old.release();
+        }
     }
 
     private MediaSaveNotifyThread mediaSaveNotifyThread;
@@ -954,6 +1014,8 @@ public class CaptureModule implements CameraModule, PhotoController,
                     }
                 });
                 mFirstPreviewLoaded = true;
+                StartupTimeline.endPhase(StartupTimeline.FIRST_PREVIEW);
+                StartupTimeline.finishLaunch();
             }
             if (id == getMainCameraId()) {
                 mPreviewCaptureResult = result;
@@ -1329,6 +1391,8 @@ public class CaptureModule implements CameraModule, PhotoController,
             if (mPaused) {
                 return;
             }
+            StartupTimeline.endPhase(StartupTimeline.OPEN_CAMERA);
+            StartupTimeline.beginPhase(StartupTimeline.FIRST_PREVIEW);
 
             mCameraDevice[id] = cameraDevice;
             mCameraOpened[id] = true;
@@ -2391,32 +2455,21 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void initCameraIds() {
-        CameraManager manager = (CameraManager) mActivity.getSystemService(Context.CAMERA_SERVICE);
         boolean isFirstDefault = true;
         boolean[] removeList = new boolean[mSelectableModes.length];
         for (int i = 0; i < mSelectableModes.length; i++) {
             removeList[i] = true;
         }
-        String[] cameraIdList = null;
-        try {
-            cameraIdList = manager.getCameraIdList();
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
-        if (cameraIdList == null || cameraIdList.length == 0) {
+        int cameraCount = mSettingsManager.getCameraCount();
+        if (cameraCount == 0) {
             return;
         }
-        for (int i = 0; i < cameraIdList.length; i++) {
-            String cameraId = cameraIdList[i];
+        // The cached capabilities save a binder call per camera here.
+        for (int i = 0; i < cameraCount; i++) {
+            CameraCapabilities capabilities = mSettingsManager.getCapabilities(i);
+            String cameraId = capabilities.id;
             mCameraId[i] = cameraId;
-            CameraCharacteristics characteristics;
-            try {
-                characteristics = manager.getCameraCharacteristics(cameraId);
-            } catch (CameraAccessException e) {
-                e.printStackTrace();
-                continue;
-            }
-            isFirstDefault = setUpLocalMode(i, characteristics, removeList,
+            isFirstDefault = setUpLocalMode(i, capabilities, removeList,
                     isFirstDefault, cameraId);
         }
         for (int i = 0; i < removeList.length; i++) {
@@ -2432,17 +2485,16 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
-    private boolean setUpLocalMode(int cameraId, CameraCharacteristics characteristics,
+    private boolean setUpLocalMode(int cameraId, CameraCapabilities capabilities,
                                 boolean[] removeList, boolean isFirstDefault, String physicalId) {
-        Byte type = 0;
-        try {
-            type = characteristics.get(logical_camera_type);
-        } catch (IllegalArgumentException e) {
+        int type = capabilities.logicalCameraType;
+        if (type == -1) {
             Log.e(TAG, "setUpLocalMode no vendorTag logical_camera_type:" + logical_camera_type);
+            type = TYPE_DEFAULT;
         }
         Log.d(TAG,"init cameraId " + cameraId + " | logical_camera_type = " + type +
                 " | physical id = " + physicalId);
-        int facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        int facing = capabilities.facing;
         switch (type) {
             case TYPE_DEFAULT:// default
                 removeList[CameraMode.DEFAULT.ordinal()] = false;
@@ -2925,6 +2977,10 @@ public class CaptureModule implements CameraModule, PhotoController,
                             orientation,imageCount,quality);
                     if (writer != null) {
                         mHeifImage = new HeifImage(writer,path,title,date,orientation,quality);
+                        if (mLongshotActive) {
+                            mHeifBurst = new HeifBurstSession(mHeifImage, imageCount,
+                                    PersistUtil.getHeifBurstMaxInflight());
+                        }
                         Surface input = writer.getInputSurface();
                         mHeifOutput.addSurface(input);
                         try{
@@ -3029,6 +3085,10 @@ public class CaptureModule implements CameraModule, PhotoController,
                     checkAndPlayShutterSound(getMainCameraId());
                 }
                 mLongshoting = false;
+                if (mHeifBurst != null) {
+                    mHeifBurst.onCompleted(result.getFrameNumber());
+                    submitHeifBurstWindow(getMainCameraId());
+                }
             }
 
             @Override
@@ -3040,11 +3100,16 @@ public class CaptureModule implements CameraModule, PhotoController,
                 }
                 mLongshoting = true;
                 mNumFramesArrived.incrementAndGet();
+                if (mHeifBurst != null) {
+                    mHeifBurst.onStarted(frameNumber, timestamp);
+                }
                 if(mNumFramesArrived.get() == mShotNum) {
                     mLastLongshotTimestamp = timestamp;
                 }
                 Log.d(TAG, "captureStillPictureForLongshot onCaptureStarted: " + mNumFramesArrived.get());
-                if (mNumFramesArrived.get() >= mShotNum) {
+                // A HEIF burst counts delivered frames itself and retries lost
+                // ones, so it ends when the session is full, not on arrivals.
+                if (mHeifBurst == null && mNumFramesArrived.get() >= mShotNum) {
                     mLongshotActive = false;
                 }
             }
@@ -3055,12 +3120,44 @@ public class CaptureModule implements CameraModule, PhotoController,
                                         CaptureFailure result) {
                 Log.d(TAG, "captureStillPictureForLongshot onCaptureFailed.");
                 mLongshoting = false;
+                if (mHeifBurst != null && !"preview".equals(String.valueOf(request.getTag()))) {
+                    mHeifBurst.onFailed(result.getFrameNumber());
+                    submitHeifBurstWindow(getMainCameraId());
+                }
+            }
+
+            @Override
+            public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request,
+                    Surface target, long frameNumber) {
+                HeifBurstSession burst = mHeifBurst;
+                if (burst != null && target == burst.getImage().getInputSurface()) {
+                    burst.onBufferLost(frameNumber);
+                }
+            }
+
+            @Override
+            public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId) {
+                // The session is going away; keep whatever the writer already has.
+                if (mHeifBurst != null) {
+                    mLongshotActive = false;
+                    finishHeifBurst(session);
+                    mLongshoting = false;
+                    mNumFramesArrived.getAndSet(0);
+                }
             }
 
             @Override
             public void onCaptureSequenceCompleted(CameraCaptureSession session, int
                             sequenceId, long frameNumber) {
-                if (mSettingsManager.isHeifWriterEncoding()) {
+                if (mHeifBurst != null) {
+                    // Later windows are still being captured.
+                    if (!mHeifBurst.isIdle()
+                            || (mLongshotActive && !mHeifBurst.isFull() && !mPaused)) {
+                        return;
+                    }
+                    mLongshotActive = false;
+                    finishHeifBurst(session);
+                } else if (mSettingsManager.isHeifWriterEncoding()) {
                     mLongshotActive = false;
                     if (mHeifImage != null) {
                         try {
@@ -3123,17 +3220,25 @@ public class CaptureModule implements CameraModule, PhotoController,
         addPreviewSurface(builder, null, id);
         applyCommonSettings(builder, id);
         applyFlash(builder, id);
-        if(totalNums < 60) totalNums = totalNums *2;
-        if (DEBUG) Log.i(TAG,"burstShotFpsNums:" + burstShotFpsNums + ",totalNums:" + totalNums);
-        for (int i = 0; i < totalNums; i++) {
-            for (int j = 0; j < burstShotFpsNums; j++) {
-                builder.setTag("preview");
-                burstList.add(builder.build());
+        if (mHeifBurst != null) {
+            // The encoder paces a HEIF burst; it is issued a window at a time.
+            mHeifBurstCaptureBuilder = captureBuilder;
+            mHeifBurstPreviewBuilder = builder;
+            mHeifBurstPreviewPadding = burstShotFpsNums;
+            submitHeifBurstWindow(id);
+        } else {
+            if(totalNums < 60) totalNums = totalNums *2;
+            if (DEBUG) Log.i(TAG,"burstShotFpsNums:" + burstShotFpsNums + ",totalNums:" + totalNums);
+            for (int i = 0; i < totalNums; i++) {
+                for (int j = 0; j < burstShotFpsNums; j++) {
+                    builder.setTag("preview");
+                    burstList.add(builder.build());
+                }
+                captureBuilder.setTag("capture");
+                burstList.add(captureBuilder.build());
             }
-            captureBuilder.setTag("capture");
-            burstList.add(captureBuilder.build());
+            mCaptureSession[id].captureBurst(burstList, mLongshotCallBack, mCaptureCallbackHandler);
         }
-        mCaptureSession[id].captureBurst(burstList, mLongshotCallBack, mCaptureCallbackHandler);
         mActivity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -3142,6 +3247,85 @@ public class CaptureModule implements CameraModule, PhotoController,
         });
     }
 
+    /**
+     * Tops up a HEIF longshot to its in-flight window. Called once to start
+     * the burst and again as each capture completes or fails.
+     */
+    private void submitHeifBurstWindow(int id) {
+        HeifBurstSession burst = mHeifBurst;
+        if (burst == null) {
+            return;
+        }
+        int permits = 0;
+        if (mLongshotActive && !mPaused && mCamerasOpened && mCaptureSession[id] != null) {
+            permits = burst.acquirePermits();
+        }
+        if (permits > 0) {
+            List<CaptureRequest> burstList = new ArrayList<>();
+            for (int i = 0; i < permits; i++) {
+                for (int j = 0; j < mHeifBurstPreviewPadding; j++) {
+                    mHeifBurstPreviewBuilder.setTag("preview");
+                    burstList.add(mHeifBurstPreviewBuilder.build());
+                }
+                mHeifBurstCaptureBuilder.setTag("capture");
+                burstList.add(mHeifBurstCaptureBuilder.build());
+            }
+            try {
+                mCaptureSession[id].captureBurst(burstList, mLongshotCallBack,
+                        mCaptureCallbackHandler);
+                return;
+            } catch (CameraAccessException | IllegalStateException e) {
+                Log.e(TAG, "HEIF burst window not submitted: " + e);
+                for (int i = 0; i < permits; i++) {
+                    burst.onFailed(-1);
+                }
+            }
+        }
+        // Nothing new was submitted; once nothing is in flight either, no
+        // capture callback is left to close the file out, so do it here.
+        if (burst.isIdle()) {
+            mLongshotActive = false;
+            finishHeifBurst(mCaptureSession[id]);
+            mLongshoting = false;
+            mNumFramesArrived.getAndSet(0);
+            if (!mPaused && mCamerasOpened) {
+                unlockFocus(id);
+            }
+        }
+    }
+
+    /** Writes out the frames a HEIF longshot delivered, however many that was. */
+    private void finishHeifBurst(CameraCaptureSession session) {
+        HeifBurstSession burst = mHeifBurst;
+        mHeifBurst = null;
+        mHeifBurstCaptureBuilder = null;
+        mHeifBurstPreviewBuilder = null;
+        if (burst == null) {
+            return;
+        }
+        HeifImage image = burst.getImage();
+        try {
+            if (burst.finish(5000) > 0) {
+                mActivity.getMediaSaveService().addHEIFImage(image.getPath(),
+                        image.getTitle(), image.getDate(), null, mPictureSize.getWidth(),
+                        mPictureSize.getHeight(), image.getOrientation(), null,
+                        mContentResolver, mOnMediaSavedListener, image.getQuality(), "heics");
+            }
+        } finally {
+            try {
+                mHeifOutput.removeSurface(image.getInputSurface());
+                session.updateOutputConfiguration(mHeifOutput);
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (mHeifImage == image) {
+                mHeifImage = null;
+            }
+        }
+    }
+
     private void captureStillPictureForCommon(CaptureRequest.Builder captureBuilder, int id) throws CameraAccessException{
         checkAndPlayShutterSound(id);
         if(mLongshoting) mLongshoting = false;
@@ -3476,7 +3660,15 @@ public class CaptureModule implements CameraModule, PhotoController,
                         }
                     } else if (i == getMainCameraId()) {
                         final boolean isHeic = imageFormat == ImageFormat.HEIC;
+                        if (mImageReader[i] == null) {
+                            mJpegImageBudget[i] = new EncodedImage.Budget(MAX_IMAGEREADERS,
+                                    JPEG_READER_RESERVE);
+                        }
+                        final EncodedImage.Budget budget = mJpegImageBudget[i];
                         ImageAvailableListener listener = new ImageAvailableListener(i) {
+                            // closeImageReader clears mJpegImageBudget on another thread.
+                            private final EncodedImage.Budget mBudget = budget;
+
                             @Override
                             public void onImageAvailable(ImageReader reader) {
                                 if (PersistUtil.isTraceEnable())
@@ -3508,27 +3700,35 @@ public class CaptureModule implements CameraModule, PhotoController,
                                     NamedEntity name = mNamedImages.getNextNameEntity();
                                     String title = (name == null) ? null : name.title;
                                     long date = (name == null) ? -1 : name.date;
-                                    byte[] bytes = getJpegData(image);
                                     Log.i(TAG, "image format:" + image.getFormat());
                                     if (image.getFormat() == ImageFormat.RAW10) {
-                                        mActivity.getMediaSaveService().addRawImage(bytes, title,
-                                                "raw");
+                                        mActivity.getMediaSaveService().addRawImage(
+                                                getJpegData(image), title, "raw");
                                         image.close();
                                     } else if (image.getFormat() == ImageFormat.YUV_420_888) {
                                         Log.d(TAG,"YUV buffer received camera id =" + mCameraId);
                                         image.close();
                                     } else {
+                                        int width = image.getWidth();
+                                        int height = image.getHeight();
+                                        // May close image; only the handle is used from here.
+                                        EncodedImage encoded = mBudget.acquire(image);
                                         int orientation = 0;
-                                        ExifInterface exif = null;
-                                        if (image.getFormat() != ImageFormat.HEIC) {
-                                            exif = Exif.getExif(bytes);
-                                            orientation = Exif.getOrientation(exif);
+                                        Location loc = null;
+                                        ExifView exif = null;
+                                        if (encoded.getFormat() != ImageFormat.HEIC) {
+                                            // The HAL already wrote the EXIF; read what we
+                                            // need in place and save the bytes unchanged.
+                                            exif = new ExifView(encoded.getBuffer());
+                                            orientation = exif.getOrientation();
+                                            loc = Exif.getLocation(exif);
                                         } else {
                                             orientation = CameraUtil.getJpegRotation(getMainCameraId(),mOrientation);
                                         }
 
                                         if (mIntentMode != CaptureModule.INTENT_MODE_NORMAL &&
                                                 mIntentMode != INTENT_MODE_STILL_IMAGE_CAMERA) {
+                                            byte[] bytes = encoded.toByteArray();
                                             mJpegImageData = bytes;
                                             if (!mQuickCapture) {
                                                 showCapturedReview(bytes, orientation);
@@ -3537,25 +3737,27 @@ public class CaptureModule implements CameraModule, PhotoController,
                                             }
                                         } else {
                                             String pictureFormat = "jpeg";
-                                            if (image.getFormat() == ImageFormat.HEIC) {
+                                            if (encoded.getFormat() == ImageFormat.HEIC) {
                                                 pictureFormat = "heic";
                                             }
                                             if (mIntentMode == INTENT_MODE_STILL_IMAGE_CAMERA) {
                                                 mIntentMode = INTENT_MODE_NORMAL;
                                             }
-                                            mActivity.getMediaSaveService().addImage(bytes, title, date,
-                                                    null, image.getWidth(), image.getHeight(), orientation, exif,
-                                                    mOnMediaSavedListener, mContentResolver,pictureFormat);
+                                            mActivity.getMediaSaveService().addImage(encoded.retain(),
+                                                    title, date, loc, width, height, orientation,
+                                                    mOnMediaSavedListener, mContentResolver, pictureFormat);
 
                                             if (mLongshotActive) {
-                                                mLastJpegData = bytes;
+                                                updateThumbnailJpegData(encoded.retain(), exif,
+                                                        orientation);
                                             } else {
                                                 if (!isHeic) {
-                                                    mActivity.updateThumbnail(bytes);
+                                                    mActivity.updateThumbnail(encoded.retain(), exif,
+                                                            orientation);
                                                 }
                                             }
                                         }
-                                        image.close();
+                                        encoded.release();
                                     }
                                 }
                                 if (PersistUtil.isTraceEnable())
@@ -3688,10 +3890,12 @@ public class CaptureModule implements CameraModule, PhotoController,
                         buffer.get(bytes);
 
                         int orientation = 0;
-                        ExifInterface exif = null;
+                        Location loc = null;
+                        ExifView exif = null;
                         if (image.getFormat() != ImageFormat.HEIC){
-                            exif = Exif.getExif(bytes);
-                            orientation = Exif.getOrientation(exif);
+                            exif = new ExifView(bytes);
+                            orientation = exif.getOrientation();
+                            loc = Exif.getLocation(exif);
                         } else {
                             orientation = CameraUtil.getJpegRotation(getMainCameraId(),mOrientation);
                         }
@@ -3701,11 +3905,11 @@ public class CaptureModule implements CameraModule, PhotoController,
                         String saveFormat = image.getFormat() == ImageFormat.HEIC? "heic" : "jpeg";
 
                         mActivity.getMediaSaveService().addImage(bytes, title, date,
-                                null, image.getWidth(), image.getHeight(), orientation, exif,
+                                loc, image.getWidth(), image.getHeight(), orientation, null,
                                 mOnMediaSavedListener, mContentResolver, saveFormat);
 
                         if (image.getFormat() != ImageFormat.HEIC){
-                            mActivity.updateThumbnail(bytes);
+                            mActivity.updateThumbnail(bytes, exif, orientation);
                         }
                         image.close();
                     }
@@ -3899,9 +4103,18 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void closeImageReader() {
+        // Drop the longshot thumbnail source before its reader goes away.
+        setLastJpeg(null, null, null, -1);
         for (int i = MAX_NUM_CAM - 1; i >= 0; i--) {
             if (null != mImageReader[i]) {
-                mImageReader[i].close();
+                if (mJpegImageBudget[i] != null) {
+                    // Save and thumbnail may still be reading its images.
+                    mImageReader[i].setOnImageAvailableListener(null, null);
+                    mJpegImageBudget[i].closeReader(mImageReader[i]);
+                    mJpegImageBudget[i] = null;
+                } else {
+                    mImageReader[i].close();
+                }
                 mImageReader[i] = null;
             }
             if (null != mRawImageReader[i]) {
@@ -4028,8 +4241,8 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applySettingsForPrecapture(CaptureRequest.Builder builder, int id) {
-        String redeye = mSettingsManager.getValue(SettingsManager.KEY_REDEYE_REDUCTION);
-        if (redeye != null && redeye.equals("on") && !isFlashRequiredInDriver) {
+        boolean redeye = mSettingsManager.getCaptureSnapshot().redeyeReduction;
+        if (redeye && !isFlashRequiredInDriver) {
             if (DEBUG)
             Log.d(TAG, "Red Eye Reduction is On. " +
                     "Don't set CONTROL_AE_PRECAPTURE_TRIGGER to Start");
@@ -4223,6 +4436,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             return;
         }
         Log.d(TAG, "openCamera " + id);
+        StartupTimeline.beginPhase(StartupTimeline.OPEN_CAMERA);
         CameraManager manager;
         try {
             manager = (CameraManager) mActivity.getSystemService(Context.CAMERA_SERVICE);
@@ -6851,7 +7065,7 @@ public class CaptureModule implements CameraModule, PhotoController,
         if (seconds > 0) {
             mUI.startCountDown(seconds, true);
         } else {
-            if (mChosenImageFormat == ImageFormat.YUV_420_888 && mPostProcessor.isItBusy()) {
+            if (mChosenImageFormat == ImageFormat.YUV_420_888 && mPostProcessor.isPipelineFull()) {
                 warningToast("It's still busy processing previous scene mode request.");
                 return;
             }
@@ -7034,37 +7248,33 @@ public class CaptureModule implements CameraModule, PhotoController,
     private void applyInstantAEC(CaptureRequest.Builder request) {
         if (!VendorTagUtil.isSupported(request, CaptureModule.INSTANT_AEC_MODE))
             return;
-        String value = mSettingsManager.getValue(SettingsManager.KEY_INSTANT_AEC);
-        if (value == null || value.equals("0"))
+        int value = mSettingsManager.getCaptureSnapshot().instantAec;
+        if (value == CaptureSettingsSnapshot.NOT_SET)
             return;
-        int intValue = Integer.parseInt(value);
-        request.set(CaptureModule.INSTANT_AEC_MODE, intValue);
+        request.set(CaptureModule.INSTANT_AEC_MODE, value);
     }
 
     private void applySaturationLevel(CaptureRequest.Builder request) {
         if (!VendorTagUtil.isSupported(request, CaptureModule.SATURATION))
             return;
-        String value = mSettingsManager.getValue(SettingsManager.KEY_SATURATION_LEVEL);
-        if (value != null) {
-            int intValue = Integer.parseInt(value);
-            request.set(CaptureModule.SATURATION, intValue);
+        int value = mSettingsManager.getCaptureSnapshot().saturationLevel;
+        if (value != CaptureSettingsSnapshot.NOT_SET) {
+            request.set(CaptureModule.SATURATION, value);
         }
     }
 
     private void applyAntiBandingLevel(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_ANTI_BANDING_LEVEL);
-        if (value != null) {
-            int intValue = Integer.parseInt(value);
-            request.set(CaptureRequest.CONTROL_AE_ANTIBANDING_MODE, intValue);
+        int value = mSettingsManager.getCaptureSnapshot().antiBandingLevel;
+        if (value != CaptureSettingsSnapshot.NOT_SET) {
+            request.set(CaptureRequest.CONTROL_AE_ANTIBANDING_MODE, value);
         }
     }
 
     private void applySharpnessControlModes(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_SHARPNESS_CONTROL_MODE);
-        if (value != null) {
-            int intValue = Integer.parseInt(value);
+        int value = mSettingsManager.getCaptureSnapshot().sharpnessControl;
+        if (value != CaptureSettingsSnapshot.NOT_SET) {
             try {
-                request.set(CaptureModule.sharpness_control, intValue);
+                request.set(CaptureModule.sharpness_control, value);
             } catch (IllegalArgumentException e) {
                 e.printStackTrace();
             }
@@ -7072,18 +7282,14 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyAfModes(CaptureRequest.Builder request) {
-        if (getDevAfMode() != -1) {
-            request.set(CaptureRequest.CONTROL_AF_MODE, getDevAfMode());
+        int afMode = getDevAfMode();
+        if (afMode != -1) {
+            request.set(CaptureRequest.CONTROL_AF_MODE, afMode);
         }
     }
 
     private int getDevAfMode() {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_AF_MODE);
-        int intValue = -1;
-        if (value != null) {
-            intValue = Integer.parseInt(value);
-        }
-        return intValue;
+        return mSettingsManager.getCaptureSnapshot().afMode;
     }
 
     private void applyVideoEIS(CaptureRequest.Builder request) {
@@ -7135,92 +7341,83 @@ public class CaptureModule implements CameraModule, PhotoController,
     private void applyExposureMeteringModes(CaptureRequest.Builder request) {
         if (!VendorTagUtil.isSupported(request, CaptureModule.exposure_metering))
             return;
-        String value = mSettingsManager.getValue(SettingsManager.KEY_EXPOSURE_METERING_MODE);
-        if (value != null) {
-            int intValue = Integer.parseInt(value);
-            request.set(CaptureModule.exposure_metering, intValue);
+        int value = mSettingsManager.getCaptureSnapshot().exposureMetering;
+        if (value != CaptureSettingsSnapshot.NOT_SET) {
+            request.set(CaptureModule.exposure_metering, value);
         }
     }
 
     private void applyHistogram(CaptureRequest.Builder request) {
         if (!VendorTagUtil.isSupported(request, CaptureModule.histMode))
             return;
-        String value = mSettingsManager.getValue(SettingsManager.KEY_STATS_VISUALIZER_VALUE);
-        if (value != null ) {
-            if (value.contains("2")) {
-                final byte enable = 1;
-                request.set(CaptureModule.histMode, enable);
-                mHiston = true;
-                updateGraghViewVisibility(View.VISIBLE);
-                updateGraghView();
-                return;
-            }
+        if (mSettingsManager.getCaptureSnapshot().histogram) {
+            final byte enable = 1;
+            request.set(CaptureModule.histMode, enable);
+            mHiston = true;
+            updateGraghViewVisibility(View.VISIBLE);
+            updateGraghView();
+            return;
         }
         mHiston = false;
         updateGraghViewVisibility(View.GONE);
     }
 
     private void applyBGStats(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_STATS_VISUALIZER_VALUE);
-        if (value != null ) {
-            if (value.contains("0")){
-                final byte enable = 1;
-                try{
-                    request.set(CaptureModule.bgStatsMode, enable);
-                    mBGStatson = true;
-                } catch (IllegalArgumentException e) {
-                    mBGStatson = false;
-                }
-                if (mBGStatson) {
-                    updateBGStatsVisibility(View.VISIBLE);
-                    updateBGStatsView();
-                }
-                return;
+        if (mSettingsManager.getCaptureSnapshot().bgStats) {
+            final byte enable = 1;
+            try{
+                request.set(CaptureModule.bgStatsMode, enable);
+                mBGStatson = true;
+            } catch (IllegalArgumentException e) {
+                mBGStatson = false;
+            }
+            if (mBGStatson) {
+                updateBGStatsVisibility(View.VISIBLE);
+                updateBGStatsView();
             }
+            return;
         }
         mBGStatson = false;
         updateBGStatsVisibility(View.GONE);
     }
 
     private void applyBEStats(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_STATS_VISUALIZER_VALUE);
-        if (value != null ) {
-            if (value.contains("1")){
-                final byte enable = 1;
-                try{
-                    request.set(CaptureModule.beStatsMode, enable);
-                    mBEStatson = true;
-                }catch (IllegalArgumentException e) {
-                    mBEStatson = false;
-                }
-                if (mBEStatson) {
-                    updateBEStatsVisibility(View.VISIBLE);
-                    updateBEStatsView();
-                }
-                return;
+        if (mSettingsManager.getCaptureSnapshot().beStats) {
+            final byte enable = 1;
+            try{
+                request.set(CaptureModule.beStatsMode, enable);
+                mBEStatson = true;
+            }catch (IllegalArgumentException e) {
+                mBEStatson = false;
             }
+            if (mBEStatson) {
+                updateBEStatsVisibility(View.VISIBLE);
+                updateBEStatsView();
+            }
+            return;
         }
         mBEStatson = false;
         updateBEStatsVisibility(View.GONE);
     }
 
     private void applyWbColorTemperature(CaptureRequest.Builder request) {
+        CaptureSettingsSnapshot.ManualWbMode manualWBMode =
+                mSettingsManager.getCaptureSnapshot().manualWb;
+        if (manualWBMode == CaptureSettingsSnapshot.ManualWbMode.OFF) {
+            VendorTagUtil.setMWBDisableMode(request);
+            return;
+        }
         final SharedPreferences pref = mActivity.getSharedPreferences(
                 ComboPreferences.getLocalSharedPreferencesName(mActivity,
                         mSettingsManager.getCurrentPrepNameKey()), Context.MODE_PRIVATE);
-        String manualWBMode = mSettingsManager.getValue(SettingsManager.KEY_MANUAL_WB);
-        String cctMode = mActivity.getString(
-                R.string.pref_camera_manual_wb_value_color_temperature);
-        String gainMode = mActivity.getString(
-                R.string.pref_camera_manual_wb_value_rbgb_gains);
-        if (manualWBMode.equals(cctMode)) {
+        if (manualWBMode == CaptureSettingsSnapshot.ManualWbMode.COLOR_TEMPERATURE) {
             int colorTempValue = Integer.parseInt(pref.getString(
                     SettingsManager.KEY_MANUAL_WB_TEMPERATURE_VALUE, "-1"));
             if (colorTempValue != -1) {
                 request.set(CaptureRequest.CONTROL_AWB_MODE, CaptureRequest.CONTROL_AWB_MODE_OFF);
                 VendorTagUtil.setWbColorTemperatureValue(request, colorTempValue);
             }
-        } else if (manualWBMode.equals(gainMode)) {
+        } else {
             float rGain = pref.getFloat(SettingsManager.KEY_MANUAL_WB_R_GAIN, -1.0f);
             float gGain = pref.getFloat(SettingsManager.KEY_MANUAL_WB_G_GAIN, -1.0f);
             float bGain = pref.getFloat(SettingsManager.KEY_MANUAL_WB_B_GAIN, -1.0f);
@@ -7229,36 +7426,33 @@ public class CaptureModule implements CameraModule, PhotoController,
                 float[] gains = {rGain, gGain, bGain};
                 VendorTagUtil.setMWBGainsValue(request, gains);
             }
-        } else {
-            VendorTagUtil.setMWBDisableMode(request);
         }
     }
 
     private void applyToneMapping(CaptureRequest.Builder request) {
+        CaptureSettingsSnapshot.ToneMappingMode mode =
+                mSettingsManager.getCaptureSnapshot().toneMapping;
+        if (mode == CaptureSettingsSnapshot.ToneMappingMode.OFF) {
+            VendorTagUtil.setToneMappingDisableMode(request);
+            return;
+        }
         final SharedPreferences pref = mActivity.getSharedPreferences(
                 ComboPreferences.getLocalSharedPreferencesName(mActivity,
                         mSettingsManager.getCurrentPrepNameKey()), Context.MODE_PRIVATE);
-        String mode = mSettingsManager.getValue(SettingsManager.KEY_TONE_MAPPING);
-
-        String darkBoost = mActivity.getString(R.string.pref_camera_tone_mapping_value_dark_boost_offset);
-        String fourthTone = mActivity.getString(R.string.pref_camera_tone_mapping_value_fourth_tone_anchor);
-        String userSetting = mActivity.getString(R.string.pref_camera_tone_mapping_value_user_setting);
 
         float currentDarkBoostValue = -1.0f;
         float currentFourthToneValue = -1.0f;
-        if (mode.equals(darkBoost)) {
+        if (mode == CaptureSettingsSnapshot.ToneMappingMode.DARK_BOOST) {
             currentDarkBoostValue = pref.getFloat(SettingsManager.KEY_TONE_MAPPING_DARK_BOOST, -1.0f);
             VendorTagUtil.setToneMappingDarkBoostValue(request, currentDarkBoostValue);
-        } else if (mode.equals(fourthTone)) {
+        } else if (mode == CaptureSettingsSnapshot.ToneMappingMode.FOURTH_TONE) {
             currentFourthToneValue = pref.getFloat(SettingsManager.KEY_TONE_MAPPING_FOURTH_TONE, -1.0f);
             VendorTagUtil.setToneMappingFourthToneValue(request, currentFourthToneValue);
-        }else if (mode.equals(userSetting)){
+        } else {
             currentDarkBoostValue = pref.getFloat(SettingsManager.KEY_TONE_MAPPING_DARK_BOOST, -1.0f);
             VendorTagUtil.setToneMappingDarkBoostValue(request, currentDarkBoostValue);
             currentFourthToneValue = pref.getFloat(SettingsManager.KEY_TONE_MAPPING_FOURTH_TONE, -1.0f);
             VendorTagUtil.setToneMappingFourthToneValue(request, currentFourthToneValue);
-        } else {
-            VendorTagUtil.setToneMappingDisableMode(request);
         }
         Log.i(TAG,"applyToneMapping, mode:" + mode + ",currentDarkBoostValue:" + currentDarkBoostValue + ",currentFourthToneValue:" + currentFourthToneValue);
     }
@@ -7440,8 +7634,7 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyJpegQuality(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_JPEG_QUALITY);
-        int jpegQuality = getQualityNumber(value);
+        int jpegQuality = mSettingsManager.getCaptureSnapshot().jpegQuality;
         request.set(CaptureRequest.JPEG_QUALITY, (byte) jpegQuality);
     }
 
@@ -7462,11 +7655,10 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applySceneMode(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_SCENE_MODE);
-        String autoHdr = mSettingsManager.getValue(SettingsManager.KEY_AUTO_HDR);
-        if (value == null) return;
-        int mode = Integer.parseInt(value);
-        if (autoHdr != null && "enable".equals(autoHdr) && "0".equals(value)) {
+        CaptureSettingsSnapshot settings = mSettingsManager.getCaptureSnapshot();
+        int mode = settings.sceneMode;
+        if (mode == CaptureSettingsSnapshot.NOT_SET) return;
+        if (settings.autoHdr) {
                 request.set(CaptureRequest.CONTROL_SCENE_MODE, CaptureRequest.CONTROL_SCENE_MODE_HDR);
                 request.set(CaptureRequest.CONTROL_MODE, CaptureRequest.CONTROL_MODE_USE_SCENE_MODE);
         }
@@ -7493,18 +7685,17 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyExposure(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_EXPOSURE);
-        if (value == null) return;
-        int intValue = Integer.parseInt(value);
-        request.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, intValue);
+        int value = mSettingsManager.getCaptureSnapshot().exposureCompensation;
+        if (value == CaptureSettingsSnapshot.NOT_SET) return;
+        request.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, value);
     }
 
     private void applyIso(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_ISO);
+        CaptureSettingsSnapshot settings = mSettingsManager.getCaptureSnapshot();
         if (applyManualIsoExposure(request)) return;
-        if (value == null) return;
+        if (!settings.hasIso) return;
         boolean promode = mCurrentSceneMode.mode == CameraMode.PRO_MODE;
-        if (!promode || value.equals("auto")) {
+        if (!promode || settings.isoAuto) {
             VendorTagUtil.setIsoExpPrioritySelectPriority(request, 0);
             VendorTagUtil.setIsoExpPriority(request, 0L);
             if (request.get(CaptureRequest.SENSOR_EXPOSURE_TIME) == null) {
@@ -7514,7 +7705,7 @@ public class CaptureModule implements CameraModule, PhotoController,
                 request.set(CaptureRequest.SENSOR_SENSITIVITY, mIsoSensitivity);
             }
         } else {
-            long intValue = SettingsManager.KEY_ISO_INDEX.get(value);
+            long intValue = settings.isoPriority;
             VendorTagUtil.setIsoExpPrioritySelectPriority(request, 0);
             VendorTagUtil.setIsoExpPriority(request, intValue);
             if (request.get(CaptureRequest.SENSOR_EXPOSURE_TIME) != null) {
@@ -7531,20 +7722,13 @@ public class CaptureModule implements CameraModule, PhotoController,
 
     private boolean applyManualIsoExposure(CaptureRequest.Builder request) {
         boolean result = false;
+        CaptureSettingsSnapshot.ManualExposureMode manualExposureMode =
+                mSettingsManager.getCaptureSnapshot().manualExposure;
+        if (manualExposureMode == CaptureSettingsSnapshot.ManualExposureMode.OFF) return result;
         final SharedPreferences pref = mActivity.getSharedPreferences(
                 ComboPreferences.getLocalSharedPreferencesName(mActivity,
                         mSettingsManager.getCurrentPrepNameKey()), Context.MODE_PRIVATE);
-        String isoPriority = mActivity.getString(
-                R.string.pref_camera_manual_exp_value_ISO_priority);
-        String expTimePriority = mActivity.getString(
-                R.string.pref_camera_manual_exp_value_exptime_priority);
-        String userSetting = mActivity.getString(
-                R.string.pref_camera_manual_exp_value_user_setting);
-        String gainsPriority = mActivity.getString(
-                R.string.pref_camera_manual_exp_value_gains_priority);
-        String manualExposureMode = mSettingsManager.getValue(SettingsManager.KEY_MANUAL_EXPOSURE);
-        if (manualExposureMode == null) return result;
-        if (manualExposureMode.equals(isoPriority)) {
+        if (manualExposureMode == CaptureSettingsSnapshot.ManualExposureMode.ISO_PRIORITY) {
             int isoValue = Integer.parseInt(pref.getString(SettingsManager.KEY_MANUAL_ISO_VALUE,
                     "100"));
             VendorTagUtil.setIsoExpPrioritySelectPriority(request, 0);
@@ -7564,7 +7748,8 @@ public class CaptureModule implements CameraModule, PhotoController,
             request.set(CaptureRequest.SENSOR_EXPOSURE_TIME, null);
             request.set(CaptureRequest.SENSOR_SENSITIVITY, null);
             result = true;
-        } else if (manualExposureMode.equals(expTimePriority)) {
+        } else if (manualExposureMode ==
+                CaptureSettingsSnapshot.ManualExposureMode.EXPOSURE_TIME_PRIORITY) {
             long newExpTime = -1;
             String expTime = pref.getString(SettingsManager.KEY_MANUAL_EXPOSURE_VALUE, "0");
             try {
@@ -7581,7 +7766,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             VendorTagUtil.setIsoExpPriority(request, newExpTime);
             request.set(CaptureRequest.SENSOR_SENSITIVITY, null);
             result = true;
-        } else if (manualExposureMode.equals(userSetting)) {
+        } else if (manualExposureMode == CaptureSettingsSnapshot.ManualExposureMode.USER_SETTING) {
             mSettingsManager.setValue(SettingsManager.KEY_FLASH_MODE, "off");
             request.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
             request.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
@@ -7601,7 +7786,8 @@ public class CaptureModule implements CameraModule, PhotoController,
             request.set(CaptureRequest.SENSOR_EXPOSURE_TIME, newExpTime);
             request.set(CaptureRequest.SENSOR_SENSITIVITY, isoValue);
             result = true;
-        } else if (manualExposureMode.equals(gainsPriority)) {
+        } else if (manualExposureMode ==
+                CaptureSettingsSnapshot.ManualExposureMode.GAINS_PRIORITY) {
             float gains = pref.getFloat(SettingsManager.KEY_MANUAL_GAINS_VALUE, 1.0f);
             int[] isoRange = mSettingsManager.getIsoRangeValues(getMainCameraId());
             VendorTagUtil.setIsoExpPrioritySelectPriority(request, 0);
@@ -7736,24 +7922,22 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     private void applyColorEffect(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_COLOR_EFFECT);
-        if (value == null) return;
-        int mode = Integer.parseInt(value);
+        int mode = mSettingsManager.getCaptureSnapshot().colorEffect;
+        if (mode == CaptureSettingsSnapshot.NOT_SET) return;
         request.set(CaptureRequest.CONTROL_EFFECT_MODE, mode);
     }
 
     private void applyWhiteBalance(CaptureRequest.Builder request) {
-        String value = mSettingsManager.getValue(SettingsManager.KEY_WHITE_BALANCE);
-        if (value == null) return;
-        int mode = Integer.parseInt(value);
+        int mode = mSettingsManager.getCaptureSnapshot().whiteBalance;
+        if (mode == CaptureSettingsSnapshot.NOT_SET) return;
         request.set(CaptureRequest.CONTROL_AWB_MODE, mode);
     }
 
     private void applySnapshotFlash(CaptureRequest.Builder request, String value) {
         if(DEBUG) Log.d(TAG, "applySnapshotFlash: " + value);
-        String redeye = mSettingsManager.getValue(SettingsManager.KEY_REDEYE_REDUCTION);
+        boolean redeye = mSettingsManager.getCaptureSnapshot().redeyeReduction;
         mIsAutoFlash = false;
-        if (redeye != null && redeye.equals("on") && !mLongshotActive) {
+        if (redeye && !mLongshotActive) {
             request.set(CaptureRequest.CONTROL_AE_MODE,
                     CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE);
         } else if (value != null) {
@@ -7766,8 +7950,8 @@ public class CaptureModule implements CameraModule, PhotoController,
         if (!checkSessionAndBuilder(mCaptureSession[id], request)) {
             return;
         }
-        String redeye = mSettingsManager.getValue(SettingsManager.KEY_REDEYE_REDUCTION);
-        if (redeye != null && redeye.equals("on") && !mLongshotActive) {
+        boolean redeye = mSettingsManager.getCaptureSnapshot().redeyeReduction;
+        if (redeye && !mLongshotActive) {
             Log.w(TAG, "redeye mode is on, can't set android.flash.mode");
             return;
         }
@@ -7896,9 +8080,9 @@ public class CaptureModule implements CameraModule, PhotoController,
         if (mSettingsManager.isFlashSupported(id)) {
             String value = mSettingsManager.getValue(mCurrentSceneMode.mode == CameraMode.PRO_MODE ?
                     SettingsManager.KEY_VIDEO_FLASH_MODE : SettingsManager.KEY_FLASH_MODE);
-            String redeye = mSettingsManager.getValue(SettingsManager.KEY_REDEYE_REDUCTION);
+            boolean redeye = mSettingsManager.getCaptureSnapshot().redeyeReduction;
             mIsAutoFlash = false;
-            if (redeye != null && redeye.equals("on") && !mLongshotActive) {
+            if (redeye && !mLongshotActive) {
                 request.set(CaptureRequest.CONTROL_AE_MODE,
                         CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE);
             } else if (value != null) {
@@ -7969,7 +8153,7 @@ public class CaptureModule implements CameraModule, PhotoController,
     }
 
     @Override
-    public void onQueueStatus(final boolean full) {
+    public void onQueueStatus(final boolean full, long drainMs) {
         mActivity.runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -0,0 +1,175 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.codeaurora.snapcam.R;
+
+/**
+ * The settings read while building every repeating and still capture
+ * request, parsed once into primitives and enums. SettingsManager drops
+ * its snapshot whenever a value changes, so the capture path never has to
+ * look up and parse the same strings on each request.
+ */
+public final class CaptureSettingsSnapshot {
+    private static final String TAG = "SnapCam_CaptureSettings";
+
+    /** Value of an int field whose setting is missing. */
+    public static final int NOT_SET = Integer.MIN_VALUE;
+
+    public enum ManualWbMode {
+        OFF, COLOR_TEMPERATURE, GAINS
+    }
+
+    public enum ManualExposureMode {
+        OFF, ISO_PRIORITY, EXPOSURE_TIME_PRIORITY, USER_SETTING, GAINS_PRIORITY
+    }
+
+    public enum ToneMappingMode {
+        OFF, DARK_BOOST, FOURTH_TONE, USER_SETTING
+    }
+
+    public final int afMode;
+    public final int whiteBalance;
+    public final int exposureCompensation;
+    public final int colorEffect;
+    public final int sceneMode;
+    public final boolean autoHdr;
+    public final boolean hasIso;
+    public final boolean isoAuto;
+    public final int isoPriority;
+    public final int instantAec;
+    public final int saturationLevel;
+    public final int antiBandingLevel;
+    public final int sharpnessControl;
+    public final int exposureMetering;
+    public final boolean histogram;
+    public final boolean bgStats;
+    public final boolean beStats;
+    public final ManualWbMode manualWb;
+    public final ManualExposureMode manualExposure;
+    public final ToneMappingMode toneMapping;
+    public final int jpegQuality;
+    public final boolean redeyeReduction;
+
+    CaptureSettingsSnapshot(SettingsManager settings, Context context) {
+        afMode = parseInt(settings, SettingsManager.KEY_AF_MODE, -1);
+        whiteBalance = parseInt(settings, SettingsManager.KEY_WHITE_BALANCE, NOT_SET);
+        exposureCompensation = parseInt(settings, SettingsManager.KEY_EXPOSURE, NOT_SET);
+        colorEffect = parseInt(settings, SettingsManager.KEY_COLOR_EFFECT, NOT_SET);
+
+        String scene = settings.getValue(SettingsManager.KEY_SCENE_MODE);
+        sceneMode = parseInt(SettingsManager.KEY_SCENE_MODE, scene, NOT_SET);
+        autoHdr = "enable".equals(settings.getValue(SettingsManager.KEY_AUTO_HDR))
+                && "0".equals(scene);
+
+        String iso = settings.getValue(SettingsManager.KEY_ISO);
+        Integer isoIndex = iso != null ? SettingsManager.KEY_ISO_INDEX.get(iso) : null;
+        hasIso = iso != null;
+        isoAuto = iso == null || iso.equals("auto") || isoIndex == null;
+        isoPriority = isoIndex != null ? isoIndex : 0;
+
+        int aec = parseInt(settings, SettingsManager.KEY_INSTANT_AEC, NOT_SET);
+        instantAec = aec == 0 ? NOT_SET : aec;
+        saturationLevel = parseInt(settings, SettingsManager.KEY_SATURATION_LEVEL, NOT_SET);
+        antiBandingLevel = parseInt(settings, SettingsManager.KEY_ANTI_BANDING_LEVEL, NOT_SET);
+        sharpnessControl = parseInt(settings, SettingsManager.KEY_SHARPNESS_CONTROL_MODE,
+                NOT_SET);
+        exposureMetering = parseInt(settings, SettingsManager.KEY_EXPOSURE_METERING_MODE,
+                NOT_SET);
+
+        String stats = settings.getValue(SettingsManager.KEY_STATS_VISUALIZER_VALUE);
+        histogram = stats != null && stats.contains("2");
+        bgStats = stats != null && stats.contains("0");
+        beStats = stats != null && stats.contains("1");
+
+        String wb = settings.getValue(SettingsManager.KEY_MANUAL_WB);
+        if (context.getString(R.string.pref_camera_manual_wb_value_color_temperature)
+                .equals(wb)) {
+            manualWb = ManualWbMode.COLOR_TEMPERATURE;
+        } else if (context.getString(R.string.pref_camera_manual_wb_value_rbgb_gains)
+                .equals(wb)) {
+            manualWb = ManualWbMode.GAINS;
+        } else {
+            manualWb = ManualWbMode.OFF;
+        }
+
+        String exposure = settings.getValue(SettingsManager.KEY_MANUAL_EXPOSURE);
+        if (context.getString(R.string.pref_camera_manual_exp_value_ISO_priority)
+                .equals(exposure)) {
+            manualExposure = ManualExposureMode.ISO_PRIORITY;
+        } else if (context.getString(R.string.pref_camera_manual_exp_value_exptime_priority)
+                .equals(exposure)) {
+            manualExposure = ManualExposureMode.EXPOSURE_TIME_PRIORITY;
+        } else if (context.getString(R.string.pref_camera_manual_exp_value_user_setting)
+                .equals(exposure)) {
+            manualExposure = ManualExposureMode.USER_SETTING;
+        } else if (context.getString(R.string.pref_camera_manual_exp_value_gains_priority)
+                .equals(exposure)) {
+            manualExposure = ManualExposureMode.GAINS_PRIORITY;
+        } else {
+            manualExposure = ManualExposureMode.OFF;
+        }
+
+        String tone = settings.getValue(SettingsManager.KEY_TONE_MAPPING);
+        if (context.getString(R.string.pref_camera_tone_mapping_value_dark_boost_offset)
+                .equals(tone)) {
+            toneMapping = ToneMappingMode.DARK_BOOST;
+        } else if (context.getString(R.string.pref_camera_tone_mapping_value_fourth_tone_anchor)
+                .equals(tone)) {
+            toneMapping = ToneMappingMode.FOURTH_TONE;
+        } else if (context.getString(R.string.pref_camera_tone_mapping_value_user_setting)
+                .equals(tone)) {
+            toneMapping = ToneMappingMode.USER_SETTING;
+        } else {
+            toneMapping = ToneMappingMode.OFF;
+        }
+
+        jpegQuality = CaptureModule.getQualityNumber(
+                settings.getValue(SettingsManager.KEY_JPEG_QUALITY));
+        redeyeReduction = "on".equals(settings.getValue(SettingsManager.KEY_REDEYE_REDUCTION));
+    }
+
+    private static int parseInt(SettingsManager settings, String key, int defaultValue) {
+        return parseInt(key, settings.getValue(key), defaultValue);
+    }
+
+    private static int parseInt(String key, String value, int defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid value " + value + " for " + key);
+            return defaultValue;
+        }
+    }
+}
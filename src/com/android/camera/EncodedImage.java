@@ -0,0 +1,213 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.DirectBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted, encoded capture (JPEG or HEIC) that is passed to
+ * EXIF parsing, the thumbnail and the save queue without copying it to
+ * the heap.
+ *
+ * The bytes are either the Image's own plane buffer, in which case the
+ * Image stays open until the last reference is released, or a copy in a
+ * pooled direct buffer, in which case the Image is closed straight away.
+ * A {@link Budget} picks between the two so that the handles held at any
+ * time never take more ImageReader slots than the camera can spare.
+ *
+ * Each holder calls {@link #retain()} before passing the handle on and
+ * {@link #release()} when done with it.
+ */
+public final class EncodedImage {
+    private static final String TAG = "EncodedImage";
+
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    private final ByteBuffer mBuffer;
+    private final int mFormat;
+    private Image mImage;
+    private Budget mBudget;
+    private ByteBuffer mPooled;
+
+    private EncodedImage(Image image, Budget budget) {
+        mImage = image;
+        mBudget = budget;
+        mFormat = image.getFormat();
+        mBuffer = image.getPlanes()[0].getBuffer().slice().asReadOnlyBuffer();
+    }
+
+    private EncodedImage(ByteBuffer pooled, int format) {
+        mPooled = pooled;
+        mFormat = format;
+        mBuffer = pooled.slice().asReadOnlyBuffer();
+    }
+
+    /** Wraps image, which is closed once the handle is released. */
+    public static EncodedImage wrap(Image image) {
+        return new EncodedImage(image, null);
+    }
+
+    /** Copies the encoded bytes of image into a pooled buffer; image is left open. */
+    public static EncodedImage copyOf(Image image) {
+        ByteBuffer src = image.getPlanes()[0].getBuffer().duplicate();
+        ByteBuffer pooled = DirectBufferPool.getInstance().acquire(src.remaining());
+        pooled.put(src);
+        pooled.rewind();
+        return new EncodedImage(pooled, image.getFormat());
+    }
+
+    /** Returns a read-only view of the encoded bytes, from position 0 to the size. */
+    public ByteBuffer getBuffer() {
+        return mBuffer.duplicate();
+    }
+
+    public int size() {
+        return mBuffer.capacity();
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /** True if the bytes were copied out and no ImageReader slot is held. */
+    public boolean isCopy() {
+        return mPooled != null;
+    }
+
+    /** Copies the bytes to the heap, for consumers that only take arrays. */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size()];
+        getBuffer().get(bytes);
+        return bytes;
+    }
+
+    public EncodedImage retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("EncodedImage already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count > 0) {
+            return;
+        }
+        if (count < 0) {
+            Log.e(TAG, "Released more often than retained", new Throwable());
+            return;
+        }
+        if (mImage != null) {
+            mImage.close();
+            mImage = null;
+            if (mBudget != null) {
+                mBudget.onReleased();
+                mBudget = null;
+            }
+        } else if (mPooled != null) {
+            DirectBufferPool.getInstance().release(mPooled);
+            mPooled = null;
+        }
+    }
+
+    /**
+     * Hands out handles for one ImageReader. Images are wrapped while fewer
+     * than maxImages - reserve of them are held; past that the bytes are
+     * copied and the Image is closed, so the camera always has reserve
+     * buffers to write into however long the handles are kept.
+     *
+     * Closing an ImageReader frees the buffers of its open Images, so the
+     * reader is closed through {@link #closeReader} once the handles are gone.
+     */
+    public static class Budget {
+        private final int mMaxHeld;
+        private int mHeld;
+        private boolean mClosing;
+        private ImageReader mReader;
+
+        public Budget(int maxImages, int reserve) {
+            mMaxHeld = Math.max(0, maxImages - reserve);
+        }
+
+        /** Takes ownership of image and returns a handle holding one reference. */
+        public EncodedImage acquire(Image image) {
+            synchronized (this) {
+                if (!mClosing && mHeld < mMaxHeld) {
+                    mHeld++;
+                    return new EncodedImage(image, this);
+                }
+            }
+            try {
+                return copyOf(image);
+            } finally {
+                image.close();
+            }
+        }
+
+        public synchronized int getHeldCount() {
+            return mHeld;
+        }
+
+        /**
+         * Closes reader now if none of its images are held, otherwise when
+         * the last handle wrapping one of them is released.
+         */
+        public void closeReader(ImageReader reader) {
+            synchronized (this) {
+                mClosing = true;
+                if (mHeld > 0) {
+                    mReader = reader;
+                    return;
+                }
+            }
+            reader.close();
+        }
+
+        private void onReleased() {
+            ImageReader reader = null;
+            synchronized (this) {
+                mHeld--;
+                if (mHeld == 0 && mReader != null) {
+                    reader = mReader;
+                    mReader = null;
+                }
+            }
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -16,9 +16,11 @@
 
 package com.android.camera;
 
+import android.location.Location;
 import android.util.Log;
 
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifView;
 
 import java.io.IOException;
 
@@ -48,7 +50,16 @@ public class Exif {
     public static int getOrientation(byte[] jpegData) {
         if (jpegData == null) return 0;
 
-        ExifInterface exif = getExif(jpegData);
-        return getOrientation(exif);
+        return new ExifView(jpegData).getOrientation();
+    }
+
+    // Returns the position in the GPS tags, or null if there is none.
+    public static Location getLocation(ExifView exif) {
+        double[] latlng = exif.getLatLong();
+        if (latlng == null) return null;
+        Location loc = new Location("exif");
+        loc.setLatitude(latlng[0]);
+        loc.setLongitude(latlng[1]);
+        return loc;
     }
 }
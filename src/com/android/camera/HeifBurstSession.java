@@ -0,0 +1,229 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import androidx.heifwriter.HeifWriter;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Flow control and bookkeeping for one longshot written into a single
+ * HEIF sequence.
+ *
+ * Frames go straight from the camera into the writer's input surface, so
+ * the only handle on the encoder is how fast the camera can hand buffers
+ * to that surface. Capture requests are therefore issued a few at a time:
+ * a capture is in flight from submission until its result or failure
+ * arrives, and no more than the window may be in flight at once. When the
+ * surface drops a buffer the window is halved. When the burst ends early
+ * the writer is told where the input stops, so the frames that did arrive
+ * are kept instead of waiting for images that will never come.
+ *
+ * Called from the capture callback thread; finish() may also be called
+ * from the pause path.
+ */
+public class HeifBurstSession {
+    private static final String TAG = "SnapCam_HeifBurst";
+
+    private static class Frame {
+        final long startNs = SystemClock.elapsedRealtimeNanos();
+        long timestampNs;
+        long latencyNs = -1;
+        boolean lost;
+    }
+
+    private final CaptureModule.HeifImage mImage;
+    private final int mMaxImages;
+    private final LongSparseArray<Frame> mFrames = new LongSparseArray<Frame>();
+    private int mWindow;
+    private int mInFlight;
+    private int mDelivered;
+    private int mLost;
+    private int mFailed;
+    private boolean mFinished;
+
+    public HeifBurstSession(CaptureModule.HeifImage image, int maxImages, int maxInFlight) {
+        mImage = image;
+        mMaxImages = maxImages;
+        mWindow = Math.max(1, maxInFlight);
+    }
+
+    public CaptureModule.HeifImage getImage() {
+        return mImage;
+    }
+
+    /**
+     * Returns how many more captures may be submitted now and counts them
+     * as in flight. Frames that failed or were lost do not count as
+     * delivered, so while the shutter is held they are retried until the
+     * writer has seen its maximum number of images.
+     */
+    public synchronized int acquirePermits() {
+        if (mFinished) {
+            return 0;
+        }
+        int permits = Math.min(mWindow - mInFlight, mMaxImages - mDelivered - mInFlight);
+        if (permits <= 0) {
+            return 0;
+        }
+        mInFlight += permits;
+        return permits;
+    }
+
+    public synchronized void onStarted(long frameNumber, long timestampNs) {
+        Frame frame = new Frame();
+        frame.timestampNs = timestampNs;
+        mFrames.put(frameNumber, frame);
+    }
+
+    public synchronized void onCompleted(long frameNumber) {
+        mInFlight = Math.max(0, mInFlight - 1);
+        Frame frame = mFrames.get(frameNumber);
+        if (frame == null) {
+            return;
+        }
+        frame.latencyNs = SystemClock.elapsedRealtimeNanos() - frame.startNs;
+        if (!frame.lost) {
+            mDelivered++;
+        }
+    }
+
+    public synchronized void onFailed(long frameNumber) {
+        mInFlight = Math.max(0, mInFlight - 1);
+        mFailed++;
+        mFrames.remove(frameNumber);
+    }
+
+    /** The input surface could not take this frame, so the encoder is behind. */
+    public synchronized void onBufferLost(long frameNumber) {
+        Frame frame = mFrames.get(frameNumber);
+        if (frame == null || frame.lost) {
+            return;
+        }
+        frame.lost = true;
+        mLost++;
+        if (frame.latencyNs >= 0) {
+            mDelivered--;
+        }
+        if (mWindow > 1) {
+            mWindow /= 2;
+            Log.w(TAG, "Encoder input fell behind, window now " + mWindow);
+        }
+    }
+
+    public synchronized boolean isIdle() {
+        return mInFlight == 0;
+    }
+
+    public synchronized boolean isFull() {
+        return mDelivered >= mMaxImages;
+    }
+
+    /**
+     * Ends the sequence after the frames delivered so far, waits for the
+     * writer to drain and closes it. The file is deleted if nothing usable
+     * was written.
+     *
+     * @return the number of images in the finished file
+     */
+    public int finish(long timeoutMs) {
+        int delivered;
+        long endOfStreamNs = -1;
+        synchronized (this) {
+            if (mFinished) {
+                return 0;
+            }
+            mFinished = true;
+            delivered = mDelivered;
+            for (int i = 0; i < mFrames.size(); i++) {
+                Frame frame = mFrames.valueAt(i);
+                if (frame.latencyNs >= 0 && !frame.lost) {
+                    endOfStreamNs = Math.max(endOfStreamNs, frame.timestampNs);
+                }
+            }
+        }
+
+        HeifWriter writer = mImage.getWriter();
+        long drainStart = SystemClock.elapsedRealtime();
+        try {
+            if (delivered > 0) {
+                if (delivered < mMaxImages) {
+                    writer.setInputEndOfStreamTimestamp(endOfStreamNs);
+                }
+                writer.stop(timeoutMs);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "HEIF burst did not finish: " + e);
+            delivered = 0;
+        } finally {
+            writer.close();
+        }
+        if (delivered == 0) {
+            new File(mImage.getPath()).delete();
+        }
+        logStats(delivered, SystemClock.elapsedRealtime() - drainStart);
+        return delivered;
+    }
+
+    private synchronized void logStats(int written, long drainMs) {
+        long[] latencies = new long[mFrames.size()];
+        int count = 0;
+        for (int i = 0; i < mFrames.size(); i++) {
+            Frame frame = mFrames.valueAt(i);
+            if (frame.latencyNs >= 0) {
+                latencies[count++] = frame.latencyNs / 1000000;
+            }
+        }
+        StringBuilder stats = new StringBuilder("HEIF burst ")
+                .append(written).append('/').append(mMaxImages).append(" frames")
+                .append(", lost=").append(mLost)
+                .append(", failed=").append(mFailed)
+                .append(", window=").append(mWindow)
+                .append(", drain=").append(drainMs).append("ms");
+        if (count > 0) {
+            Arrays.sort(latencies, 0, count);
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += latencies[i];
+            }
+            stats.append(", frame latency min/avg/p95/max=")
+                    .append(latencies[0]).append('/')
+                    .append(total / count).append('/')
+                    .append(latencies[Math.min(count - 1, count * 95 / 100)]).append('/')
+                    .append(latencies[count - 1]).append("ms");
+        }
+        Log.i(TAG, stats.toString());
+    }
+}
@@ -16,11 +16,14 @@
 
 package com.android.camera;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Service;
 import android.content.ContentResolver;
@@ -32,7 +35,6 @@ import android.graphics.Color;
 import android.graphics.Rect;
 import android.location.Location;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.IBinder;
 import android.provider.MediaStore.Video;
@@ -66,15 +68,23 @@ public class MediaSaveService extends Service {
                                    PersistUtil.getSaveTaskMemoryLimitInMb();
 
     private static final int SAVE_TASK_MEMORY_LIMIT = SAVE_TASK_MEMORY_LIMIT_IN_MB * 1024 * 1024;
+    // Saves spooled to the journal only count against this larger limit.
+    private static final long SAVE_SPOOL_LIMIT =
+            PersistUtil.getSaveSpoolLimitInMb() * 1024L * 1024L;
+    private static final int JOURNAL_SEGMENT_SIZE = 64 * 1024 * 1024;
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
 
     private final IBinder mBinder = new LocalBinder();
     private Listener mListener;
-    // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    private SaveScheduler mScheduler;
+    private SaveJournal mJournal;
+    private MediaStoreBatcher mInsertBatcher;
+    // Whether the listener was last told the queue is full.
+    private volatile boolean mReportedFull;
 
     public interface Listener {
-        public void onQueueStatus(boolean full);
+        // drainMs estimates how long until all queued saves are written.
+        public void onQueueStatus(boolean full, long drainMs);
     }
 
     public interface OnMediaSavedListener {
@@ -99,15 +109,51 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        mScheduler.shutdown();
+        mInsertBatcher.shutdown();
     }
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        mScheduler = new SaveScheduler(PersistUtil.getSaveThreadCount(),
+                new SaveScheduler.Callback() {
+                    @Override
+                    public void onJobFinished() {
+                        onSaveFinished();
+                    }
+                });
+        mInsertBatcher = new MediaStoreBatcher(getContentResolver());
+        mJournal = new SaveJournal(new File(getCacheDir(), "save_journal"),
+                JOURNAL_SEGMENT_SIZE);
+        // Finish whatever an earlier process queued but did not get to save.
+        // Reading the journal back maps and checks every segment, so it runs
+        // as the first job rather than on the main thread during launch.
+        final ContentResolver resolver = getContentResolver();
+        mScheduler.execute(new SaveScheduler.Job<Void>(SaveScheduler.PRIORITY_RECOVER, 0) {
+            @Override
+            protected Void doInBackground() {
+                List<SaveJournal.Entry> pending = mJournal.recover();
+                for (SaveJournal.Entry entry : pending) {
+                    mScheduler.execute(new JournalSaveTask(entry, null, resolver,
+                            SaveScheduler.PRIORITY_REPLAY));
+                }
+                return null;
+            }
+        });
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return (mScheduler.getHeapBytes() >= SAVE_TASK_MEMORY_LIMIT
+                || mScheduler.getQueuedBytes() >= SAVE_SPOOL_LIMIT);
+    }
+
+    public MediaStoreBatcher.InsertStats getInsertStats() {
+        return mInsertBatcher.getStats();
+    }
+
+    // Time until the queued saves are expected to be written, in ms.
+    public long getQueueDrainEstimate() {
+        return mScheduler.getDrainEstimateMs();
     }
 
     public void addMpoImage(final byte[] csImage,
@@ -125,14 +171,10 @@ public class MediaSaveService extends Service {
                 width, height, title, date, loc, orientation, l,
                 resolver, pictureFormat);
 
-        long size = (csImage == null ? 0
-                : csImage.length)
-                + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
+        mScheduler.execute(t);
         if (isQueueFull()) {
             onQueueFull();
         }
-        t.execute();
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -142,15 +184,34 @@ public class MediaSaveService extends Service {
             Log.e(TAG, "Cannot add image when the queue is full");
             return;
         }
-        ImageSaveTask t = new ImageSaveTask(data, title, date,
-                (loc == null) ? null : new Location(loc),
-                width, height, orientation, exif, resolver, l, pictureFormat);
+        mScheduler.execute(new SpoolTask(SaveJournal.TYPE_IMAGE, data, null, title, date,
+                (loc == null) ? null : new Location(loc), width, height, orientation, exif,
+                l, resolver, pictureFormat));
+        if (isQueueFull()) {
+            onQueueFull();
+        }
+    }
 
-        mMemoryUse += data.length;
+    /**
+     * Same as the byte array version for a capture still held in its
+     * buffer. Takes over the caller's reference to image: the bytes are
+     * spooled straight from it on a save thread, which releases the handle
+     * right after so the camera gets its buffer back as soon as possible.
+     */
+    public void addImage(EncodedImage image, String title, long date, Location loc,
+            int width, int height, int orientation,
+            OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
+        if (isQueueFull()) {
+            Log.e(TAG, "Cannot add image when the queue is full");
+            image.release();
+            return;
+        }
+        mScheduler.execute(new SpoolTask(SaveJournal.TYPE_IMAGE, null, image, title, date,
+                (loc == null) ? null : new Location(loc), width, height, orientation, null,
+                l, resolver, pictureFormat));
         if (isQueueFull()) {
             onQueueFull();
         }
-        t.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     public void addRawImage(final byte[] data, String title, String pictureFormat) {
@@ -158,27 +219,42 @@ public class MediaSaveService extends Service {
             Log.e(TAG, "Cannot add image when the queue is full");
             return;
         }
-        RawImageSaveTask t = new RawImageSaveTask(data, title, pictureFormat);
-
-        mMemoryUse += data.length;
+        mScheduler.execute(new SpoolTask(SaveJournal.TYPE_RAW, data, null, title, 0, null,
+                0, 0, 0, null, null, null, pictureFormat));
         if (isQueueFull()) {
             onQueueFull();
         }
-        t.execute();
     }
 
-    public void addHEIFImage(String path,String title,long date , Location loc,
-                             int width, int height, int orientation, ExifInterface exif,
-                             ContentResolver resolver, OnMediaSavedListener listener,
-                             int qualitiy, String pictureFormat) {
+    public void addHEIFImage(final String path, final String title, final long date,
+                             final Location loc, final int width, final int height,
+                             final int orientation, final ExifInterface exif,
+                             final ContentResolver resolver,
+                             final OnMediaSavedListener listener,
+                             final int qualitiy, final String pictureFormat) {
         if (isQueueFull()) {
             Log.e(TAG, "Cannot add image when the queue is full");
             return;
         }
-        HEIFImageSaveTask t = new HEIFImageSaveTask(path,title,date, loc, width, height, orientation,
-                exif, resolver, listener, qualitiy, pictureFormat);
-
-        t.execute();
+        // Appending may have to start a new journal segment, keep that off
+        // the caller's thread like SpoolTask does.
+        mScheduler.execute(new SaveScheduler.Job<Void>(SaveScheduler.PRIORITY_SPOOL, 0) {
+            @Override
+            protected Void doInBackground() {
+                SaveJournal.Entry entry = mJournal.append(SaveJournal.TYPE_HEIF, title,
+                        pictureFormat, path, date, orientation, width, height, qualitiy,
+                        loc, (byte[]) null);
+                if (entry != null) {
+                    mScheduler.execute(new JournalSaveTask(entry, listener, resolver,
+                            SaveScheduler.PRIORITY_JPEG));
+                } else {
+                    mScheduler.execute(new HEIFImageSaveTask(path, title, date, loc, width,
+                            height, orientation, exif, resolver, listener, qualitiy,
+                            pictureFormat));
+                }
+                return null;
+            }
+        });
     }
 
     public void addClearsightImage(byte[] clearsight, GImage bayer, GDepth.DepthMap depthMap,
@@ -193,11 +269,10 @@ public class MediaSaveService extends Service {
                 title, date,  (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l, pictureFormat);
 
-        mMemoryUse += clearsight.length;
+        mScheduler.execute(t);
         if (isQueueFull()) {
             onQueueFull();
         }
-        t.execute();
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
@@ -219,24 +294,232 @@ public class MediaSaveService extends Service {
             OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, duration, values, l, resolver).execute();
+        mScheduler.execute(new VideoSaveTask(path, duration, values, l, resolver));
+    }
+
+    // Writes the image, EXIF included, to the journal so it survives the
+    // process being killed before it is saved.
+    private SaveJournal.Entry spoolImage(byte[] data, String title, long date, Location loc,
+            int width, int height, int orientation, ExifInterface exif, String pictureFormat) {
+        ByteBuffer[] jpeg = new ByteBuffer[] { ByteBuffer.wrap(data) };
+        if (exif != null && (pictureFormat == null || pictureFormat.equalsIgnoreCase("jpeg"))) {
+            try {
+                // Gathered straight into the journal, no spliced copy is built.
+                jpeg = exif.spliceExifSegments(data);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to add exif, not spooling " + title, e);
+                return null;
+            }
+            if (loc == null) {
+                // Storage would otherwise have taken the position from the exif.
+                double[] latlng = exif.getLatLongAsDoubles();
+                if (latlng != null) {
+                    loc = new Location("exif");
+                    loc.setLatitude(latlng[0]);
+                    loc.setLongitude(latlng[1]);
+                }
+            }
+        }
+        return mJournal.append(SaveJournal.TYPE_IMAGE, title, pictureFormat, null, date,
+                orientation, width, height, 0, loc, jpeg);
+    }
+
+    // Called from the save jobs once the file is written. Inserts are batched
+    // while other saves are in flight, l is told the uri once committed.
+    private void insertImage(ContentValues values, OnMediaSavedListener l) {
+        mInsertBatcher.insert(values, l, mScheduler.getPendingCount() > 1);
     }
 
     public void setListener(Listener l) {
         mListener = l;
         if (l == null) return;
-        l.onQueueStatus(isQueueFull());
+        mReportedFull = isQueueFull();
+        l.onQueueStatus(mReportedFull, getQueueDrainEstimate());
     }
 
     private void onQueueFull() {
-        if (mListener != null) mListener.onQueueStatus(true);
+        mReportedFull = true;
+        Listener l = mListener;
+        if (l != null) l.onQueueStatus(true, getQueueDrainEstimate());
+    }
+
+    // Keeps a full queue's listener updated with the drain estimate until
+    // enough saves finish for the queue to accept new ones.
+    private void onSaveFinished() {
+        if (!mReportedFull) return;
+        mReportedFull = isQueueFull();
+        Listener l = mListener;
+        if (l != null) l.onQueueStatus(mReportedFull, getQueueDrainEstimate());
+    }
+
+    // Copies a capture into the journal so it survives the process being
+    // killed, then queues the save of the spooled entry. Runs on a save
+    // thread so the capture path only pays for queueing it.
+    private class SpoolTask extends SaveScheduler.Job<Void> {
+        private final int type;
+        private byte[] data;
+        private EncodedImage image;
+        private final String title;
+        private final long date;
+        private final Location loc;
+        private final int width, height;
+        private final int orientation;
+        private final ExifInterface exif;
+        private final OnMediaSavedListener listener;
+        private final ContentResolver resolver;
+        private final String pictureFormat;
+
+        public SpoolTask(int type, byte[] data, EncodedImage image, String title, long date,
+                Location loc, int width, int height, int orientation, ExifInterface exif,
+                OnMediaSavedListener listener, ContentResolver resolver,
+                String pictureFormat) {
+            super(SaveScheduler.PRIORITY_SPOOL, data != null ? data.length : image.size());
+            this.type = type;
+            this.data = data;
+            this.image = image;
+            this.title = title;
+            this.date = date;
+            this.loc = loc;
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.exif = exif;
+            this.listener = listener;
+            this.resolver = resolver;
+            this.pictureFormat = pictureFormat;
+        }
+
+        @Override
+        protected Void doInBackground() {
+            try {
+                SaveJournal.Entry entry;
+                if (image != null) {
+                    entry = mJournal.append(type, title, pictureFormat, null, date,
+                            orientation, width, height, 0, loc, image.getBuffer());
+                } else if (type == SaveJournal.TYPE_RAW) {
+                    entry = mJournal.append(type, title, pictureFormat, null, 0, 0, 0, 0, 0,
+                            null, data);
+                } else {
+                    entry = spoolImage(data, title, date, loc, width, height, orientation,
+                            exif, pictureFormat);
+                }
+                if (entry != null) {
+                    mScheduler.execute(new JournalSaveTask(entry, listener, resolver,
+                            type == SaveJournal.TYPE_RAW
+                                    ? SaveScheduler.PRIORITY_RAW
+                                    : SaveScheduler.PRIORITY_JPEG));
+                } else if (type == SaveJournal.TYPE_RAW) {
+                    mScheduler.execute(new RawImageSaveTask(data, title, pictureFormat));
+                } else {
+                    // The journal is full or unusable; save from memory instead.
+                    mScheduler.execute(new ImageSaveTask(
+                            image != null ? image.toByteArray() : data, title, date, loc,
+                            width, height, orientation, exif, resolver, listener,
+                            pictureFormat));
+                }
+            } finally {
+                if (image != null) {
+                    image.release();
+                    image = null;
+                }
+                data = null;
+            }
+            return null;
+        }
     }
 
-    private void onQueueAvailable() {
-        if (mListener != null) mListener.onQueueStatus(false);
+    // Saves an entry spooled in the journal, either queued by this process
+    // or recovered from an earlier one.
+    private class JournalSaveTask extends SaveScheduler.Job<Void> {
+        private final SaveJournal.Entry entry;
+        private final OnMediaSavedListener listener;
+        private final ContentResolver resolver;
+
+        public JournalSaveTask(SaveJournal.Entry entry, OnMediaSavedListener listener,
+                ContentResolver resolver, int priority) {
+            super(priority, entry.getPayloadLength(), true);
+            this.entry = entry;
+            this.listener = listener;
+            this.resolver = resolver;
+        }
+
+        @Override
+        protected Void doInBackground() {
+            ContentValues values = null;
+            try {
+                values = save();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save " + entry.title, e);
+            }
+            if (values == null) {
+                mJournal.complete(entry);
+                if (listener != null) insertImage(null, listener);
+                return null;
+            }
+            // The entry stays in the journal until MediaStore has the image.
+            insertImage(values, new OnMediaSavedListener() {
+                @Override
+                public void onMediaSaved(Uri uri) {
+                    mJournal.complete(entry);
+                    if (listener != null) listener.onMediaSaved(uri);
+                }
+            });
+            return null;
+        }
+
+        // Writes the file and returns the values to insert, or null when
+        // there is nothing to insert.
+        private ContentValues save() throws IOException {
+            switch (entry.type) {
+                case SaveJournal.TYPE_IMAGE: {
+                    String path = Storage.generateFilepath(entry.title, entry.mimeType);
+                    if (entry.isRecovered() && Storage.findImage(resolver, path) != null) {
+                        return null;
+                    }
+                    mJournal.writePayload(entry, path);
+                    int width = entry.width;
+                    int height = entry.height;
+                    if (width == 0 || height == 0) {
+                        // Decode bounds
+                        BitmapFactory.Options options = new BitmapFactory.Options();
+                        options.inJustDecodeBounds = true;
+                        BitmapFactory.decodeFile(path, options);
+                        width = options.outWidth;
+                        height = options.outHeight;
+                    }
+                    return Storage.getContentValuesForData(entry.title, entry.date,
+                            entry.location, entry.orientation, null, entry.getPayloadLength(),
+                            path, width, height, entry.mimeType);
+                }
+                case SaveJournal.TYPE_RAW:
+                    mJournal.writePayload(entry,
+                            Storage.generateFilepath(entry.title, entry.mimeType));
+                    return null;
+                case SaveJournal.TYPE_HEIF: {
+                    File file = new File(entry.path);
+                    if (!file.isFile()) {
+                        Log.w(TAG, "HEIF file is gone: " + entry.path);
+                        return null;
+                    }
+                    if (entry.isRecovered() && Storage.findImage(resolver, entry.path) != null) {
+                        return null;
+                    }
+                    return Storage.getContentValuesForData(entry.title, entry.date,
+                            entry.location, entry.orientation, null, (int) file.length(),
+                            entry.path, entry.width, entry.height, entry.mimeType);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected String getOutputPath() {
+            if (entry.type == SaveJournal.TYPE_HEIF) return null;
+            return Storage.generateFilepath(entry.title, entry.mimeType);
+        }
     }
 
-    private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class MpoSaveTask extends SaveScheduler.Job<Void> {
         private byte[] csImage;
         private byte[] bayerImage;
         private byte[] monoImage;
@@ -253,6 +536,8 @@ public class MediaSaveService extends Service {
                 byte[] monoImg, int width, int height, String title, long date,
                 Location loc, int orientation, OnMediaSavedListener listener,
                 ContentResolver resolver, String pictureFormat) {
+            super(SaveScheduler.PRIORITY_MPO, (csImage == null ? 0 : csImage.length)
+                    + bayerImg.length + monoImg.length);
             this.csImage = csImage;
             this.bayerImage = bayerImg;
             this.monoImage = monoImg;
@@ -268,7 +553,7 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected Void doInBackground() {
             // encode jpeg and add exif for all images
             MpoData mpo = new MpoData();
             MpoImageData bayer = new MpoImageData(bayerImage,
@@ -297,56 +582,42 @@ public class MediaSaveService extends Service {
             if (f.exists() && f.isFile()) {
                 size = (int) f.length();
             }
-            return Storage.addImage(resolver, title, date, loc, orientation, null,
-                    size, path, width, height, pictureFormat);
+            insertImage(Storage.getContentValuesForData(title, date, loc, orientation, null,
+                    size, path, width, height, pictureFormat), listener);
+            return null;
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null)
-                listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
+        protected String getOutputPath() {
+            return Storage.generateFilepath(title, pictureFormat);
         }
     }
 
-    private class RawImageSaveTask extends AsyncTask<Void, Void, Long> {
+    private class RawImageSaveTask extends SaveScheduler.Job<Long> {
         private byte[] data;
         private String title;
         private String pictureFormat;
 
         public RawImageSaveTask(byte[] data, String title, String pictureFormat) {
+            super(SaveScheduler.PRIORITY_RAW, data.length);
             this.data = data;
             this.title = title;
             this.pictureFormat = pictureFormat;
         }
 
         @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
-        }
-
-        @Override
-        protected Long doInBackground(Void... params) {
+        protected Long doInBackground() {
             long length = Storage.addRawImage(title, data, pictureFormat);
             return new Long(length);
         }
 
         @Override
-        protected void onPostExecute(Long l) {
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        protected String getOutputPath() {
+            return Storage.generateFilepath(title, pictureFormat);
         }
     }
 
-    private class HEIFImageSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class HEIFImageSaveTask extends SaveScheduler.Job<Void> {
         private String path;
         private String title;
         private long date;
@@ -363,6 +634,8 @@ public class MediaSaveService extends Service {
                                  int width, int height, int orientation, ExifInterface exif,
                                  ContentResolver resolver, OnMediaSavedListener listener,
                                  int quality,String pictureFormat) {
+            // The HEIF file is already written, only the database insert is left.
+            super(SaveScheduler.PRIORITY_JPEG, 0);
             this.path = path;
             this.title = title;
             this.date = date;
@@ -378,24 +651,16 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
-        }
-
-        @Override
-        protected Uri doInBackground(Void... params) {
-            return Storage.addHeifImage(
-                    resolver,title,date,loc,orientation,exif,path,
-                    width,height,quality,pictureFormat);
-        }
-
-        @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
+        protected Void doInBackground() {
+            File f = new File(path);
+            int size = f.isFile() ? (int) f.length() : 0;
+            insertImage(Storage.getContentValuesForData(title, date, loc, orientation, null,
+                    size, path, width, height, pictureFormat), listener);
+            return null;
         }
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class ImageSaveTask extends SaveScheduler.Job<Void> {
         private byte[] data;
         private String title;
         private long date;
@@ -410,6 +675,7 @@ public class MediaSaveService extends Service {
         public ImageSaveTask(byte[] data, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
                              ContentResolver resolver, OnMediaSavedListener listener, String pictureFormat) {
+            super(SaveScheduler.PRIORITY_JPEG, data.length);
             this.data = data;
             this.title = title;
             this.date = date;
@@ -424,12 +690,7 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
+        protected Void doInBackground() {
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -438,26 +699,23 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            insertImage(Storage.writeImage(title, date, loc, orientation, exif, data,
+                    width, height, pictureFormat), listener);
+            return null;
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        protected String getOutputPath() {
+            return Storage.generateFilepath(title, pictureFormat);
         }
     }
 
-    private class ClearsightImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class ClearsightImageSaveTask extends SaveScheduler.Job<Void> {
         private byte[] clearsight;
         private byte[] depth;
         private GImage bayer;
         private GDepth.DepthMap depthMap;
         private GDepth gDepth;
-        private byte[] data;
         private String title;
         private long date;
         private Location loc;
@@ -473,6 +731,7 @@ public class MediaSaveService extends Service {
                                        int width, int height, int orientation,
                                        ExifInterface exif, ContentResolver resolver,
                                        OnMediaSavedListener listener, String pictureFormat) {
+            super(SaveScheduler.PRIORITY_JPEG, clearsight.length);
             this.clearsight = clearsight;
             this.bayer = bayer;
             this.depthMap = depthMap;
@@ -491,40 +750,34 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
+        protected Void doInBackground() {
             if ( depthMap != null ) {
                 depthMap.buffer = converToJpegByte(depthMap.rawDepth, depthMap.width, depthMap.height);
                 gDepth = GDepth.createGDepth(depthMap);
             }
-            data = embedGDepthAndBayerInClearSight(clearsight);
-            if ( data == null ) {
-                data = clearsight;
-                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
-            }
 
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
                 options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+                BitmapFactory.decodeByteArray(clearsight, 0, clearsight.length, options);
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            String path = Storage.generateFilepath(title, pictureFormat);
+            int size = writeWithGDepthAndBayer(path);
+            if (size <= 0) {
+                Log.e(TAG, "embedGDepthAndBayerInClearSight fail");
+                size = Storage.writeFile(path, clearsight, exif, pictureFormat);
+            }
+            insertImage(Storage.getContentValuesForData(title, date, loc, orientation, exif,
+                    size, path, width, height, pictureFormat), listener);
+            return null;
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        protected String getOutputPath() {
+            return Storage.generateFilepath(title, pictureFormat);
         }
 
         private byte[] converToJpegByte(byte[] depthBuf, int width, int height) {
@@ -544,11 +797,18 @@ public class MediaSaveService extends Service {
             return baos.toByteArray();
         }
 
-        private byte[] embedGDepthAndBayerInClearSight(byte[] clearSightImageBytes) {
+        /**
+         * Writes the ClearSight JPEG to path with the depth map and the Bayer
+         * image in its extended XMP. The two images are Base64 encoded on
+         * the way to the file rather than held as strings.
+         *
+         * @return the file size, or 0 if nothing usable was written.
+         */
+        private int writeWithGDepthAndBayer(String path) {
             Log.d(TAG, "embedGDepthInClearSight");
-            if ( clearSightImageBytes == null || (gDepth ==null && bayer==null) ) {
-                Log.d(TAG, "clearSightImageBytes is null");
-                return null;
+            if (gDepth == null && bayer == null) {
+                Log.d(TAG, "no GDepth or GImage to embed");
+                return 0;
             }
 
             XMPMeta xmpMeta = XmpUtil.createXMPMeta();
@@ -569,40 +829,42 @@ public class MediaSaveService extends Service {
                 if ( bayer != null ) {
                     xmpMeta.setProperty(GImage.NAMESPACE_URL, GImage.PROPERTY_MIME, bayer.getMime());
                 }
-
-
             } catch(XMPException exception) {
                 Log.d(TAG, "create XMPMeta error", exception);
-                return null;
+                return 0;
             }
 
-            XMPMeta extendXmpMeta = XmpUtil.createXMPMeta();
-            try{
-                if ( gDepth != null) {
-                    extendXmpMeta.setProperty(GDepth.NAMESPACE_URL, GDepth.PROPERTY_DATA, gDepth.getData());
-                }
-
-                if ( bayer != null ) {
-                    extendXmpMeta.setProperty(GImage.NAMESPACE_URL, GImage.PROPERTY_DATA, bayer.getData());
-                }
-            }catch(XMPException exception) {
-                Log.d(TAG, "create extended XMPMeta error", exception);
+            List<XmpUtil.ExtendedProperty> extended = new ArrayList<XmpUtil.ExtendedProperty>();
+            if ( gDepth != null ) {
+                extended.add(new XmpUtil.ExtendedProperty(GDepth.NAMESPACE_URL,
+                        GDepth.PROPERTY_DATA, gDepth.getJpegBytes()));
             }
-
-
-            ByteArrayInputStream bais = new ByteArrayInputStream(clearSightImageBytes);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            if ( XmpUtil.writeXMPMeta(bais, baos, xmpMeta, extendXmpMeta) ){
-                return baos.toByteArray();
-            }else{
-                Log.e(TAG, "embedGDepthInClearSight failure ");
-                return null;
+            if ( bayer != null ) {
+                extended.add(new XmpUtil.ExtendedProperty(GImage.NAMESPACE_URL,
+                        GImage.PROPERTY_DATA, bayer.getBytes()));
             }
 
+            FileOutputStream out = null;
+            try {
+                byte[] jpeg = exif != null ? exif.spliceExif(clearsight) : clearsight;
+                out = new FileOutputStream(path);
+                return XmpUtil.writeXMPMeta(jpeg, out.getChannel(), xmpMeta, extended);
+            } catch (IOException e) {
+                Log.e(TAG, "embedGDepthInClearSight failure", e);
+                return 0;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
+            }
         }
     }
 
-    private class VideoSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class VideoSaveTask extends SaveScheduler.Job<Uri> {
         private String path;
         private long duration;
         private ContentValues values;
@@ -611,6 +873,8 @@ public class MediaSaveService extends Service {
 
         public VideoSaveTask(String path, long duration, ContentValues values,
                 OnMediaSavedListener l, ContentResolver r) {
+            // The video is already on disk, only the database is updated.
+            super(SaveScheduler.PRIORITY_JPEG, 0);
             this.path = path;
             this.duration = duration;
             this.values = new ContentValues(values);
@@ -619,7 +883,7 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        protected Uri doInBackground() {
             values.put(Video.Media.SIZE, new File(path).length());
             values.put(Video.Media.DURATION, duration);
             Uri uri = null;
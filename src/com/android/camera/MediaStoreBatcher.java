@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.camera.MediaSaveService.OnMediaSavedListener;
+
+/*
+ * Coalesces the MediaStore inserts of a burst into applyBatch calls. An
+ * insert made while more saves are on their way waits up to
+ * BATCH_WINDOW_MS for company; one made with nothing else queued is
+ * committed straight away. Listeners are called on the main thread in
+ * the order the inserts were made.
+ */
+class MediaStoreBatcher {
+    private static final String TAG = "CAM_MediaStoreBatcher";
+
+    private static final long BATCH_WINDOW_MS = 50;
+    private static final int MAX_BATCH_SIZE = 16;
+
+    private static class Request {
+        final ContentValues values;
+        final OnMediaSavedListener listener;
+        final long enqueueTime;
+        Uri uri;
+
+        Request(ContentValues values, OnMediaSavedListener listener) {
+            this.values = values;
+            this.listener = listener;
+            this.enqueueTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Insert counters. Latency runs from insert() to the listener being
+     * called.
+     */
+    public static class InsertStats {
+        private final AtomicLong mInserts = new AtomicLong();
+        private final AtomicLong mBatches = new AtomicLong();
+        private final AtomicLong mMaxBatchSize = new AtomicLong();
+        private final AtomicLong mTotalLatencyMs = new AtomicLong();
+        private final AtomicLong mMaxLatencyMs = new AtomicLong();
+
+        void onBatch(int size) {
+            mBatches.incrementAndGet();
+            raise(mMaxBatchSize, size);
+        }
+
+        void onDelivered(long latencyMs) {
+            mInserts.incrementAndGet();
+            mTotalLatencyMs.addAndGet(latencyMs);
+            raise(mMaxLatencyMs, latencyMs);
+        }
+
+        private static void raise(AtomicLong max, long value) {
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) return;
+            }
+        }
+
+        public long getInsertCount() {
+            return mInserts.get();
+        }
+
+        public long getBatchCount() {
+            return mBatches.get();
+        }
+
+        public float getAverageBatchSize() {
+            long batches = mBatches.get();
+            return batches == 0 ? 0f : (float) mInserts.get() / batches;
+        }
+
+        public long getMaxBatchSize() {
+            return mMaxBatchSize.get();
+        }
+
+        public long getAverageLatencyMs() {
+            long inserts = mInserts.get();
+            return inserts == 0 ? 0 : mTotalLatencyMs.get() / inserts;
+        }
+
+        public long getMaxLatencyMs() {
+            return mMaxLatencyMs.get();
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final InsertStats mStats = new InsertStats();
+    private final Object mLock = new Object();
+    private ArrayList<Request> mPending = new ArrayList<Request>();
+    private boolean mShutdown;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public MediaStoreBatcher(ContentResolver resolver) {
+        mResolver = resolver;
+        mThread = new HandlerThread("MediaStoreInsert");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public InsertStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Queues an image insert. A null values delivers a null uri, in order
+     * with the rest, for a save that failed before reaching MediaStore.
+     * moreExpected tells whether other saves are still in flight.
+     */
+    public void insert(ContentValues values, OnMediaSavedListener listener,
+            boolean moreExpected) {
+        synchronized (mLock) {
+            mPending.add(new Request(values, listener));
+            if (!mShutdown) {
+                if (!moreExpected || mPending.size() >= MAX_BATCH_SIZE) {
+                    mHandler.removeCallbacks(mFlush);
+                    mHandler.post(mFlush);
+                } else if (mPending.size() == 1) {
+                    mHandler.postDelayed(mFlush, BATCH_WINDOW_MS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    // Commits what is pending and stops the insert thread. Inserts made
+    // after this are committed on the calling thread.
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mHandler.removeCallbacks(mFlush);
+            mHandler.post(mFlush);
+        }
+        mThread.quitSafely();
+    }
+
+    private void flush() {
+        ArrayList<Request> batch;
+        synchronized (mLock) {
+            if (mPending.isEmpty()) return;
+            batch = mPending;
+            mPending = new ArrayList<Request>();
+            mHandler.removeCallbacks(mFlush);
+        }
+
+        int count = 0;
+        for (Request r : batch) {
+            if (r.values != null) count++;
+        }
+        if (count > 0) {
+            ContentValues[] values = new ContentValues[count];
+            int i = 0;
+            for (Request r : batch) {
+                if (r.values != null) values[i++] = r.values;
+            }
+            Uri[] uris = Storage.insertImages(mResolver, values);
+            i = 0;
+            for (Request r : batch) {
+                if (r.values != null) r.uri = uris[i++];
+            }
+            mStats.onBatch(count);
+            Log.v(TAG, "Inserted " + count + " images in one batch");
+        }
+
+        final ArrayList<Request> delivered = batch;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long now = SystemClock.elapsedRealtime();
+                for (Request r : delivered) {
+                    if (r.listener != null) r.listener.onMediaSaved(r.uri);
+                    if (r.values != null) mStats.onDelivered(now - r.enqueueTime);
+                }
+            }
+        });
+    }
+}
@@ -187,6 +187,30 @@ public class Mosaic {
      */
     public native byte[] getFinalMosaicNV21();
 
+    /**
+     * Repack the created mosaic as NV21 in native memory so it can be read a band at a time
+     * with {@link #readFinalMosaicNV21}.
+     *
+     * @return Returns the mosaic width and height, or null if there is no mosaic.
+     */
+    public native int[] prepareFinalMosaicNV21();
+
+    /**
+     * Copy rows of the mosaic prepared by {@link #prepareFinalMosaicNV21} into an array,
+     * as an NV21 image of the same width and the given number of rows.
+     *
+     * @param dst An array with room for the band.
+     * @param firstRow The first row of the band; must be even.
+     * @param rows The number of rows in the band.
+     * @return Returns the number of bytes written, or -1 if the band or buffer is invalid.
+     */
+    public native int readFinalMosaicNV21(byte[] dst, int firstRow, int rows);
+
+    /**
+     * Release the native copy of the created mosaic once it has been read.
+     */
+    public native void freeFinalMosaic();
+
     /**
      * Reset the state of the frame arrays which maintain the captured frame data.
      * Also re-initializes the native mosaic object to make it ready for capturing a new mosaic.
@@ -151,6 +151,18 @@ public class MosaicFrameProcessor {
         return mMosaicer.getFinalMosaicNV21();
     }
 
+    public int[] prepareFinalMosaicNV21() {
+        return mMosaicer.prepareFinalMosaicNV21();
+    }
+
+    public int readFinalMosaicNV21(byte[] dst, int firstRow, int rows) {
+        return mMosaicer.readFinalMosaicNV21(dst, firstRow, rows);
+    }
+
+    public void freeFinalMosaic() {
+        mMosaicer.freeFinalMosaic();
+    }
+
     // Processes the last filled image frame through the mosaicer and
     // updates the UI to show progress.
     // When done, processes and displays the final mosaic.
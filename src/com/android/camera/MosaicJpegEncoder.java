@@ -0,0 +1,263 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes the final mosaic as a JPEG a band of rows at a time, so the
+ * mosaic is never copied out of native memory as a whole.
+ *
+ * Each band is compressed on its own by YuvImage. Bands of the same width,
+ * quality and sampling share the same tables, and a band boundary on an
+ * MCU row is exactly what a restart marker produces: the entropy coder is
+ * flushed to a byte and the DC predictors start over. The first band's
+ * headers, with the full height and a DRI segment, followed by the scan
+ * data of every band separated by RSTn markers, is therefore one baseline
+ * JPEG of the whole mosaic. A band whose tables differ from the first one
+ * fails the encode with a {@link TableMismatchException} instead of
+ * producing a corrupt file; the mosaic is left as it was, so the caller can
+ * start over with {@link #encodeWhole}.
+ */
+public class MosaicJpegEncoder {
+    public interface Listener {
+        void onProgress(int percent);
+        boolean isCancelled();
+    }
+
+    /** The bands cannot be spliced into one JPEG. */
+    public static class TableMismatchException extends IOException {
+        TableMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    // Luma is subsampled 2x2, so an MCU covers 16x16 pixels.
+    private static final int MCU_SIZE = 16;
+    private static final int TARGET_BAND_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_RESTART_INTERVAL = 0xffff;
+
+    private static final int M_SOF0 = 0xc0;
+    private static final int M_RST0 = 0xd0;
+    private static final int M_EOI = 0xd9;
+    private static final int M_SOS = 0xda;
+    private static final int M_DRI = 0xdd;
+
+    private final MosaicFrameProcessor mSource;
+    private final int mStride;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mQuality;
+    private final int mBandRows;
+
+    // Headers of the first band, SOI excluded and SOS included, to check
+    // the other bands against.
+    private byte[] mHeader;
+    private int mHeightOffset;
+
+    private static class BandOutputStream extends ByteArrayOutputStream {
+        BandOutputStream(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * @param source Holds the mosaic prepared by prepareFinalMosaicNV21().
+     * @param width Mosaic width, which is also the row stride.
+     * @param height Mosaic height.
+     */
+    public MosaicJpegEncoder(MosaicFrameProcessor source, int width, int height, int quality) {
+        mSource = source;
+        mStride = width;
+        // NV21 needs even dimensions; an odd last row or column is dropped.
+        mWidth = width & ~1;
+        mHeight = height & ~1;
+        mQuality = quality;
+        int mcusPerRow = (mWidth + MCU_SIZE - 1) / MCU_SIZE;
+        int mcuRows = TARGET_BAND_BYTES / (MCU_SIZE * mStride * 3 / 2);
+        mcuRows = Math.min(mcuRows, MAX_RESTART_INTERVAL / Math.max(mcusPerRow, 1));
+        mBandRows = Math.max(mcuRows, 1) * MCU_SIZE;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Writes the JPEG to out a band at a time. Does not close it.
+     *
+     * @return false if the listener cancelled the encode.
+     * @throws TableMismatchException if the bands cannot be spliced; part
+     *         of the JPEG may already have been written to out.
+     */
+    public boolean encode(OutputStream out, Listener listener) throws IOException {
+        if (mWidth <= 0 || mHeight <= 0) {
+            throw new IOException("Invalid mosaic size " + mWidth + "x" + mHeight);
+        }
+        int mcusPerRow = (mWidth + MCU_SIZE - 1) / MCU_SIZE;
+        if (mcusPerRow * (mBandRows / MCU_SIZE) > MAX_RESTART_INTERVAL) {
+            throw new TableMismatchException("Mosaic too wide for restart markers: " + mWidth);
+        }
+        int bands = (mHeight + mBandRows - 1) / mBandRows;
+        int bandBytes = mStride * mBandRows * 3 / 2;
+        byte[] band = new byte[bandBytes];
+        BandOutputStream jpeg = new BandOutputStream(bandBytes / 4);
+        int[] strides = new int[] {mStride, mStride};
+        for (int i = 0; i < bands; i++) {
+            if (listener != null && listener.isCancelled()) {
+                return false;
+            }
+            int firstRow = i * mBandRows;
+            int rows = Math.min(mBandRows, mHeight - firstRow);
+            if (mSource.readFinalMosaicNV21(band, firstRow, rows) < 0) {
+                throw new IOException("Could not read mosaic rows " + firstRow + "+" + rows);
+            }
+
+            jpeg.reset();
+            YuvImage image = new YuvImage(band, ImageFormat.NV21, mWidth, rows, strides);
+            if (!image.compressToJpeg(new Rect(0, 0, mWidth, rows), mQuality, jpeg)) {
+                throw new IOException("Could not compress mosaic rows " + firstRow);
+            }
+            writeBand(out, i, jpeg.buffer(), jpeg.size(), mcusPerRow);
+            if (listener != null) {
+                listener.onProgress(100 * (i + 1) / bands);
+            }
+        }
+        out.write(0xff);
+        out.write(M_EOI);
+        return true;
+    }
+
+    /**
+     * Writes the JPEG to out in one piece, holding the whole NV21 mosaic on
+     * the heap. For when {@link #encode} could not splice the bands.
+     *
+     * @return false if the listener cancelled the encode.
+     */
+    public boolean encodeWhole(OutputStream out, Listener listener) throws IOException {
+        if (listener != null && listener.isCancelled()) {
+            return false;
+        }
+        byte[] mosaic = new byte[mStride * mHeight * 3 / 2];
+        if (mSource.readFinalMosaicNV21(mosaic, 0, mHeight) < 0) {
+            throw new IOException("Could not read the mosaic");
+        }
+        YuvImage image = new YuvImage(mosaic, ImageFormat.NV21, mWidth, mHeight,
+                new int[] {mStride, mStride});
+        if (!image.compressToJpeg(new Rect(0, 0, mWidth, mHeight), mQuality, out)) {
+            throw new IOException("Could not compress the mosaic");
+        }
+        if (listener != null) {
+            listener.onProgress(100);
+        }
+        return true;
+    }
+
+    private void writeBand(OutputStream out, int index, byte[] jpeg, int length,
+            int mcusPerRow) throws IOException {
+        if (length < 4 || (jpeg[length - 2] & 0xff) != 0xff
+                || (jpeg[length - 1] & 0xff) != M_EOI) {
+            throw new IOException("Band " + index + " is not a complete jpeg");
+        }
+        int sof = -1;
+        int pos = 2;
+        while (true) {
+            if (pos + 4 > length || (jpeg[pos] & 0xff) != 0xff) {
+                throw new IOException("Band " + index + " has no scan");
+            }
+            int marker = jpeg[pos + 1] & 0xff;
+            int segmentLength = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+            if (marker == M_SOF0) {
+                sof = pos;
+            }
+            pos += 2 + segmentLength;
+            if (marker == M_SOS) {
+                break;
+            }
+        }
+        if (sof < 0) {
+            throw new IOException("Band " + index + " is not baseline");
+        }
+        int scanStart = pos;
+        int scanEnd = length - 2;
+
+        if (index == 0) {
+            mHeader = new byte[scanStart - 2];
+            System.arraycopy(jpeg, 2, mHeader, 0, mHeader.length);
+            mHeightOffset = sof + 5 - 2;
+            int sosStart = sosStart(mHeader);
+            // Full height in the frame header, and a restart every band.
+            mHeader[mHeightOffset] = (byte) (mHeight >> 8);
+            mHeader[mHeightOffset + 1] = (byte) mHeight;
+            int interval = mcusPerRow * (mBandRows / MCU_SIZE);
+            out.write(0xff);
+            out.write(0xd8);
+            out.write(mHeader, 0, sosStart);
+            out.write(new byte[] {(byte) 0xff, (byte) M_DRI, 0, 4,
+                    (byte) (interval >> 8), (byte) interval});
+            out.write(mHeader, sosStart, mHeader.length - sosStart);
+        } else {
+            if (scanStart - 2 != mHeader.length) {
+                throw new TableMismatchException("Band " + index + " headers differ in size");
+            }
+            for (int i = 0; i < mHeader.length; i++) {
+                if (i != mHeightOffset && i != mHeightOffset + 1
+                        && mHeader[i] != jpeg[i + 2]) {
+                    throw new TableMismatchException("Band " + index + " tables differ at " + i);
+                }
+            }
+            out.write(0xff);
+            out.write(M_RST0 + (index - 1) % 8);
+        }
+        out.write(jpeg, scanStart, scanEnd - scanStart);
+    }
+
+    private static int sosStart(byte[] header) {
+        int pos = 0;
+        while ((header[pos + 1] & 0xff) != M_SOS) {
+            pos += 2 + (((header[pos + 2] & 0xff) << 8) | (header[pos + 3] & 0xff));
+        }
+        return pos;
+    }
+}
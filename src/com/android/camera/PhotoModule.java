@@ -5154,7 +5154,7 @@ public class PhotoModule
     }
 
     @Override
-    public void onQueueStatus(boolean full) {
+    public void onQueueStatus(boolean full, long drainMs) {
         mUI.enableShutter(!full);
     }
 
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.location.Location;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+/*
+ * Append-only spool of saves that have not reached storage yet, kept in
+ * memory mapped segment files under the cache directory. A record is only
+ * considered written once its magic is in place, which happens after the
+ * rest of it, so a process killed halfway through an append leaves
+ * nothing behind that recover() would pick up. Segments whose records are
+ * all completed are deleted.
+ *
+ * Record layout: magic, state, body length, body crc, then the body made
+ * of the metadata block and the payload, each prefixed by its length.
+ */
+class SaveJournal {
+    private static final String TAG = "CAM_SaveJournal";
+
+    public static final int TYPE_IMAGE = 1;
+    public static final int TYPE_RAW = 2;
+    public static final int TYPE_HEIF = 3;
+
+    private static final int MAGIC = 0x534a524e;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    public static class Entry {
+        private final Segment mSegment;
+        private final int mOffset;
+        private final int mPayloadOffset;
+        private final int mPayloadLength;
+        private final boolean mRecovered;
+
+        public final int type;
+        public final String title;
+        public final String mimeType;
+        public final String path;
+        public final long date;
+        public final int orientation;
+        public final int width;
+        public final int height;
+        public final int quality;
+        public final Location location;
+
+        private Entry(Segment segment, int offset, int payloadOffset, int payloadLength,
+                boolean recovered, int type, String title, String mimeType, String path,
+                long date, int orientation, int width, int height, int quality,
+                Location location) {
+            mSegment = segment;
+            mOffset = offset;
+            mPayloadOffset = payloadOffset;
+            mPayloadLength = payloadLength;
+            mRecovered = recovered;
+            this.type = type;
+            this.title = title;
+            this.mimeType = mimeType;
+            this.path = path;
+            this.date = date;
+            this.orientation = orientation;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+            this.location = location;
+        }
+
+        public int getPayloadLength() {
+            return mPayloadLength;
+        }
+
+        // Whether this entry was left over by a previous process.
+        public boolean isRecovered() {
+            return mRecovered;
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int writeOffset;
+        int pending;
+        boolean sealed;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private Segment mActive;
+    private int mNextSegmentId;
+    private boolean mRecovered;
+    // Staging for checksumming payloads that are not on the heap.
+    private final byte[] mChunk = new byte[COPY_CHUNK];
+
+    public SaveJournal(File dir, int segmentSize) {
+        mDir = dir;
+        mSegmentSize = segmentSize;
+    }
+
+    // Opens the journal and returns the entries an earlier process queued
+    // but never completed, oldest first. append() waits until this is done.
+    public synchronized List<Entry> recover() {
+        try {
+            return recoverLocked();
+        } finally {
+            mRecovered = true;
+            notifyAll();
+        }
+    }
+
+    private List<Entry> recoverLocked() {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.e(TAG, "Cannot create " + mDir);
+            return entries;
+        }
+        File[] files = mDir.listFiles();
+        if (files == null) return entries;
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX)) continue;
+            try {
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+                mNextSegmentId = Math.max(mNextSegmentId, id + 1);
+            } catch (NumberFormatException e) {
+                file.delete();
+                continue;
+            }
+            Segment segment = null;
+            try {
+                segment = new Segment(file, map(file, file.length()));
+                scan(segment, entries);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read " + file, e);
+            }
+            if (segment == null) {
+                file.delete();
+            } else if (segment.pending == 0) {
+                retire(segment);
+            } else {
+                segment.sealed = true;
+            }
+        }
+        if (!entries.isEmpty()) {
+            Log.w(TAG, "Recovered " + entries.size() + " unsaved entries");
+        }
+        return entries;
+    }
+
+    // Spools one save. Returns null if the journal cannot take it, in which
+    // case the caller keeps the data in memory as before.
+    public Entry append(int type, String title, String mimeType, String path,
+            long date, int orientation, int width, int height, int quality,
+            Location location, byte[] payload) {
+        return append(type, title, mimeType, path, date, orientation, width, height, quality,
+                location, payload == null ? null : ByteBuffer.wrap(payload));
+    }
+
+    // Same, for a payload still in a capture buffer. The remaining bytes of
+    // payload are copied into the mapping; its position is left untouched.
+    public Entry append(int type, String title, String mimeType, String path,
+            long date, int orientation, int width, int height, int quality,
+            Location location, ByteBuffer payload) {
+        return append(type, title, mimeType, path, date, orientation, width, height, quality,
+                location, payload == null ? null : new ByteBuffer[] { payload });
+    }
+
+    // Same, for a payload made of several pieces, such as a new exif header
+    // and the rest of the original jpeg, that are gathered into one record.
+    public synchronized Entry append(int type, String title, String mimeType, String path,
+            long date, int orientation, int width, int height, int quality,
+            Location location, ByteBuffer[] payload) {
+        // New segments are numbered after the ones recover() finds.
+        while (!mRecovered) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        byte[] meta;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(title);
+            out.writeUTF(mimeType == null ? "" : mimeType);
+            out.writeUTF(path == null ? "" : path);
+            out.writeLong(date);
+            out.writeInt(orientation);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(quality);
+            out.writeBoolean(location != null);
+            if (location != null) {
+                out.writeDouble(location.getLatitude());
+                out.writeDouble(location.getLongitude());
+            }
+            out.close();
+            meta = bytes.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+        int payloadLength = 0;
+        if (payload != null) {
+            for (ByteBuffer piece : payload) {
+                payloadLength += piece.remaining();
+            }
+        }
+        int bodyLength = 4 + meta.length + 4 + payloadLength;
+        int recordLength = RECORD_HEADER_SIZE + bodyLength;
+
+        Segment segment = segmentFor(recordLength);
+        if (segment == null) return null;
+
+        int offset = segment.writeOffset;
+        CRC32 crc = new CRC32();
+        ByteBuffer b = segment.buffer.duplicate();
+        b.position(offset + RECORD_HEADER_SIZE);
+        b.putInt(meta.length);
+        b.put(meta);
+        b.putInt(payloadLength);
+        crc.update(meta);
+        if (payload != null) {
+            for (ByteBuffer piece : payload) {
+                b.put(piece.duplicate());
+                updateCrc(crc, piece.duplicate());
+            }
+        }
+        b.putInt(offset + 4, STATE_PENDING);
+        b.putInt(offset + 8, bodyLength);
+        b.putInt(offset + 12, (int) crc.getValue());
+        // Written last, this is what makes the record visible to recover().
+        b.putInt(offset, MAGIC);
+
+        segment.writeOffset += recordLength;
+        segment.pending++;
+        return new Entry(segment, offset,
+                offset + RECORD_HEADER_SIZE + 4 + meta.length + 4, payloadLength,
+                false, type, title, mimeType, path, date, orientation, width, height,
+                quality, location);
+    }
+
+    private void updateCrc(CRC32 crc, ByteBuffer payload) {
+        if (payload.hasArray()) {
+            crc.update(payload.array(), payload.arrayOffset() + payload.position(),
+                    payload.remaining());
+            return;
+        }
+        while (payload.hasRemaining()) {
+            int n = Math.min(payload.remaining(), mChunk.length);
+            payload.get(mChunk, 0, n);
+            crc.update(mChunk, 0, n);
+        }
+    }
+
+    // Copies the spooled payload of an entry into a file.
+    public void writePayload(Entry entry, String path) throws IOException {
+        ByteBuffer b = entry.mSegment.buffer.duplicate();
+        b.limit(entry.mPayloadOffset + entry.mPayloadLength);
+        b.position(entry.mPayloadOffset);
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            FileChannel channel = out.getChannel();
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Marks an entry as saved; it will not be replayed again.
+    public synchronized void complete(Entry entry) {
+        Segment segment = entry.mSegment;
+        segment.buffer.putInt(entry.mOffset + 4, STATE_DONE);
+        segment.pending--;
+        if (segment.pending == 0 && segment.sealed) {
+            retire(segment);
+        }
+    }
+
+    // Drops a sealed segment nothing refers to any more. The mapping is
+    // released right away rather than whenever the buffer is collected, a
+    // few retired segments would otherwise fill a 32-bit address space.
+    private static void retire(Segment segment) {
+        segment.file.delete();
+        NioUtils.freeDirectBuffer(segment.buffer);
+    }
+
+    private Segment segmentFor(int recordLength) {
+        if (mActive != null && mActive.writeOffset + recordLength > mActive.buffer.capacity()) {
+            mActive.sealed = true;
+            if (mActive.pending == 0) {
+                retire(mActive);
+            }
+            mActive = null;
+        }
+        if (mActive == null) {
+            File file = new File(mDir, String.format("%s%08d", SEGMENT_PREFIX, mNextSegmentId++));
+            long size = Math.max(mSegmentSize, recordLength);
+            if (mDir.getUsableSpace() < size * 2) {
+                Log.w(TAG, "Not enough space to spool " + recordLength + " bytes");
+                return null;
+            }
+            try {
+                mActive = new Segment(file, map(file, size));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to create " + file, e);
+                file.delete();
+                return null;
+            }
+        }
+        return mActive;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                // Reserve the blocks up front, writing through the mapping
+                // into a hole on a full disk would take the process down.
+                try {
+                    Os.posix_fallocate(raf.getFD(), 0, size);
+                } catch (ErrnoException e) {
+                    throw new IOException("fallocate failed", e);
+                }
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void scan(Segment segment, List<Entry> entries) throws IOException {
+        ByteBuffer b = segment.buffer.duplicate();
+        int capacity = b.capacity();
+        int offset = 0;
+        byte[] chunk = new byte[COPY_CHUNK];
+        while (offset + RECORD_HEADER_SIZE <= capacity && b.getInt(offset) == MAGIC) {
+            int state = b.getInt(offset + 4);
+            int bodyLength = b.getInt(offset + 8);
+            int crcValue = b.getInt(offset + 12);
+            int bodyOffset = offset + RECORD_HEADER_SIZE;
+            if (bodyLength < 8 || bodyLength > capacity - bodyOffset) break;
+
+            int metaLength = b.getInt(bodyOffset);
+            if (metaLength < 0 || metaLength > bodyLength - 8) break;
+            int payloadLengthOffset = bodyOffset + 4 + metaLength;
+            int payloadLength = b.getInt(payloadLengthOffset);
+            if (payloadLength != bodyLength - 8 - metaLength) break;
+
+            byte[] meta = new byte[metaLength];
+            b.position(bodyOffset + 4);
+            b.get(meta);
+            CRC32 crc = new CRC32();
+            crc.update(meta);
+            b.position(payloadLengthOffset + 4);
+            int remaining = payloadLength;
+            while (remaining > 0) {
+                int n = Math.min(remaining, chunk.length);
+                b.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+                remaining -= n;
+            }
+            if ((int) crc.getValue() != crcValue) break;
+
+            if (state == STATE_PENDING) {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(meta));
+                int type = in.readByte();
+                String title = in.readUTF();
+                String mimeType = in.readUTF();
+                String path = in.readUTF();
+                long date = in.readLong();
+                int orientation = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                int quality = in.readInt();
+                Location location = null;
+                if (in.readBoolean()) {
+                    location = new Location("journal");
+                    location.setLatitude(in.readDouble());
+                    location.setLongitude(in.readDouble());
+                }
+                entries.add(new Entry(segment, offset, payloadLengthOffset + 4, payloadLength,
+                        true, type, title, mimeType.isEmpty() ? null : mimeType,
+                        path.isEmpty() ? null : path, date, orientation, width, height,
+                        quality, location));
+                segment.pending++;
+            }
+            offset = bodyOffset + bodyLength;
+        }
+        segment.writeOffset = offset;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * Runs the MediaSaveService jobs on a small pool of its own instead of the
+ * process wide AsyncTask executor. Queued jobs are ordered by kind: a JPEG
+ * feeds the thumbnail so it goes first, then RAW, then MPO; jobs of the same
+ * kind run in submission order.
+ */
+class SaveScheduler {
+    private static final String TAG = "CAM_SaveScheduler";
+
+    // Reading back the SaveJournal of an earlier process; appends wait for it.
+    public static final int PRIORITY_RECOVER = -2;
+    // Copying a capture into the SaveJournal is quick and frees its memory,
+    // so it goes ahead of the saves themselves.
+    public static final int PRIORITY_SPOOL = -1;
+    public static final int PRIORITY_JPEG = 0;
+    public static final int PRIORITY_RAW = 1;
+    public static final int PRIORITY_MPO = 2;
+    // Saves left behind by an earlier process, nothing is waiting on them.
+    public static final int PRIORITY_REPLAY = 3;
+
+    // Written files are synced together once this many are pending, or
+    // earlier if the queue runs dry.
+    private static final int FSYNC_BATCH = 4;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    // Per thread throughput assumed until the first job has been timed.
+    private static final long INITIAL_BYTES_PER_SECOND = 20 * 1024 * 1024;
+
+    public interface Callback {
+        // Called on the main thread after a job's onPostExecute.
+        public void onJobFinished();
+    }
+
+    public static abstract class Job<Result> implements Runnable, Comparable<Job<?>> {
+        private final int mPriority;
+        private final long mBytes;
+        private final boolean mSpooled;
+        private long mSequence;
+        private SaveScheduler mScheduler;
+
+        protected Job(int priority, long bytes) {
+            this(priority, bytes, false);
+        }
+
+        // A spooled job keeps its data in the SaveJournal rather than on the heap.
+        protected Job(int priority, long bytes, boolean spooled) {
+            mPriority = priority;
+            mBytes = bytes;
+            mSpooled = spooled;
+        }
+
+        protected abstract Result doInBackground();
+
+        protected void onPostExecute(Result result) {
+        }
+
+        // The file written by doInBackground, synced to disk by the scheduler.
+        protected String getOutputPath() {
+            return null;
+        }
+
+        @Override
+        public final void run() {
+            long start = SystemClock.elapsedRealtime();
+            Result result = null;
+            try {
+                result = doInBackground();
+            } finally {
+                mScheduler.onJobDone(this, SystemClock.elapsedRealtime() - start);
+            }
+            final Result r = result;
+            final SaveScheduler scheduler = mScheduler;
+            scheduler.mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPostExecute(r);
+                    scheduler.mCallback.onJobFinished();
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler;
+    private final Callback mCallback;
+    private final int mThreadCount;
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private final AtomicLong mHeapBytes = new AtomicLong();
+    private final AtomicInteger mPendingJobs = new AtomicInteger();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mBytesPerSecond = new AtomicLong(INITIAL_BYTES_PER_SECOND);
+    private final ConcurrentLinkedQueue<String> mUnsynced = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger mUnsyncedCount = new AtomicInteger();
+
+    public SaveScheduler(int threadCount, Callback callback) {
+        mThreadCount = Math.max(1, threadCount);
+        mCallback = callback;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mExecutor = new ThreadPoolExecutor(mThreadCount, mThreadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "CameraSave-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void execute(Job<?> job) {
+        job.mScheduler = this;
+        job.mSequence = mSequence.getAndIncrement();
+        mPendingJobs.incrementAndGet();
+        mQueuedBytes.addAndGet(job.mBytes);
+        if (!job.mSpooled) mHeapBytes.addAndGet(job.mBytes);
+        mExecutor.execute(job);
+    }
+
+    // Bytes held by jobs that have been submitted but not finished yet.
+    public long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    // Jobs submitted whose doInBackground has not returned yet.
+    public int getPendingCount() {
+        return mPendingJobs.get();
+    }
+
+    // The part of getQueuedBytes() that is held in memory.
+    public long getHeapBytes() {
+        return mHeapBytes.get();
+    }
+
+    // Rough time in ms until every queued job is written, based on the
+    // throughput of the jobs saved so far.
+    public long getDrainEstimateMs() {
+        long bytes = mQueuedBytes.get();
+        if (bytes <= 0) return 0;
+        return bytes * 1000 / (mBytesPerSecond.get() * mThreadCount);
+    }
+
+    // Lets queued jobs finish but refuses new ones.
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void onJobDone(Job<?> job, long elapsedMs) {
+        mPendingJobs.decrementAndGet();
+        mQueuedBytes.addAndGet(-job.mBytes);
+        if (!job.mSpooled) mHeapBytes.addAndGet(-job.mBytes);
+        if (job.mBytes > 0 && elapsedMs > 0 && job.mPriority != PRIORITY_SPOOL) {
+            updateThroughput(job.mBytes * 1000 / elapsedMs);
+        }
+
+        String path = job.getOutputPath();
+        if (path != null) {
+            mUnsynced.add(path);
+            mUnsyncedCount.incrementAndGet();
+        }
+        if (mUnsyncedCount.get() >= FSYNC_BATCH
+                || (mUnsyncedCount.get() > 0 && mExecutor.getQueue().isEmpty())) {
+            syncPending();
+        }
+    }
+
+    private void updateThroughput(long sample) {
+        while (true) {
+            long current = mBytesPerSecond.get();
+            long next = Math.max(1, current + (sample - current) / 4);
+            if (mBytesPerSecond.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    private void syncPending() {
+        String path;
+        while ((path = mUnsynced.poll()) != null) {
+            mUnsyncedCount.decrementAndGet();
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(path, "r");
+                file.getFD().sync();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to sync " + path, e);
+            } finally {
+                if (file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+}
@@ -83,6 +83,7 @@ import java.io.BufferedReader;
 import java.io.InputStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -240,7 +241,12 @@ public class SettingsManager implements ListMenu.SettingsListener {
 
     private static SettingsManager sInstance;
     private CaptureModule mCaptureModule;
-    private ArrayList<CameraCharacteristics> mCharacteristics;
+    private CharacteristicsList mCharacteristics;
+    private CameraCapabilities[] mCapabilities;
+    private volatile CaptureSettingsSnapshot mCaptureSnapshot;
+    // Bumped on every invalidation, guarded by mCaptureSnapshotLock.
+    private int mCaptureSnapshotGeneration;
+    private final Object mCaptureSnapshotLock = new Object();
     private ArrayList<Listener> mListeners;
     private Map<String, Values> mValuesMap;
     private Context mContext;
@@ -291,7 +297,6 @@ public class SettingsManager implements ListMenu.SettingsListener {
 
     private SettingsManager(Context context) {
         mListeners = new ArrayList<>();
-        mCharacteristics = new ArrayList<>();
         mPrepNameKeys = new ArrayList<>();
         mContext = context;
         mPreferences = ComboPreferences.get(mContext);
@@ -303,23 +308,17 @@ public class SettingsManager implements ListMenu.SettingsListener {
         CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
         try {
             String[] cameraIdList = manager.getCameraIdList();
+            mCharacteristics = new CharacteristicsList(manager, cameraIdList);
+            loadCapabilities(cameraIdList);
             boolean isFirstBackCameraId = true;
             boolean isRearCameraPresent = false;
+            Log.d(TAG,"cameraIdList size ="+cameraIdList.length);
             for (int i = 0; i < cameraIdList.length; i++) {
-                String cameraId = cameraIdList[i];
-                CameraCharacteristics characteristics
-                        = manager.getCameraCharacteristics(cameraId);
-                Log.d(TAG,"cameraIdList size ="+cameraIdList.length);
-                byte monoOnly = 0;
-                try {
-                    monoOnly = characteristics.get(CaptureModule.MetaDataMonoOnlyKey);
-                }catch(Exception e) {
-                }
-                if (monoOnly == 1) {
+                if (mCapabilities[i].monoOnly) {
                     CaptureModule.MONO_ID = i;
                     mIsMonoCameraPresent = true;
                 }
-                int facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                int facing = mCapabilities[i].facing;
                 if (facing == CameraCharacteristics.LENS_FACING_FRONT) {
                     CaptureModule.FRONT_ID = i;
                     mIsFrontCameraPresent = true;
@@ -332,7 +331,6 @@ public class SettingsManager implements ListMenu.SettingsListener {
                         upgradeCameraId(mPreferences.getGlobal(), i);
                     }
                 }
-                mCharacteristics.add(i, characteristics);
             }
             if (isRearCameraPresent) {
                 initPrepNameKeys(CameraCharacteristics.LENS_FACING_BACK);
@@ -342,12 +340,39 @@ public class SettingsManager implements ListMenu.SettingsListener {
             }
         } catch (CameraAccessException e) {
             e.printStackTrace();
+            mCharacteristics = new CharacteristicsList(manager, new String[0]);
+            mCapabilities = new CameraCapabilities[0];
         }
 
         mDependency = parseJson("dependency.json");
         mHeifWriterSupported = isHeifWriterSupported();
     }
 
+    // Reads the capability tables from the cache, only falling back to asking
+    // cameraserver for every camera when the build or the camera list changed.
+    private void loadCapabilities(final String[] cameraIds) throws CameraAccessException {
+        mCapabilities = CameraCapabilities.read(mContext, cameraIds);
+        if (mCapabilities != null) return;
+        final CameraCapabilities[] capabilities = new CameraCapabilities[cameraIds.length];
+        for (int i = 0; i < cameraIds.length; i++) {
+            capabilities[i] = CameraCapabilities.from(cameraIds[i], mCharacteristics.fetch(i));
+        }
+        mCapabilities = capabilities;
+        new Thread("CameraCapabilitiesWriter") {
+            public void run() {
+                CameraCapabilities.write(mContext, capabilities);
+            }
+        }.start();
+    }
+
+    public int getCameraCount() {
+        return mCapabilities.length;
+    }
+
+    public CameraCapabilities getCapabilities(int cameraId) {
+        return mCapabilities[cameraId];
+    }
+
     public void reloadCharacteristics(int cameraId){
         CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
         try {
@@ -428,6 +453,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
         String key = pref.getKey();
         List changed = checkDependencyAndUpdate(key);
         if (changed == null) return;
+        invalidateCaptureSnapshot();
         runTimeUpdateDependencyOptions(pref);
         notifyListeners(changed);
     }
@@ -587,6 +613,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
         filterChromaflashPictureSizeOptions();
         filterHeifSizeOptions();
         mVideoEisConfigs = getVideoEisConfigs(cameraId);
+        invalidateCaptureSnapshot();
     }
 
     public boolean isBurstShotSupported(){
@@ -930,6 +957,36 @@ public class SettingsManager implements ListMenu.SettingsListener {
         else return values.overriddenValue;
     }
 
+    /**
+     * Returns the parsed values the capture requests are built from. The
+     * snapshot is rebuilt lazily after any setting changes. A snapshot built
+     * while a setting changed is returned to its caller but not kept.
+     */
+    public CaptureSettingsSnapshot getCaptureSnapshot() {
+        CaptureSettingsSnapshot snapshot = mCaptureSnapshot;
+        if (snapshot != null) {
+            return snapshot;
+        }
+        int generation;
+        synchronized (mCaptureSnapshotLock) {
+            generation = mCaptureSnapshotGeneration;
+        }
+        snapshot = new CaptureSettingsSnapshot(this, mContext);
+        synchronized (mCaptureSnapshotLock) {
+            if (generation == mCaptureSnapshotGeneration) {
+                mCaptureSnapshot = snapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    private void invalidateCaptureSnapshot() {
+        synchronized (mCaptureSnapshotLock) {
+            mCaptureSnapshotGeneration++;
+            mCaptureSnapshot = null;
+        }
+    }
+
     public int getValueIndex(String key) {
         ListPreference pref = mPreferenceGroup.findPreference(key);
         String value = getValue(key);
@@ -1029,6 +1086,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
         String key = pref.getKey();
         List changed = checkDependencyAndUpdate(key);
         if (changed == null) return;
+        invalidateCaptureSnapshot();
         runTimeUpdateDependencyOptions(pref);
         notifyListeners(changed);
     }
@@ -1430,30 +1488,24 @@ public class SettingsManager implements ListMenu.SettingsListener {
         CharSequence[] fullEntryValues = new CharSequence[numOfCameras + 1];
         CharSequence[] fullEntries = new CharSequence[numOfCameras + 1];
         for(int i = 0; i < numOfCameras ; i++) {
-            int facing = mCharacteristics.get(i).get(CameraCharacteristics.LENS_FACING);
+            int facing = mCapabilities[i].facing;
             String cameraIdString = "camera " + i +" facing:" +
                     (facing == CameraCharacteristics.LENS_FACING_FRONT ? "front" : "back");
             fullEntries[i] = "camera " + i +" facing:"+cameraIdString;
-            try {
-                Byte cameraType = mCharacteristics.get(i).get(CaptureModule.logical_camera_type);
-                if (cameraType != null) {
-                    switch (cameraType) {
-                        case CaptureModule.TYPE_DEFAULT:
-                            cameraIdString += " Default";
-                            break;
-                        case CaptureModule.TYPE_RTB:
-                            cameraIdString += " RTB";
-                            break;
-                        case CaptureModule.TYPE_SAT:
-                            cameraIdString += " SAT";
-                            break;
-                        case CaptureModule.TYPE_VR360:
-                            cameraIdString += " VR360";
-                            break;
-                    }
-                }
-            } catch(IllegalArgumentException e) {
-                Log.e(TAG, "buildCameraId no vendorTag :" + CaptureModule.logical_camera_type);
+            int cameraType = mCapabilities[i].logicalCameraType;
+            switch (cameraType) {
+                case CaptureModule.TYPE_DEFAULT:
+                    cameraIdString += " Default";
+                    break;
+                case CaptureModule.TYPE_RTB:
+                    cameraIdString += " RTB";
+                    break;
+                case CaptureModule.TYPE_SAT:
+                    cameraIdString += " SAT";
+                    break;
+                case CaptureModule.TYPE_VR360:
+                    cameraIdString += " VR360";
+                    break;
             }
             fullEntries[i] = cameraIdString;
             fullEntryValues[i] = "" + i;
@@ -1567,7 +1619,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
             }
         }
 
-        Size[] highResSizes = map.getHighResolutionOutputSizes(ImageFormat.JPEG);
+        Size[] highResSizes = mCapabilities[cameraId].jpegHighResolutionSizes;
         if (highResSizes != null) {
             for (int i = 0; i < highResSizes.length; i++) {
                 if (sizes[i].getWidth() > 352 && sizes[i].getHeight() > 288) {
@@ -1959,9 +2011,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     private List<String> getSupportedPictureSize(int cameraId) {
-        StreamConfigurationMap map = mCharacteristics.get(cameraId).get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        Size[] sizes = map.getOutputSizes(ImageFormat.JPEG);
+        Size[] sizes = mCapabilities[cameraId].jpegSizes;
         List<String> res = new ArrayList<>();
 
         boolean isDeepportrait = getDeepportraitEnabled();
@@ -2048,9 +2098,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     private List<String> getSupportedVideoSize(int cameraId) {
-        StreamConfigurationMap map = mCharacteristics.get(cameraId).get(
-                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-        Size[] sizes = map.getOutputSizes(MediaRecorder.class);
+        Size[] sizes = mCapabilities[cameraId].recorderSizes;
         boolean isHeifEnabled = getSavePictureFormat() == HEIF_FORMAT;
         VideoCapabilities heifCap = null;
         if (isHeifEnabled) {
@@ -2115,8 +2163,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     private List<String> getSupportedRedeyeReduction(int cameraId) {
-        int[] flashModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
-                .CONTROL_AE_AVAILABLE_MODES);
+        int[] flashModes = mCapabilities[cameraId].aeModes;
         List<String> modes = new ArrayList<>();
         for (int i = 0; i < flashModes.length; i++) {
             if (flashModes[i] == CameraMetadata.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE) {
@@ -2147,8 +2194,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
         try {
             List<String> modes = new ArrayList<>();
             if (mCharacteristics.size() > 0) {
-                int[] whiteBalanceModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
-                        .CONTROL_AWB_AVAILABLE_MODES);
+                int[] whiteBalanceModes = mCapabilities[cameraId].awbModes;
                 for (int mode : whiteBalanceModes) {
                     modes.add("" + mode);
                 }
@@ -2160,8 +2206,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     private List<String> getSupportedSceneModes(int cameraId) {
-        int[] sceneModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
-                .CONTROL_AVAILABLE_SCENE_MODES);
+        int[] sceneModes = mCapabilities[cameraId].sceneModes;
         List<String> modes = new ArrayList<>();
         modes.add("0"); // need special case handle for auto scene mode
         if (mIsMonoCameraPresent) modes.add(SCENE_MODE_DUAL_STRING); // need special case handle for dual mode
@@ -2182,8 +2227,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     private List<String> getSupportedFlashModes(int cameraId) {
-        int[] flashModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
-                .CONTROL_AE_AVAILABLE_MODES);
+        int[] flashModes = mCapabilities[cameraId].aeModes;
         List<String> modes = new ArrayList<>();
         for (int mode : flashModes) {
             modes.add("" + mode);
@@ -2193,7 +2237,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
 
     private boolean isFlashAvailable(int cameraId) {
         if (mCharacteristics.size() > 0) {
-            return mCharacteristics.get(cameraId).get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            return mCapabilities[cameraId].flashAvailable;
         } else {
             return false;
         }
@@ -2207,8 +2251,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     public List<String> getSupportedColorEffects(int cameraId) {
         List<String> modes = new ArrayList<>();
         if (mCharacteristics.size() > 0) {
-            int[] flashModes = mCharacteristics.get(cameraId).get(CameraCharacteristics
-                    .CONTROL_AVAILABLE_EFFECTS);
+            int[] flashModes = mCapabilities[cameraId].effects;
             for (int mode : flashModes) {
                 modes.add("" + mode);
             }
@@ -2217,43 +2260,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
     }
 
     private List<String> getSupportedIso(int cameraId) {
-        CameraCharacteristics cameraCharacteristics = mCharacteristics.get(cameraId);
-        List<String> supportedIso = new ArrayList<>();
-        supportedIso.add("auto");
-
-        try {
-            int[] modes = cameraCharacteristics.get(CaptureModule.ISO_AVAILABLE_MODES);
-            if (modes != null) {
-                for (int iso : modes) {
-                    for (String key : KEY_ISO_INDEX.keySet()) {
-                        if (KEY_ISO_INDEX.get(key).equals(iso)) {
-                            supportedIso.add(key);
-                        }
-                    }
-                }
-            } else {
-                Log.w(TAG, "Supported ISO range is null.");
-            }
-        } catch (IllegalArgumentException e) {
-            Log.w(TAG, "IllegalArgumentException Supported ISO_AVAILABLE_MODES is wrong.");
-
-            Range<Integer> range = mCharacteristics.get(cameraId).get(
-                    CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
-            if (range != null) {
-                int max = range.getUpper();
-                int value = 50;
-                while (value <= max) {
-                    if (range.contains(value)) {
-                        supportedIso.add(String.valueOf(value));
-                    }
-                    value += 50;
-                }
-            } else {
-                Log.w(TAG, "Supported ISO range is null.");
-            }
-        }
-
-        return supportedIso;
+        return new ArrayList<>(Arrays.asList(mCapabilities[cameraId].isoValues));
     }
 
     private boolean isCurrentVideoResolutionSupportedByEncoder(MediaCodecInfo info) {
@@ -2521,8 +2528,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
 
     public boolean isSATCamera(int cameraId){
         try{
-            int type = mCharacteristics.get(cameraId).get(CaptureModule.logical_camera_type);
-            return type == CaptureModule.TYPE_SAT;
+            return mCapabilities[cameraId].logicalCameraType == CaptureModule.TYPE_SAT;
         }catch (Exception e){
         }
         return false;
@@ -2586,6 +2592,47 @@ public class SettingsManager implements ListMenu.SettingsListener {
         void onSettingsChanged(List<SettingState> settings);
     }
 
+    /**
+     * Camera characteristics by camera index, each fetched from cameraserver
+     * the first time it is used. A normal launch only touches the current
+     * camera's, the option lists come from {@link CameraCapabilities}.
+     */
+    private static class CharacteristicsList {
+        private final CameraManager mManager;
+        private final String[] mIds;
+        private final CameraCharacteristics[] mCharacteristics;
+
+        CharacteristicsList(CameraManager manager, String[] ids) {
+            mManager = manager;
+            mIds = ids;
+            mCharacteristics = new CameraCharacteristics[ids.length];
+        }
+
+        synchronized CameraCharacteristics fetch(int index) throws CameraAccessException {
+            if (mCharacteristics[index] == null) {
+                mCharacteristics[index] = mManager.getCameraCharacteristics(mIds[index]);
+            }
+            return mCharacteristics[index];
+        }
+
+        CameraCharacteristics get(int index) {
+            try {
+                return fetch(index);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Failed to get characteristics of camera " + mIds[index], e);
+                return null;
+            }
+        }
+
+        synchronized void set(int index, CameraCharacteristics characteristics) {
+            mCharacteristics[index] = characteristics;
+        }
+
+        int size() {
+            return mIds.length;
+        }
+    }
+
     static class Values {
         String value;
         String overriddenValue;
@@ -2676,6 +2723,7 @@ public class SettingsManager implements ListMenu.SettingsListener {
         clearPerCameraPreferences();
         mValuesMap.clear();
         if(mValuesMap != null) mValuesMap = null;
+        invalidateCaptureSnapshot();
         mCaptureModule.restoreCameraIds();
         init();
     }
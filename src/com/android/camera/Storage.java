@@ -19,10 +19,15 @@ package com.android.camera;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.location.Location;
@@ -31,6 +36,7 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
@@ -123,16 +129,23 @@ public class Storage {
             int height, String mimeType) {
 
         String path = generateFilepath(title, mimeType);
+        // writeFile returns the final size, exif header included.
         int size = writeFile(path, jpeg, exif, mimeType);
-        // Try to get the real image size after add exif.
-        File f = new File(path);
-        if (f.exists() && f.isFile()) {
-            size = (int) f.length();
-        }
         return addImage(resolver, title, date, location, orientation, exif,
                 size, path, width, height, mimeType);
     }
 
+    // Same as addImage but leaves the MediaStore insert to the caller, which
+    // gets the values to insert.
+    public static ContentValues writeImage(String title, long date,
+            Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
+            int height, String mimeType) {
+        String path = generateFilepath(title, mimeType);
+        int size = writeFile(path, jpeg, exif, mimeType);
+        return getContentValuesForData(title, date, location, orientation, exif,
+                size, path, width, height, mimeType);
+    }
+
     // Get a ContentValues object for the given photo data
     public static ContentValues getContentValuesForData(String title,
             long date, Location location, int orientation, ExifInterface exif, int jpegLength,
@@ -229,6 +242,26 @@ public class Storage {
                 size, path, width, height, mimeType);
     }
 
+    // Returns the MediaStore uri of the image stored at path, or null if
+    // it has not been inserted.
+    public static Uri findImage(ContentResolver resolver, String path) {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(Images.Media.EXTERNAL_CONTENT_URI,
+                    new String[] {ImageColumns._ID}, ImageColumns.DATA + "=?",
+                    new String[] {path}, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                return ContentUris.withAppendedId(Images.Media.EXTERNAL_CONTENT_URI,
+                        cursor.getLong(0));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to query MediaStore for " + path, e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        return null;
+    }
+
     // Overwrites the file and updates the MediaStore, or inserts the image if
     // one does not already exist.
     public static void updateImage(Uri imageUri, ContentResolver resolver, String title, long date,
@@ -395,6 +428,36 @@ public class Storage {
         }
     }
 
+    // Inserts several images in one MediaStore transaction. Entries that
+    // could not be inserted are left null.
+    public static Uri[] insertImages(ContentResolver resolver, ContentValues[] values) {
+        Uri[] uris = new Uri[values.length];
+        if (values.length == 1) {
+            uris[0] = insertImage(resolver, values[0]);
+            return uris;
+        }
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(values.length);
+        for (ContentValues v : values) {
+            ops.add(ContentProviderOperation.newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(v).build());
+        }
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY, ops);
+            for (int i = 0; i < results.length && i < uris.length; i++) {
+                uris[i] = results[i].uri;
+            }
+        } catch (Throwable th) {
+            // Fall back to one insert at a time so a single bad row does
+            // not cost the whole batch.
+            Log.e(TAG, "Failed to write MediaStore batch, retrying one by one " + th);
+            for (int i = 0; i < values.length; i++) {
+                uris[i] = insertImage(resolver, values[i]);
+            }
+        }
+        return uris;
+    }
+
     private static Uri insertImage(ContentResolver resolver, ContentValues values) {
         Uri uri = null;
         try {
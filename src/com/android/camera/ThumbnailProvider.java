@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import com.android.camera.exif.ExifView;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Makes the square capture thumbnail shown in the shutter bar without
+ * decoding the full picture. The source is the thumbnail embedded in the
+ * JPEG's EXIF or the NV21 frame the JPEG is encoded from. Either way it is
+ * cropped, rotated and scaled in one pass into a bitmap of the final size.
+ * Thumbnails that are no longer shown can be handed back with
+ * {@link #recycle(Bitmap)} so the next one is drawn into the same memory.
+ */
+public class ThumbnailProvider {
+    private final int mSize;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mMatrix = new Matrix();
+    private int[] mPixels;
+    // A finished thumbnail that is no longer shown, reused for the next one.
+    private Bitmap mFree;
+    // Last decoded EXIF thumbnail, reused as inBitmap for the next decode.
+    private Bitmap mDecodeBitmap;
+
+    public ThumbnailProvider(int size) {
+        mSize = size;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Builds the thumbnail from the JPEG's embedded EXIF thumbnail. Returns
+     * null if there is none or it is too small to look right at this size,
+     * the caller should then decode the JPEG itself.
+     *
+     * @param orientation clockwise rotation in degrees, or -1 to use the EXIF
+     */
+    public Bitmap fromJpeg(byte[] jpeg, ExifView exif, int orientation) {
+        int offset = exif.getThumbnailOffset();
+        int length = exif.getThumbnailLength();
+        if (offset < 0 || length <= 0) return null;
+        return decodeThumbnail(jpeg, offset, length, exif, orientation);
+    }
+
+    /**
+     * Same as {@link #fromJpeg(byte[], ExifView, int)} for a JPEG still in
+     * its capture buffer. Only the embedded thumbnail is copied out.
+     */
+    public Bitmap fromJpeg(ByteBuffer jpeg, ExifView exif, int orientation) {
+        int offset = exif.getThumbnailOffset();
+        int length = exif.getThumbnailLength();
+        if (offset < 0 || length <= 0 || offset + length > jpeg.limit()) return null;
+        byte[] thumbnail = new byte[length];
+        ByteBuffer b = jpeg.duplicate();
+        b.position(offset);
+        b.get(thumbnail);
+        return decodeThumbnail(thumbnail, 0, length, exif, orientation);
+    }
+
+    private synchronized Bitmap decodeThumbnail(byte[] jpeg, int offset, int length,
+            ExifView exif, int orientation) {
+
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, offset, length, opt);
+        // The thumbnail is drawn small and round, a 2x upscale is not noticeable.
+        if (opt.outWidth <= 0 || Math.min(opt.outWidth, opt.outHeight) * 2 < mSize) {
+            return null;
+        }
+
+        opt.inJustDecodeBounds = false;
+        opt.inMutable = true;
+        if (mDecodeBitmap != null && mDecodeBitmap.getAllocationByteCount()
+                >= opt.outWidth * opt.outHeight * 4) {
+            opt.inBitmap = mDecodeBitmap;
+        }
+        Bitmap source;
+        try {
+            source = BitmapFactory.decodeByteArray(jpeg, offset, length, opt);
+        } catch (IllegalArgumentException e) {
+            // The previous bitmap could not be reused for this one.
+            opt.inBitmap = null;
+            source = BitmapFactory.decodeByteArray(jpeg, offset, length, opt);
+        }
+        if (source == null) return null;
+        if (mDecodeBitmap != null && mDecodeBitmap != source) {
+            mDecodeBitmap.recycle();
+        }
+        mDecodeBitmap = source;
+        if (orientation == -1) {
+            orientation = exif.getOrientation();
+        }
+        return draw(source, orientation);
+    }
+
+    /**
+     * Draws the centre square of source, rotated clockwise by orientation
+     * degrees, into a thumbnail. The source is left untouched.
+     */
+    public synchronized Bitmap draw(Bitmap source, int orientation) {
+        int w = source.getWidth();
+        int h = source.getHeight();
+        float scale = (float) mSize / Math.min(w, h);
+        mMatrix.setTranslate(-w / 2f, -h / 2f);
+        mMatrix.postRotate(orientation);
+        mMatrix.postScale(scale, scale);
+        mMatrix.postTranslate(mSize / 2f, mSize / 2f);
+        Bitmap thumbnail = obtain();
+        Canvas canvas = new Canvas(thumbnail);
+        canvas.drawBitmap(source, mMatrix, mPaint);
+        return thumbnail;
+    }
+
+    /**
+     * Builds the thumbnail from the centre square of crop in an NV21 frame,
+     * rotated clockwise by orientation degrees. Only the pixels that end up
+     * in the thumbnail are read, so the cost does not depend on the frame
+     * size.
+     */
+    public synchronized Bitmap fromNv21(byte[] nv21, int stride, int height, Rect crop,
+            int orientation) {
+        int d = Math.min(crop.width(), crop.height());
+        int left = crop.centerX() - d / 2;
+        int top = crop.centerY() - d / 2;
+        int uvStart = stride * height;
+        if (mPixels == null) {
+            mPixels = new int[mSize * mSize];
+        }
+        int[] pixels = mPixels;
+        for (int y = 0; y < mSize; y++) {
+            int v = y * d / mSize;
+            for (int x = 0; x < mSize; x++) {
+                int u = x * d / mSize;
+                int sx;
+                int sy;
+                switch (orientation) {
+                    case 90:
+                        sx = v;
+                        sy = d - 1 - u;
+                        break;
+                    case 180:
+                        sx = d - 1 - u;
+                        sy = d - 1 - v;
+                        break;
+                    case 270:
+                        sx = d - 1 - v;
+                        sy = u;
+                        break;
+                    default:
+                        sx = u;
+                        sy = v;
+                        break;
+                }
+                sx += left;
+                sy += top;
+                int luma = nv21[sy * stride + sx] & 0xff;
+                int uv = uvStart + (sy >> 1) * stride + (sx & ~1);
+                int cr = (nv21[uv] & 0xff) - 128;
+                int cb = (nv21[uv + 1] & 0xff) - 128;
+                pixels[y * mSize + x] = yuvToArgb(luma, cb, cr);
+            }
+        }
+        Bitmap thumbnail = obtain();
+        thumbnail.setPixels(pixels, 0, mSize, 0, 0, mSize, mSize);
+        return thumbnail;
+    }
+
+    // Full range BT.601, as used by JFIF, in 10 bit fixed point.
+    private static int yuvToArgb(int y, int cb, int cr) {
+        int r = y + ((1436 * cr) >> 10);
+        int g = y - ((352 * cb + 731 * cr) >> 10);
+        int b = y + ((1815 * cb) >> 10);
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private Bitmap obtain() {
+        Bitmap bitmap = mFree;
+        mFree = null;
+        if (bitmap == null || bitmap.isRecycled()) {
+            bitmap = Bitmap.createBitmap(mSize, mSize, Bitmap.Config.ARGB_8888);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Takes back a thumbnail that is no longer shown. Bitmaps this provider
+     * can reuse are kept for the next thumbnail, anything else is recycled.
+     */
+    public synchronized void recycle(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if (mFree == null && bitmap.isMutable() && bitmap.getWidth() == mSize
+                && bitmap.getHeight() == mSize
+                && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+            mFree = bitmap;
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+}
@@ -23,12 +23,9 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
 import android.graphics.PixelFormat;
 import android.graphics.Point;
-import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
-import android.graphics.YuvImage;
 import android.hardware.Camera.Parameters;
 import android.hardware.Camera.Size;
 import android.location.Location;
@@ -54,9 +51,12 @@ import com.android.camera.util.CameraUtil;
 import com.android.camera.util.UsageStatistics;
 import org.codeaurora.snapcam.R;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.TimeZone;
 
@@ -80,6 +80,10 @@ public class WideAnglePanoramaModule
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
+    // Share of the saving progress bar given to encoding once stitching is done.
+    private static final int ENCODE_PROGRESS_SHARE = 20;
+    private static final int FILE_BUFFER_SIZE = 64 * 1024;
+
     @SuppressWarnings("unused")
     private static final String TAG = "CAM_WidePanoModule";
     private static final int PREVIEW_STOPPED = 0;
@@ -120,7 +124,9 @@ public class WideAnglePanoramaModule
     private Handler mMainHandler;
     private SurfaceTexture mCameraTexture;
     private boolean mThreadRunning;
-    private boolean mCancelComputation;
+    private volatile boolean mCancelComputation;
+    // Progress of encoding the high-res mosaic, reported after stitching.
+    private volatile int mEncodeProgress;
     private float mHorizontalViewAngle;
     private float mVerticalViewAngle;
 
@@ -163,26 +169,30 @@ public class WideAnglePanoramaModule
     }
 
     private class MosaicJpeg {
-        public MosaicJpeg(byte[] data, int width, int height) {
-            this.data = data;
+        public MosaicJpeg(int width, int height) {
             this.width = width;
             this.height = height;
             this.isValid = true;
         }
 
         public MosaicJpeg() {
-            this.data = null;
             this.width = 0;
             this.height = 0;
             this.isValid = false;
         }
 
-        public final byte[] data;
         public final int width;
         public final int height;
         public final boolean isValid;
     }
 
+    // Where generateFinalMosaic writes the JPEG. Opened a second time, and
+    // expected to start over, if the mosaic has to be encoded again in one
+    // piece.
+    private interface MosaicOutput {
+        OutputStream open() throws IOException;
+    }
+
     private class PanoOrientationEventListener extends OrientationEventListener {
         public PanoOrientationEventListener(Context context) {
             super(context);
@@ -664,11 +674,19 @@ public class WideAnglePanoramaModule
             runBackgroundThread(new Thread() {
                 @Override
                 public void run() {
-                    MosaicJpeg jpeg = generateFinalMosaic(false);
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    MosaicJpeg jpeg = generateFinalMosaic(false, new MosaicOutput() {
+                        @Override
+                        public OutputStream open() {
+                            out.reset();
+                            return out;
+                        }
+                    });
 
                     if (jpeg != null && jpeg.isValid) {
                         Bitmap bitmap = null;
-                        bitmap = BitmapFactory.decodeByteArray(jpeg.data, 0, jpeg.data.length);
+                        byte[] data = out.toByteArray();
+                        bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
                         mMainHandler.sendMessage(mMainHandler.obtainMessage(
                                 MSG_LOW_RES_FINAL_MOSAIC_READY, bitmap));
                     } else {
@@ -716,8 +734,10 @@ public class WideAnglePanoramaModule
             @Override
             public void run() {
                 while (mThreadRunning) {
-                    final int progress = mMosaicFrameProcessor.reportProgress(
+                    int stitchProgress = mMosaicFrameProcessor.reportProgress(
                             true, mCancelComputation);
+                    final int progress = (stitchProgress * (100 - ENCODE_PROGRESS_SHARE)
+                            + mEncodeProgress * ENCODE_PROGRESS_SHARE) / 100;
 
                     try {
                         synchronized (mWaitObject) {
@@ -775,13 +795,20 @@ public class WideAnglePanoramaModule
     }
 
     public void saveHighResMosaic() {
+        mEncodeProgress = 0;
         runBackgroundThread(new Thread() {
             @Override
             public void run() {
                 mPartialWakeLock.acquire();
+                String filename = PanoUtil.createName(mActivity.getResources().getString(
+                        R.string.pano_file_name_format), mTimeTaken);
+                String filepath = Storage.generateFilepath(filename,
+                        PhotoModule.PIXEL_FORMAT_JPEG);
+                int orientation = getCaptureOrientation();
+                Location loc = mLocationManager.getCurrentLocation();
                 MosaicJpeg jpeg;
                 try {
-                    jpeg = generateFinalMosaic(true);
+                    jpeg = writeFinalMosaic(filepath, orientation, loc);
                 } finally {
                     mPartialWakeLock.release();
                 }
@@ -791,8 +818,8 @@ public class WideAnglePanoramaModule
                 } else if (!jpeg.isValid) {  // Error when generating mosaic.
                     mMainHandler.sendEmptyMessage(MSG_GENERATE_FINAL_MOSAIC_ERROR);
                 } else {
-                    int orientation = getCaptureOrientation();
-                    final Uri uri = savePanorama(jpeg.data, jpeg.width, jpeg.height, orientation);
+                    final Uri uri = savePanorama(filename, filepath, jpeg.width, jpeg.height,
+                            orientation, loc);
                     if (uri != null) {
                         mActivity.runOnUiThread(new Runnable() {
                             @Override
@@ -860,38 +887,61 @@ public class WideAnglePanoramaModule
         mUI.saveFinalMosaic(bitmap, getCaptureOrientation());
     }
 
-    private Uri savePanorama(byte[] jpegData, int width, int height, int orientation) {
-        if (jpegData != null) {
-            String filename = PanoUtil.createName(
-                    mActivity.getResources().getString(R.string.pano_file_name_format), mTimeTaken);
-            String filepath = Storage.generateFilepath(filename,
-                              PhotoModule.PIXEL_FORMAT_JPEG);
-
-            UsageStatistics.onEvent(UsageStatistics.COMPONENT_PANORAMA,
-                    UsageStatistics.ACTION_CAPTURE_DONE, null, 0,
-                    UsageStatistics.hashFileName(filename + ".jpg"));
-
-            Location loc = mLocationManager.getCurrentLocation();
-            ExifInterface exif = new ExifInterface();
-            try {
-                exif.readExif(jpegData);
-                exif.addMakeAndModelTag();
-                exif.addGpsDateTimeStampTag(mTimeTaken);
-                exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, mTimeTaken,
-                        TimeZone.getDefault());
-                exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
-                        ExifInterface.getOrientationValueForRotation(orientation)));
-                writeLocation(loc, exif);
-                exif.writeExif(jpegData, filepath);
-            } catch (IOException e) {
-                Log.e(TAG, "Cannot set exif for " + filepath, e);
-                Storage.writeFile(filepath, jpegData);
+    /**
+     * Stitches the high-res mosaic and streams it with its exif header into filepath.
+     *
+     * @return the same as {@link #generateFinalMosaic}; the file is deleted unless the
+     *         mosaic is valid.
+     */
+    private MosaicJpeg writeFinalMosaic(final String filepath, int orientation, Location loc) {
+        final ExifInterface exif = new ExifInterface();
+        exif.addMakeAndModelTag();
+        exif.addGpsDateTimeStampTag(mTimeTaken);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, mTimeTaken,
+                TimeZone.getDefault());
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(orientation)));
+        writeLocation(loc, exif);
+
+        MosaicJpeg jpeg = null;
+        final OutputStream[] out = new OutputStream[1];
+        try {
+            jpeg = generateFinalMosaic(true, new MosaicOutput() {
+                @Override
+                public OutputStream open() throws IOException {
+                    // Starting over truncates whatever the last attempt wrote.
+                    CameraUtil.closeSilently(out[0]);
+                    out[0] = null;
+                    out[0] = exif.getExifWriterStream(new BufferedOutputStream(
+                            new FileOutputStream(filepath), FILE_BUFFER_SIZE));
+                    return out[0];
+                }
+            });
+            if (out[0] != null) {
+                out[0].close();
+                out[0] = null;
             }
-            int jpegLength = (int) (new File(filepath).length());
-            return Storage.addImage(mContentResolver, filename, mTimeTaken, loc, orientation,
-                    jpegLength, filepath, width, height, LocalData.MIME_TYPE_JPEG);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write final mosaic to " + filepath, e);
+            jpeg = new MosaicJpeg();
+        } finally {
+            CameraUtil.closeSilently(out[0]);
         }
-        return null;
+        if (jpeg == null || !jpeg.isValid) {
+            new File(filepath).delete();
+        }
+        return jpeg;
+    }
+
+    private Uri savePanorama(String filename, String filepath, int width, int height,
+            int orientation, Location loc) {
+        UsageStatistics.onEvent(UsageStatistics.COMPONENT_PANORAMA,
+                UsageStatistics.ACTION_CAPTURE_DONE, null, 0,
+                UsageStatistics.hashFileName(filename + ".jpg"));
+
+        int jpegLength = (int) (new File(filepath).length());
+        return Storage.addImage(mContentResolver, filename, mTimeTaken, loc, orientation,
+                jpegLength, filepath, width, height, LocalData.MIME_TYPE_JPEG);
     }
 
     private static void writeLocation(Location location, ExifInterface exif) {
@@ -1089,14 +1139,20 @@ public class WideAnglePanoramaModule
     }
 
     /**
-     * Generate the final mosaic image.
+     * Generate the final mosaic image and encode it into out.
+     *
+     * The mosaic stays in native memory and is encoded a band at a time, so neither the
+     * full NV21 image nor the full JPEG is ever held on the Java heap. Encoding checks
+     * mCancelComputation between bands. If the bands cannot be spliced, the mosaic is
+     * encoded again in one piece rather than lost.
      *
      * @param highRes flag to indicate whether we want to get a high-res version.
+     * @param output receives the JPEG; the streams it opens are not closed.
      * @return a MosaicJpeg with its isValid flag set to true if successful; null if the generation
      *         process is cancelled; and a MosaicJpeg with its isValid flag set to false if there
      *         is an error in generating the final mosaic.
      */
-    public MosaicJpeg generateFinalMosaic(boolean highRes) {
+    private MosaicJpeg generateFinalMosaic(final boolean highRes, MosaicOutput output) {
         int mosaicReturnCode = mMosaicFrameProcessor.createMosaic(highRes);
         if (mosaicReturnCode == Mosaic.MOSAIC_RET_CANCELLED) {
             return null;
@@ -1104,36 +1160,53 @@ public class WideAnglePanoramaModule
             return new MosaicJpeg();
         }
 
-        byte[] imageData = mMosaicFrameProcessor.getFinalMosaicNV21();
-        if (imageData == null) {
-            Log.e(TAG, "getFinalMosaicNV21() returned null.");
+        int[] size = mMosaicFrameProcessor.prepareFinalMosaicNV21();
+        if (size == null) {
+            Log.e(TAG, "prepareFinalMosaicNV21() returned null.");
             return new MosaicJpeg();
         }
+        try {
+            int width = size[0];
+            int height = size[1];
+            Log.d(TAG, "W = " + width + ", H = " + height);
+            if (width <= 1 || height <= 1) {
+                // TODO: pop up an error message indicating that the final result is not generated.
+                Log.e(TAG, "width|height <= 1!!, W = " + width + ", H = " + height);
+                return new MosaicJpeg();
+            }
 
-        int len = imageData.length - 8;
-        int width = (imageData[len + 0] << 24) + ((imageData[len + 1] & 0xFF) << 16)
-                + ((imageData[len + 2] & 0xFF) << 8) + (imageData[len + 3] & 0xFF);
-        int height = (imageData[len + 4] << 24) + ((imageData[len + 5] & 0xFF) << 16)
-                + ((imageData[len + 6] & 0xFF) << 8) + (imageData[len + 7] & 0xFF);
-        Log.d(TAG, "ImLength = " + (len) + ", W = " + width + ", H = " + height);
-
-        if (width <= 0 || height <= 0) {
-            // TODO: pop up an error message indicating that the final result is not generated.
-            Log.e(TAG, "width|height <= 0!!, len = " + (len) + ", W = " + width + ", H = " +
-                    height);
-            return new MosaicJpeg();
-        }
+            MosaicJpegEncoder encoder = new MosaicJpegEncoder(
+                    mMosaicFrameProcessor, width, height, 100);
+            MosaicJpegEncoder.Listener listener = new MosaicJpegEncoder.Listener() {
+                @Override
+                public void onProgress(int percent) {
+                    if (highRes) {
+                        mEncodeProgress = percent;
+                    }
+                }
 
-        YuvImage yuvimage = new YuvImage(imageData, ImageFormat.NV21, width, height, null);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvimage.compressToJpeg(new Rect(0, 0, width, height), 100, out);
-        try {
-            out.close();
-        } catch (Exception e) {
+                @Override
+                public boolean isCancelled() {
+                    return mCancelComputation;
+                }
+            };
+            boolean done;
+            try {
+                done = encoder.encode(output.open(), listener);
+            } catch (MosaicJpegEncoder.TableMismatchException e) {
+                Log.w(TAG, "Cannot encode the mosaic in bands, encoding it in one piece", e);
+                done = encoder.encodeWhole(output.open(), listener);
+            }
+            if (!done) {
+                return null;
+            }
+            return new MosaicJpeg(encoder.getWidth(), encoder.getHeight());
+        } catch (IOException e) {
             Log.e(TAG, "Exception in storing final mosaic", e);
             return new MosaicJpeg();
+        } finally {
+            mMosaicFrameProcessor.freeFinalMosaic();
         }
-        return new MosaicJpeg(out.toByteArray(), width, height);
     }
 
     private void startCameraPreview() {
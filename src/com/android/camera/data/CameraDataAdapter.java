@@ -23,6 +23,7 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
@@ -31,6 +32,7 @@ import com.android.camera.SDCard;
 import com.android.camera.Storage;
 import com.android.camera.app.PlaceholderManager;
 import com.android.camera.ui.FilmStripView.ImageData;
+import com.android.camera.util.StartupTimeline;
 
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -43,6 +45,12 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     private static final int DEFAULT_DECODE_SIZE = 1600;
 
+    // The first page only needs to cover the first screen, later pages are
+    // larger to keep the number of UI updates down.
+    private static final int FIRST_PAGE_SIZE = 24;
+    private static final int PAGE_SIZE = 500;
+    private static final int PROBE_BATCH_SIZE = 32;
+
     private LocalDataList mImages;
 
     private Listener mListener;
@@ -191,9 +199,7 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public int findDataByContentUri(Uri uri) {
-        // LocalDataList will return in O(1) if the uri is not contained.
-        // Otherwise the performance is O(n), but this is acceptable as we will
-        // most often call this to find an element at the beginning of the list.
+        // LocalDataList keeps a uri index, so this is O(1).
         return mImages.indexOf(uri);
     }
 
@@ -268,6 +274,43 @@ public class CameraDataAdapter implements LocalDataAdapter {
         }
     }
 
+    /**
+     * Appends data older than everything already in the list, skipping the
+     * items that were added some other way in the meantime.
+     */
+    private void appendData(ArrayList<LocalData> page) {
+        int added = 0;
+        for (LocalData data : page) {
+            if (mImages.indexOf(data.getContentUri()) == -1) {
+                mImages.add(data);
+                added++;
+            }
+        }
+        if (added > 0 && mListener != null) {
+            // Nothing the filmstrip shows has changed, this only lets it
+            // fill the view slots past the previous end.
+            mListener.onDataUpdated(new UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int dataID) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int dataID) {
+                    return false;
+                }
+            });
+        }
+    }
+
+    /** Removes data from the list without deleting the file. */
+    private void dropData(int pos) {
+        LocalData d = mImages.remove(pos);
+        if (mListener != null) {
+            mListener.onDataRemoved(pos, d);
+        }
+    }
+
     /** Update all the data */
     private void replaceData(LocalDataList list) {
         if (list.size() == 0 && mImages.size() == 0) {
@@ -285,89 +328,226 @@ public class CameraDataAdapter implements LocalDataAdapter {
         return cameraPath;
     }
 
-    private class QueryTask extends AsyncTask<ContentResolver, Void, LocalDataList> {
+    /** A batch of changes QueryTask hands to the UI thread. */
+    private static class QueryUpdate {
+        // The next rows, older than everything published so far.
+        static final int PAGE = 0;
+        // Probe results for rows that are already published.
+        static final int PROBED_SHOWN = 1;
+        // Probe results for rows held back until their dimensions are known.
+        static final int PROBED_HIDDEN = 2;
+
+        final int kind;
+        final ArrayList<LocalData> items;
+        // For the probe results, the rows they were probed from.
+        final ArrayList<LocalData> originals;
+
+        QueryUpdate(int kind, ArrayList<LocalData> items, ArrayList<LocalData> originals) {
+            this.kind = kind;
+            this.items = items;
+            this.originals = originals;
+        }
+    }
+
+    private class QueryTask extends AsyncTask<ContentResolver, QueryUpdate, Void> {
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        private boolean mPublished;
 
         /**
-         * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * Streams the photo and video data in the camera folder, newest first.
+         * The rows are built from the cursor columns alone and published a
+         * page at a time; the file access needed for video rotation and for
+         * rows missing their dimensions is left to a second pass once every
+         * page is out.
          *
          * @param resolver {@link ContentResolver} to load all the data.
-         * @return An {@link ArrayList} of all loaded data.
          */
         @Override
-        protected LocalDataList doInBackground(ContentResolver... resolver) {
-            LocalDataList l = new LocalDataList();
-            // Photos
-            Cursor c = resolver[0].query(
+        protected Void doInBackground(ContentResolver... resolver) {
+            Cursor photos = resolver[0].query(
                     LocalMediaData.PhotoData.CONTENT_URI,
                     LocalMediaData.PhotoData.QUERY_PROJECTION,
                     MediaStore.Images.Media.DATA + " like ? or " +
                     MediaStore.Images.Media.DATA + " like ? ", getCameraPath(),
                     LocalMediaData.PhotoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                while (true) {
-                    LocalData data = LocalMediaData.PhotoData.buildFromCursor(c);
-                    if (data != null) {
-                        if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
-                            l.add(new InProgressDataWrapper(data, true));
-                        } else {
-                            l.add(data);
-                        }
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.PhotoData.COL_DATA));
-                    }
-                    if (c.isLast()) {
-                        break;
-                    }
-                    c.moveToNext();
-                }
-            }
-            if (c != null) {
-                c.close();
-            }
-
-            c = resolver[0].query(
+            Cursor videos = resolver[0].query(
                     LocalMediaData.VideoData.CONTENT_URI,
                     LocalMediaData.VideoData.QUERY_PROJECTION,
                     MediaStore.Video.Media.DATA + " like ? or " +
                     MediaStore.Video.Media.DATA + " like ? ", getCameraPath(),
                     LocalMediaData.VideoData.QUERY_ORDER);
-            if (c != null && c.moveToFirst()) {
-                // build up the list.
-                c.moveToFirst();
-                while (!isCancelled()) {
-                    LocalData data = LocalMediaData.VideoData.buildFromCursor(c);
-                    if (data != null) {
-                        l.add(data);
-                    } else {
-                        Log.e(TAG, "Error loading data:"
-                                + c.getString(LocalMediaData.VideoData.COL_DATA));
-                    }
-                    if (!c.isLast()) {
-                        c.moveToNext();
-                    } else {
-                        break;
+
+            ArrayList<LocalData> shownToProbe = new ArrayList<LocalData>();
+            ArrayList<LocalData> hiddenToProbe = new ArrayList<LocalData>();
+            try {
+                streamPages(photos, videos, shownToProbe, hiddenToProbe);
+            } finally {
+                if (photos != null) {
+                    photos.close();
+                }
+                if (videos != null) {
+                    videos.close();
+                }
+            }
+            probe(shownToProbe, QueryUpdate.PROBED_SHOWN);
+            probe(hiddenToProbe, QueryUpdate.PROBED_HIDDEN);
+            return null;
+        }
+
+        private void streamPages(Cursor photos, Cursor videos,
+                ArrayList<LocalData> shownToProbe, ArrayList<LocalData> hiddenToProbe) {
+            // Both cursors are sorted newest first, merge them as we go.
+            Comparator<LocalData> comp = new LocalData.NewestFirstComparator();
+            LocalData photo = readPhoto(photos, true);
+            LocalData video = readVideo(videos, true);
+            int pageSize = FIRST_PAGE_SIZE;
+            ArrayList<LocalData> page = new ArrayList<LocalData>(pageSize);
+            while ((photo != null || video != null) && !isCancelled()) {
+                LocalData data;
+                if (video == null || (photo != null && comp.compare(photo, video) <= 0)) {
+                    data = photo;
+                    photo = readPhoto(photos, false);
+                } else {
+                    data = video;
+                    video = readVideo(videos, false);
+                    if (!((LocalMediaData.VideoData) data).needsProbe()) {
+                        // Published right away, the rotation is checked later.
+                        shownToProbe.add(data);
                     }
                 }
+                if (needsProbe(data)) {
+                    hiddenToProbe.add(data);
+                    continue;
+                }
+                page.add(data);
+                if (page.size() == pageSize) {
+                    publishProgress(new QueryUpdate(QueryUpdate.PAGE, page, null));
+                    pageSize = PAGE_SIZE;
+                    page = new ArrayList<LocalData>(pageSize);
+                }
             }
-            if (c != null) {
-                c.close();
+            if (!page.isEmpty() && !isCancelled()) {
+                publishProgress(new QueryUpdate(QueryUpdate.PAGE, page, null));
             }
+        }
 
-            if (l.size() != 0) {
-                l.sort(new LocalData.NewestFirstComparator());
+        private LocalData readPhoto(Cursor c, boolean first) {
+            if (c == null || !(first ? c.moveToFirst() : c.moveToNext())) {
+                return null;
             }
+            LocalData data = LocalMediaData.PhotoData.readFromCursor(c);
+            if (data.getMimeType().equals(PlaceholderManager.PLACEHOLDER_MIME_TYPE)) {
+                return new InProgressDataWrapper(data, true);
+            }
+            return data;
+        }
 
-            return l;
+        private LocalData readVideo(Cursor c, boolean first) {
+            if (c == null || !(first ? c.moveToFirst() : c.moveToNext())) {
+                return null;
+            }
+            return LocalMediaData.VideoData.readFromCursor(c);
+        }
+
+        private boolean needsProbe(LocalData data) {
+            if (data instanceof LocalMediaData.PhotoData) {
+                return ((LocalMediaData.PhotoData) data).needsProbe();
+            } else if (data instanceof LocalMediaData.VideoData) {
+                return ((LocalMediaData.VideoData) data).needsProbe();
+            }
+            return false;
+        }
+
+        private void probe(ArrayList<LocalData> rows, int kind) {
+            ArrayList<LocalData> originals = new ArrayList<LocalData>(PROBE_BATCH_SIZE);
+            ArrayList<LocalData> results = new ArrayList<LocalData>(PROBE_BATCH_SIZE);
+            for (LocalData data : rows) {
+                if (isCancelled()) {
+                    return;
+                }
+                LocalData result;
+                if (data instanceof LocalMediaData.PhotoData) {
+                    result = ((LocalMediaData.PhotoData) data).probe();
+                } else {
+                    result = ((LocalMediaData.VideoData) data).probe();
+                }
+                if (result == data) {
+                    continue;
+                }
+                if (result == null) {
+                    Log.e(TAG, "Error loading data:" + data.getPath());
+                }
+                originals.add(data);
+                results.add(result);
+                if (results.size() == PROBE_BATCH_SIZE) {
+                    publishProgress(new QueryUpdate(kind, results, originals));
+                    originals = new ArrayList<LocalData>(PROBE_BATCH_SIZE);
+                    results = new ArrayList<LocalData>(PROBE_BATCH_SIZE);
+                }
+            }
+            if (!results.isEmpty()) {
+                publishProgress(new QueryUpdate(kind, results, originals));
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(QueryUpdate... updates) {
+            if (isCancelled()) {
+                return;
+            }
+            for (QueryUpdate update : updates) {
+                switch (update.kind) {
+                    case QueryUpdate.PAGE:
+                        if (!mPublished) {
+                            mPublished = true;
+                            LocalDataList l = new LocalDataList();
+                            for (LocalData data : update.items) {
+                                l.add(data);
+                            }
+                            replaceData(l);
+                            StartupTimeline.endPhase(StartupTimeline.FILMSTRIP_LOAD);
+                            Log.v(TAG, "First page of " + l.size() + " in "
+                                    + (SystemClock.elapsedRealtime() - mStartTime) + "ms");
+                        } else {
+                            appendData(update.items);
+                        }
+                        break;
+                    case QueryUpdate.PROBED_SHOWN:
+                        for (int i = 0; i < update.items.size(); i++) {
+                            LocalData result = update.items.get(i);
+                            int pos = findDataByContentUri(
+                                    update.originals.get(i).getContentUri());
+                            if (pos == -1) {
+                                // Removed in the meantime.
+                                continue;
+                            }
+                            if (result == null) {
+                                dropData(pos);
+                            } else {
+                                updateData(pos, result);
+                            }
+                        }
+                        break;
+                    case QueryUpdate.PROBED_HIDDEN:
+                        for (LocalData result : update.items) {
+                            if (result != null
+                                    && findDataByContentUri(result.getContentUri()) == -1) {
+                                insertData(result);
+                            }
+                        }
+                        break;
+                }
+            }
         }
 
         @Override
-        protected void onPostExecute(LocalDataList l) {
-            if (!isCancelled()) {
-                replaceData(l);
+        protected void onPostExecute(Void v) {
+            if (!isCancelled() && !mPublished) {
+                replaceData(new LocalDataList());
+                StartupTimeline.endPhase(StartupTimeline.FILMSTRIP_LOAD);
             }
+            Log.v(TAG, "Loaded " + mImages.size() + " items in "
+                    + (SystemClock.elapsedRealtime() - mStartTime) + "ms");
             if (mQueryTask == this) {
                 mQueryTask = null;
             }
@@ -18,84 +18,175 @@ package com.android.camera.data;
 
 import android.net.Uri;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 /**
  * Fast access data structure for an ordered LocalData list.
+ *
+ * The items live in a ring buffer, so get() and set() are O(1) and adding
+ * or removing only moves the items on the shorter side of the position;
+ * adding newly captured data at the front is O(1). Each item carries a key
+ * from which its index is computed, which keeps indexOf(Uri) O(1) as well:
+ * the keys only need fixing up for the items that actually move.
  */
 public class LocalDataList {
-    /**
-     * We use this as a way to compare a Uri to LocalData instances inside a
-     * LinkedList. A linked list in indexOf does a other.equals(get(i)).
-     */
-    private static class UriWrapper {
-        private final Uri mUri;
-
-        public UriWrapper(Uri uri) {
-            mUri = uri;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof LocalData)) {
-                return false;
-            }
-            return mUri.equals(((LocalData) o).getContentUri());
-        }
+    private static class Entry {
+        LocalData data;
+        Uri uri;
+        // index == key - mHeadKey
+        long key;
     }
 
-    private LinkedList<LocalData> mList = new LinkedList<LocalData>();
-    private HashMap<Uri, LocalData> mUriMap = new HashMap<Uri, LocalData>();
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Entry[] mEntries = new Entry[INITIAL_CAPACITY];
+    private int mHead;
+    private int mSize;
+    private long mHeadKey;
+    private HashMap<Uri, Entry> mUriMap = new HashMap<Uri, Entry>();
 
     public LocalData get(int index) {
-        return mList.get(index);
+        return entryAt(checkIndex(index)).data;
     }
 
     public LocalData remove(int index) {
-        LocalData removedItem = mList.remove(index);
-        mUriMap.remove(removedItem);
-        return removedItem;
+        Entry removed = entryAt(checkIndex(index));
+        if (index < mSize / 2) {
+            // Move the items in front of it back by one.
+            for (int i = index; i > 0; i--) {
+                Entry moved = entryAt(i - 1);
+                moved.key++;
+                setEntryAt(i, moved);
+            }
+            setEntryAt(0, null);
+            mHead = (mHead + 1) & (mEntries.length - 1);
+            mHeadKey++;
+        } else {
+            for (int i = index; i < mSize - 1; i++) {
+                Entry moved = entryAt(i + 1);
+                moved.key--;
+                setEntryAt(i, moved);
+            }
+            setEntryAt(mSize - 1, null);
+        }
+        mSize--;
+        unmap(removed);
+        return removed.data;
     }
 
     public LocalData get(Uri uri) {
-        return mUriMap.get(uri);
+        Entry entry = mUriMap.get(uri);
+        return entry == null ? null : entry.data;
     }
 
     public void set(int pos, LocalData data) {
-        mList.set(pos, data);
-        mUriMap.put(data.getContentUri(), data);
+        Entry entry = entryAt(checkIndex(pos));
+        unmap(entry);
+        entry.data = data;
+        map(entry);
     }
 
     public void add(LocalData data) {
-        mList.add(data);
-        mUriMap.put(data.getContentUri(), data);
+        add(mSize, data);
     }
 
     public void add(int pos, LocalData data) {
-        mList.add(pos, data);
-        mUriMap.put(data.getContentUri(), data);
+        if (pos < 0 || pos > mSize) {
+            throw new IndexOutOfBoundsException("Index: " + pos + ", Size: " + mSize);
+        }
+        if (mSize == mEntries.length) {
+            grow();
+        }
+        if (pos < mSize / 2) {
+            // Make room by moving the items in front of it forward by one.
+            mHead = (mHead - 1) & (mEntries.length - 1);
+            mHeadKey--;
+            for (int i = 0; i < pos; i++) {
+                Entry moved = entryAt(i + 1);
+                moved.key--;
+                setEntryAt(i, moved);
+            }
+        } else {
+            for (int i = mSize; i > pos; i--) {
+                Entry moved = entryAt(i - 1);
+                moved.key++;
+                setEntryAt(i, moved);
+            }
+        }
+        Entry entry = new Entry();
+        entry.data = data;
+        entry.key = mHeadKey + pos;
+        setEntryAt(pos, entry);
+        mSize++;
+        map(entry);
     }
 
     public int size() {
-        return mList.size();
+        return mSize;
     }
 
     public void sort(Comparator<LocalData> comparator) {
-        Collections.sort(mList, comparator);
+        ArrayList<LocalData> items = new ArrayList<LocalData>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            items.add(entryAt(i).data);
+        }
+        Collections.sort(items, comparator);
+        for (int i = 0; i < mSize; i++) {
+            Entry entry = entryAt(i);
+            unmap(entry);
+            entry.data = items.get(i);
+            map(entry);
+        }
     }
 
     /**
-     * This implementation routes through to LinkedList.indexOf, so performs in
-     * O(n) but has a fast exit path for when the uri is not contained in the
-     * list, and immediately returns -1;
+     * Returns the index of the data with the given content uri, or -1 if it
+     * is not in the list. O(1).
      */
     public int indexOf(Uri uri) {
-        if (!mUriMap.containsKey(uri)) {
+        Entry entry = mUriMap.get(uri);
+        if (entry == null) {
             return -1;
         }
-        return mList.indexOf(new UriWrapper(uri));
+        return (int) (entry.key - mHeadKey);
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+        return index;
+    }
+
+    private Entry entryAt(int index) {
+        return mEntries[(mHead + index) & (mEntries.length - 1)];
+    }
+
+    private void setEntryAt(int index, Entry entry) {
+        mEntries[(mHead + index) & (mEntries.length - 1)] = entry;
+    }
+
+    private void grow() {
+        Entry[] entries = new Entry[mEntries.length << 1];
+        for (int i = 0; i < mSize; i++) {
+            entries[i] = entryAt(i);
+        }
+        mEntries = entries;
+        mHead = 0;
+    }
+
+    private void map(Entry entry) {
+        entry.uri = entry.data.getContentUri();
+        mUriMap.put(entry.uri, entry);
+    }
+
+    private void unmap(Entry entry) {
+        // Another item may have taken over the same uri.
+        if (mUriMap.get(entry.uri) == entry) {
+            mUriMap.remove(entry.uri);
+        }
     }
 }
@@ -347,6 +347,15 @@ public abstract class LocalMediaData implements LocalData {
         }
 
         static PhotoData buildFromCursor(Cursor c) {
+            PhotoData d = readFromCursor(c);
+            return d.needsProbe() ? d.probe() : d;
+        }
+
+        /**
+         * Builds the data from the cursor columns only, without touching the
+         * file. The dimensions may be missing, see {@link #needsProbe()}.
+         */
+        static PhotoData readFromCursor(Cursor c) {
             long id = c.getLong(COL_ID);
             String title = c.getString(COL_TITLE);
             String mimeType = c.getString(COL_MIME_TYPE);
@@ -356,32 +365,6 @@ public abstract class LocalMediaData implements LocalData {
             int orientation = c.getInt(COL_ORIENTATION);
             int width = c.getInt(COL_WIDTH);
             int height = c.getInt(COL_HEIGHT);
-            if (width <= 0 || height <= 0) {
-                Log.w(TAG, "Zero dimension in ContentResolver for "
-                        + path + ":" + width + "x" + height);
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(path, opts);
-                if (opts.outWidth > 0 && opts.outHeight > 0) {
-                    width = opts.outWidth;
-                    height = opts.outHeight;
-                } else {
-                    Log.w(TAG, "Dimension decode failed for " + path);
-                    Bitmap b = BitmapFactory.decodeFile(path);
-                    if (b == null) {
-                        Log.w(TAG, "PhotoData skipped."
-                                + " Decoding " + path + "failed.");
-                        return null;
-                    }
-                    width = b.getWidth();
-                    height = b.getHeight();
-                    if (width == 0 || height == 0) {
-                        Log.w(TAG, "PhotoData skipped. Bitmap size 0 for " + path);
-                        return null;
-                    }
-                }
-            }
-
             long sizeInBytes = c.getLong(COL_SIZE);
             double latitude = c.getDouble(COL_LATITUDE);
             double longitude = c.getDouble(COL_LONGITUDE);
@@ -391,6 +374,31 @@ public abstract class LocalMediaData implements LocalData {
             return result;
         }
 
+        /** Whether MediaStore did not know the dimensions. */
+        boolean needsProbe() {
+            return mWidth <= 0 || mHeight <= 0;
+        }
+
+        /**
+         * Reads the dimensions from the image header. Returns null if the
+         * file cannot be decoded.
+         */
+        PhotoData probe() {
+            Log.w(TAG, "Zero dimension in ContentResolver for "
+                    + mPath + ":" + mWidth + "x" + mHeight);
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            opts.inTempStorage = new byte[16 * 1024];
+            BitmapFactory.decodeFile(mPath, opts);
+            if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+                Log.w(TAG, "PhotoData skipped. Dimension decode failed for " + mPath);
+                return null;
+            }
+            return new PhotoData(mContentId, mTitle, mMimeType, mDateTakenInSeconds,
+                    mDateModifiedInSeconds, mPath, mOrientation, opts.outWidth,
+                    opts.outHeight, mSizeInBytes, mLatitude, mLongitude);
+        }
+
         @Override
         public int getOrientation() {
             return mOrientation;
@@ -629,6 +637,14 @@ public abstract class LocalMediaData implements LocalData {
         }
 
         static VideoData buildFromCursor(Cursor c) {
+            return readFromCursor(c).probe();
+        }
+
+        /**
+         * Builds the data from the cursor columns only. The dimensions are
+         * the ones MediaStore has, before the rotation {@link #probe()} finds.
+         */
+        static VideoData readFromCursor(Cursor c) {
             long id = c.getLong(COL_ID);
             String title = c.getString(COL_TITLE);
             String mimeType = c.getString(COL_MIME_TYPE);
@@ -637,10 +653,32 @@ public abstract class LocalMediaData implements LocalData {
             String path = c.getString(COL_DATA);
             int width = c.getInt(COL_WIDTH);
             int height = c.getInt(COL_HEIGHT);
+            long sizeInBytes = c.getLong(COL_SIZE);
+            double latitude = c.getDouble(COL_LATITUDE);
+            double longitude = c.getDouble(COL_LONGITUDE);
+            long durationInSeconds = c.getLong(COL_DURATION) / 1000;
+            return new VideoData(id, title, mimeType, dateTakenInSeconds,
+                    dateModifiedInSeconds, path, width, height, sizeInBytes,
+                    latitude, longitude, durationInSeconds);
+        }
+
+        /** Whether the dimensions are missing and the data cannot be shown yet. */
+        boolean needsProbe() {
+            return mWidth <= 0 || mHeight <= 0;
+        }
+
+        /**
+         * Checks the file and applies its rotation to the dimensions, filling
+         * them in if MediaStore did not have them. Returns null if the video
+         * cannot be read.
+         */
+        VideoData probe() {
+            int width = mWidth;
+            int height = mHeight;
             MediaMetadataRetriever retriever = new MediaMetadataRetriever();
             String rotation = null;
 
-            File origFile = new File(path);
+            File origFile = new File(mPath);
             if (!origFile.exists() || origFile.length() <= 0) {
                 Log.e(TAG, "Invalid video file");
                 retriever.release();
@@ -648,7 +686,7 @@ public abstract class LocalMediaData implements LocalData {
             }
 
             try {
-                retriever.setDataSource(path);
+                retriever.setDataSource(mPath);
             } catch (RuntimeException ex) {
                 // setDataSource() can cause RuntimeException beyond
                 // IllegalArgumentException. e.g: data contain *.avi file.
@@ -672,7 +710,7 @@ public abstract class LocalMediaData implements LocalData {
             retriever.release();
             if (width == 0 || height == 0) {
                 // Width or height is still not available.
-                Log.e(TAG, "Unable to retrieve dimension of video:" + path);
+                Log.e(TAG, "Unable to retrieve dimension of video:" + mPath);
                 return null;
             }
             if (rotation != null
@@ -681,15 +719,12 @@ public abstract class LocalMediaData implements LocalData {
                 width = height;
                 height = b;
             }
-
-            long sizeInBytes = c.getLong(COL_SIZE);
-            double latitude = c.getDouble(COL_LATITUDE);
-            double longitude = c.getDouble(COL_LONGITUDE);
-            long durationInSeconds = c.getLong(COL_DURATION) / 1000;
-            VideoData d = new VideoData(id, title, mimeType, dateTakenInSeconds,
-                    dateModifiedInSeconds, path, width, height, sizeInBytes,
-                    latitude, longitude, durationInSeconds);
-            return d;
+            if (width == mWidth && height == mHeight) {
+                return this;
+            }
+            return new VideoData(mContentId, mTitle, mMimeType, mDateTakenInSeconds,
+                    mDateModifiedInSeconds, mPath, width, height, mSizeInBytes,
+                    mLatitude, mLongitude, mDurationInSeconds);
         }
 
         @Override
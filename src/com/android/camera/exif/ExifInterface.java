@@ -857,17 +857,43 @@ public class ExifInterface {
         if (jpeg == null || exifOutFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        ExifOutputStream s = null;
-        try {
-            s = (ExifOutputStream) getExifWriterStream(exifOutFileName);
-            s.write(jpeg, 0, jpeg.length);
-            s.flush();
-        } catch (IOException e) {
-            closeSilently(s);
-            throw e;
+        byte[] app1 = ExifOutputStream.buildApp1(this, mData);
+        return new ExifSplicer(jpeg, 0, jpeg.length, app1).writeTo(exifOutFileName);
+    }
+
+    /**
+     * Returns a copy of the jpeg with the tags from this ExifInterface
+     * object in place of its exif header. Unlike writing through
+     * {@link #getExifWriterStream(OutputStream)} the result is allocated
+     * once at its final size.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @return the jpeg with the new exif header.
+     * @throws IOException
+     */
+    public byte[] spliceExif(byte[] jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        s.close();
-        return s.size();
+        byte[] app1 = ExifOutputStream.buildApp1(this, mData);
+        return new ExifSplicer(jpeg, 0, jpeg.length, app1).toByteArray();
+    }
+
+    /**
+     * Same as {@link #spliceExif(byte[])} without building the result: the
+     * returned buffers, read in order, make up the new jpeg. Only the new
+     * exif header is allocated, the rest are views of the given array.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @return the pieces of the jpeg with the new exif header.
+     * @throws IOException
+     */
+    public ByteBuffer[] spliceExifSegments(byte[] jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        byte[] app1 = ExifOutputStream.buildApp1(this, mData);
+        return new ExifSplicer(jpeg, 0, jpeg.length, app1).segments();
     }
 
     /**
@@ -19,6 +19,7 @@ package com.android.camera.exif;
 import android.util.Log;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -249,6 +250,19 @@ class ExifOutputStream extends FilterOutputStream {
         mSize += dataOutputStream.size();
     }
 
+    /**
+     * Serializes the APP1 segment for the given data on its own, marker
+     * included, so it can be spliced into a JPEG without rewriting it.
+     */
+    static byte[] buildApp1(ExifInterface iRef, ExifData exifData) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ExifOutputStream eos = new ExifOutputStream(bos, iRef);
+        eos.setExifData(exifData);
+        eos.writeExifData();
+        eos.flush();
+        return bos.toByteArray();
+    }
+
     private ArrayList<ExifTag> stripNullValueTags(ExifData data) {
         ArrayList<ExifTag> nullTags = new ArrayList<ExifTag>();
         for(ExifTag t : data.getAllTags()) {
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Puts a prebuilt APP1 segment into a JPEG without streaming the image
+ * through ExifOutputStream. The output is SOI, the new APP1, the header
+ * segments before the old APP1, and everything after the old APP1. Those
+ * ranges are written straight from the source array.
+ */
+class ExifSplicer {
+    private final byte[] mJpeg;
+    private final int mOffset;
+    private final int mLength;
+    private final byte[] mApp1;
+    // Old APP1 as [mSkipStart, mSkipEnd), relative to mOffset; empty if there was none.
+    private int mSkipStart;
+    private int mSkipEnd;
+
+    ExifSplicer(byte[] jpeg, int offset, int length, byte[] app1) throws IOException {
+        mJpeg = jpeg;
+        mOffset = offset;
+        mLength = length;
+        mApp1 = app1;
+        locateApp1();
+    }
+
+    // Same rules as ExifOutputStream: only the first APP1 before SOF is replaced.
+    private void locateApp1() throws IOException {
+        if (mLength < 2 || readShort(0) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+        mSkipStart = mSkipEnd = 2;
+        int pos = 2;
+        while (pos + 4 <= mLength) {
+            short marker = readShort(pos);
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                return;
+            }
+            int segmentLength = readShort(pos + 2) & 0xffff;
+            if (marker == JpegHeader.APP1) {
+                mSkipStart = pos;
+                mSkipEnd = Math.min(mLength, pos + 2 + segmentLength);
+                return;
+            }
+            pos += 2 + segmentLength;
+        }
+    }
+
+    private short readShort(int pos) {
+        return (short) (((mJpeg[mOffset + pos] & 0xff) << 8) | (mJpeg[mOffset + pos + 1] & 0xff));
+    }
+
+    /** Size of the spliced JPEG. */
+    int size() {
+        return mLength - (mSkipEnd - mSkipStart) + (mApp1 == null ? 0 : mApp1.length);
+    }
+
+    /** The pieces of the spliced JPEG, in order, backed by the source array. */
+    ByteBuffer[] segments() {
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(mJpeg, mOffset, 2),
+                mApp1 == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(mApp1),
+                ByteBuffer.wrap(mJpeg, mOffset + 2, mSkipStart - 2),
+                ByteBuffer.wrap(mJpeg, mOffset + mSkipEnd, mLength - mSkipEnd)
+        };
+    }
+
+    /** Gather-writes the spliced JPEG and returns the number of bytes written. */
+    int writeTo(FileChannel channel) throws IOException {
+        ByteBuffer[] segments = segments();
+        long total = size();
+        long written = 0;
+        while (written < total) {
+            written += channel.write(segments);
+        }
+        return (int) written;
+    }
+
+    int writeTo(String path) throws IOException {
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            return writeTo(out.getChannel());
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Returns the spliced JPEG in a single exactly sized array. */
+    byte[] toByteArray() {
+        byte[] out = new byte[size()];
+        int pos = 0;
+        for (ByteBuffer segment : segments()) {
+            int n = segment.remaining();
+            segment.get(out, pos, n);
+            pos += n;
+        }
+        return out;
+    }
+}
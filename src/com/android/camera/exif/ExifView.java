@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.camera.exif;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only view of the EXIF block of a JPEG held in memory.
+ *
+ * Unlike {@link ExifInterface#readExif(byte[])} nothing is copied or
+ * materialised up front. The first lookup walks the IFDs once and records
+ * where each entry lives; values are then decoded straight from the buffer
+ * on request, so a lookup allocates nothing unless it returns a String or an
+ * array. Tags are the same constants ExifInterface defines, e.g.
+ * {@link ExifInterface#TAG_ORIENTATION}.
+ *
+ * The view never modifies the JPEG and is safe to share between threads
+ * once constructed, as long as nobody writes to the underlying buffer.
+ */
+public class ExifView {
+    private static final int EXIF_HEADER = 0x45786966; // "Exif"
+    private static final short TIFF_BIG_ENDIAN = 0x4d4d;
+    private static final short TIFF_LITTLE_ENDIAN = 0x4949;
+    private static final short TIFF_MAGIC = 42;
+    private static final int IFD_ENTRY_SIZE = 12;
+    // Bounds the walk on corrupt data; real images have well under a hundred.
+    private static final int MAX_ENTRIES = 1024;
+
+    private final ByteBuffer mBuffer;
+    private boolean mIndexed;
+    private int mTiffStart = -1;
+    private int mTiffEnd;
+    // Parallel arrays, one slot per IFD entry: the defined tag and the
+    // absolute position of its 12 byte entry in mBuffer.
+    private int[] mTags = new int[32];
+    private int[] mEntries = new int[32];
+    private int mCount;
+
+    public ExifView(byte[] jpeg) {
+        this(ByteBuffer.wrap(jpeg));
+    }
+
+    /**
+     * Creates a view of the JPEG between the buffer's position and limit.
+     * The buffer's position and byte order are left untouched.
+     */
+    public ExifView(ByteBuffer jpeg) {
+        mBuffer = jpeg.slice();
+    }
+
+    /** Returns true if the JPEG carries a readable EXIF block. */
+    public boolean hasExif() {
+        ensureIndex();
+        return mTiffStart >= 0;
+    }
+
+    /** Returns true if the given tag is present. */
+    public boolean hasTag(int tag) {
+        return find(tag) >= 0;
+    }
+
+    /**
+     * Returns the first value of a BYTE, SHORT, LONG or SLONG tag, or
+     * defaultValue if the tag is missing or of another type.
+     */
+    public int getTagInt(int tag, int defaultValue) {
+        int entry = find(tag);
+        if (entry < 0) return defaultValue;
+        int type = readUnsignedShort(entry + 2);
+        if (readInt(entry + 4) < 1) return defaultValue;
+        int value = valuePosition(entry, type);
+        if (value < 0) return defaultValue;
+        switch (type) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED:
+                return mBuffer.get(value) & 0xff;
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                return readUnsignedShort(value);
+            case ExifTag.TYPE_UNSIGNED_LONG:
+            case ExifTag.TYPE_LONG:
+                return readInt(value);
+            default:
+                return defaultValue;
+        }
+    }
+
+    /**
+     * Returns component index of a RATIONAL or SRATIONAL tag as a double, or
+     * defaultValue if it is missing, of another type or has a zero
+     * denominator.
+     */
+    public double getTagRational(int tag, int index, double defaultValue) {
+        int entry = find(tag);
+        if (entry < 0) return defaultValue;
+        int type = readUnsignedShort(entry + 2);
+        if (type != ExifTag.TYPE_UNSIGNED_RATIONAL && type != ExifTag.TYPE_RATIONAL) {
+            return defaultValue;
+        }
+        if (index < 0 || index >= readInt(entry + 4)) return defaultValue;
+        int value = valuePosition(entry, type);
+        if (value < 0) return defaultValue;
+        int pos = value + index * 8;
+        long numerator;
+        long denominator;
+        if (type == ExifTag.TYPE_UNSIGNED_RATIONAL) {
+            numerator = readInt(pos) & 0xffffffffL;
+            denominator = readInt(pos + 4) & 0xffffffffL;
+        } else {
+            numerator = readInt(pos);
+            denominator = readInt(pos + 4);
+        }
+        if (denominator == 0) return defaultValue;
+        return (double) numerator / denominator;
+    }
+
+    /** Returns an ASCII tag without its trailing NULs, or null. */
+    public String getTagString(int tag) {
+        int entry = find(tag);
+        if (entry < 0 || readUnsignedShort(entry + 2) != ExifTag.TYPE_ASCII) return null;
+        int value = valuePosition(entry, ExifTag.TYPE_ASCII);
+        if (value < 0) return null;
+        int length = readInt(entry + 4);
+        while (length > 0 && mBuffer.get(value + length - 1) == 0) {
+            length--;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(value + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /** Returns the clockwise rotation in degrees: 0, 90, 180 or 270. */
+    public int getOrientation() {
+        int value = getTagInt(ExifInterface.TAG_ORIENTATION, ExifInterface.Orientation.TOP_LEFT);
+        return ExifInterface.getRotationForOrientationValue((short) value);
+    }
+
+    /**
+     * Returns the GPS position as {latitude, longitude}, or null if the
+     * image has no complete GPS tags.
+     * @see ExifInterface#getLatLongAsDoubles()
+     */
+    public double[] getLatLong() {
+        double latitude = getCoordinate(ExifInterface.TAG_GPS_LATITUDE,
+                ExifInterface.TAG_GPS_LATITUDE_REF, "S");
+        double longitude = getCoordinate(ExifInterface.TAG_GPS_LONGITUDE,
+                ExifInterface.TAG_GPS_LONGITUDE_REF, "W");
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) return null;
+        return new double[] {latitude, longitude};
+    }
+
+    private double getCoordinate(int tag, int refTag, String negativeRef) {
+        String ref = getTagString(refTag);
+        double degrees = getTagRational(tag, 0, Double.NaN);
+        double minutes = getTagRational(tag, 1, Double.NaN);
+        double seconds = getTagRational(tag, 2, Double.NaN);
+        if (ref == null) return Double.NaN;
+        double result = degrees + minutes / 60.0 + seconds / 3600.0;
+        return ref.equals(negativeRef) ? -result : result;
+    }
+
+    /**
+     * Returns the offset of the compressed thumbnail from the start of the
+     * JPEG, or -1 if there is none.
+     */
+    public int getThumbnailOffset() {
+        int offset = getTagInt(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT, -1);
+        int length = getTagInt(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, -1);
+        if (offset <= 0 || length <= 0 || length > mTiffEnd - mTiffStart - offset) {
+            return -1;
+        }
+        return mTiffStart + offset;
+    }
+
+    /** Returns the length of the compressed thumbnail, or 0 if there is none. */
+    public int getThumbnailLength() {
+        if (getThumbnailOffset() < 0) return 0;
+        return getTagInt(ExifInterface.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0);
+    }
+
+    /** Returns the number of IFD entries found, mostly for tests. */
+    public int getTagCount() {
+        ensureIndex();
+        return mCount;
+    }
+
+    private int find(int tag) {
+        ensureIndex();
+        for (int i = 0; i < mCount; i++) {
+            if (mTags[i] == tag) return mEntries[i];
+        }
+        return -1;
+    }
+
+    // Absolute position of an entry's value, inline or not, or -1 if it
+    // points outside the EXIF block.
+    private int valuePosition(int entry, int type) {
+        if (!ExifTag.isValidType((short) type)) return -1;
+        long size = (readInt(entry + 4) & 0xffffffffL) * ExifTag.getElementSize((short) type);
+        if (size <= 4) return entry + 8;
+        int pos = toAbsolute(readInt(entry + 8));
+        if (pos < 0 || size > mTiffEnd - pos) return -1;
+        return pos;
+    }
+
+    private int toAbsolute(int tiffOffset) {
+        if (tiffOffset < 0 || tiffOffset >= mTiffEnd - mTiffStart) return -1;
+        return mTiffStart + tiffOffset;
+    }
+
+    private synchronized void ensureIndex() {
+        if (mIndexed) return;
+        mIndexed = true;
+        if (!locateTiff()) {
+            mTiffStart = -1;
+            return;
+        }
+        int ifd0 = toAbsolute(readInt(mTiffStart + 4));
+        if (ifd0 < 0) {
+            mTiffStart = -1;
+            return;
+        }
+        int ifd1 = indexIfd(IfdId.TYPE_IFD_0, ifd0);
+        if (ifd1 > 0) {
+            indexIfd(IfdId.TYPE_IFD_1, ifd1);
+        }
+    }
+
+    // Finds the TIFF header inside the first APP1 before the image data and
+    // sets the byte order from it. Same rules as ExifParser.
+    private boolean locateTiff() {
+        int limit = mBuffer.limit();
+        if (limit < 4 || mBuffer.getShort(0) != JpegHeader.SOI) return false;
+        int pos = 2;
+        while (pos + 4 <= limit) {
+            short marker = mBuffer.getShort(pos);
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) return false;
+            int length = mBuffer.getShort(pos + 2) & 0xffff;
+            if (marker == JpegHeader.APP1 && length >= 16 && pos + 10 <= limit
+                    && mBuffer.getInt(pos + 4) == EXIF_HEADER && mBuffer.getShort(pos + 8) == 0) {
+                mTiffStart = pos + 10;
+                mTiffEnd = Math.min(limit, pos + 2 + length);
+                break;
+            }
+            pos += 2 + length;
+        }
+        if (mTiffStart < 0 || mTiffEnd - mTiffStart < 8) return false;
+        short order = mBuffer.getShort(mTiffStart);
+        if (order == TIFF_LITTLE_ENDIAN) {
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (order != TIFF_BIG_ENDIAN) {
+            return false;
+        }
+        return mBuffer.getShort(mTiffStart + 2) == TIFF_MAGIC;
+    }
+
+    // Records the entries of one IFD and follows the sub-IFD pointers in it.
+    // Returns the absolute position of the next IFD, or -1.
+    private int indexIfd(int ifdId, int pos) {
+        if (pos + 2 > mTiffEnd) return -1;
+        int count = readUnsignedShort(pos);
+        int end = pos + 2 + count * IFD_ENTRY_SIZE;
+        if (end > mTiffEnd || mCount + count > MAX_ENTRIES) return -1;
+        for (int entry = pos + 2; entry < end; entry += IFD_ENTRY_SIZE) {
+            int tag = ExifInterface.defineTag(ifdId, mBuffer.getShort(entry));
+            add(tag, entry);
+            int subIfd = -1;
+            if (tag == ExifInterface.TAG_EXIF_IFD) {
+                subIfd = IfdId.TYPE_IFD_EXIF;
+            } else if (tag == ExifInterface.TAG_GPS_IFD) {
+                subIfd = IfdId.TYPE_IFD_GPS;
+            } else if (tag == ExifInterface.TAG_INTEROPERABILITY_IFD) {
+                subIfd = IfdId.TYPE_IFD_INTEROPERABILITY;
+            }
+            if (subIfd >= 0 && !hasIfd(subIfd)) {
+                int subPos = toAbsolute(readInt(entry + 8));
+                if (subPos > 0) indexIfd(subIfd, subPos);
+            }
+        }
+        if (ifdId != IfdId.TYPE_IFD_0 || end + 4 > mTiffEnd) return -1;
+        return toAbsolute(readInt(end));
+    }
+
+    private boolean hasIfd(int ifdId) {
+        for (int i = 0; i < mCount; i++) {
+            if (ExifInterface.getTrueIfd(mTags[i]) == ifdId) return true;
+        }
+        return false;
+    }
+
+    private void add(int tag, int entry) {
+        if (mCount == mTags.length) {
+            int[] tags = new int[mCount * 2];
+            int[] entries = new int[mCount * 2];
+            System.arraycopy(mTags, 0, tags, 0, mCount);
+            System.arraycopy(mEntries, 0, entries, 0, mCount);
+            mTags = tags;
+            mEntries = entries;
+        }
+        mTags[mCount] = tag;
+        mEntries[mCount] = entry;
+        mCount++;
+    }
+
+    private int readUnsignedShort(int pos) {
+        return mBuffer.getShort(pos) & 0xffff;
+    }
+
+    private int readInt(int pos) {
+        return mBuffer.getInt(pos);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.os.Build;
+import android.util.Log;
+
+import com.android.camera.util.PersistUtil;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Process wide pool of direct buffers for image data.
+ *
+ * Buffers are bucketed by size class, the requested size rounded up to a
+ * whole page, so captures and filters working at the same resolution keep
+ * reusing the same native memory instead of leaving it to the Cleaner.
+ * Every acquire must be paired with a release. Free buffers are kept up
+ * to a ceiling, set with persist.sys.camera.bufpool.limit; past it, the
+ * least recently released buffers of other sizes are dropped first.
+ *
+ * The pool keeps a weak reference to each outstanding buffer, so a
+ * release of a buffer that is not outstanding, such as a second release,
+ * is refused instead of handing the same memory out twice. A leaked
+ * buffer is still left to the garbage collector and logged once it has
+ * been collected. A buffer may be acquired for an owner, which
+ * {@link #reportLeaks} then only looks at; on debug builds it also shows
+ * where each leaked buffer was acquired.
+ */
+public class DirectBufferPool {
+    private static final String TAG = "DirectBufferPool";
+    private static final int PAGE_SHIFT = 12;
+    private static final boolean TRACK_LEAKS =
+            Build.TYPE.equals("eng") || Build.TYPE.equals("userdebug");
+
+    private static DirectBufferPool sInstance;
+
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> mFree =
+            new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    // Size classes in the order they were last released to, oldest first.
+    private final ArrayDeque<Integer> mReleaseOrder = new ArrayDeque<Integer>();
+    // Outstanding buffers by identity hash code.
+    private final HashMap<Integer, ArrayList<Acquired>> mOutstanding =
+            new HashMap<Integer, ArrayList<Acquired>>();
+    private final ReferenceQueue<ByteBuffer> mCollected = new ReferenceQueue<ByteBuffer>();
+    private int mOutstandingCount;
+    private long mMaxFreeBytes;
+    private long mFreeBytes;
+
+    private static class Acquired extends WeakReference<ByteBuffer> {
+        final int hash;
+        final int capacity;
+        final String owner;
+        // Only filled in on debug builds.
+        final Throwable site;
+
+        Acquired(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, String owner,
+                Throwable site) {
+            super(buffer, queue);
+            this.hash = System.identityHashCode(buffer);
+            this.capacity = buffer.capacity();
+            this.owner = owner;
+            this.site = site;
+        }
+    }
+
+    public static synchronized DirectBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new DirectBufferPool(
+                    (long) PersistUtil.getDirectBufferPoolLimitInMb() * 1024 * 1024);
+        }
+        return sInstance;
+    }
+
+    public DirectBufferPool(long maxFreeBytes) {
+        mMaxFreeBytes = maxFreeBytes;
+    }
+
+    public static int sizeClassOf(int size) {
+        return ((size + (1 << PAGE_SHIFT) - 1) >>> PAGE_SHIFT) << PAGE_SHIFT;
+    }
+
+    public static int nv21SizeOf(int stride, int height) {
+        return stride * height * 3 / 2;
+    }
+
+    /**
+     * Returns a cleared direct buffer whose limit is {@code size}. Its
+     * capacity may be larger, up to the end of the size class.
+     */
+    public ByteBuffer acquire(int size) {
+        return acquire(size, null);
+    }
+
+    /** Same as {@link #acquire(int)}, counted against owner by reportLeaks. */
+    public synchronized ByteBuffer acquire(int size, String owner) {
+        int sizeClass = sizeClassOf(size);
+        ArrayDeque<ByteBuffer> free = mFree.get(sizeClass);
+        ByteBuffer buffer = free == null ? null : free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(sizeClass);
+        } else {
+            mFreeBytes -= sizeClass;
+        }
+        buffer.clear();
+        buffer.limit(size);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        track(buffer, owner);
+        return buffer;
+    }
+
+    public ByteBuffer acquireNv21(int stride, int height) {
+        return acquire(nv21SizeOf(stride, height), null);
+    }
+
+    public ByteBuffer acquireNv21(int stride, int height, String owner) {
+        return acquire(nv21SizeOf(stride, height), owner);
+    }
+
+    /**
+     * Hands a buffer back. Buffers that cannot have come from the pool or
+     * are not outstanding are ignored and reported as false.
+     */
+    public synchronized boolean release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()
+                || buffer.capacity() != sizeClassOf(buffer.capacity())) {
+            return false;
+        }
+        if (!untrack(buffer)) {
+            Log.w(TAG, "release of a buffer that is not outstanding, capacity "
+                    + buffer.capacity(), TRACK_LEAKS ? new Throwable() : null);
+            return false;
+        }
+
+        int sizeClass = buffer.capacity();
+        if (sizeClass > mMaxFreeBytes) {
+            return true;
+        }
+        trimTo(mMaxFreeBytes - sizeClass, sizeClass);
+        if (mFreeBytes + sizeClass > mMaxFreeBytes) {
+            // Only buffers of this size are left; let this one go.
+            return true;
+        }
+        ArrayDeque<ByteBuffer> free = mFree.get(sizeClass);
+        if (free == null) {
+            free = new ArrayDeque<ByteBuffer>();
+            mFree.put(sizeClass, free);
+        }
+        free.push(buffer);
+        mFreeBytes += sizeClass;
+        mReleaseOrder.remove(sizeClass);
+        mReleaseOrder.add(sizeClass);
+        return true;
+    }
+
+    private void track(ByteBuffer buffer, String owner) {
+        expungeCollected();
+        Acquired acquired = new Acquired(buffer, mCollected, owner,
+                TRACK_LEAKS ? new Throwable("acquired here") : null);
+        ArrayList<Acquired> bucket = mOutstanding.get(acquired.hash);
+        if (bucket == null) {
+            bucket = new ArrayList<Acquired>(1);
+            mOutstanding.put(acquired.hash, bucket);
+        }
+        bucket.add(acquired);
+        mOutstandingCount++;
+    }
+
+    // Returns false if buffer is not outstanding.
+    private boolean untrack(ByteBuffer buffer) {
+        expungeCollected();
+        int hash = System.identityHashCode(buffer);
+        ArrayList<Acquired> bucket = mOutstanding.get(hash);
+        if (bucket == null) return false;
+        for (int i = 0; i < bucket.size(); i++) {
+            Acquired acquired = bucket.get(i);
+            if (acquired.get() == buffer) {
+                acquired.clear();
+                remove(acquired, bucket);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Forgets the buffers that were collected without being released.
+    private void expungeCollected() {
+        Acquired acquired;
+        while ((acquired = (Acquired) mCollected.poll()) != null) {
+            ArrayList<Acquired> bucket = mOutstanding.get(acquired.hash);
+            if (bucket == null || !bucket.contains(acquired)) continue;
+            remove(acquired, bucket);
+            Log.w(TAG, (acquired.owner == null ? "" : acquired.owner + ": ")
+                    + "buffer collected without release, capacity " + acquired.capacity,
+                    acquired.site);
+        }
+    }
+
+    private void remove(Acquired acquired, ArrayList<Acquired> bucket) {
+        bucket.remove(acquired);
+        if (bucket.isEmpty()) {
+            mOutstanding.remove(acquired.hash);
+        }
+        mOutstandingCount--;
+    }
+
+    // Drops free buffers of other size classes, oldest first, until at most
+    // maxBytes are pooled.
+    private void trimTo(long maxBytes, int keepClass) {
+        Iterator<Integer> it = mReleaseOrder.iterator();
+        while (mFreeBytes > maxBytes && it.hasNext()) {
+            int sizeClass = it.next();
+            if (sizeClass == keepClass) continue;
+            ArrayDeque<ByteBuffer> free = mFree.get(sizeClass);
+            while (mFreeBytes > maxBytes && free != null && !free.isEmpty()) {
+                free.poll();
+                mFreeBytes -= sizeClass;
+            }
+            if (free == null || free.isEmpty()) {
+                mFree.remove(sizeClass);
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void setMaxFreeBytes(long maxFreeBytes) {
+        mMaxFreeBytes = maxFreeBytes;
+        trimTo(maxFreeBytes, -1);
+    }
+
+    public synchronized long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    public synchronized int getOutstandingCount() {
+        expungeCollected();
+        return mOutstandingCount;
+    }
+
+    /** Drops every free buffer. Outstanding buffers are not affected. */
+    public synchronized void clear() {
+        mFree.clear();
+        mReleaseOrder.clear();
+        mFreeBytes = 0;
+    }
+
+    /**
+     * Logs the buffers still acquired for owner, with their acquire sites on
+     * debug builds. Meant to be called where the owner expects none of its
+     * buffers to be left, such as when a filter or session is closed.
+     */
+    public synchronized int reportLeaks(String owner) {
+        expungeCollected();
+        int count = 0;
+        for (ArrayList<Acquired> bucket : mOutstanding.values()) {
+            for (Acquired acquired : bucket) {
+                if (owner.equals(acquired.owner)) {
+                    count++;
+                    Log.w(TAG, "outstanding buffer, capacity " + acquired.capacity,
+                            acquired.site);
+                }
+            }
+        }
+        if (count > 0) {
+            Log.w(TAG, owner + ": " + count + " buffers not released");
+        }
+        return count;
+    }
+}
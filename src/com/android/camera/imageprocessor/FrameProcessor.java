@@ -59,7 +59,7 @@ import com.android.camera.ui.RotateTextToast;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import org.codeaurora.snapcam.R;
 
 public class FrameProcessor {
@@ -83,6 +83,9 @@ public class FrameProcessor {
     private Activity mActivity;
     private Size mSize;
     private Object mAllocationLock = new Object();
+    private PreviewFramePool mFramePool;
+    private final FrameStats mStats = new FrameStats();
+    private static final int MAX_PREVIEW_FRAMES = 3;
     private boolean mIsAllocationEverUsed;
     private ArrayList<ImageFilter> mPreviewFilters;
     private ArrayList<ImageFilter> mFinalFilters;
@@ -138,6 +141,7 @@ public class FrameProcessor {
                 mListeningHandler = new Handler(mListeningThread.getLooper());
             }
 
+            mFramePool = new PreviewFramePool(mRs, MAX_PREVIEW_FRAMES);
             mListeningTask = new ListeningTask();
             mTask = new ProcessingTask();
             mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
@@ -168,6 +172,79 @@ public class FrameProcessor {
         return mFinalFilters;
     }
 
+    public FrameStats getFrameStats() {
+        return mStats;
+    }
+
+    /**
+     * Preview path counters. The copies are full frame CPU copies; with
+     * Allocation backed frames there is one per frame, otherwise two.
+     */
+    public static class FrameStats {
+        private final AtomicLong mFrames = new AtomicLong();
+        private final AtomicLong mCopies = new AtomicLong();
+        private final AtomicLong mBytesCopied = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mLockHeldNs = new AtomicLong();
+
+        void onFrame() {
+            mFrames.incrementAndGet();
+        }
+
+        void onCopy(int bytes) {
+            mCopies.incrementAndGet();
+            mBytesCopied.addAndGet(bytes);
+        }
+
+        void onDropped() {
+            mDropped.incrementAndGet();
+        }
+
+        void onLockHeld(long startNs) {
+            mLockHeldNs.addAndGet(System.nanoTime() - startNs);
+        }
+
+        public long getFrameCount() {
+            return mFrames.get();
+        }
+
+        public long getCopyCount() {
+            return mCopies.get();
+        }
+
+        public long getBytesCopied() {
+            return mBytesCopied.get();
+        }
+
+        public long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        public float getCopiesPerFrame() {
+            long frames = mFrames.get();
+            return frames == 0 ? 0f : (float) mCopies.get() / frames;
+        }
+
+        public long getAllocationLockHeldNanos() {
+            return mLockHeldNs.get();
+        }
+
+        public void reset() {
+            mFrames.set(0);
+            mCopies.set(0);
+            mBytesCopied.set(0);
+            mDropped.set(0);
+            mLockHeldNs.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return "frames=" + getFrameCount() + " copies/frame=" + getCopiesPerFrame()
+                    + " bytes=" + getBytesCopied() + " dropped=" + getDroppedCount()
+                    + " lockHeldMs=" + getAllocationLockHeldNanos() / 1000000;
+        }
+    }
+
     private void cleanFilterSet() {
         if (mPreviewFilters != null) {
             for (ImageFilter filter : mPreviewFilters) {
@@ -252,6 +329,10 @@ public class FrameProcessor {
             mOutputAllocation = null;
             mInputAllocation = null;
             mVideoOutputAllocation = null;
+            if (mFramePool != null) {
+                mFramePool.close();
+                mFramePool = null;
+            }
         }
         if (mProcessingThread != null) {
             mProcessingThread.quitSafely();
@@ -385,7 +466,7 @@ public class FrameProcessor {
     }
 
     class ProcessingTask implements Runnable, ImageReader.OnImageAvailableListener {
-        byte[] yvuBytes = null;
+        PreviewFramePool.PreviewFrame mPendingFrame = null;
         int ySize;
         int stride;
         int height;
@@ -396,12 +477,15 @@ public class FrameProcessor {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
+            Image image = null;
+            PreviewFramePool pool;
+            long lockStart = System.nanoTime();
             synchronized (mAllocationLock) {
-                if (mOutputAllocation == null) {
-                    return;
-                }
                 try {
-                    Image image = reader.acquireLatestImage();
+                    if (mOutputAllocation == null) {
+                        return;
+                    }
+                    image = reader.acquireLatestImage();
                     if (image == null) {
                         return;
                     }
@@ -424,64 +508,128 @@ public class FrameProcessor {
                         return;
                     }
                     mIsAllocationEverUsed = true;
-                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
-                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
-                    if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
+                    if (ySize == 0 || width != mSize.getWidth() || height != mSize.getHeight()) {
                         stride = image.getPlanes()[0].getRowStride();
                         width = mSize.getWidth();
                         height = mSize.getHeight();
                         ySize = stride * mSize.getHeight();
-                        yvuBytes = new byte[ySize * 3 / 2];
+                        mFramePool.configure(ySize, ySize * 3 / 2);
                     }
-                    boolean needToFeedSurface = false;
-                    //Start processing yvu buf
-                    for (ImageFilter filter : mPreviewFilters) {
-                        if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
-                                mListeningHandler.post(mListeningTask);
-                            }
-                        } else {
-                            filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
-                            if (filter instanceof BeautificationFilter) {
-                                filter.addImage(bY, bVU, 0, new Boolean(false));
-                            } else{
-                                filter.addImage(bY, bVU, 0, new Boolean(true));
-                            }
-                            needToFeedSurface = true;
-                        }
-                        bY.rewind();
-                        bVU.rewind();
+                    pool = mFramePool;
+                } catch (IllegalStateException e) {
+                    if (image != null) {
+                        image.close();
                     }
-                    if (mIsFirstIn && mIsVideoOn && isFrameListnerEnabled()) {
-                        mIsFirstIn = false;
-                        mModule.startMediaRecording();
+                    return;
+                } finally {
+                    mStats.onLockHeld(lockStart);
+                }
+            }
+            // The filters and the copy below do not touch the allocations,
+            // so they run without holding mAllocationLock.
+            PreviewFramePool.PreviewFrame frame = null;
+            boolean needToFeedSurface = false;
+            boolean hasListener = false;
+            try {
+                mStats.onFrame();
+                ByteBuffer bY = image.getPlanes()[0].getBuffer();
+                ByteBuffer bVU = image.getPlanes()[2].getBuffer();
+                //Start processing yvu buf
+                for (ImageFilter filter : mPreviewFilters) {
+                    if (filter.isFrameListener()) {
+                        hasListener = true;
+                    } else {
+                        filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
+                        if (filter instanceof BeautificationFilter) {
+                            filter.addImage(bY, bVU, 0, new Boolean(false));
+                        } else{
+                            filter.addImage(bY, bVU, 0, new Boolean(true));
+                        }
+                        needToFeedSurface = true;
                     }
-                    //End processing yvu buf
-                    if (needToFeedSurface) {
-                        bY.get(yvuBytes, 0, bY.remaining());
-                        bVU.get(yvuBytes, ySize, bVU.remaining());
-                        mOutingHandler.post(this);
+                    bY.rewind();
+                    bVU.rewind();
+                }
+                if (mIsFirstIn && mIsVideoOn && isFrameListnerEnabled()) {
+                    mIsFirstIn = false;
+                    mModule.startMediaRecording();
+                }
+                //End processing yvu buf
+                if (needToFeedSurface || hasListener) {
+                    frame = pool.acquire();
+                    if (frame == null) {
+                        mStats.onDropped();
+                    } else {
+                        mStats.onCopy(frame.fill(bY, bVU));
                     }
-                    image.close();
-                } catch (IllegalStateException e) {
                 }
+            } catch (IllegalStateException e) {
+            } finally {
+                image.close();
+            }
+            if (frame == null) {
+                return;
             }
+            // Listeners and the output surface share the single copy.
+            for (ImageFilter filter : mPreviewFilters) {
+                if (filter.isFrameListener()
+                        && mListeningTask.setParam(filter, frame, width, height, stride)) {
+                    mListeningHandler.post(mListeningTask);
+                }
+            }
+            if (needToFeedSurface && queueForOutput(frame)) {
+                mOutingHandler.post(this);
+            }
+            frame.release();
+        }
+
+        private boolean queueForOutput(PreviewFramePool.PreviewFrame frame) {
+            PreviewFramePool.PreviewFrame old;
+            frame.retain();
+            synchronized (this) {
+                old = mPendingFrame;
+                mPendingFrame = frame;
+            }
+            if (old != null) {
+                // The previous frame was never sent; run() picks up this one instead.
+                old.release();
+                mStats.onDropped();
+                return false;
+            }
+            return true;
         }
 
         @Override
         public void run() {
+            PreviewFramePool.PreviewFrame frame;
+            synchronized (this) {
+                frame = mPendingFrame;
+                mPendingFrame = null;
+            }
+            if (frame == null) {
+                return;
+            }
+            long lockStart = System.nanoTime();
             synchronized (mAllocationLock) {
-                if (!mIsActive) {
-                    return;
-                }
-                if (mInputAllocation == null) {
-                    createAllocation(stride, height, stride - width);
-                }
-                mInputAllocation.copyFrom(yvuBytes);
-                mOutputAllocation.ioSend();
-                if (mVideoOutputAllocation != null) {
-                    mVideoOutputAllocation.copyFrom(mOutputAllocation);
-                    mVideoOutputAllocation.ioSend();
+                try {
+                    if (!mIsActive) {
+                        return;
+                    }
+                    if (frame.getAllocation() == null) {
+                        if (mInputAllocation == null) {
+                            createAllocation(stride, height, stride - width);
+                        }
+                        mInputAllocation.copyFrom(frame.getData().array());
+                        mStats.onCopy(ySize * 3 / 2);
+                    }
+                    mOutputAllocation.ioSend();
+                    if (mVideoOutputAllocation != null) {
+                        mVideoOutputAllocation.copyFrom(mOutputAllocation);
+                        mVideoOutputAllocation.ioSend();
+                    }
+                } finally {
+                    frame.release();
+                    mStats.onLockHeld(lockStart);
                 }
             }
         }
@@ -490,57 +638,64 @@ public class FrameProcessor {
     class ListeningTask implements Runnable {
 
         ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
+        PreviewFramePool.PreviewFrame mFrame = null;
         int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
-        Semaphore mMutureLock = new Semaphore(1);
 
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
+        /**
+         * Hands a reference to the frame to the listener. Returns false if a
+         * run is already pending, in which case it will see this newer frame.
+         */
+        public boolean setParam(ImageFilter filter, PreviewFramePool.PreviewFrame frame,
+                                int width, int height, int stride) {
             if (!mIsActive) {
                 return false;
             }
-            if (!mMutureLock.tryAcquire()) {
+            PreviewFramePool.PreviewFrame old;
+            frame.retain();
+            synchronized (this) {
+                old = mFrame;
+                mFrame = frame;
+                mFilter = filter;
+                mWidth = width;
+                mHeight = height;
+                mStride = stride;
+            }
+            if (old != null) {
+                old.release();
                 return false;
             }
-            mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
-            }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
-            }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
-            mWidth = width;
-            mHeight = height;
-            mStride = stride;
-            mMutureLock.release();
             return true;
         }
 
         @Override
         public void run() {
+            PreviewFramePool.PreviewFrame frame;
+            ImageFilter filter;
+            int width, height, stride;
+            synchronized (this) {
+                frame = mFrame;
+                filter = mFilter;
+                width = mWidth;
+                height = mHeight;
+                stride = mStride;
+                mFrame = null;
+            }
+            if (frame == null) {
+                return;
+            }
             try {
                 if (!mIsActive) {
                     return;
                 }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
-                mFilter.init(mWidth, mHeight, mStride, mStride);
-                if (mFilter instanceof BeautificationFilter) {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(false));
+                filter.init(width, height, stride, stride);
+                if (filter instanceof BeautificationFilter) {
+                    filter.addImage(frame.getY(), frame.getVU(), 0, new Boolean(false));
                 } else {
-                    mFilter.addImage(mBY, mBVU, 0, new Boolean(true));
+                    filter.addImage(frame.getY(), frame.getVU(), 0, new Boolean(true));
                 }
-                mMutureLock.release();
-            } catch (InterruptedException e) {
+            } finally {
+                frame.release();
             }
         }
     }
 }
-
@@ -0,0 +1,314 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * NV21 rotate, mirror, split, downscale and RGBA conversion.
+ *
+ * The public entry points run the banded, multi-threaded kernels in
+ * libjni_snapimageutil when it is loaded and fall back to the *Java
+ * reference versions otherwise. The reference versions are kept
+ * deliberately simple so they double as the oracle the native kernels
+ * are checked against; both produce identical output.
+ */
+public final class NV21Utils {
+    private static final boolean sNativeAvailable;
+
+    static {
+        boolean loaded;
+        try {
+            System.loadLibrary("jni_snapimageutil");
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            // No native kernels, e.g. on a host JVM; the Java versions are used.
+            loaded = false;
+        }
+        sNativeAvailable = loaded;
+    }
+
+    private NV21Utils() {
+    }
+
+    public static boolean isNativeAvailable() {
+        return sNativeAvailable;
+    }
+
+    /**
+     * Rotates a tightly packed width x height NV21 frame by 90, 180 or 270
+     * degrees clockwise into out. Any other degree leaves out untouched.
+     */
+    public static void rotate(ByteBuffer in, int width, int height, int degree, ByteBuffer out) {
+        if (sNativeAvailable && in.isDirect() && out.isDirect()
+                && nativeRotateNV21(in, width, height, degree, out) == 0) {
+            return;
+        }
+        rotateJava(in, width, height, degree, out);
+    }
+
+    /** Converts NV21 with the given row stride to packed RGBA, width * 4 bytes per row. */
+    public static void toRgba(ByteBuffer yvu, ByteBuffer rgba, int width, int height, int stride) {
+        if (sNativeAvailable && yvu.isDirect() && rgba.isDirect()
+                && nativeNV21toRgb(yvu, rgba, width, height, stride) == 0) {
+            return;
+        }
+        toRgbaJava(yvu, rgba, width, height, stride);
+    }
+
+    /**
+     * Mirrors an NV21 frame in place. A vertical flip swaps whole rows; a
+     * horizontal one reverses the first stride - gap bytes of each row.
+     */
+    public static void flip(byte[] buf, int stride, int height, int gap, boolean isVertical) {
+        if (sNativeAvailable && nativeFlipNV21(buf, stride, height, gap, isVertical) == 0) {
+            return;
+        }
+        flipJava(buf, stride, height, gap, isVertical);
+    }
+
+    /**
+     * Copies the Y and VU planes of an NV21 frame into separate buffers,
+     * changing the row stride from srcStride to dstStride.
+     */
+    public static void split(byte[] src, ByteBuffer y, ByteBuffer vu, int width, int height,
+            int srcStride, int dstStride) {
+        if (sNativeAvailable && y.isDirect() && vu.isDirect()
+                && nativeNV21Split(src, y, vu, width, height, srcStride, dstStride) == 0) {
+            return;
+        }
+        splitJava(src, y, vu, width, height, srcStride, dstStride);
+    }
+
+    /**
+     * Box-filters an NV21 frame down to a tightly packed newWidth x
+     * newHeight frame, centre-cropping to the new aspect ratio.
+     *
+     * @return the integer scale factor used, or 0 if the frame cannot be
+     *         scaled down to that size
+     */
+    public static int resize(byte[] oldBuf, byte[] newBuf, int oldWidth, int oldHeight,
+            int oldStride, int newWidth, int newHeight) {
+        if (sNativeAvailable) {
+            return nativeResizeImage(oldBuf, newBuf, oldWidth, oldHeight, oldStride,
+                    newWidth, newHeight);
+        }
+        return resizeJava(oldBuf, newBuf, oldWidth, oldHeight, oldStride, newWidth, newHeight);
+    }
+
+    public static void rotateJava(ByteBuffer in, int width, int height, int degree,
+            ByteBuffer out) {
+        int ySize = width * height;
+        int i = 0;
+        if (degree == 90) {
+            for (int x = 0; x < width; x++) {
+                for (int y = height - 1; y >= 0; y--) {
+                    out.put(i++, in.get(y * width + x));
+                }
+            }
+            for (int x = 0; x < width; x += 2) {
+                for (int y = height / 2 - 1; y >= 0; y--) {
+                    int offset = ySize + y * width + x;
+                    out.put(i++, in.get(offset));
+                    out.put(i++, in.get(offset + 1));
+                }
+            }
+        } else if (degree == 270) {
+            for (int x = width - 1; x >= 0; x--) {
+                for (int y = 0; y < height; y++) {
+                    out.put(i++, in.get(y * width + x));
+                }
+            }
+            for (int x = width - 2; x >= 0; x -= 2) {
+                for (int y = 0; y < height / 2; y++) {
+                    int offset = ySize + y * width + x;
+                    out.put(i++, in.get(offset));
+                    out.put(i++, in.get(offset + 1));
+                }
+            }
+        } else if (degree == 180) {
+            for (int y = height - 1; y >= 0; y--) {
+                for (int x = width - 1; x >= 0; x--) {
+                    out.put(i++, in.get(y * width + x));
+                }
+            }
+            for (int y = height / 2 - 1; y >= 0; y--) {
+                for (int x = width - 2; x >= 0; x -= 2) {
+                    int offset = ySize + y * width + x;
+                    out.put(i++, in.get(offset));
+                    out.put(i++, in.get(offset + 1));
+                }
+            }
+        }
+    }
+
+    // BT.601 limited range in Q10 fixed point, the same integer math as the native kernel.
+    public static void toRgbaJava(ByteBuffer yvu, ByteBuffer rgba, int width, int height,
+            int stride) {
+        int vuStart = stride * height;
+        for (int y = 0; y < height; y++) {
+            int vuRow = vuStart + (y / 2) * stride;
+            for (int x = 0; x < width; x++) {
+                int yy = 1192 * (yvu.get(y * stride + x) & 0xFF);
+                int v = (yvu.get(vuRow + (x & ~1)) & 0xFF) - 128;
+                int u = (yvu.get(vuRow + (x & ~1) + 1) & 0xFF) - 128;
+                int dst = (y * width + x) * 4;
+                rgba.put(dst, clamp((yy + 1634 * v) >> 10));
+                rgba.put(dst + 1, clamp((yy - 833 * v - 400 * u) >> 10));
+                rgba.put(dst + 2, clamp((yy + 2066 * u) >> 10));
+                rgba.put(dst + 3, (byte) 0xFF);
+            }
+        }
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value > 255 ? 255 : (value < 0 ? 0 : value));
+    }
+
+    public static void flipJava(byte[] buf, int stride, int height, int gap,
+            boolean isVertical) {
+        int ySize = stride * height;
+        if (isVertical) {
+            for (int y = 0; y < height / 2; y++) {
+                swapRows(buf, y * stride, (height - 1 - y) * stride, stride);
+            }
+            for (int y = 0; y < height / 4; y++) {
+                swapRows(buf, ySize + y * stride, ySize + (height / 2 - 1 - y) * stride, stride);
+            }
+        } else {
+            int width = stride - gap;
+            for (int y = 0; y < height; y++) {
+                int row = y * stride;
+                for (int x = 0; x < width / 2; x++) {
+                    swap(buf, row + x, row + width - 1 - x);
+                }
+            }
+            for (int y = 0; y < height / 2; y++) {
+                int row = ySize + y * stride;
+                for (int x = 0; x < width / 2; x += 2) {
+                    swap(buf, row + x, row + width - 2 - x);
+                    swap(buf, row + x + 1, row + width - 1 - x);
+                }
+            }
+        }
+    }
+
+    private static void swapRows(byte[] buf, int a, int b, int length) {
+        for (int x = 0; x < length; x++) {
+            swap(buf, a + x, b + x);
+        }
+    }
+
+    private static void swap(byte[] buf, int a, int b) {
+        byte tmp = buf[a];
+        buf[a] = buf[b];
+        buf[b] = tmp;
+    }
+
+    public static void splitJava(byte[] src, ByteBuffer y, ByteBuffer vu, int width, int height,
+            int srcStride, int dstStride) {
+        int ySize = srcStride * height;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                y.put(j * dstStride + i, src[j * srcStride + i]);
+                if (j < height / 2) {
+                    vu.put(j * dstStride + i, src[ySize + j * srcStride + i]);
+                }
+            }
+        }
+    }
+
+    public static int resizeJava(byte[] oldBuf, byte[] newBuf, int oldWidth, int oldHeight,
+            int oldStride, int newWidth, int newHeight) {
+        int adjustedOldWidth = oldWidth;
+        if ((float) oldWidth / oldHeight != (float) newWidth / newHeight) {
+            adjustedOldWidth = (int) (((float) newWidth / newHeight) * oldHeight);
+        }
+        int wR = adjustedOldWidth / newWidth;
+        int hR = oldHeight / newHeight;
+        if (wR < hR && adjustedOldWidth - newWidth * wR >= adjustedOldWidth / 4) {
+            wR++;
+        }
+        if (hR < wR && oldHeight - newHeight * hR >= oldHeight / 4) {
+            hR++;
+        }
+        int r = wR < hR ? wR : hR;
+        if (r < 1) {
+            return 0;
+        }
+        int wC = oldWidth - newWidth * r;
+        int hC = oldHeight - newHeight * r;
+
+        int index = 0;
+        for (int j = hC / 2; j < newHeight * r + hC / 2; j += r) {
+            for (int i = wC / 2; i < newWidth * r + wC / 2; i += r) {
+                int cv = 0;
+                for (int y = 0; y < r; y++) {
+                    for (int x = 0; x < r; x++) {
+                        cv += oldBuf[(j + y) * oldStride + i + x] & 0xFF;
+                    }
+                }
+                newBuf[index++] = (byte) (cv / (r * r));
+            }
+        }
+        int ySize = oldStride * oldHeight;
+        int lastRow = oldHeight / 2 - 1;
+        int lastCol = (oldWidth - 2) & ~1;
+        index = newWidth * newHeight;
+        for (int j = hC / 2; j < newHeight * r + hC / 2; j += r * 2) {
+            for (int i = wC / 2; i < newWidth * r + wC / 2; i += r * 2) {
+                int cv1 = 0;
+                int cv2 = 0;
+                for (int y = 0; y < r * 2; y += 2) {
+                    for (int x = 0; x < r * 2; x += 2) {
+                        int row = Math.min((j + y) / 2, lastRow);
+                        int col = Math.min((i + x) / 2 * 2, lastCol);
+                        int offset = ySize + row * oldStride + col;
+                        cv1 += oldBuf[offset] & 0xFF;
+                        cv2 += oldBuf[offset + 1] & 0xFF;
+                    }
+                }
+                newBuf[index++] = (byte) (cv1 / (r * r));
+                newBuf[index++] = (byte) (cv2 / (r * r));
+            }
+        }
+        return r;
+    }
+
+    private static native int nativeRotateNV21(ByteBuffer inBuf, int imageWidth,
+            int imageHeight, int degree, ByteBuffer outBuf);
+    private static native int nativeNV21toRgb(ByteBuffer yvuBuf, ByteBuffer rgbBuf,
+            int width, int height, int stride);
+    private static native int nativeFlipNV21(byte[] buf, int stride, int height, int gap,
+            boolean isVertical);
+    private static native int nativeResizeImage(byte[] oldBuf, byte[] newBuf, int oldWidth,
+            int oldHeight, int oldStride, int newWidth, int newHeight);
+    private static native int nativeNV21Split(byte[] srcYVU, ByteBuffer yBuf, ByteBuffer vuBuf,
+            int width, int height, int srcStride, int dstStride);
+}
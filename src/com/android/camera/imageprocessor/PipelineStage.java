@@ -0,0 +1,152 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * One stage of the post processing pipeline: a worker thread fed through
+ * a bounded queue. A full queue blocks the producer, which is what keeps
+ * a slow stage from piling up full size images in memory.
+ */
+public class PipelineStage<T> {
+    private static final String TAG = "PipelineStage";
+
+    public interface Worker<T> {
+        void process(T job);
+
+        /**
+         * Called instead of, or after, process() for a job that will not
+         * complete: process() threw, or the stage stopped before it ran.
+         * Must release whatever the job holds.
+         */
+        void discard(T job);
+    }
+
+    private final String mName;
+    private final BlockingQueue<Object> mQueue;
+    private final Worker<T> mWorker;
+    private final Object mQuit = new Object();
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    public PipelineStage(String name, int capacity, Worker<T> worker) {
+        mName = name;
+        mQueue = new ArrayBlockingQueue<Object>(capacity + 1);
+        mWorker = worker;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(mName) {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void run() {
+                while (true) {
+                    Object job;
+                    try {
+                        job = mQueue.take();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    if (job == mQuit) {
+                        break;
+                    }
+                    try {
+                        mWorker.process((T) job);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, mName + " failed", e);
+                        discard((T) job);
+                    }
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    /** Queues a job, waiting for room if the stage is full. */
+    public boolean submit(T job) {
+        if (!mRunning) {
+            return false;
+        }
+        try {
+            mQueue.put(job);
+            return true;
+        } catch (InterruptedException e) {
+            Log.w(TAG, mName + " interrupted while queueing");
+            return false;
+        }
+    }
+
+    private void discard(T job) {
+        try {
+            mWorker.discard(job);
+        } catch (RuntimeException e) {
+            Log.e(TAG, mName + " could not discard a job", e);
+        }
+    }
+
+    /**
+     * Lets the queued jobs finish, then stops the worker. Jobs that were
+     * queued behind the stop by a submit() racing it are discarded.
+     */
+    public void quitSafely() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mRunning = false;
+        }
+        if (thread == null) {
+            return;
+        }
+        try {
+            mQueue.put(mQuit);
+            thread.join();
+        } catch (InterruptedException e) {
+        }
+        drain();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        Object job;
+        while ((job = mQueue.poll()) != null) {
+            if (job != mQuit) {
+                discard((T) job);
+            }
+        }
+    }
+}
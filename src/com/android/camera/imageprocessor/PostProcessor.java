@@ -64,6 +64,7 @@ import com.android.camera.PhotoModule;
 import com.android.camera.SettingsManager;
 import com.android.camera.deepportrait.DPImage;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifView;
 import com.android.camera.exif.Rational;
 import com.android.camera.imageprocessor.filter.BestpictureFilter;
 import com.android.camera.imageprocessor.filter.BlurbusterFilter;
@@ -86,6 +87,7 @@ import java.util.List;
 import android.util.Size;
 import java.util.TimeZone;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.android.camera.imageprocessor.filter.ImageFilter;
 import com.android.camera.util.CameraUtil;
@@ -107,7 +109,6 @@ public class PostProcessor{
     public static final int FILTER_BLURBUSTER = 7;
     public static final int FILTER_DEEPZOOM = 8;
     public static final int FILTER_MAX = 9;
-    private static boolean mIsSupported = false;
     //BestPicture requires 10 which is the biggest among filters
     private static final int MAX_REQUIRED_IMAGE_NUM = 11;
     private int mCurrentNumImage = 0;
@@ -135,6 +136,7 @@ public class PostProcessor{
             (PersistUtil.getCamera2Debug() == PersistUtil.CAMERA2_DEBUG_DUMP_ALL);
 
     private ZSLQueue mZSLQueue;
+    private SharpnessFrameScorer mFrameScorer;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
     private ImageReader mImageReader;
@@ -155,6 +157,18 @@ public class PostProcessor{
     public int mMaxRequiredImageNum;
     private boolean mIsDeepPortrait = false;
 
+    // Captures are handed from the filter to encode, EXIF and save stages
+    // through bounded queues so the next capture can start filtering while
+    // the previous one is still being encoded or written.
+    private static final int STAGE_QUEUE_SIZE = 2;
+    private static final int MAX_PENDING_CAPTURES = 3;
+    private final DirectBufferPool mBufferPool = DirectBufferPool.getInstance();
+    private final AtomicInteger mPendingCaptures = new AtomicInteger(0);
+    private PipelineStage<CaptureJob> mFilterStage;
+    private PipelineStage<CaptureJob> mEncodeStage;
+    private PipelineStage<CaptureJob> mExifStage;
+    private PipelineStage<CaptureJob> mSaveStage;
+
     private void checkAndEnableZSL(int cameraId) {
         if (mController.mSettingsManager.isZslSupported(cameraId)) {
             mUseZSL = true;
@@ -661,6 +675,14 @@ public class PostProcessor{
         return false;
     }
 
+    /**
+     * Whether a new capture has to wait. The filter only holds one capture
+     * at a time, while encode/EXIF/save may still be working on earlier ones.
+     */
+    public boolean isPipelineFull() {
+        return mStatus == STATUS.BUSY || mPendingCaptures.get() >= MAX_PENDING_CAPTURES;
+    }
+
     public List<CaptureRequest> setRequiredImages(CaptureRequest.Builder builder) {
         if(mFilter == null) {
             List<CaptureRequest> list = new ArrayList<CaptureRequest>();
@@ -735,7 +757,11 @@ public class PostProcessor{
         Log.d(TAG,"ZSL is "+mUseZSL);
         startBackgroundThread();
         if(mUseZSL) {
-            mZSLQueue = new ZSLQueue(mController);
+            if (PersistUtil.isZSLFrameScoringEnabled()) {
+                mFrameScorer = new SharpnessFrameScorer(mActivity);
+                mFrameScorer.start(mZSLHandler);
+            }
+            mZSLQueue = new ZSLQueue(mController, mFrameScorer);
         }
         mMaxRequiredImageNum = MAX_REQUIRED_IMAGE_NUM;
         mPendingContinuousRequestCount = 0;
@@ -758,6 +784,10 @@ public class PostProcessor{
             mZSLQueue.onClose();
             mZSLQueue = null;
         }
+        if (mFrameScorer != null) {
+            mFrameScorer.stop();
+            mFrameScorer = null;
+        }
         if (mImageWriter != null) {
             mImageWriter.close();
             mImageWriter = null;
@@ -785,6 +815,8 @@ public class PostProcessor{
         mSavingHandlerThread.start();
         mSavingHander = new ProcessorHandler(mSavingHandlerThread.getLooper());
 
+        startPipeline();
+
         mWatchdog = new WatchdogThread();
         Log.i(TAG,"start watch dog");
         mWatchdog.start();
@@ -844,6 +876,7 @@ public class PostProcessor{
     }
 
     private void stopBackgroundThread() {
+        stopPipeline();
         if (mHandlerThread != null) {
             mHandlerThread.quitSafely();
             try {
@@ -1023,8 +1056,8 @@ public class PostProcessor{
                                 deepPortraitFilter.addImage(null,null,0,dpImage);
                                 if (DEBUG_DUMP_FILTER_IMG) {
                                     ImageFilter.ResultImage debugResultImage = new
-                                            ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                            mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
+                                            ImageFilter.ResultImage(mBufferPool.acquireNv21(
+                                            mStride, mHeight, TAG), new Rect(0, 0, mWidth,
                                             mHeight), mWidth, mHeight, mStride);
                                     yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
                                     vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
@@ -1039,6 +1072,7 @@ public class PostProcessor{
                                             debugResultImage.outRoi.height(),
                                             mOrientation, null, mController.getMediaSavedListener(),
                                             mActivity.getContentResolver(), "jpeg");
+                                    mBufferPool.release(debugResultImage.outBuffer);
 
                                     if (dpImage.mMask != null) {
                                         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -1057,13 +1091,13 @@ public class PostProcessor{
                                 if (dpImage.mMask == null) {
                                     Log.d(TAG,"can't generate deepportrait mask");
                                     mDefaultResultImage = new ImageFilter.ResultImage(
-                                            ByteBuffer.allocateDirect(mStride * mHeight*3/2),
+                                            mBufferPool.acquireNv21(mStride, mHeight, TAG),
                                             new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
                                     yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
                                     vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
                                 } else {
-                                    ByteBuffer dstY = ByteBuffer.allocateDirect(yBuf.capacity());
-                                    ByteBuffer dstVU = ByteBuffer.allocateDirect(vuBuf.capacity());
+                                    ByteBuffer dstY = mBufferPool.acquire(yBuf.capacity(), TAG);
+                                    ByteBuffer dstVU = mBufferPool.acquire(vuBuf.capacity(), TAG);
                                     final SharedPreferences prefs =
                                             PreferenceManager.getDefaultSharedPreferences(mActivity);
                                     int level = prefs.getInt(SettingsManager.KEY_DEEPPORTRAIT_VALUE
@@ -1072,16 +1106,19 @@ public class PostProcessor{
                                             dpImage,dstY,dstVU,0, level/100f);
                                     Log.d(TAG,"process Dp snapshot cost time "+ (System.currentTimeMillis() - current));
                                     mDefaultResultImage = new ImageFilter.ResultImage(
-                                            ByteBuffer.allocateDirect(mStride * mHeight*3/2),
+                                            mBufferPool.acquireNv21(mStride, mHeight, TAG),
                                             new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
                                     dstY.get(mDefaultResultImage.outBuffer.array(), 0,
                                             dstY.remaining());
                                     dstVU.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight,
                                             dstVU.remaining());
+                                    mBufferPool.release(dstY);
+                                    mBufferPool.release(dstVU);
+                                    mBufferPool.release(dpImage.mMask);
                                 }
                             } else {
                                 mDefaultResultImage = new ImageFilter.ResultImage(
-                                        ByteBuffer.allocateDirect(mStride * mHeight*3/2),
+                                        mBufferPool.acquireNv21(mStride, mHeight, TAG),
                                         new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
                                 yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
                                 vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
@@ -1090,8 +1127,8 @@ public class PostProcessor{
                         } else {
                             if (DEBUG_DUMP_FILTER_IMG) {
                                 ImageFilter.ResultImage debugResultImage = new
-                                        ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                                        mStride * mHeight * 3 / 2), new Rect(0, 0, mWidth,
+                                        ImageFilter.ResultImage(mBufferPool.acquireNv21(
+                                        mStride, mHeight, TAG), new Rect(0, 0, mWidth,
                                         mHeight), mWidth, mHeight, mStride);
                                 yBuf.get(debugResultImage.outBuffer.array(), 0, yBuf.remaining());
                                 vuBuf.get(debugResultImage.outBuffer.array(), mStride * mHeight,
@@ -1106,6 +1143,7 @@ public class PostProcessor{
                                         debugResultImage.outRoi.height(),
                                         mOrientation, null, mController.getMediaSavedListener(),
                                         mActivity.getContentResolver(), "jpeg");
+                                mBufferPool.release(debugResultImage.outBuffer);
                             }
                             if (mFilterIndex == FILTER_UBIFOCUS && numImage > 0) {
                                 mController.checkAndPlayShutterSound(mController.getMainCameraId());
@@ -1148,13 +1186,12 @@ public class PostProcessor{
                         result.get(CaptureResult.JPEG_GPS_LOCATION).getLongitude());
             }
         }
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
         try {
-            exif.writeExif(jpeg, jpegOut);
+            return exif.spliceExif(jpeg);
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
         }
-        return jpegOut.toByteArray();
+        return jpeg;
     }
 
     private void clear() {
@@ -1167,79 +1204,274 @@ public class PostProcessor{
         if(mHandler == null || !mHandler.isRunning || mStatus != STATUS.BUSY) {
             return;
         }
-        final ProcessorHandler handler = mHandler;
-        mHandler.post(new Runnable() {
-            public void run() {
-                byte[] bytes;
-                ImageFilter.ResultImage resultImage = null;
-                synchronized (lock) {
-                    if (!handler.isRunning) {
-                        return;
+        CaptureJob job = new CaptureJob(mHandler, title, date, mediaSavedListener, contentResolver);
+        mPendingCaptures.incrementAndGet();
+        if (mFilterStage == null || !mFilterStage.submit(job)) {
+            mPendingCaptures.decrementAndGet();
+        }
+    }
+
+    /** State of one capture as it moves through the pipeline stages. */
+    private static class CaptureJob {
+        final ProcessorHandler handler;
+        final String title;
+        final long date;
+        final MediaSaveService.OnMediaSavedListener mediaSavedListener;
+        final ContentResolver contentResolver;
+        int orientation;
+        TotalCaptureResult metadata;
+        ImageFilter.ResultImage resultImage;
+        byte[] jpeg;
+        ExifView exif;
+        boolean finished;
+
+        CaptureJob(ProcessorHandler handler, String title, long date,
+                   MediaSaveService.OnMediaSavedListener mediaSavedListener,
+                   ContentResolver contentResolver) {
+            this.handler = handler;
+            this.title = title;
+            this.date = date;
+            this.mediaSavedListener = mediaSavedListener;
+            this.contentResolver = contentResolver;
+        }
+    }
+
+    private void startPipeline() {
+        mFilterStage = new PipelineStage<CaptureJob>("PostProcFilterStage", STAGE_QUEUE_SIZE,
+                new PipelineStage.Worker<CaptureJob>() {
+                    public void process(CaptureJob job) {
+                        runFilterStage(job);
                     }
-                    if (mFilter == null) { //In case no post filter is chosen
-                        resultImage = mDefaultResultImage;
-                    } else {
-                        resultImage = mFilter.processImage();
-                        for (int i = 0; i < mImages.length; i++) {
-                            if(mImages[i] != null) {
-                                mImages[i].close();
-                                mImages[i] = null;
-                            }
-                        }
+
+                    public void discard(CaptureJob job) {
+                        resetFilterState();
+                        finishJob(job);
+                    }
+                });
+        mEncodeStage = new PipelineStage<CaptureJob>("PostProcEncodeStage", STAGE_QUEUE_SIZE,
+                new PipelineStage.Worker<CaptureJob>() {
+                    public void process(CaptureJob job) {
+                        runEncodeStage(job);
                     }
-                    if(resultImage != null) {
-                        //Start processing FrameProcessor filter as well
-                        if (!mIsDeepPortrait) {
-                            for (ImageFilter filter : mController.getFrameFilters()) {
-                                filter.init(resultImage.width, resultImage.height,
-                                        resultImage.stride, resultImage.stride);
-                                filter.addImage(resultImage.outBuffer, null, 0, new Boolean(false));
-                            }
-                        }
 
-                        if(isSelfieMirrorOn() && !mController.isBackCamera() && mIsSupported) {
-                            boolean isVertical = true;
-                            if (mOrientation == 0 || mOrientation == 180) {
-                                isVertical = false;
-                            } else {
-                                isVertical = true;
-                            }
-                            nativeFlipNV21(resultImage.outBuffer.array(), resultImage.stride,
-                                    resultImage.height, resultImage.stride - resultImage.width,
-                                    isVertical);
-                        }
+                    public void discard(CaptureJob job) {
+                        finishJob(job);
+                    }
+                });
+        mExifStage = new PipelineStage<CaptureJob>("PostProcExifStage", STAGE_QUEUE_SIZE,
+                new PipelineStage.Worker<CaptureJob>() {
+                    public void process(CaptureJob job) {
+                        runExifStage(job);
+                    }
+
+                    public void discard(CaptureJob job) {
+                        finishJob(job);
+                    }
+                });
+        mSaveStage = new PipelineStage<CaptureJob>("PostProcSaveStage", STAGE_QUEUE_SIZE,
+                new PipelineStage.Worker<CaptureJob>() {
+                    public void process(CaptureJob job) {
+                        runSaveStage(job);
+                    }
+
+                    public void discard(CaptureJob job) {
+                        finishJob(job);
+                    }
+                });
+        mSaveStage.start();
+        mExifStage.start();
+        mEncodeStage.start();
+        mFilterStage.start();
+    }
+
+    // Upstream first, so every queued capture still reaches the save stage.
+    private void stopPipeline() {
+        if (mFilterStage != null) {
+            mFilterStage.quitSafely();
+            mFilterStage = null;
+        }
+        if (mEncodeStage != null) {
+            mEncodeStage.quitSafely();
+            mEncodeStage = null;
+        }
+        if (mExifStage != null) {
+            mExifStage.quitSafely();
+            mExifStage = null;
+        }
+        if (mSaveStage != null) {
+            mSaveStage.quitSafely();
+            mSaveStage = null;
+        }
+        mBufferPool.reportLeaks(TAG);
+    }
+
+    private void forward(PipelineStage<CaptureJob> stage, CaptureJob job) {
+        if (stage == null || !stage.submit(job)) {
+            finishJob(job);
+        }
+    }
+
+    // Safe to call more than once, a failing stage may already have finished the job.
+    private void finishJob(CaptureJob job) {
+        synchronized (job) {
+            if (job.finished) {
+                return;
+            }
+            job.finished = true;
+        }
+        if (job.resultImage != null) {
+            mBufferPool.release(job.resultImage.outBuffer);
+            job.resultImage = null;
+        }
+        mPendingCaptures.decrementAndGet();
+    }
+
+    /**
+     * Frees the filter for the next capture when a filter stage job did not
+     * get to do that itself, so the pipeline does not stay BUSY.
+     */
+    private void resetFilterState() {
+        synchronized (lock) {
+            for (int i = 0; mImages != null && i < mImages.length; i++) {
+                if (mImages[i] != null) {
+                    mImages[i].close();
+                    mImages[i] = null;
+                }
+            }
+            clear();
+            if (mStatus == STATUS.BUSY) {
+                mStatus = STATUS.INIT;
+            }
+            if (mWatchdog != null) {
+                mWatchdog.stopMonitor();
+            }
+        }
+    }
+
+    private void runFilterStage(CaptureJob job) {
+        ImageFilter.ResultImage resultImage = null;
+        synchronized (lock) {
+            if (!job.handler.isRunning) {
+                finishJob(job);
+                return;
+            }
+            if (mFilter == null) { //In case no post filter is chosen
+                resultImage = mDefaultResultImage;
+                mDefaultResultImage = null;
+            } else {
+                resultImage = copyToPool(mFilter.processImage());
+                for (int i = 0; i < mImages.length; i++) {
+                    if(mImages[i] != null) {
+                        mImages[i].close();
+                        mImages[i] = null;
                     }
-                    //End processing FrameProessor filter
-                    clear();
-                    mStatus = STATUS.INIT;
-                    if(mWatchdog != null) {
-                        mWatchdog.stopMonitor();
+                }
+            }
+            if(resultImage != null) {
+                //Start processing FrameProcessor filter as well
+                if (!mIsDeepPortrait) {
+                    for (ImageFilter filter : mController.getFrameFilters()) {
+                        filter.init(resultImage.width, resultImage.height,
+                                resultImage.stride, resultImage.stride);
+                        filter.addImage(resultImage.outBuffer, null, 0, new Boolean(false));
                     }
-                    if(resultImage == null ||
-                            (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
-                            (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
-                            ) {
-                        Log.d(TAG, "Result image is not valid.");
+                }
+
+                if(isSelfieMirrorOn() && !mController.isBackCamera()) {
+                    boolean isVertical = true;
+                    if (mOrientation == 0 || mOrientation == 180) {
+                        isVertical = false;
                     } else {
-                        bytes = nv21ToJpeg(resultImage, mOrientation, waitForMetaData(0));
-                        if (mController.getCurrentIntentMode() ==
-                                CaptureModule.INTENT_MODE_CAPTURE) {
-                            mController.setJpegImageData(bytes);
-                            if (mController.isQuickCapture()) {
-                                mController.onCaptureDone();
-                            } else {
-                                mController.showCapturedReview(bytes, mOrientation);
-                            }
-                        }
-                        ExifInterface exif = Exif.getExif(bytes);
-                        mActivity.getMediaSaveService().addImage(
-                                    bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
-                                    mOrientation, exif, mediaSavedListener, contentResolver, "jpeg");
-                            mController.updateThumbnailJpegData(bytes);
+                        isVertical = true;
                     }
+                    NV21Utils.flip(resultImage.outBuffer.array(), resultImage.stride,
+                            resultImage.height, resultImage.stride - resultImage.width,
+                            isVertical);
                 }
             }
-        });
+            //End processing FrameProessor filter
+            job.orientation = mOrientation;
+            job.metadata = waitForMetaData(0);
+            clear();
+            mStatus = STATUS.INIT;
+            if(mWatchdog != null) {
+                mWatchdog.stopMonitor();
+            }
+        }
+        job.resultImage = resultImage;
+        if(resultImage == null ||
+                (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
+                (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
+                ) {
+            Log.d(TAG, "Result image is not valid.");
+            finishJob(job);
+            return;
+        }
+        forward(mEncodeStage, job);
+    }
+
+    /**
+     * Filters keep writing into the same output buffer, so the result is
+     * moved into a pooled buffer before the filter is free for the next capture.
+     */
+    private ImageFilter.ResultImage copyToPool(ImageFilter.ResultImage resultImage) {
+        if (resultImage == null || resultImage.outBuffer == null) {
+            return resultImage;
+        }
+        ByteBuffer copy = mBufferPool.acquireNv21(resultImage.stride, resultImage.height,
+                TAG);
+        ByteBuffer src = resultImage.outBuffer.duplicate();
+        src.clear();
+        src.limit(Math.min(src.capacity(), copy.remaining()));
+        copy.put(src);
+        copy.rewind();
+        return new ImageFilter.ResultImage(copy, resultImage.outRoi, resultImage.width,
+                resultImage.height, resultImage.stride);
+    }
+
+    private void runEncodeStage(CaptureJob job) {
+        ImageFilter.ResultImage resultImage = job.resultImage;
+        if (mController.getCurrentIntentMode() != CaptureModule.INTENT_MODE_CAPTURE) {
+            // Show the thumbnail from the frame now rather than from the jpeg once saved.
+            final Bitmap thumbnail = mActivity.getThumbnailProvider().fromNv21(
+                    resultImage.outBuffer.array(), resultImage.stride, resultImage.height,
+                    getEncodeRoi(resultImage), job.orientation);
+            mActivity.runOnUiThread(new Runnable() {
+                public void run() {
+                    mActivity.updateThumbnail(thumbnail);
+                }
+            });
+        }
+        job.jpeg = compressToJpeg(resultImage);
+        mBufferPool.release(resultImage.outBuffer);
+        job.resultImage = new ImageFilter.ResultImage(null, resultImage.outRoi,
+                resultImage.width, resultImage.height, resultImage.stride);
+        forward(mExifStage, job);
+    }
+
+    private void runExifStage(CaptureJob job) {
+        job.jpeg = addExifTags(job.jpeg, job.orientation, job.metadata);
+        job.exif = new ExifView(job.jpeg);
+        forward(mSaveStage, job);
+    }
+
+    private void runSaveStage(CaptureJob job) {
+        byte[] bytes = job.jpeg;
+        Rect roi = job.resultImage.outRoi;
+        if (mController.getCurrentIntentMode() ==
+                CaptureModule.INTENT_MODE_CAPTURE) {
+            mController.setJpegImageData(bytes);
+            if (mController.isQuickCapture()) {
+                mController.onCaptureDone();
+            } else {
+                mController.showCapturedReview(bytes, job.orientation);
+            }
+        }
+        // The EXIF is already in the jpeg, so it is saved as is.
+        mActivity.getMediaSaveService().addImage(
+                bytes, job.title, job.date, Exif.getLocation(job.exif), roi.width(), roi.height(),
+                job.orientation, null, job.mediaSavedListener, job.contentResolver, "jpeg");
+        finishJob(job);
     }
 
     public TotalCaptureResult waitForMetaData(int index) {
@@ -1276,8 +1508,8 @@ public class PostProcessor{
                     int size = image.getPlanes()[0].getBuffer().remaining();
                     byte[] bytes = new byte[size];
                     image.getPlanes()[0].getBuffer().get(bytes, 0, size);
-                    ExifInterface exif = Exif.getExif(bytes);
-                    int orientation = Exif.getOrientation(exif);
+                    ExifView exif = new ExifView(bytes);
+                    int orientation = exif.getOrientation();
                     if (mController.getCurrentIntentMode() != CaptureModule.INTENT_MODE_NORMAL) {
                         mController.setJpegImageData(bytes);
                         if (mController.isQuickCapture()) {
@@ -1287,9 +1519,9 @@ public class PostProcessor{
                         }
                     } else {
                         mActivity.getMediaSaveService().addImage(
-                                bytes, title, date, null, image.getCropRect().width(), image.getCropRect().height(),
-                                orientation, exif, mController.getMediaSavedListener(), mActivity.getContentResolver(), "jpeg");
-                        mController.updateThumbnailJpegData(bytes);
+                                bytes, title, date, Exif.getLocation(exif), image.getCropRect().width(), image.getCropRect().height(),
+                                orientation, null, mController.getMediaSavedListener(), mActivity.getContentResolver(), "jpeg");
+                        mController.updateThumbnailJpegData(bytes, exif, orientation);
                         image.close();
                     }
                 }
@@ -1298,17 +1530,26 @@ public class PostProcessor{
     };
 
     public byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation, TotalCaptureResult result) {
+        byte[] bytes = compressToJpeg(resultImage);
+        bytes = addExifTags(bytes, orientation, result);
+        return bytes;
+    }
+
+    private byte[] compressToJpeg(ImageFilter.ResultImage resultImage) {
         BitmapOutputStream bos = new BitmapOutputStream(1024);
         YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
                                     resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
-        if(isSelfieMirrorOn() && !mController.isBackCamera() && mIsSupported) {
+        resultImage.outRoi = getEncodeRoi(resultImage);
+        im.compressToJpeg(resultImage.outRoi, getJpegQualityValue(), bos);
+        return bos.getArray();
+    }
+
+    private Rect getEncodeRoi(ImageFilter.ResultImage resultImage) {
+        if(isSelfieMirrorOn() && !mController.isBackCamera()) {
             int t = resultImage.height - (resultImage.outRoi.top + resultImage.outRoi.height());
-            resultImage.outRoi = new Rect(resultImage.outRoi.left, t, resultImage.outRoi.right , resultImage.outRoi.height() + t);
+            return new Rect(resultImage.outRoi.left, t, resultImage.outRoi.right , resultImage.outRoi.height() + t);
         }
-        im.compressToJpeg(resultImage.outRoi, getJpegQualityValue(), bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation, result);
-        return bytes;
+        return resultImage.outRoi;
     }
 
     public int getJpegQualityValue() {
@@ -1329,14 +1570,4 @@ public class PostProcessor{
             return buf;
         }
     }
-    private native int nativeFlipNV21(byte[] buf, int stride, int height, int gap, boolean isVertical);
-    static {
-        try {
-            System.loadLibrary("jni_snapimageutil");
-            mIsSupported = true;
-        } catch (UnsatisfiedLinkError e) {
-            Log.d(TAG, e.toString());
-            mIsSupported = false;
-        }
-    }
 }
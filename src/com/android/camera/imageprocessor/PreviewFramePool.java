@@ -0,0 +1,215 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RSRuntimeException;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of reference counted NV21 preview frames.
+ *
+ * Where the RenderScript driver allows it, a frame's storage is the
+ * backing store of a U8 Allocation, so writing the frame once also fills
+ * the RenderScript input. Otherwise it falls back to a direct buffer.
+ */
+public class PreviewFramePool {
+    private static final String TAG = "PreviewFramePool";
+
+    private final RenderScript mRs;
+    private final int mMaxFrames;
+    private final ArrayDeque<PreviewFrame> mFree = new ArrayDeque<PreviewFrame>();
+    private int mFrameSize;
+    private int mYSize;
+    private int mCreated;
+    private boolean mClosed;
+
+    public PreviewFramePool(RenderScript rs, int maxFrames) {
+        mRs = rs;
+        mMaxFrames = maxFrames;
+    }
+
+    /** Drops pooled frames that do not match the new layout. */
+    public synchronized void configure(int ySize, int frameSize) {
+        if (ySize == mYSize && frameSize == mFrameSize) {
+            return;
+        }
+        mYSize = ySize;
+        mFrameSize = frameSize;
+        while (!mFree.isEmpty()) {
+            mFree.poll().destroy();
+            mCreated--;
+        }
+    }
+
+    /** Returns a frame holding one reference, or null if all frames are in flight. */
+    public synchronized PreviewFrame acquire() {
+        if (mClosed || mFrameSize == 0) {
+            return null;
+        }
+        PreviewFrame frame = mFree.poll();
+        if (frame == null) {
+            if (mCreated >= mMaxFrames) {
+                return null;
+            }
+            frame = createFrame();
+            mCreated++;
+        }
+        frame.mRefCount.set(1);
+        return frame;
+    }
+
+    private PreviewFrame createFrame() {
+        Allocation allocation = null;
+        ByteBuffer data = null;
+        if (mRs != null) {
+            try {
+                Type.Builder builder = new Type.Builder(mRs, Element.U8(mRs));
+                builder.setX(mFrameSize);
+                allocation = Allocation.createTyped(mRs, builder.create(), Allocation.USAGE_SCRIPT);
+                data = allocation.getByteBuffer();
+            } catch (RSRuntimeException e) {
+                Log.w(TAG, "Allocation backed frames are not supported", e);
+                data = null;
+            }
+            if (data == null && allocation != null) {
+                allocation.destroy();
+                allocation = null;
+            }
+        }
+        if (data == null) {
+            data = DirectBufferPool.getInstance().acquire(mFrameSize);
+        }
+        return new PreviewFrame(this, allocation, data, mYSize, mFrameSize);
+    }
+
+    private synchronized void recycle(PreviewFrame frame) {
+        if (mClosed || frame.mSize != mFrameSize || frame.mYSize != mYSize) {
+            frame.destroy();
+            mCreated--;
+            return;
+        }
+        mFree.push(frame);
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        while (!mFree.isEmpty()) {
+            mFree.poll().destroy();
+            mCreated--;
+        }
+    }
+
+    public static class PreviewFrame {
+        private final PreviewFramePool mPool;
+        private final Allocation mAllocation;
+        private final ByteBuffer mData;
+        private final ByteBuffer mY;
+        private final ByteBuffer mVU;
+        private final int mYSize;
+        private final int mSize;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+
+        PreviewFrame(PreviewFramePool pool, Allocation allocation, ByteBuffer data,
+                     int ySize, int size) {
+            mPool = pool;
+            mAllocation = allocation;
+            mData = data;
+            mYSize = ySize;
+            mSize = size;
+            ByteBuffer y = data.duplicate();
+            y.limit(ySize);
+            mY = y.slice();
+            ByteBuffer vu = data.duplicate();
+            vu.limit(size);
+            vu.position(ySize);
+            mVU = vu.slice();
+        }
+
+        /** Copies the planes in. This is the only copy a preview frame goes through. */
+        public int fill(ByteBuffer y, ByteBuffer vu) {
+            mY.clear();
+            mVU.clear();
+            int ySize = Math.min(y.remaining(), mY.remaining());
+            int vuSize = Math.min(vu.remaining(), mVU.remaining());
+            y.limit(y.position() + ySize);
+            vu.limit(vu.position() + vuSize);
+            mY.put(y);
+            mVU.put(vu);
+            return ySize + vuSize;
+        }
+
+        public ByteBuffer getY() {
+            mY.rewind();
+            return mY;
+        }
+
+        public ByteBuffer getVU() {
+            mVU.rewind();
+            return mVU;
+        }
+
+        public ByteBuffer getData() {
+            return mData;
+        }
+
+        /** The Allocation sharing this frame's memory, or null if there is none. */
+        public Allocation getAllocation() {
+            return mAllocation;
+        }
+
+        public void retain() {
+            mRefCount.incrementAndGet();
+        }
+
+        public void release() {
+            int count = mRefCount.decrementAndGet();
+            if (count == 0) {
+                mPool.recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("PreviewFrame released too many times");
+            }
+        }
+
+        void destroy() {
+            if (mAllocation != null) {
+                mAllocation.destroy();
+            } else {
+                DirectBufferPool.getInstance().release(mData);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.os.Handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Default FrameScorer. Sharpness is the mean absolute gradient of a
+ * fixed size grid sampled from the Y plane, and motion is the gyro
+ * angular speed integrated over the sensor exposure time.
+ */
+public class SharpnessFrameScorer implements FrameScorer, SensorEventListener {
+    private static final int GRID_WIDTH = 64;
+    private static final int GRID_HEIGHT = 48;
+    private static final int GYRO_HISTORY = 64;
+    // Milliradians of shake that halve the score of an otherwise equal frame.
+    private static final float MOTION_WEIGHT = 1000f;
+
+    private final byte[] mGrid = new byte[GRID_WIDTH * GRID_HEIGHT];
+    private final long[] mGyroTimestamps = new long[GYRO_HISTORY];
+    private final float[] mGyroSpeeds = new float[GYRO_HISTORY];
+    private int mGyroHead;
+    private int mGyroCount;
+    private final Object mGyroLock = new Object();
+    private SensorManager mSensorManager;
+    private Sensor mGyroscope;
+
+    public SharpnessFrameScorer(Context context) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if (mSensorManager != null) {
+            mGyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        }
+    }
+
+    public void start(Handler handler) {
+        if (mGyroscope != null) {
+            mSensorManager.registerListener(this, mGyroscope,
+                    SensorManager.SENSOR_DELAY_GAME, handler);
+        }
+    }
+
+    public void stop() {
+        if (mGyroscope != null) {
+            mSensorManager.unregisterListener(this, mGyroscope);
+        }
+        synchronized (mGyroLock) {
+            mGyroCount = 0;
+            mGyroHead = 0;
+        }
+    }
+
+    @Override
+    public float scoreImage(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        ByteBuffer y = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int stepX = Math.max(1, image.getWidth() / GRID_WIDTH);
+        int stepY = Math.max(1, image.getHeight() / GRID_HEIGHT);
+        int gridWidth = Math.min(GRID_WIDTH, image.getWidth());
+        int gridHeight = Math.min(GRID_HEIGHT, image.getHeight());
+        int base = y.position();
+        int limit = y.limit();
+        for (int gy = 0; gy < gridHeight; gy++) {
+            int rowOffset = base + gy * stepY * rowStride;
+            for (int gx = 0; gx < gridWidth; gx++) {
+                int offset = rowOffset + gx * stepX * pixelStride;
+                mGrid[gy * GRID_WIDTH + gx] = offset < limit ? y.get(offset) : 0;
+            }
+        }
+        return gradientEnergy(mGrid, GRID_WIDTH, gridWidth, gridHeight);
+    }
+
+    static float gradientEnergy(byte[] grid, int stride, int width, int height) {
+        if (width < 2 || height < 2) {
+            return 0f;
+        }
+        long sum = 0;
+        for (int gy = 0; gy < height - 1; gy++) {
+            int row = gy * stride;
+            for (int gx = 0; gx < width - 1; gx++) {
+                int p = grid[row + gx] & 0xff;
+                sum += Math.abs(p - (grid[row + gx + 1] & 0xff));
+                sum += Math.abs(p - (grid[row + stride + gx] & 0xff));
+            }
+        }
+        return (float) sum / ((width - 1) * (height - 1) * 2);
+    }
+
+    @Override
+    public float scoreMotion(TotalCaptureResult metadata) {
+        Long exposure = metadata.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Long timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (exposure == null || timestamp == null) {
+            return 0f;
+        }
+        return angularSpeed(timestamp - exposure, timestamp) * (exposure / 1e9f);
+    }
+
+    /** Average gyro speed in rad/s over [start, end], or the latest sample if none fall inside. */
+    private float angularSpeed(long start, long end) {
+        synchronized (mGyroLock) {
+            if (mGyroCount == 0) {
+                return 0f;
+            }
+            float sum = 0f;
+            int n = 0;
+            int index = mGyroHead;
+            for (int i = 0; i < mGyroCount; i++) {
+                index = (index - 1 + GYRO_HISTORY) % GYRO_HISTORY;
+                long t = mGyroTimestamps[index];
+                if (t < start) {
+                    break;
+                }
+                if (t <= end) {
+                    sum += mGyroSpeeds[index];
+                    n++;
+                }
+            }
+            if (n == 0) {
+                return mGyroSpeeds[(mGyroHead - 1 + GYRO_HISTORY) % GYRO_HISTORY];
+            }
+            return sum / n;
+        }
+    }
+
+    @Override
+    public float combine(float imageScore, float motionScore) {
+        return imageScore / (1f + MOTION_WEIGHT * motionScore);
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float x = event.values[0];
+        float y = event.values[1];
+        float z = event.values[2];
+        synchronized (mGyroLock) {
+            mGyroTimestamps[mGyroHead] = event.timestamp;
+            mGyroSpeeds[mGyroHead] = (float) Math.sqrt(x * x + y * y + z * z);
+            mGyroHead = (mGyroHead + 1) % GYRO_HISTORY;
+            if (mGyroCount < GYRO_HISTORY) {
+                mGyroCount++;
+            }
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
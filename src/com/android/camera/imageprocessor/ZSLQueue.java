@@ -36,15 +36,21 @@ import android.util.Log;
 import com.android.camera.CaptureModule;
 import com.android.camera.util.PersistUtil;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
-
 public class ZSLQueue {
     private int mCircularBufferSize;
     private ImageItem[] mBuffer;
-    private int mImageHead;
-    private int mMetaHead;
+    private TimestampIndex mIndex;
+    private int mHead;
+    private FrameScorer mScorer;
+    // Monotonic deque over the last mWindowSize scored frames, best first.
+    private int mWindowSize;
+    private int[] mWindowSlots;
+    private long[] mWindowTimestamps;
+    private long[] mWindowSequences;
+    private float[] mWindowScores;
+    private int mWindowFirst;
+    private int mWindowCount;
+    private long mFrameSequence;
     private Object mLock = new Object();
     private CaptureModule mModule;
     private static final boolean DEBUG_QUEUE  =
@@ -53,156 +59,202 @@ public class ZSLQueue {
     private static final String TAG = "ZSLQueue";
 
     public ZSLQueue(CaptureModule module) {
+        this(module, null);
+    }
+
+    public ZSLQueue(CaptureModule module, FrameScorer scorer) {
         mCircularBufferSize = PersistUtil.getCircularBufferSize();
         synchronized (mLock) {
             mBuffer = new ImageItem[mCircularBufferSize];
-            mImageHead = 0;
-            mMetaHead = 0;
+            for (int i = 0; i < mBuffer.length; i++) {
+                mBuffer[i] = new ImageItem();
+            }
+            mIndex = new TimestampIndex(mCircularBufferSize);
+            mHead = 0;
             mModule = module;
+            mScorer = scorer;
+            mWindowSize = Math.max(1,
+                    Math.min(PersistUtil.getZSLSelectionWindow(), mCircularBufferSize));
+            mWindowSlots = new int[mWindowSize];
+            mWindowTimestamps = new long[mWindowSize];
+            mWindowSequences = new long[mWindowSize];
+            mWindowScores = new float[mWindowSize];
+            mWindowFirst = 0;
+            mWindowCount = 0;
+            mFrameSequence = 0;
         }
     }
 
-    private int findMeta(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getMetadata() != null &&
-                    mBuffer[index].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP).longValue() == timestamp) {
-                return index;
-            }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
-    }
-
-    private int findImage(long timestamp, int index) {
-        int startIndex = index;
-        do {
-            if(mBuffer[index] != null && mBuffer[index].getImage() != null &&
-                    mBuffer[index].getImage().getTimestamp() == timestamp) {
-                return index;
+    /**
+     * Returns the slot already holding the other half of this frame, or
+     * recycles the oldest slot for it. Returns -1 if the frame is older
+     * than everything still retained.
+     */
+    private int acquireSlot(long timestamp) {
+        int index = mIndex.get(timestamp);
+        if (index != TimestampIndex.NOT_FOUND) {
+            return index;
+        }
+        ImageItem item = mBuffer[mHead];
+        if (item.getTimestamp() != ImageItem.NO_TIMESTAMP) {
+            if (item.getTimestamp() > timestamp) {
+                return -1;
             }
-            index = (index + 1) % mBuffer.length;
-        } while(index != startIndex);
-        return -1;
+            mIndex.remove(item.getTimestamp());
+            item.recycle();
+        }
+        index = mHead;
+        item.setTimestamp(timestamp);
+        mIndex.put(timestamp, index);
+        mHead = (mHead + 1) % mBuffer.length;
+        return index;
     }
 
     public void add(Image image, Image rawImage) {
         int lastIndex = -1;
+        long timestamp = image.getTimestamp();
+        // Runs on the ZSL handler thread, outside the lock.
+        float imageScore = mScorer != null ? mScorer.scoreImage(image) : 0f;
         synchronized (mLock) {
             if(mBuffer == null)
                 return;
-            if(mBuffer[mImageHead] != null) {
-                mBuffer[mImageHead].closeImage();
-            } else {
-                mBuffer[mImageHead] = new ImageItem();
-            }
-            if(mBuffer[mImageHead].getMetadata() != null) {
-                if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() == image.getTimestamp()) {
-                    mBuffer[mImageHead].setImage(image,rawImage);
-                    lastIndex = mImageHead;
-                    mImageHead = (mImageHead + 1) % mBuffer.length;
-                } else if((mBuffer[mImageHead].getMetadata().get(CaptureResult.SENSOR_TIMESTAMP)).longValue() > image.getTimestamp()) {
-                    image.close();
-                } else {
-                    int i = findMeta(image.getTimestamp(), mImageHead);
-                    if(i == -1) {
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mBuffer[mImageHead].setMetadata(null);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mImageHead = i;
-                        mBuffer[mImageHead].setImage(image, rawImage);
-                        mImageHead = (mImageHead + 1) % mBuffer.length;
-                    }
+            lastIndex = acquireSlot(timestamp);
+            if(lastIndex == -1) {
+                image.close();
+                if(rawImage != null) {
+                    rawImage.close();
                 }
             } else {
-                mBuffer[mImageHead].setImage(image, rawImage);
-                lastIndex = mImageHead;
-                mImageHead = (mImageHead + 1) % mBuffer.length;
+                mBuffer[lastIndex].setImage(image, rawImage);
+                mBuffer[lastIndex].setImageScore(imageScore);
+                onFrameUpdated(lastIndex);
             }
         }
 
-        if(DEBUG_QUEUE) Log.d(TAG, "imageIndex: " + lastIndex + " " + image.getTimestamp());
+        if(DEBUG_QUEUE) Log.d(TAG, "imageIndex: " + lastIndex + " " + timestamp);
     }
 
     public void add(TotalCaptureResult metadata) {
         int lastIndex = -1;
+        long timestamp = -1;
+        try {
+            timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
+        } catch(IllegalStateException e) {
+            //This happens when corresponding image to this metadata is closed and discarded.
+            return;
+        }
+        if(timestamp == -1) {
+            return;
+        }
+        // Evaluate the 3A state once here instead of on every capture attempt.
+        boolean eligible = checkImageRequirement(metadata);
+        float motionScore = mScorer != null ? mScorer.scoreMotion(metadata) : 0f;
         synchronized (mLock) {
             if(mBuffer == null)
                 return;
-            long timestamp = -1;
-            try {
-                timestamp = metadata.get(CaptureResult.SENSOR_TIMESTAMP).longValue();
-            } catch(IllegalStateException e) {
-                //This happens when corresponding image to this metadata is closed and discarded.
-                return;
-            }
-            if(timestamp == -1) {
-                return;
-            }
-            if(mBuffer[mMetaHead] == null) {
-                mBuffer[mMetaHead] = new ImageItem();
-            } else {
-                mBuffer[mMetaHead].closeMeta();
-            }
-            if(mBuffer[mMetaHead].getImage() != null) {
-                if(mBuffer[mMetaHead].getImage().getTimestamp() == timestamp) {
-                    mBuffer[mMetaHead].setMetadata(metadata);
-                    lastIndex = mMetaHead;
-                    mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                } else if(mBuffer[mMetaHead].getImage().getTimestamp() > timestamp) {
-                    //Disard
-                } else {
-                    int i = findImage(timestamp, mMetaHead);
-                    if(i == -1) {
-                        mBuffer[mMetaHead].setImage(null, null);
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    } else {
-                        lastIndex = mMetaHead = i;
-                        mBuffer[mMetaHead].setMetadata(metadata);
-                        mMetaHead = (mMetaHead + 1) % mBuffer.length;
-                    }
-                }
-            } else {
-                mBuffer[mMetaHead].setMetadata(metadata);
-                lastIndex = mImageHead;
-                mMetaHead = (mMetaHead + 1) % mBuffer.length;
+            lastIndex = acquireSlot(timestamp);
+            if(lastIndex != -1) {
+                mBuffer[lastIndex].setMetadata(metadata, eligible);
+                mBuffer[lastIndex].setMotionScore(motionScore);
+                onFrameUpdated(lastIndex);
             }
         }
 
-        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + lastIndex + " " + metadata.get(CaptureResult.SENSOR_TIMESTAMP));
+        if(DEBUG_QUEUE) Log.d(TAG, "Meta: " + lastIndex + " " + timestamp);
+    }
+
+    /**
+     * Pushes a frame that just became complete and eligible into the
+     * selection window. Entries dominated by a newer, better frame can
+     * never be picked and are dropped, which keeps the best at the front.
+     */
+    private void onFrameUpdated(int index) {
+        ImageItem item = mBuffer[index];
+        if (mScorer == null || !item.isValid() || !item.isEligible()) {
+            return;
+        }
+        float score = mScorer.combine(item.getImageScore(), item.getMotionScore());
+        long sequence = mFrameSequence++;
+        while (mWindowCount > 0 && mWindowScores[windowIndex(mWindowCount - 1)] <= score) {
+            mWindowCount--;
+        }
+        trimWindow(sequence);
+        if (mWindowCount == mWindowSize) {
+            mWindowFirst = windowIndex(1);
+            mWindowCount--;
+        }
+        int last = windowIndex(mWindowCount);
+        mWindowSlots[last] = index;
+        mWindowTimestamps[last] = item.getTimestamp();
+        mWindowSequences[last] = sequence;
+        mWindowScores[last] = score;
+        mWindowCount++;
+    }
+
+    private int windowIndex(int offset) {
+        return (mWindowFirst + offset) % mWindowSize;
+    }
+
+    // Drops frames that fell out of the window or whose slot was recycled.
+    private void trimWindow(long sequence) {
+        while (mWindowCount > 0) {
+            int first = mWindowFirst;
+            ImageItem item = mBuffer[mWindowSlots[first]];
+            if (sequence - mWindowSequences[first] < mWindowSize
+                    && item.getTimestamp() == mWindowTimestamps[first]
+                    && item.isValid()) {
+                break;
+            }
+            mWindowFirst = windowIndex(1);
+            mWindowCount--;
+        }
     }
 
     public ImageItem tryToGetMatchingItem() {
         synchronized (mLock) {
-            int index = mImageHead;
-            ImageItem item;
-            do {
-                item = mBuffer[index];
-                if (item != null && item.isValid() && checkImageRequirement(item.getMetadata())) {
-                    mBuffer[index] = null;
-                    return item;
+            if(mBuffer == null)
+                return null;
+            if (mScorer != null) {
+                trimWindow(mFrameSequence);
+                if (mWindowCount == 0) {
+                    return null;
+                }
+                int slot = mWindowSlots[mWindowFirst];
+                if (DEBUG_QUEUE) Log.d(TAG, "best frame " + mWindowTimestamps[mWindowFirst]
+                        + " score " + mWindowScores[mWindowFirst]);
+                mWindowFirst = windowIndex(1);
+                mWindowCount--;
+                mIndex.remove(mBuffer[slot].getTimestamp());
+                return mBuffer[slot].detach();
+            }
+            int found = -1;
+            long newest = ImageItem.NO_TIMESTAMP;
+            for (int i = 0; i < mBuffer.length; i++) {
+                ImageItem item = mBuffer[i];
+                if (item.isValid() && item.isEligible() && item.getTimestamp() > newest) {
+                    newest = item.getTimestamp();
+                    found = i;
                 }
-                index--;
-                if (index < 0) index = mBuffer.length - 1;
-            } while (index != mImageHead);
+            }
+            if (found == -1) {
+                return null;
+            }
+            mIndex.remove(newest);
+            return mBuffer[found].detach();
         }
-        return null;
     }
 
     public void onClose() {
         synchronized (mLock) {
+            if (mBuffer == null)
+                return;
             for (int i = 0; i < mBuffer.length; i++) {
-                if (mBuffer[i] != null) {
-                    mBuffer[i].closeImage();
-                    mBuffer[i].closeMeta();
-                    mBuffer[i] = null;
-                }
+                mBuffer[i].recycle();
             }
             mBuffer = null;
-            mImageHead = 0;
-            mMetaHead = 0;
+            mIndex.clear();
+            mHead = 0;
+            mWindowCount = 0;
         }
     }
 
@@ -236,9 +288,14 @@ public class ZSLQueue {
     }
 
     static class ImageItem {
+        static final long NO_TIMESTAMP = Long.MIN_VALUE;
         private Image mImage = null;
         private Image mRawImage = null;
         private TotalCaptureResult mMetadata = null;
+        private long mTimestamp = NO_TIMESTAMP;
+        private boolean mEligible = false;
+        private float mImageScore = 0f;
+        private float mMotionScore = 0f;
 
         public Image getImage() {
             return mImage;
@@ -265,6 +322,39 @@ public class ZSLQueue {
             mMetadata = metadata;
         }
 
+        void setMetadata(TotalCaptureResult metadata, boolean eligible) {
+            mMetadata = metadata;
+            mEligible = eligible;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        void setTimestamp(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        boolean isEligible() {
+            return mEligible;
+        }
+
+        float getImageScore() {
+            return mImageScore;
+        }
+
+        void setImageScore(float score) {
+            mImageScore = score;
+        }
+
+        float getMotionScore() {
+            return mMotionScore;
+        }
+
+        void setMotionScore(float score) {
+            mMotionScore = score;
+        }
+
         public void closeImage() {
             if(mImage != null) {
                 mImage.close();
@@ -273,10 +363,41 @@ public class ZSLQueue {
                 mRawImage.close();
             }
             mImage = null;
+            mRawImage = null;
+            mImageScore = 0f;
         }
 
         public void closeMeta() {
             mMetadata = null;
+            mEligible = false;
+            mMotionScore = 0f;
+        }
+
+        void recycle() {
+            closeImage();
+            closeMeta();
+            mTimestamp = NO_TIMESTAMP;
+        }
+
+        /**
+         * Hands the frame over to a new item owned by the caller and
+         * returns this slot to the pool without closing the images.
+         */
+        ImageItem detach() {
+            ImageItem item = new ImageItem();
+            item.mImage = mImage;
+            item.mRawImage = mRawImage;
+            item.mMetadata = mMetadata;
+            item.mTimestamp = mTimestamp;
+            item.mEligible = mEligible;
+            item.mImageScore = mImageScore;
+            item.mMotionScore = mMotionScore;
+            mImage = null;
+            mRawImage = null;
+            mMetadata = null;
+            mTimestamp = NO_TIMESTAMP;
+            mEligible = false;
+            return item;
         }
 
         public boolean isValid() {
@@ -49,6 +49,7 @@ import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
+import com.android.camera.imageprocessor.DirectBufferPool;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
@@ -207,17 +208,22 @@ public class BestpictureFilter implements ImageFilter {
             if (!mIsOn) {
                 return null;
             }
-            mBestpictureResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            mBestpictureResultImage = new ImageFilter.ResultImage(
+                    DirectBufferPool.getInstance().acquireNv21(mStrideY, mHeight),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
-            yBuf.get(mBestpictureResultImage.outBuffer.array(), 0, yBuf.remaining());
-            vuBuf.get(mBestpictureResultImage.outBuffer.array(), mStrideY * mHeight,
-                    vuBuf.remaining());
-            yBuf.rewind();
-            vuBuf.rewind();
+            try {
+                yBuf.get(mBestpictureResultImage.outBuffer.array(), 0, yBuf.remaining());
+                vuBuf.get(mBestpictureResultImage.outBuffer.array(), mStrideY * mHeight,
+                        vuBuf.remaining());
+                yBuf.rewind();
+                vuBuf.rewind();
 
-            return nv21ToJpeg(mBestpictureResultImage, mOrientation,
-                    mProcessor.waitForMetaData(imageNum));
+                return nv21ToJpeg(mBestpictureResultImage, mOrientation,
+                        mProcessor.waitForMetaData(imageNum));
+            } finally {
+                DirectBufferPool.getInstance().release(mBestpictureResultImage.outBuffer);
+                mBestpictureResultImage = null;
+            }
         }
     }
 
@@ -45,6 +45,7 @@ import android.util.Size;
 import com.android.camera.CaptureModule;
 import com.android.camera.deepportrait.CamGLRenderer;
 import com.android.camera.deepportrait.DPImage;
+import com.android.camera.imageprocessor.DirectBufferPool;
 
 import java.io.File;
 import java.nio.ByteBuffer;
@@ -105,10 +106,14 @@ public class DeepPortraitFilter implements ImageFilter {
         }
         mDPInitialized = initPreview(width, height);
         if (mDPInitialized) {
-            mVideoMaskSize = getMaskBufferSize();
+            int maskSize = getMaskBufferSize();
+            DirectBufferPool pool = DirectBufferPool.getInstance();
             for ( int i = 0; i < mMaskBufArray.length; ++i ) {
-                mMaskBufArray[i]  = ByteBuffer.allocateDirect(mVideoMaskSize);
+                if (mMaskBufArray[i] != null && maskSize == mVideoMaskSize) continue;
+                pool.release(mMaskBufArray[i]);
+                mMaskBufArray[i] = pool.acquire(maskSize);
             }
+            mVideoMaskSize = maskSize;
         }
         Log.d(TAG,"init width = " +width +" height = " + height);
     }
@@ -187,7 +192,8 @@ public class DeepPortraitFilter implements ImageFilter {
                         + success +" size = " + size);
                 return;
             }
-            ByteBuffer mask = ByteBuffer.allocateDirect(maskWidth * maskHeight);
+            // Released by PostProcessor once the snapshot is rendered.
+            ByteBuffer mask = DirectBufferPool.getInstance().acquire(maskWidth * maskHeight);
             dpImage.mMask = mask;
             dpImage.mMaskWidth = maskWidth;
             dpImage.mMaskHeight = maskHeight;
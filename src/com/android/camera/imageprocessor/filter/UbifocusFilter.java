@@ -46,6 +46,7 @@ import android.util.Range;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.DirectBufferPool;
 import com.android.camera.imageprocessor.PostProcessor;
 import com.android.camera.util.CameraUtil;
 
@@ -127,6 +128,7 @@ public class UbifocusFilter implements ImageFilter {
         Log("deinit");
         synchronized (mClosingLock) {
             mOutBuf = null;
+            releaseOriginImage();
             nativeDeinit();
         }
     }
@@ -153,8 +155,14 @@ public class UbifocusFilter implements ImageFilter {
                         return;
                     }
                     byte[] bytes = getYUVBytes(bY, bVU, imageNum);
-                    if (imageNum == 0)
+                    if (imageNum == 0) {
+                        // Kept as the fallback result until the next capture.
+                        releaseOriginImage();
                         mOriginImage = mUbifocusResultImage;
+                    } else if (mUbifocusResultImage != null) {
+                        DirectBufferPool.getInstance().release(mUbifocusResultImage.outBuffer);
+                    }
+                    mUbifocusResultImage = null;
                     saveToPrivateFile(imageNum, bytes);
                     mSavedCount++;
                 }
@@ -287,14 +295,21 @@ public class UbifocusFilter implements ImageFilter {
         }
     }
 
+    private void releaseOriginImage() {
+        if (mOriginImage != null) {
+            DirectBufferPool.getInstance().release(mOriginImage.outBuffer);
+            mOriginImage = null;
+        }
+    }
+
     private byte[] getYUVBytes(final ByteBuffer yBuf, final ByteBuffer vuBuf,
                                final int imageNum) {
         synchronized (mClosingLock) {
             if (mOutBuf == null) {
                 return null;
             }
-            mUbifocusResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(
-                    mStrideY * mHeight * 3 / 2),
+            mUbifocusResultImage = new ImageFilter.ResultImage(
+                    DirectBufferPool.getInstance().acquireNv21(mStrideY, mHeight),
                     new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStrideY);
             yBuf.get(mUbifocusResultImage.outBuffer.array(), 0, yBuf.remaining());
             vuBuf.get(mUbifocusResultImage.outBuffer.array(), mStrideY * mHeight,
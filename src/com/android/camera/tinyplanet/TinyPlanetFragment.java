@@ -87,14 +87,16 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     private static final String TAG = "TinyPlanetActivity";
     /** Delay between a value update and the renderer running. */
     private static final int RENDER_DELAY_MILLIS = 50;
+    /** Sampling step of the quick first pass shown while the values change. */
+    private static final int COARSE_STEP = 4;
     /** Filename prefix to prepend to the original name for the new file. */
     private static final String FILENAME_PREFIX = "TINYPLANET_";
 
     private Uri mSourceImageUri;
     private TinyPlanetPreview mPreview;
     private int mPreviewSizePx = 0;
-    private float mCurrentZoom = 0.5f;
-    private float mCurrentAngle = 0;
+    private volatile float mCurrentZoom = 0.5f;
+    private volatile float mCurrentAngle = 0;
     private ProgressDialog mDialog;
 
     /**
@@ -102,6 +104,11 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
      * to draw it.
      */
     private Lock mResultLock = new ReentrantLock();
+    /**
+     * Lock for the bitmap the full quality preview is rendered into before it
+     * is swapped with the result. Taken before mResultLock when both are held.
+     */
+    private Lock mRefineLock = new ReentrantLock();
 
     /** The title of the original panoramic image. */
     private String mOriginalTitle = "";
@@ -110,6 +117,8 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     private Bitmap mSourceBitmap;
     /** The resulting preview bitmap. */
     private Bitmap mResultBitmap;
+    /** Back buffer for the full quality pass, so the coarse pass stays on screen. */
+    private Bitmap mRefineBitmap;
 
     /** Used to delay-post a tiny planet rendering task. */
     private Handler mHandler = new Handler();
@@ -151,23 +160,51 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
             (new AsyncTask<Void, Void, Void>() {
                 @Override
                 protected Void doInBackground(Void... params) {
+                    final float zoom = mCurrentZoom;
+                    final float angle = mCurrentAngle;
+
+                    // A quick coarse pass straight into the shown bitmap.
                     mResultLock.lock();
                     try {
                         if (mSourceBitmap == null || mResultBitmap == null) {
                             return null;
                         }
-
-                        int width = mSourceBitmap.getWidth();
-                        int height = mSourceBitmap.getHeight();
-                        TinyPlanetNative.process(mSourceBitmap, width, height, mResultBitmap,
-                                mPreviewSizePx,
-                                mCurrentZoom, mCurrentAngle);
+                        render(mResultBitmap, zoom, angle, COARSE_STEP);
                     } finally {
                         mResultLock.unlock();
                     }
+                    publishProgress();
+
+                    // If the values have moved on, the next run starts with a
+                    // coarse pass again and refining this one is wasted.
+                    if (zoom != mCurrentZoom || angle != mCurrentAngle) {
+                        return null;
+                    }
+                    mRefineLock.lock();
+                    try {
+                        if (mSourceBitmap == null || mRefineBitmap == null) {
+                            return null;
+                        }
+                        render(mRefineBitmap, zoom, angle, 1);
+                        mResultLock.lock();
+                        try {
+                            Bitmap refined = mRefineBitmap;
+                            mRefineBitmap = mResultBitmap;
+                            mResultBitmap = refined;
+                        } finally {
+                            mResultLock.unlock();
+                        }
+                    } finally {
+                        mRefineLock.unlock();
+                    }
                     return null;
                 }
 
+                @Override
+                protected void onProgressUpdate(Void... values) {
+                    mPreview.setBitmap(mResultBitmap, mResultLock);
+                }
+
                 protected void onPostExecute(Void result) {
                     mPreview.setBitmap(mResultBitmap, mResultLock);
                     synchronized (mRendering) {
@@ -182,12 +219,24 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
         }
     };
 
+    /** Renders the preview into the given bitmap, which is as large as the preview. */
+    private void render(Bitmap out, float zoom, float angle, int step) {
+        TinyPlanetNative.render(mSourceBitmap, mSourceBitmap.getWidth(),
+                mSourceBitmap.getHeight(), out, out.getWidth(), zoom, angle, step);
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setStyle(DialogFragment.STYLE_NORMAL, R.style.Theme_Camera);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        TinyPlanetNative.releaseLookupTable();
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
@@ -334,15 +383,22 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     private TinyPlanetImage createTinyPlanet() {
         // Free some memory we don't need anymore as we're going to dimiss the
         // fragment after the tiny planet creation.
+        mRefineLock.lock();
         mResultLock.lock();
         try {
             mResultBitmap.recycle();
             mResultBitmap = null;
+            if (mRefineBitmap != null) {
+                mRefineBitmap.recycle();
+                mRefineBitmap = null;
+            }
             mSourceBitmap.recycle();
             mSourceBitmap = null;
         } finally {
             mResultLock.unlock();
+            mRefineLock.unlock();
         }
+        TinyPlanetNative.releaseLookupTable();
 
         // Create a high-resolution padded image.
         Bitmap sourceBitmap = createPaddedSourceImage(mSourceImageUri, false);
@@ -396,6 +452,7 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     @Override
     public void onSizeChanged(int sizePx) {
         mPreviewSizePx = sizePx;
+        mRefineLock.lock();
         mResultLock.lock();
         try {
             if (mResultBitmap == null || mResultBitmap.getWidth() != sizePx
@@ -406,8 +463,17 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
                 mResultBitmap = Bitmap.createBitmap(mPreviewSizePx, mPreviewSizePx,
                         Bitmap.Config.ARGB_8888);
             }
+            if (mRefineBitmap == null || mRefineBitmap.getWidth() != sizePx
+                    || mRefineBitmap.getHeight() != sizePx) {
+                if (mRefineBitmap != null) {
+                    mRefineBitmap.recycle();
+                }
+                mRefineBitmap = Bitmap.createBitmap(mPreviewSizePx, mPreviewSizePx,
+                        Bitmap.Config.ARGB_8888);
+            }
         } finally {
             mResultLock.unlock();
+            mRefineLock.unlock();
         }
 
         // Run directly and on this thread directly.
@@ -37,6 +37,28 @@ public class TinyPlanetNative {
      * @param scale the scale factor (used for fast previews).
      * @param angleRadians the angle of the tiny planet in radians.
      */
-    public static native void process(Bitmap in, int width, int height, Bitmap out, int outputSize,
-            float scale, float angleRadians);
+    public static void process(Bitmap in, int width, int height, Bitmap out, int outputSize,
+            float scale, float angleRadians) {
+        render(in, width, height, out, outputSize, scale, angleRadians, 1);
+    }
+
+    /**
+     * Create a tiny planet, sampling only every step-th pixel in each direction
+     * and filling the blocks in between. Rendering with a step of 4 takes about a
+     * sixteenth of the time and is meant as a first pass while the user drags.
+     *
+     * The projection for a preview sized output is cached until the size or the
+     * scale changes, so calls that only change the angle are cheaper.
+     *
+     * @param step the sampling step, rounded down to a power of two up to 16;
+     *            1 renders at full quality.
+     * @see #process
+     */
+    public static native void render(Bitmap in, int width, int height, Bitmap out,
+            int outputSize, float scale, float angleRadians, int step);
+
+    /**
+     * Frees the cached projection. Call when the editor goes away.
+     */
+    public static native void releaseLookupTable();
 }
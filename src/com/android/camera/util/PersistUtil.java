@@ -87,8 +87,20 @@ public class PersistUtil {
                     CAMERA_SENSOR_HORIZONTAL_ALIGNED);
     private static final int CIRCULAR_BUFFER_SIZE_PERSIST =
             getInt("persist.sys.camera.zsl.buffer.size", 5);
+    private static final boolean PERSIST_ZSL_FRAME_SCORING_ENABLED =
+            getBoolean("persist.sys.camera.zsl.scoring", true);
+    private static final int PERSIST_ZSL_SELECTION_WINDOW =
+            getInt("persist.sys.camera.zsl.window", 3);
     private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
             getInt("persist.sys.camera.perf.memlimit", 120);
+    private static final int SAVE_THREAD_COUNT =
+            getInt("persist.sys.camera.perf.savethreads", 2);
+    private static final int SAVE_SPOOL_LIMIT_IN_MB =
+            getInt("persist.sys.camera.perf.spoollimit", 512);
+    private static final int DIRECT_BUFFER_POOL_LIMIT_IN_MB =
+            getInt("persist.sys.camera.bufpool.limit", 128);
+    private static final int HEIF_BURST_MAX_INFLIGHT =
+            getInt("persist.sys.camera.heif.burst.inflight", 4);
     private static final boolean PERSIST_CAMERA_UI_AUTO_TEST_ENABLED =
             getBoolean("persist.sys.camera.ui.auto_test", false);
     private static final boolean PERSIST_CAMERA_SAVE_IN_SD_ENABLED =
@@ -145,6 +157,8 @@ public class PersistUtil {
             getBoolean("persist.sys.camera.isFDRenderingSupported", false);
     private static final boolean PERSIST_TRACE_ENABLE =
             getBoolean("persist.sys.camera.trace",false);
+    private static final boolean PERSIST_STARTUP_TIMELINE =
+            getBoolean("persist.sys.camera.startup.timeline", false);
     private static final boolean PERSIST_CAM_FD_SUPPORTED =
             getBoolean("persist.sys.camera.isCamFDSupported", false);
     private static final int PERSIST_MCTF_VALUE =
@@ -309,10 +323,34 @@ public class PersistUtil {
         return CIRCULAR_BUFFER_SIZE_PERSIST;
     }
 
+    public static boolean isZSLFrameScoringEnabled(){
+        return PERSIST_ZSL_FRAME_SCORING_ENABLED;
+    }
+
+    public static int getZSLSelectionWindow(){
+        return PERSIST_ZSL_SELECTION_WINDOW;
+    }
+
     public static int getSaveTaskMemoryLimitInMb(){
         return SAVE_TASK_MEMORY_LIMIT_IN_MB;
     }
 
+    public static int getSaveThreadCount(){
+        return SAVE_THREAD_COUNT;
+    }
+
+    public static int getSaveSpoolLimitInMb(){
+        return SAVE_SPOOL_LIMIT_IN_MB;
+    }
+
+    public static int getDirectBufferPoolLimitInMb(){
+        return DIRECT_BUFFER_POOL_LIMIT_IN_MB;
+    }
+
+    public static int getHeifBurstMaxInflight(){
+        return HEIF_BURST_MAX_INFLIGHT;
+    }
+
     public static boolean isAutoTestEnabled(){
         return PERSIST_CAMERA_UI_AUTO_TEST_ENABLED;
     }
@@ -427,6 +465,10 @@ public class PersistUtil {
 
     public static boolean isTraceEnable() {return PERSIST_TRACE_ENABLE;};
 
+    public static boolean isStartupTimelineLogEnabled() {
+        return PERSIST_STARTUP_TIMELINE;
+    }
+
     public static boolean isCameraFDSupported() {return PERSIST_CAM_FD_SUPPORTED; }
 
     public static int mctfValue() {
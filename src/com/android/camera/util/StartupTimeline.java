@@ -0,0 +1,284 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records how long each step of a camera launch takes, from the activity
+ * being created or restarted until the first preview frame comes back.
+ *
+ * A launch is a list of named phases. Each phase is opened and closed
+ * with elapsedRealtimeNanos(), possibly on different threads, so a phase
+ * like opening the camera covers the HAL round trip and not just the
+ * call that started it. Only the first begin and the first end of a
+ * phase count; the onResume() filmstrip reload, for instance, does not
+ * restart the one issued by onCreate().
+ *
+ * A cold launch starts in onCreate() and a warm launch in onRestart(),
+ * i.e. the process and the activity are already there. Finished
+ * launches are kept in a short history for the startup benchmark and
+ * for "dumpsys activity"; with persist.sys.camera.startup.timeline set
+ * each one is also written to the log.
+ */
+public class StartupTimeline {
+    private static final String TAG = "SnapCam_Startup";
+
+    public static final int COLD = 0;
+    public static final int WARM = 1;
+
+    public static final String ACTIVITY_CREATE = "activity_create";
+    public static final String MODULE_INIT = "module_init";
+    public static final String MEDIA_SAVE_BIND = "media_save_bind";
+    public static final String SETTINGS_MANAGER = "settings_manager";
+    public static final String ACTIVITY_RESUME = "activity_resume";
+    public static final String FILMSTRIP_LOAD = "filmstrip_load";
+    public static final String OPEN_CAMERA = "open_camera";
+    public static final String FIRST_PREVIEW = "first_preview";
+
+    private static final int MAX_PHASES = 16;
+    private static final int MAX_HISTORY = 32;
+
+    private static final Object sLock = new Object();
+    private static final ArrayDeque<Launch> sHistory = new ArrayDeque<Launch>();
+    private static Launch sCurrent;
+    private static int sSequence;
+
+    public static class Launch {
+        private final int mSequence;
+        private final int mKind;
+        private final long mStartNs;
+        private long mEndNs;
+        private final String[] mNames = new String[MAX_PHASES];
+        private final long[] mBeginNs = new long[MAX_PHASES];
+        private final long[] mPhaseEndNs = new long[MAX_PHASES];
+        private int mCount;
+
+        private Launch(int sequence, int kind, long startNs) {
+            mSequence = sequence;
+            mKind = kind;
+            mStartNs = startNs;
+        }
+
+        private int indexOf(String name) {
+            for (int i = 0; i < mCount; i++) {
+                if (mNames[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public int getSequence() {
+            return mSequence;
+        }
+
+        public int getKind() {
+            return mKind;
+        }
+
+        /** Time to the first preview frame, or -1 while still launching. */
+        public long getTotalNs() {
+            synchronized (sLock) {
+                return mEndNs == 0 ? -1 : mEndNs - mStartNs;
+            }
+        }
+
+        /** Names of the phases that were closed, in the order they were opened. */
+        public List<String> getPhaseNames() {
+            synchronized (sLock) {
+                List<String> names = new ArrayList<String>(mCount);
+                for (int i = 0; i < mCount; i++) {
+                    if (mPhaseEndNs[i] != 0) {
+                        names.add(mNames[i]);
+                    }
+                }
+                return names;
+            }
+        }
+
+        /** Duration of a phase, or -1 if it did not run or never finished. */
+        public long getPhaseNs(String name) {
+            synchronized (sLock) {
+                int i = indexOf(name);
+                if (i < 0 || mPhaseEndNs[i] == 0) {
+                    return -1;
+                }
+                return mPhaseEndNs[i] - mBeginNs[i];
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(mKind == COLD ? "cold" : "warm").append(" launch #").append(mSequence);
+            synchronized (sLock) {
+                if (mEndNs != 0) {
+                    sb.append(String.format(Locale.US, ": %.1fms", (mEndNs - mStartNs) / 1e6));
+                }
+                appendPhases(sb);
+            }
+            return sb.toString();
+        }
+
+        private void appendPhases(StringBuilder sb) {
+            for (int i = 0; i < mCount; i++) {
+                sb.append(String.format(Locale.US, "\n  %-17s +%7.1fms", mNames[i],
+                        (mBeginNs[i] - mStartNs) / 1e6));
+                if (mPhaseEndNs[i] != 0) {
+                    sb.append(String.format(Locale.US, " %7.1fms",
+                            (mPhaseEndNs[i] - mBeginNs[i]) / 1e6));
+                } else {
+                    sb.append("  unfinished");
+                }
+            }
+        }
+    }
+
+    /** Starts a new launch, dropping one that never got to its first frame. */
+    public static void beginLaunch(int kind) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (sLock) {
+            sCurrent = new Launch(++sSequence, kind, now);
+        }
+    }
+
+    /** Drops the launch in progress, e.g. when the activity pauses before preview. */
+    public static void abortLaunch() {
+        synchronized (sLock) {
+            sCurrent = null;
+        }
+    }
+
+    public static void beginPhase(String name) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (sLock) {
+            Launch launch = sCurrent;
+            if (launch == null || launch.mCount == MAX_PHASES || launch.indexOf(name) >= 0) {
+                return;
+            }
+            launch.mNames[launch.mCount] = name;
+            launch.mBeginNs[launch.mCount] = now;
+            launch.mCount++;
+        }
+    }
+
+    public static void endPhase(String name) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (sLock) {
+            Launch launch = sCurrent;
+            if (launch == null) {
+                return;
+            }
+            int i = launch.indexOf(name);
+            if (i >= 0 && launch.mPhaseEndNs[i] == 0) {
+                launch.mPhaseEndNs[i] = now;
+            }
+        }
+    }
+
+    /**
+     * Closes the launch in progress at the first preview frame. Phases
+     * still open, such as a filmstrip query that is slower than the
+     * camera, keep running until they end or the next launch begins.
+     */
+    public static void finishLaunch() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        Launch launch;
+        synchronized (sLock) {
+            launch = sCurrent;
+            if (launch == null || launch.mEndNs != 0) {
+                return;
+            }
+            launch.mEndNs = now;
+            sHistory.addLast(launch);
+            if (sHistory.size() > MAX_HISTORY) {
+                sHistory.removeFirst();
+            }
+            sLock.notifyAll();
+        }
+        if (PersistUtil.isStartupTimelineLogEnabled()) {
+            Log.i(TAG, launch.toString());
+        }
+    }
+
+    /** Sequence number of the latest launch begun, finished or not. */
+    public static int getSequence() {
+        synchronized (sLock) {
+            return sSequence;
+        }
+    }
+
+    /**
+     * Waits for a launch newer than afterSequence to reach its first
+     * preview frame. Returns null on timeout.
+     */
+    public static Launch waitForLaunch(int afterSequence, long timeoutMs)
+            throws InterruptedException {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        synchronized (sLock) {
+            while (true) {
+                Iterator<Launch> it = sHistory.descendingIterator();
+                while (it.hasNext()) {
+                    Launch launch = it.next();
+                    if (launch.mSequence > afterSequence) {
+                        return launch;
+                    }
+                }
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                sLock.wait(remaining);
+            }
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        synchronized (sLock) {
+            writer.println(prefix + "Startup timeline (" + sHistory.size() + " launches):");
+            for (Launch launch : sHistory) {
+                writer.println(prefix + "  " + launch.toString().replace("\n", "\n" + prefix + "  "));
+            }
+            if (sCurrent != null && sCurrent.mEndNs == 0) {
+                writer.println(prefix + "  in progress, "
+                        + sCurrent.toString().replace("\n", "\n" + prefix + "  "));
+            }
+        }
+    }
+}
@@ -23,14 +23,20 @@ import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
 import com.adobe.xmp.options.SerializeOptions;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -39,7 +45,7 @@ import java.util.List;
 
 /**
  * Util class to read/write xmp from a jpeg image file. It only supports jpeg
- * image format, and doesn't support extended xmp now.
+ * image format. Extended xmp can be written, but is not read back.
  * To use it:
  * XMPMeta xmpMeta = XmpUtil.extractOrCreateXMPMeta(filename);
  * xmpMeta.setProperty(PanoConstants.GOOGLE_PANO_NAMESPACE, "property_name", "value");
@@ -62,6 +68,12 @@ public class XmpUtil {
 
   private static final int MAX_EXTENDED_XMP_BUFFER_SIZE = 65000;
   private static final int EXTEND_XMP_HEADER_SIZE = 75;
+  // Stands in for the GUID until the extended XMP has been digested.
+  private static final String GUID_PLACEHOLDER = "00000000000000000000000000000000";
+  private static final byte[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+  // Multiple of 3 so only the last chunk of a property is padded.
+  private static final int BASE64_CHUNK = 3 * 4096;
 
   private static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
   private static final String PANO_PREFIX = "GPano";
@@ -76,6 +88,16 @@ public class XmpUtil {
     public int marker;
     public int length;
     public byte[] data;
+    // Where the section's marker starts, when it was indexed from a file.
+    public long offset;
+  }
+
+  // The sections of a jpeg file up to its image data, located by reading
+  // only the marker and length of each one. scanOffset is where the SOS
+  // marker starts; everything from there on is left on disk.
+  private static class SegmentIndex {
+    public final List<Section> sections = new ArrayList<Section>();
+    public long scanOffset;
   }
 
   static {
@@ -103,11 +125,24 @@ public class XmpUtil {
       return null;
     }
 
+    FileInputStream is = null;
     try {
-      return extractXMPMeta(new FileInputStream(filename));
+      is = new FileInputStream(filename);
+      return extractXMPMeta(is.getChannel());
     } catch (FileNotFoundException e) {
       Log.e(TAG, "Could not read file: " + filename, e);
       return null;
+    } catch (IOException e) {
+      Log.d(TAG, "Could not parse file.", e);
+      return null;
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (IOException e) {
+          // Ignore.
+        }
+      }
     }
   }
 
@@ -118,6 +153,27 @@ public class XmpUtil {
    * @return Extracted XMPMeta or null.
    */
   public static XMPMeta extractXMPMeta(InputStream is) {
+    if (is instanceof FileInputStream) {
+      // Seek over the segments instead of reading through them. Only for a
+      // regular file read from its start: a pipe reports a size of 0 and a
+      // stream already part way in has to be parsed from where it is.
+      // Positional reads leave the stream where it was, so anything else
+      // still gets parsed below.
+      try {
+        FileChannel channel = ((FileInputStream) is).getChannel();
+        if (channel.size() > 0 && channel.position() == 0) {
+          XMPMeta meta = extractXMPMeta(channel);
+          try {
+            is.close();
+          } catch (IOException e) {
+            // Ignore.
+          }
+          return meta;
+        }
+      } catch (IOException e) {
+        Log.d(TAG, "Channel not seekable, reading through the stream", e);
+      }
+    }
     List<Section> sections = parse(is, true);
     if (sections == null) {
       return null;
@@ -125,22 +181,46 @@ public class XmpUtil {
     // Now we don't support extended xmp.
     for (Section section : sections) {
       if (hasXMPHeader(section.data)) {
-        int end = getXMPContentEnd(section.data);
-        byte[] buffer = new byte[end - XMP_HEADER_SIZE];
-        System.arraycopy(
-            section.data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
-        try {
-          XMPMeta result = XMPMetaFactory.parseFromBuffer(buffer);
-          return result;
-        } catch (XMPException e) {
-          Log.d(TAG, "XMP parse error", e);
-          return null;
-        }
+        return parseXMPSection(section.data);
       }
     }
     return null;
   }
 
+  /**
+   * Extracts XMPMeta from a JPEG file, reading only the segment headers and
+   * the XMP segment itself. The channel position is not changed.
+   */
+  private static XMPMeta extractXMPMeta(FileChannel channel) throws IOException {
+    SegmentIndex index = indexSegments(channel);
+    if (index == null) {
+      return null;
+    }
+    byte[] header = new byte[XMP_HEADER_SIZE];
+    for (Section section : index.sections) {
+      if (section.marker != M_APP1 || section.length - 2 < XMP_HEADER_SIZE) {
+        continue;
+      }
+      readFully(channel, ByteBuffer.wrap(header), section.offset + 4);
+      if (hasXMPHeader(header)) {
+        return parseXMPSection(readSection(channel, section));
+      }
+    }
+    return null;
+  }
+
+  private static XMPMeta parseXMPSection(byte[] data) {
+    int end = getXMPContentEnd(data);
+    byte[] buffer = new byte[end - XMP_HEADER_SIZE];
+    System.arraycopy(data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
+    try {
+      return XMPMetaFactory.parseFromBuffer(buffer);
+    } catch (XMPException e) {
+      Log.d(TAG, "XMP parse error", e);
+      return null;
+    }
+  }
+
   /**
    * Creates a new XMPMeta.
    */
@@ -158,6 +238,11 @@ public class XmpUtil {
 
   /**
    * Writes the XMPMeta to the jpeg image file.
+   *
+   * Only the segments before the image data are read and rewritten. If the
+   * new header is the same size as the old one it is written in place;
+   * otherwise the file is rebuilt next to the original, with the image data
+   * copied over by the channel, and renamed over it.
    */
   public static boolean writeXMPMeta(String filename, XMPMeta meta) {
     if (!filename.toLowerCase().endsWith(".jpg")
@@ -165,34 +250,82 @@ public class XmpUtil {
       Log.d(TAG, "XMP parse: only jpeg file is supported");
       return false;
     }
-    List<Section> sections = null;
+    RandomAccessFile file = null;
     try {
-      sections = parse(new FileInputStream(filename), false);
+      file = new RandomAccessFile(filename, "rw");
+      FileChannel channel = file.getChannel();
+      SegmentIndex index = indexSegments(channel);
+      if (index == null) {
+        return false;
+      }
+      List<Section> sections = new ArrayList<Section>();
+      for (Section section : index.sections) {
+        section.data = readSection(channel, section);
+        sections.add(section);
+      }
+      // The image data stays in the file; the SOS marker is written with
+      // the header and the rest is copied after it.
+      Section scan = new Section();
+      scan.marker = M_SOS;
+      scan.length = -1;
+      scan.data = new byte[0];
+      sections.add(scan);
       sections = insertXMPSection(sections, meta);
       if (sections == null) {
         return false;
       }
-    } catch (FileNotFoundException e) {
-      Log.e(TAG, "Could not read file: " + filename, e);
-      return false;
-    }
-    FileOutputStream os = null;
-    try {
-      // Overwrite the image file with the new meta data.
-      os = new FileOutputStream(filename);
-      writeJpegFile(os, sections);
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      writeJpegFile(header, sections);
+      long dataOffset = index.scanOffset + 2;
+      if (header.size() == dataOffset) {
+        writeFully(channel, ByteBuffer.wrap(header.toByteArray()), 0);
+        return true;
+      }
+      return rewriteFile(filename, header.toByteArray(), channel, dataOffset);
     } catch (IOException e) {
       Log.d(TAG, "Write file failed:" + filename, e);
       return false;
     } finally {
-      if (os != null) {
+      if (file != null) {
         try {
-          os.close();
+          file.close();
         } catch (IOException e) {
           // Ignore.
         }
       }
     }
+  }
+
+  private static boolean rewriteFile(String filename, byte[] header, FileChannel source,
+      long dataOffset) throws IOException {
+    File target = new File(filename);
+    File temp = new File(target.getParentFile(), "." + target.getName() + ".xmp");
+    FileOutputStream os = new FileOutputStream(temp);
+    boolean done = false;
+    try {
+      FileChannel out = os.getChannel();
+      writeFully(out, ByteBuffer.wrap(header));
+      long size = source.size();
+      for (long pos = dataOffset; pos < size; ) {
+        long n = source.transferTo(pos, size - pos, out);
+        if (n <= 0) {
+          throw new IOException("transferTo stalled at " + pos + "/" + size);
+        }
+        pos += n;
+      }
+      os.getFD().sync();
+      done = true;
+    } finally {
+      os.close();
+      if (!done) {
+        temp.delete();
+      }
+    }
+    if (!temp.renameTo(target)) {
+      Log.d(TAG, "Could not replace " + filename);
+      temp.delete();
+      return false;
+    }
     return true;
   }
 
@@ -351,6 +484,9 @@ public class XmpUtil {
    * @return The parse result.
    */
   private static List<Section> parse(InputStream is, boolean readMetaOnly) {
+    if (!(is instanceof BufferedInputStream)) {
+      is = new BufferedInputStream(is);
+    }
     try {
       if (is.read() != 0xff || is.read() != M_SOI) {
         return null;
@@ -375,8 +511,13 @@ public class XmpUtil {
             Section section = new Section();
             section.marker = marker;
             section.length = -1;
-            section.data = new byte[is.available()];
-            is.read(section.data, 0, section.data.length);
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+              rest.write(buffer, 0, n);
+            }
+            section.data = rest.toByteArray();
             sections.add(section);
           }
           return sections;
@@ -392,12 +533,16 @@ public class XmpUtil {
           section.marker = marker;
           section.length = length;
           section.data = new byte[length - 2];
-          is.read(section.data, 0, length - 2);
+          if (readFully(is, section.data) < section.data.length) {
+            return null;
+          }
           sections.add(section);
         } else {
           // Skip this section since all exif/xmp meta will be in M_APP1
           // section.
-          is.skip(length - 2);
+          if (skipFully(is, length - 2) < length - 2) {
+            return null;
+          }
         }
       }
       return sections;
@@ -415,6 +560,107 @@ public class XmpUtil {
     }
   }
 
+  private static int readFully(InputStream is, byte[] data) throws IOException {
+    int total = 0;
+    while (total < data.length) {
+      int n = is.read(data, total, data.length - total);
+      if (n == -1) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  private static long skipFully(InputStream is, long count) throws IOException {
+    long total = 0;
+    while (total < count) {
+      long n = is.skip(count - total);
+      if (n <= 0) {
+        if (is.read() == -1) {
+          break;
+        }
+        n = 1;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, position);
+      if (n == -1) {
+        throw new EOFException("Unexpected end of file at " + position);
+      }
+      position += n;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private static byte[] readSection(FileChannel channel, Section section) throws IOException {
+    byte[] data = new byte[section.length - 2];
+    readFully(channel, ByteBuffer.wrap(data), section.offset + 4);
+    return data;
+  }
+
+  /**
+   * Walks the marker segments of a jpeg file from SOI to SOS, one positional
+   * read of the marker and length per segment. The segment contents and the
+   * image data are not read.
+   *
+   * @return The index, or null if the file is not a jpeg.
+   */
+  private static SegmentIndex indexSegments(FileChannel channel) throws IOException {
+    ByteBuffer head = ByteBuffer.allocate(4);
+    long size = channel.size();
+    if (size < 4) {
+      return null;
+    }
+    head.limit(2);
+    readFully(channel, head, 0);
+    if ((head.get(0) & 0xff) != 0xff || (head.get(1) & 0xff) != M_SOI) {
+      return null;
+    }
+    SegmentIndex index = new SegmentIndex();
+    long pos = 2;
+    while (pos + 4 <= size) {
+      head.clear();
+      readFully(channel, head, pos);
+      if ((head.get(0) & 0xff) != 0xff) {
+        return null;
+      }
+      int marker = head.get(1) & 0xff;
+      if (marker == 0xff) {
+        // Padding byte.
+        pos++;
+        continue;
+      }
+      if (marker == M_SOS) {
+        index.scanOffset = pos;
+        return index;
+      }
+      Section section = new Section();
+      section.marker = marker;
+      section.length = head.getShort(2) & 0xffff;
+      section.offset = pos;
+      if (section.length < 2 || pos + 2 + section.length > size) {
+        return null;
+      }
+      index.sections.add(section);
+      pos += 2 + section.length;
+    }
+    // No image data.
+    return null;
+  }
+
   private static Section createStandardXMPSection(XMPMeta meta) {
     byte[] buffer;
     try {
@@ -446,189 +692,277 @@ public class XmpUtil {
     return xmpSection;
   }
 
-  private static Section createSection(byte[] portionOfExtendedMeta, byte[] headerBytes) {
-
-    if (portionOfExtendedMeta.length > MAX_EXTENDED_XMP_BUFFER_SIZE) {
-      // Do not support extended xmp now.
-      Log.e(TAG, "createSection fail exceed max size");
-      return null;
-    }
-
-    byte[] xmpdata = new byte[portionOfExtendedMeta.length + 75];
-    System.arraycopy(headerBytes, 0, xmpdata, 0, headerBytes.length);
-
-    System.arraycopy(portionOfExtendedMeta, 0, xmpdata, headerBytes.length, portionOfExtendedMeta.length);
-    Section xmpSection = new Section();
-    xmpSection.marker = M_APP1;
-    // Adds the length place (2 bytes) to the section length.
-    xmpSection.length = xmpdata.length + 2;
-    xmpSection.data = xmpdata;
-    ByteBuffer byteBuffer2 = ByteBuffer.wrap(xmpdata);
-    Log.d(TAG, "fullLength=" + byteBuffer2.getInt(67) + " offset=" + byteBuffer2.getInt(71));
-    return xmpSection;
-  }
-
   /**
-   * Split extendXMPMeta to multiple marker segments
-   * @param extendedXMPMetaBytes serialized extended XMP
-   * @param guid Is a 128-bit MD5 digest of the full ExtendedXMP serialization,
-   *             stored as a 32-byte ASCII hex string
-   * @return  split result
+   * A property of the extended XMP whose value is binary data. It is written
+   * Base64 encoded, straight into the extended XMP segments.
    */
-  private static List<Section> splitExtendXMPMeta(byte[] extendedXMPMetaBytes, String guid){
-    List<Section> sections = new ArrayList<Section>();
-     /*
-    The extended XMP JPEG marker segment content holds:
-    - a signature string, "http://ns.adobe.com/xmp/extension/\0"
-    - a 128 bit GUID stored as a 32 byte ASCII hex string
-    - a UInt32 full length of the entire extended XMP
-    - a UInt32 offset for this portion of the extended XMP
-    - the UTF-8 text for this portion of the extended XMP
-     */
-    int splitNum = extendedXMPMetaBytes.length/MAX_EXTENDED_XMP_BUFFER_SIZE;
-    byte[] portion = new byte[MAX_EXTENDED_XMP_BUFFER_SIZE];
-    ByteBuffer byteBuffer = ByteBuffer.wrap(extendedXMPMetaBytes);
-    Section extendedXmpSection = null;
-
-    byte[] headerBytes = new byte[EXTEND_XMP_HEADER_SIZE];
-    int index = 0;
-    System.arraycopy(EXTENDED_XMP_HEADER_SIGNATURE.getBytes(), 0, headerBytes, 0, EXTENDED_XMP_HEADER_SIGNATURE.length());
-    index += EXTENDED_XMP_HEADER_SIGNATURE.length();
-
-    System.arraycopy(guid.getBytes(), 0, headerBytes, index, guid.length());
-    index += guid.length();
-
-    Log.d(TAG, "buffer.length=" + extendedXMPMetaBytes.length);
-    byte[] fullLengthBytes = new byte[4];
-    ByteBuffer intBuffer = ByteBuffer.wrap(fullLengthBytes);
-    intBuffer.putInt(0, extendedXMPMetaBytes.length);
-    System.arraycopy(fullLengthBytes, 0, headerBytes, index, 4);
-    index += 4;
-
-    byte[] offsetBytes = new byte[4];
-    ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetBytes);
-    for( int i=0; i < splitNum; ++i ) {
-      offsetBuffer.putInt(0, i*MAX_EXTENDED_XMP_BUFFER_SIZE);
-      System.arraycopy(offsetBytes, 0, headerBytes, index, 4);
-
-      byteBuffer.get(portion);
-      extendedXmpSection = createSection(portion, headerBytes);
-      sections.add(extendedXmpSection);
-    }
-
-    int remainSize = extendedXMPMetaBytes.length - splitNum*MAX_EXTENDED_XMP_BUFFER_SIZE;
-    if (  remainSize > 0 ) {
-      offsetBuffer.putInt(0, splitNum*MAX_EXTENDED_XMP_BUFFER_SIZE);
-      System.arraycopy(offsetBytes, 0, headerBytes, index, 4);
-
-      byte[] remain = new byte[remainSize];
-      byteBuffer.get(remain);
-      extendedXmpSection = createSection(remain, headerBytes);
-      sections.add(extendedXmpSection);
-    }
-
-    return sections;
+  public static class ExtendedProperty {
+    private final String mNamespace;
+    private final String mName;
+    private final byte[] mData;
+
+    public ExtendedProperty(String namespace, String name, byte[] data) {
+      mNamespace = namespace;
+      mName = name;
+      mData = data;
+    }
   }
 
   /**
-   *  Updates a jpeg file from inputStream with XMPMeta to outputStream.
-   * @param inputStream Input image data stream
-   * @param outputStream Output image data stream
-   * @param standardMeta The main portion of the metadata tree must be serialized and written as
-   *                     the standard XMP packet
-   * @param extendedMeta The extended portion must be serialized without a packet wrapper,
-   *                     and written as a series of APP1 marker segments
+   * Writes a jpeg with a standard XMP packet and an extended XMP to a file
+   * channel, without building the extended serialization in memory.
+   *
+   * The extended XMP only holds binary properties, so its text is a fixed
+   * rdf:Description with one attribute per property. The Base64 text is
+   * produced a chunk at a time and copied into the APP1 segments as they
+   * are written. The GUID, the MD5 of the whole extended text, is only known
+   * once the last segment is out; it is written as a placeholder in the
+   * standard packet and in every segment header, and patched in place at
+   * the end.
+   *
+   * @param jpeg The image, with its Exif header if it has one. The XMP
+   *             segments follow a leading APP1 segment, like in
+   *             {@link #writeXMPMeta(InputStream, OutputStream, XMPMeta)}.
+   * @param channel Output positioned at the start of the file
+   * @param standardMeta The main portion of the metadata, written as the standard XMP packet
+   * @param extended The binary properties, written as a series of APP1 marker segments
+   * @return The number of bytes written.
    */
-  public static boolean writeXMPMeta(InputStream inputStream, OutputStream outputStream,
-                                     XMPMeta standardMeta, XMPMeta extendedMeta) {
-    byte[] buffer;
+  public static int writeXMPMeta(byte[] jpeg, FileChannel channel, XMPMeta standardMeta,
+      List<ExtendedProperty> extended) throws IOException {
+    if (jpeg.length < 4 || (jpeg[0] & 0xff) != 0xff || (jpeg[1] & 0xff) != M_SOI) {
+      throw new IOException("Not a valid jpeg image, cannot write xmp");
+    }
     try {
-      SerializeOptions options = new SerializeOptions();
-      options.setUseCompactFormat(true);
-      // We have to omit packet wrapper here because
-      // javax.xml.parsers.DocumentBuilder
-      // fails to parse the packet end <?xpacket end="w"?> in android.
-      options.setOmitPacketWrapper(true);
-      buffer = XMPMetaFactory.serializeToBuffer(extendedMeta, options);
+      standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", GUID_PLACEHOLDER);
     } catch (XMPException e) {
-      Log.d(TAG, "Serialize extended xmp failed", e);
-      return false;
+      throw new IOException("Set HasExtendedXMP failed", e);
+    }
+    Section standard = createStandardXMPSection(standardMeta);
+    if (standard == null) {
+      throw new IOException("Create standard meta section failed");
+    }
+    int guidInStandard = indexOf(standard.data, GUID_PLACEHOLDER.getBytes());
+    if (guidInStandard < 0) {
+      throw new IOException("HasExtendedXMP not found in the standard packet");
     }
 
-    String guid = getGUID(buffer);
-    try {
-      standardMeta.setProperty(XMP_NOTE_NAMESPACE, "HasExtendedXMP", guid);
-    } catch (XMPException exception) {
-      Log.d(TAG, "set XMPMeta Property", exception);
-      return false;
+    // Keep the leading APP1 (Exif) segment ahead of the XMP.
+    int head = 2;
+    if ((jpeg[2] & 0xff) == 0xff && (jpeg[3] & 0xff) == M_APP1 && jpeg.length >= 6) {
+      head = Math.min(jpeg.length, 4 + (((jpeg[4] & 0xff) << 8) | (jpeg[5] & 0xff)));
     }
-    List<Section> sections = parse(inputStream, false);
-    List<Section> xmpSections = new ArrayList<Section>();
-    Section standardXmpSection = createStandardXMPSection(standardMeta);
-    if (standardXmpSection == null) {
-      Log.e(TAG, "create standard meta section error");
-      return false;
+    long start = channel.position();
+    writeFully(channel, ByteBuffer.wrap(jpeg, 0, head));
+
+    List<Long> guidPositions = new ArrayList<Long>();
+    guidPositions.add(channel.position() + 4 + guidInStandard);
+    ByteBuffer segmentHeader = ByteBuffer.allocate(4);
+    segmentHeader.put((byte) 0xff).put((byte) M_APP1).putShort((short) (standard.length));
+    segmentHeader.flip();
+    writeFully(channel, segmentHeader);
+    writeFully(channel, ByteBuffer.wrap(standard.data));
+
+    ExtendedXmpWriter writer = new ExtendedXmpWriter(channel, extendedLength(extended),
+        guidPositions);
+    writer.writeAscii("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+        + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+        + "<rdf:Description rdf:about=\"\"");
+    for (ExtendedProperty property : extended) {
+      writer.writeAscii(namespaceDeclaration(property));
+    }
+    for (ExtendedProperty property : extended) {
+      writer.writeAscii(" " + qualifiedName(property) + "=\"");
+      writer.writeBase64(property.mData);
+      writer.writeAscii("\"");
+    }
+    writer.writeAscii("/></rdf:RDF></x:xmpmeta>");
+    byte[] guid = writer.finish();
+
+    writeFully(channel, ByteBuffer.wrap(jpeg, head, jpeg.length - head));
+    long end = channel.position();
+    for (long position : guidPositions) {
+      ByteBuffer buffer = ByteBuffer.wrap(guid);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
     }
-    xmpSections.add(standardXmpSection);
+    return (int) (end - start);
+  }
 
-    List<Section> extendedSections = splitExtendXMPMeta(buffer, guid);
-    xmpSections.addAll(extendedSections);
-    sections = insertXMPSection(sections, xmpSections);
-    if (sections == null) {
-      Log.d(TAG, "Insert XMP fialed");
-      return false;
+  private static String qualifiedName(ExtendedProperty property) {
+    // The prefixes come back from the registry with their colon.
+    return XMPMetaFactory.getSchemaRegistry().getNamespacePrefix(property.mNamespace)
+        + property.mName;
+  }
+
+  private static String namespaceDeclaration(ExtendedProperty property) {
+    String prefix = XMPMetaFactory.getSchemaRegistry().getNamespacePrefix(property.mNamespace);
+    return " xmlns:" + prefix.substring(0, prefix.length() - 1) + "=\""
+        + property.mNamespace + "\"";
+  }
+
+  private static long extendedLength(List<ExtendedProperty> extended) {
+    StringBuilder text = new StringBuilder();
+    text.append("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">"
+        + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+        + "<rdf:Description rdf:about=\"\"");
+    long base64 = 0;
+    for (ExtendedProperty property : extended) {
+      text.append(namespaceDeclaration(property));
     }
-    try {
-      // Overwrite the image file with the new meta data.
-      writeJpegFile(outputStream, sections);
-    } catch (IOException e) {
-      Log.d(TAG, "Write to stream failed", e);
-      return false;
-    } finally {
-      if (outputStream != null) {
-        try {
-          outputStream.close();
-        } catch (IOException e) {
-          // Ignore.
+    for (ExtendedProperty property : extended) {
+      text.append(" ").append(qualifiedName(property)).append("=\"\"");
+      base64 += (property.mData.length + 2) / 3 * 4;
+    }
+    text.append("/></rdf:RDF></x:xmpmeta>");
+    return text.toString().getBytes().length + base64;
+  }
+
+  private static int indexOf(byte[] data, byte[] pattern) {
+    outer:
+    for (int i = 0; i + pattern.length <= data.length; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (data[i + j] != pattern[j]) {
+          continue outer;
         }
       }
+      return i;
     }
-    return true;
+    return -1;
   }
 
-  private static List<Section> insertXMPSection(
-          List<Section> sections, List<Section> xmpSections) {
-    if (sections == null || sections.size() <= 1) {
-      return null;
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
     }
-
-    // If the first section is Exif, insert XMP data before the second section,
-    // otherwise, make xmp data the first section.
-    List<Section> newSections = new ArrayList<Section>();
-    int position = (sections.get(0).marker == M_APP1) ? 1 : 0;
-    newSections.addAll(sections.subList(0, position));
-    newSections.addAll(xmpSections);
-    newSections.addAll(sections.subList(position, sections.size()));
-    return newSections;
   }
 
-  private static String getGUID(byte[] src) {
-    StringBuilder builder = new StringBuilder();
-    try {
-      MessageDigest digester = MessageDigest.getInstance("MD5");
-      digester.update(src);
-      byte[] digest = digester.digest();
+  /**
+   * Cuts the extended XMP text into APP1 marker segments as it is produced.
+   * The segment content holds:
+   * - a signature string, "http://ns.adobe.com/xmp/extension/\0"
+   * - a 128 bit GUID stored as a 32 byte ASCII hex string
+   * - a UInt32 full length of the entire extended XMP
+   * - a UInt32 offset for this portion of the extended XMP
+   * - the UTF-8 text for this portion of the extended XMP
+   */
+  private static class ExtendedXmpWriter {
+    private final FileChannel mChannel;
+    private final long mFullLength;
+    private final List<Long> mGuidPositions;
+    private final MessageDigest mDigest;
+    private final ByteBuffer mSegment =
+        ByteBuffer.allocate(4 + EXTEND_XMP_HEADER_SIZE + MAX_EXTENDED_XMP_BUFFER_SIZE);
+    private final byte[] mEncoded = new byte[BASE64_CHUNK / 3 * 4];
+    private long mOffset;
+
+    ExtendedXmpWriter(FileChannel channel, long fullLength, List<Long> guidPositions)
+        throws IOException {
+      if (fullLength > 0xffffffffL) {
+        throw new IOException("Extended xmp too large: " + fullLength);
+      }
+      mChannel = channel;
+      mFullLength = fullLength;
+      mGuidPositions = guidPositions;
+      try {
+        mDigest = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IOException("get md5 instance failure", e);
+      }
+      mSegment.limit(0);
+    }
+
+    void writeAscii(String text) throws IOException {
+      byte[] bytes = text.getBytes();
+      write(bytes, 0, bytes.length);
+    }
+
+    void writeBase64(byte[] data) throws IOException {
+      for (int off = 0; off < data.length; off += BASE64_CHUNK) {
+        int n = encodeBase64(data, off, Math.min(BASE64_CHUNK, data.length - off), mEncoded);
+        write(mEncoded, 0, n);
+      }
+    }
+
+    private void write(byte[] text, int off, int len) throws IOException {
+      while (len > 0) {
+        if (!mSegment.hasRemaining()) {
+          startSegment();
+        }
+        int n = Math.min(len, mSegment.remaining());
+        mDigest.update(text, off, n);
+        mSegment.put(text, off, n);
+        mOffset += n;
+        off += n;
+        len -= n;
+      }
+    }
 
+    private void startSegment() throws IOException {
+      flushSegment();
+      int portion = (int) Math.min(MAX_EXTENDED_XMP_BUFFER_SIZE, mFullLength - mOffset);
+      if (portion <= 0) {
+        throw new IOException("Extended xmp longer than " + mFullLength);
+      }
+      mSegment.clear();
+      mSegment.put((byte) 0xff).put((byte) M_APP1)
+          .putShort((short) (2 + EXTEND_XMP_HEADER_SIZE + portion));
+      mSegment.put(EXTENDED_XMP_HEADER_SIGNATURE.getBytes());
+      mGuidPositions.add(mChannel.position() + mSegment.position());
+      mSegment.put(GUID_PLACEHOLDER.getBytes());
+      mSegment.putInt((int) mFullLength);
+      mSegment.putInt((int) mOffset);
+      mSegment.limit(mSegment.position() + portion);
+    }
+
+    private void flushSegment() throws IOException {
+      if (mSegment.position() > 0) {
+        mSegment.flip();
+        writeFully(mChannel, mSegment);
+        mSegment.clear();
+      }
+    }
+
+    /** Writes out the last segment and returns the GUID. */
+    byte[] finish() throws IOException {
+      if (mOffset != mFullLength || mSegment.hasRemaining()) {
+        throw new IOException("Extended xmp length " + mOffset + " != " + mFullLength);
+      }
+      flushSegment();
+      byte[] digest = mDigest.digest();
+      StringBuilder builder = new StringBuilder();
       Formatter formatter = new Formatter(builder);
       for (int i = 0; i < digest.length; ++i) {
-        formatter.format("%02x", ((256 + digest[i]) % 256));
+        formatter.format("%02X", digest[i] & 0xff);
       }
-    } catch (NoSuchAlgorithmException exception) {
-      Log.d(TAG, "get md5 instance failure" + exception);
-      return null;
+      return builder.toString().getBytes();
     }
+  }
 
-    return builder.toString().toUpperCase();
+  /** Encodes len bytes without line breaks; returns the number of characters. */
+  private static int encodeBase64(byte[] in, int off, int len, byte[] out) {
+    int o = 0;
+    int end = off + len - len % 3;
+    for (int i = off; i < end; i += 3) {
+      int v = ((in[i] & 0xff) << 16) | ((in[i + 1] & 0xff) << 8) | (in[i + 2] & 0xff);
+      out[o++] = BASE64_ALPHABET[v >>> 18];
+      out[o++] = BASE64_ALPHABET[(v >>> 12) & 0x3f];
+      out[o++] = BASE64_ALPHABET[(v >>> 6) & 0x3f];
+      out[o++] = BASE64_ALPHABET[v & 0x3f];
+    }
+    int rest = len % 3;
+    if (rest > 0) {
+      int v = (in[end] & 0xff) << 16;
+      if (rest == 2) {
+        v |= (in[end + 1] & 0xff) << 8;
+      }
+      out[o++] = BASE64_ALPHABET[v >>> 18];
+      out[o++] = BASE64_ALPHABET[(v >>> 12) & 0x3f];
+      out[o++] = rest == 2 ? BASE64_ALPHABET[(v >>> 6) & 0x3f] : (byte) '=';
+      out[o++] = '=';
+    }
+    return o;
   }
 
   private XmpUtil() {}
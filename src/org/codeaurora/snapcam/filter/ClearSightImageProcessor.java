@@ -67,10 +67,12 @@ import android.media.Image.Plane;
 import android.media.ImageReader;
 import android.media.ImageReader.OnImageAvailableListener;
 import android.media.ImageWriter;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseLongArray;
 import android.util.Size;
@@ -114,6 +116,15 @@ public class ClearSightImageProcessor {
     private static final int MSG_NEW_LENS_FOCUS_DISTANCE_BAYER = 8;
     private static final int MSG_NEW_DEPTH = 9;
 
+    private static final int STAGE_REGISTER = 0;
+    private static final int STAGE_DEPTH = 1;
+    private static final int STAGE_PROCESS = 2;
+    private static final int STAGE_ENCODE = 3;
+    private static final int STAGE_SAVE = 4;
+    private static final String[] STAGE_NAMES = {
+        "register", "depth", "process", "encode", "save"
+    };
+
     private static final int CAM_TYPE_BAYER = 0;
     private static final int CAM_TYPE_MONO = 1;
     private static final int NUM_CAM = 2;
@@ -151,6 +162,16 @@ public class ClearSightImageProcessor {
     private CameraCaptureSession[] mCaptureSessions = new CameraCaptureSession[NUM_CAM];
     private MediaSaveService mMediaSaveService;
     private OnMediaSavedListener mMediaSavedListener;
+    private final StageTimer mStageTimer = new StageTimer();
+    private final OnMediaSavedListener mClearSightSavedListener = new OnMediaSavedListener() {
+        @Override
+        public void onMediaSaved(Uri uri) {
+            mStageTimer.end(STAGE_SAVE);
+            mStageTimer.finish(uri != null);
+            OnMediaSavedListener listener = mMediaSavedListener;
+            if (listener != null) listener.onMediaSaved(uri);
+        }
+    };
 
     private long mTimestampThresholdNs;
     private int mNumBurstCount;
@@ -234,7 +255,7 @@ public class ClearSightImageProcessor {
         mClearsightRegisterHandler = new ClearsightRegisterHandler(mClearsightRegisterThread.getLooper());
         mClearsightProcessHandler = new ClearsightProcessHandler(mClearsightProcessThread.getLooper());
         mImageEncodeHandler = new ImageEncodeHandler(mImageEncodeThread.getLooper());
-        mDepthProcessHandler = new DepthProcessHandler(mImageEncodeThread.getLooper());
+        mDepthProcessHandler = new DepthProcessHandler(mDepthProcessThread.getLooper());
 
         mFinalPictureSize = new Size(width, height);
         mFinalPictureRatio = (float)width / (float)height;
@@ -347,6 +368,7 @@ public class ClearSightImageProcessor {
         mCaptureSessions[CAM_TYPE_BAYER] = null;
         mMediaSaveService = null;
         mMediaSavedListener = null;
+        mStageTimer.finish(false);
         ClearSightNativeEngine.getInstance().close();
         Log.d(TAG, "close() done");
     }
@@ -544,9 +566,12 @@ public class ClearSightImageProcessor {
                 mNumImagesToProcess[msg.arg1] = msg.arg2;
                 mNamedImages.nameNewImage(System.currentTimeMillis());
                 mNamedEntity = mNamedImages.getNextNameEntity();
+                mStageTimer.start();
                 mClearsightRegisterHandler.obtainMessage(MSG_START_CAPTURE,
                         0, 0, mNamedEntity).sendToTarget();
                 mDepthProcessHandler.obtainMessage(MSG_START_CAPTURE).sendToTarget();
+                mClearsightProcessHandler.obtainMessage(MSG_START_CAPTURE).sendToTarget();
+                mImageEncodeHandler.obtainMessage(MSG_START_CAPTURE).sendToTarget();
                 break;
             case MSG_END_CAPTURE:
                 // TIMED OUT WAITING FOR FRAME
@@ -948,20 +973,15 @@ public class ClearSightImageProcessor {
                 registerImage(msg);
                 break;
             case MSG_END_CAPTURE:
-                // Check if timeout
-                if(msg.arg2 == 1) {
-                    Log.d(TAG, "ClearsightRegisterHandler - handleTimeout");
-                    ClearSightNativeEngine.getInstance().reset();
-                    if(mCallback != null) mCallback.onClearSightFailure(null);
-                } else {
-                    mClearsightProcessHandler.obtainMessage(MSG_START_CAPTURE,
-                            msg.arg1, 0, mNamedEntity).sendToTarget();
-                }
+                mStageTimer.end(STAGE_REGISTER);
+                mClearsightProcessHandler.obtainMessage(MSG_END_CAPTURE,
+                        msg.arg1, msg.arg2, mNamedEntity).sendToTarget();
                 break;
             }
         }
 
         private void registerImage(Message msg) {
+            mStageTimer.begin(STAGE_REGISTER);
             boolean isBayer = (msg.arg1 == CAM_TYPE_BAYER);
             Image image = (Image)msg.obj;
 
@@ -980,7 +1000,17 @@ public class ClearSightImageProcessor {
         }
     }
 
+    /**
+     * Runs once both registration and depth generation are finished. The
+     * depth stage reads the reference images in place, so they must not be
+     * queued for encoding or released before it is done with them.
+     */
     private class ClearsightProcessHandler extends Handler {
+        private NamedEntity mNamedEntity;
+        private boolean mRegisterDone;
+        private boolean mTimedOut;
+        private boolean mDepthDone;
+
         ClearsightProcessHandler(Looper looper) {
             super(looper);
         }
@@ -991,9 +1021,41 @@ public class ClearSightImageProcessor {
 
             switch (msg.what) {
             case MSG_START_CAPTURE:
-                processClearSight((NamedEntity) msg.obj);
+                mNamedEntity = null;
+                mRegisterDone = false;
+                mTimedOut = false;
+                mDepthDone = false;
                 break;
+            case MSG_END_CAPTURE:
+                mNamedEntity = (NamedEntity) msg.obj;
+                mRegisterDone = true;
+                mTimedOut = (msg.arg2 == 1);
+                // No more depth inputs will arrive for this capture.
+                mDepthProcessHandler.obtainMessage(MSG_END_CAPTURE).sendToTarget();
+                processIfReady();
+                break;
+            case MSG_NEW_DEPTH:
+                mDepthDone = true;
+                processIfReady();
+                break;
+            }
+        }
+
+        private void processIfReady() {
+            if (!mRegisterDone || !mDepthDone) return;
+            mRegisterDone = false;
+            mDepthDone = false;
+
+            if (mTimedOut) {
+                Log.d(TAG, "ClearsightProcessHandler - handleTimeout");
+                ClearSightNativeEngine.getInstance().reset();
+                mStageTimer.finish(false);
+                if(mCallback != null) mCallback.onClearSightFailure(null);
+                return;
             }
+            mStageTimer.begin(STAGE_PROCESS);
+            processClearSight(mNamedEntity);
+            mStageTimer.end(STAGE_PROCESS);
         }
 
         private void processClearSight(NamedEntity namedEntity) {
@@ -1011,6 +1073,7 @@ public class ClearSightImageProcessor {
             csRequest.setTag(new Object());
 
             boolean processInit = ClearSightNativeEngine.getInstance().initProcessImage();
+            mStageTimer.begin(STAGE_ENCODE);
             sendReferenceMonoEncodeRequest();
             sendReferenceBayerEncodeRequest();
             encodeRequest |= ImageEncodeHandler.MASK_BAYER_ENCODE|ImageEncodeHandler.MASK_MONO_ENCODE;
@@ -1235,9 +1298,11 @@ public class ClearSightImageProcessor {
                 return;
             }
 
+            mStageTimer.end(STAGE_ENCODE);
             if(mHasFailure) {
                 // don't save anything and fail
                 Log.d(TAG, "saveClearSightImage has failure - aborting.");
+                mStageTimer.finish(false);
                 if(mCallback != null) mCallback.onClearSightFailure(null);
                 resetParams();
                 return;
@@ -1273,12 +1338,15 @@ public class ClearSightImageProcessor {
                     if(mCallback != null) mCallback.onClearSightFailure(null);
                 }
 
+                mStageTimer.begin(STAGE_SAVE);
                 mMediaSaveService.addClearsightImage(
                         clearSightBytes != null ? clearSightBytes : bayerBytes,
                         mGImage, mDepthMap,title, date, null,
                         width, height, orientation, exif,
-                        mMediaSavedListener,
+                        mClearSightSavedListener,
                         mMediaSaveService.getContentResolver(), "jpeg");
+            } else {
+                mStageTimer.finish(false);
             }
             resetParams();
         }
@@ -1313,6 +1381,7 @@ public class ClearSightImageProcessor {
     private class DepthProcessHandler extends Handler{
         private TotalCaptureResult mReprocessCaptureResult;
         private DDMNativeEngine mDDMNativeEngine;
+        private boolean mDepthDone;
         public DepthProcessHandler(Looper looper) {
             super(looper);
             mDDMNativeEngine = new DDMNativeEngine();
@@ -1340,6 +1409,13 @@ public class ClearSightImageProcessor {
                 case MSG_NEW_REPROC_RESULT:
                     registerReprocessResult(msg);
                     break;
+
+                case MSG_END_CAPTURE:
+                    if (!mDepthDone) {
+                        Log.w(TAG, "depth inputs incomplete, saving without depth map");
+                        sendDepthMap(null);
+                    }
+                    break;
             }
         }
 
@@ -1349,6 +1425,7 @@ public class ClearSightImageProcessor {
         private void resetParams(){
             Log.d(TAG, "resetParams");
             mDDMNativeEngine.reset();
+            mDepthDone = false;
         }
 
         private void setBayerLensFocusDistance(Message msg) {
@@ -1364,7 +1441,7 @@ public class ClearSightImageProcessor {
                 mDDMNativeEngine.setMonoImage(image);
             }
 
-            if ( mDDMNativeEngine.isReadyForGenerateDepth() ) {
+            if ( !mDepthDone && mDDMNativeEngine.isReadyForGenerateDepth() ) {
                 generateDepthmap();
             }
         }
@@ -1380,14 +1457,14 @@ public class ClearSightImageProcessor {
                 mDDMNativeEngine.setMonoReprocessResult(result);
             }
 
-            if ( mDDMNativeEngine.isReadyForGenerateDepth() ) {
+            if ( !mDepthDone && mDDMNativeEngine.isReadyForGenerateDepth() ) {
                 generateDepthmap();
             }
 
         }
 
         private void generateDepthmap() {
-            mImageEncodeHandler.obtainMessage(MSG_START_CAPTURE).sendToTarget();
+            mStageTimer.begin(STAGE_DEPTH);
             GDepth.DepthMap depthMap = null;
             int[] size = new int[2];
             if ( mDDMNativeEngine.getDepthMapSize(size) ) {
@@ -1417,7 +1494,16 @@ public class ClearSightImageProcessor {
             if ( mDumpDepth ) {
                 dumpCameraParam();
             }
+            mStageTimer.end(STAGE_DEPTH);
+            sendDepthMap(depthMap);
+        }
+
+        private void sendDepthMap(GDepth.DepthMap depthMap) {
+            mDepthDone = true;
+            // The reference images are no longer read past this point.
+            mDDMNativeEngine.reset();
             mImageEncodeHandler.obtainMessage(MSG_NEW_DEPTH, 0, 0, depthMap).sendToTarget();
+            mClearsightProcessHandler.obtainMessage(MSG_NEW_DEPTH).sendToTarget();
         }
 
         private void dumpCameraParam() {
@@ -1427,6 +1513,53 @@ public class ClearSightImageProcessor {
         }
     }
 
+    /**
+     * Wall time spent in each stage of a ClearSight capture, logged
+     * together with the end-to-end latency once the capture is saved or
+     * abandoned. Stages run on different threads, hence the locking.
+     */
+    private static class StageTimer {
+        private final long[] mBegin = new long[STAGE_NAMES.length];
+        private final long[] mEnd = new long[STAGE_NAMES.length];
+        private long mCaptureStart;
+        private boolean mActive;
+
+        synchronized void start() {
+            // Both cameras signal the start of the same capture.
+            if (mActive) return;
+            mActive = true;
+            mCaptureStart = SystemClock.elapsedRealtime();
+            Arrays.fill(mBegin, 0);
+            Arrays.fill(mEnd, 0);
+        }
+
+        synchronized void begin(int stage) {
+            if (mActive && mBegin[stage] == 0) {
+                mBegin[stage] = SystemClock.elapsedRealtime();
+            }
+        }
+
+        synchronized void end(int stage) {
+            if (mActive) {
+                mEnd[stage] = SystemClock.elapsedRealtime();
+            }
+        }
+
+        synchronized void finish(boolean success) {
+            if (!mActive) return;
+            mActive = false;
+            StringBuilder sb = new StringBuilder("ClearSight capture ");
+            sb.append(success ? "saved" : "failed");
+            sb.append(" in ").append(SystemClock.elapsedRealtime() - mCaptureStart).append("ms");
+            for (int i = 0; i < STAGE_NAMES.length; i++) {
+                if (mBegin[i] == 0 || mEnd[i] < mBegin[i]) continue;
+                sb.append(", ").append(STAGE_NAMES[i]).append('=')
+                        .append(mEnd[i] - mBegin[i]).append("ms");
+            }
+            Log.d(TAG, sb.toString());
+        }
+    }
+
     private void saveAsRGB(byte[] depth, int width, int height) {
         int[] colors = new int[depth.length];
         for(int i=0; i < colors.length; ++i) {
@@ -41,6 +41,8 @@ import android.media.Image;
 import android.media.Image.Plane;
 import android.util.Log;
 
+import com.android.camera.imageprocessor.DirectBufferPool;
+
 public class ClearSightNativeEngine {
     private static final boolean DEBUG = false;
     private static final String TAG = "ClearSightNativeEngine";
@@ -94,19 +96,22 @@ public class ClearSightNativeEngine {
         String calibStr = calibData.toString();
         Log.d(TAG, "OTP calibration data: \n" + calibStr);
         mOtpCalibData = calibStr.getBytes();
+        if (width != mImageWidth || height != mImageHeight) {
+            releaseCache();
+        }
         mImageWidth = width;
         mImageHeight = height;
         mYStride = width;
         mVUStride = width;
-        while(frameCount > 0) {
+        // Keep buffers left over from a previous init of the same size.
+        while(mCache.size() + mSrcColor.size() + mSrcMono.size() < frameCount) {
             cacheSourceImage(new SourceImage(width*height, width*height/2));
-            frameCount --;
         }
     }
 
     public void close() {
         reset();
-        mCache.clear();
+        releaseCache();
         mImageWidth = 0;
         mImageHeight = 0;
         mYStride = 0;
@@ -132,7 +137,19 @@ public class ClearSightNativeEngine {
 
     private SourceImage getNewSourceImage() {
         Log.d(TAG, "getNewSourceImage: " + mCache.size());
-        return mCache.remove(0);
+        if (mCache.isEmpty()) {
+            // Only when more frames arrive than init() was sized for.
+            Log.w(TAG, "getNewSourceImage: cache empty, allocating");
+            return new SourceImage(mImageWidth*mImageHeight, mImageWidth*mImageHeight/2);
+        }
+        return mCache.remove(mCache.size() - 1);
+    }
+
+    private void releaseCache() {
+        for (SourceImage image : mCache) {
+            image.release();
+        }
+        mCache.clear();
     }
 
     private void cacheSourceImage(SourceImage image) {
@@ -254,6 +271,8 @@ public class ClearSightNativeEngine {
 
         if (result) {
             sourceImages.add(newSrc);
+        } else {
+            cacheSourceImage(newSrc);
         }
 
         image.close();
@@ -342,10 +361,15 @@ public class ClearSightNativeEngine {
         float[] mMetadata;
 
         SourceImage(int ySize, int vuSize) {
-            mY = ByteBuffer.allocateDirect(ySize);
-            mVU = ByteBuffer.allocateDirect(vuSize);
+            mY = DirectBufferPool.getInstance().acquire(ySize);
+            mVU = DirectBufferPool.getInstance().acquire(vuSize);
             mMetadata = new float[METADATA_SIZE];
         }
+
+        void release() {
+            DirectBufferPool.getInstance().release(mY);
+            DirectBufferPool.getInstance().release(mVU);
+        }
     }
 
     public static class ClearsightImage {
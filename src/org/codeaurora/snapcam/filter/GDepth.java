@@ -70,6 +70,7 @@ public class GDepth{
 
     private DepthMap mDepthMap;
     private String mData;
+    private byte[] mJpeg;
     private int mNear;
     private int mFar;
     private final String mFormat = "RangeLinear";
@@ -118,9 +119,17 @@ public class GDepth{
     }
 
     public String getData(){
+        if (mData == null && mJpeg != null) {
+            mData = serializeAsBase64Str(mJpeg);
+        }
         return mData;
     }
 
+    /** The depth map as the JPEG that getData() encodes, when it was created here. */
+    public byte[] getJpegBytes(){
+        return mJpeg;
+    }
+
     public Rect getRoi() {
         return mDepthMap.roi;
     }
@@ -138,9 +147,9 @@ public class GDepth{
         int[]  grayscaleImage = convertIntoImage(mMap);
         byte[] jpegBytes = compressToJPEG(grayscaleImage );
         if (jpegBytes != null ) {
-            String base64String = serializeAsBase64Str(jpegBytes);
+            // Left to getData(); the save path streams the bytes instead.
             result = true;
-            mData = base64String;
+            mJpeg = jpegBytes;
         }else{
             Log.e(TAG, "compressToJPEG failure");
         }
@@ -51,10 +51,10 @@ public class GImage{
     }
 
     private  String mMime = "image/jpeg";
-    private String mData;
+    private byte[] mBytes;
 
     public GImage(byte[] data, String mime){
-        mData = Base64.encodeToString(data, Base64.DEFAULT);
+        mBytes = data;
         mMime = mime;
     }
 
@@ -63,6 +63,10 @@ public class GImage{
     }
 
     public String getData(){
-        return mData;
+        return Base64.encodeToString(mBytes, Base64.DEFAULT);
+    }
+
+    public byte[] getBytes(){
+        return mBytes;
     }
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Base of the micro benchmarks in this package that need the device. They
+ * run under the instrumentation runner and log their timings under the
+ * name of the test class.
+ */
+public abstract class BenchmarkTestCase extends InstrumentationTestCase {
+    protected interface Block extends BenchmarkTimer.Block {
+    }
+
+    /** See {@link BenchmarkTimer#time}. */
+    protected static long time(Block block) throws Exception {
+        return BenchmarkTimer.time(block);
+    }
+
+    /** See {@link BenchmarkTimer#timeOnce}. */
+    protected static long timeOnce(Block block) throws Exception {
+        return BenchmarkTimer.timeOnce(block);
+    }
+
+    protected void report(String message) {
+        Log.v(getClass().getSimpleName(), message);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+/**
+ * Timing helper shared by the benchmarks in this package. Plain Java, so a
+ * benchmark that only exercises plain Java code can also run on the host.
+ */
+public class BenchmarkTimer {
+    // Untimed runs before the measured one, so the JIT has compiled the code.
+    private static final int WARM_UP_RUNS = 2;
+
+    public interface Block {
+        void run() throws Exception;
+    }
+
+    private BenchmarkTimer() {
+    }
+
+    /** Runs block a few times untimed, then once more timed. Returns ns. */
+    public static long time(Block block) throws Exception {
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            block.run();
+        }
+        return timeOnce(block);
+    }
+
+    /** Times a single run of block, for work that cannot be repeated. Returns ns. */
+    public static long timeOnce(Block block) throws Exception {
+        long start = System.nanoTime();
+        block.run();
+        return System.nanoTime() - start;
+    }
+}
@@ -17,9 +17,12 @@
 package com.android.camera.stress;
 
 import com.android.camera.CameraActivity;
+import com.android.camera.CameraCapabilities;
+import com.android.camera.util.StartupTimeline;
 
 import android.app.Activity;
 import android.app.Instrumentation;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Environment;
 import android.provider.MediaStore;
@@ -29,6 +32,10 @@ import android.util.Log;
 
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Test cases to measure the camera and video recorder startup time.
@@ -41,6 +48,17 @@ public class CameraStartUp extends InstrumentationTestCase {
     private static final String CAMERA_TEST_OUTPUT_FILE =
             Environment.getExternalStorageDirectory().toString() + "/mediaStressOut.txt";
     private static int WAIT_TIME_FOR_PREVIEW = 4 * 1000; //4 seconds.
+    private static final long WAIT_TIME_FOR_FIRST_FRAME = 10 * 1000;
+    private static final String[] TIMELINE_PHASES = {
+        StartupTimeline.ACTIVITY_CREATE,
+        StartupTimeline.MODULE_INIT,
+        StartupTimeline.MEDIA_SAVE_BIND,
+        StartupTimeline.SETTINGS_MANAGER,
+        StartupTimeline.ACTIVITY_RESUME,
+        StartupTimeline.FILMSTRIP_LOAD,
+        StartupTimeline.OPEN_CAMERA,
+        StartupTimeline.FIRST_PREVIEW,
+    };
 
     private long launchCamera() {
         long startupTime = 0;
@@ -113,6 +131,116 @@ public class CameraStartUp extends InstrumentationTestCase {
         }
     }
 
+    private StartupTimeline.Launch waitForFirstFrame(int afterSequence) throws Exception {
+        StartupTimeline.Launch launch =
+                StartupTimeline.waitForLaunch(afterSequence, WAIT_TIME_FOR_FIRST_FRAME);
+        assertNotNull("No preview frame within " + WAIT_TIME_FOR_FIRST_FRAME + "ms", launch);
+        Log.v(TAG, launch.toString());
+        return launch;
+    }
+
+    private Intent getCameraIntent() {
+        Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.setClass(getInstrumentation().getTargetContext(), CameraActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        return intent;
+    }
+
+    private static long percentile(List<Long> sorted, int percent) {
+        int rank = (sorted.size() * percent + 99) / 100;
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+    private static String summarize(String name, List<Long> samples) {
+        if (samples.isEmpty()) {
+            return String.format(Locale.US, "%-17s n=0", name);
+        }
+        Collections.sort(samples);
+        return String.format(Locale.US, "%-17s n=%-3d p50=%7.1fms p95=%7.1fms", name,
+                samples.size(), percentile(samples, 50) / 1e6, percentile(samples, 95) / 1e6);
+    }
+
+    private void writeTimelineToOutputFile(String type, List<StartupTimeline.Launch> launches) {
+        StringBuilder report = new StringBuilder();
+        report.append(type).append(" launch timeline, ").append(launches.size())
+                .append(" launches:\n");
+        for (String phase : TIMELINE_PHASES) {
+            List<Long> samples = new ArrayList<Long>();
+            for (StartupTimeline.Launch launch : launches) {
+                long ns = launch.getPhaseNs(phase);
+                if (ns >= 0) {
+                    samples.add(ns);
+                }
+            }
+            report.append(summarize(phase, samples)).append("\n");
+        }
+        List<Long> totals = new ArrayList<Long>();
+        for (StartupTimeline.Launch launch : launches) {
+            totals.add(launch.getTotalNs());
+        }
+        report.append(summarize("total", totals)).append("\n\n");
+        Log.v(TAG, report.toString());
+        try {
+            BufferedWriter out = new BufferedWriter(new FileWriter(CAMERA_TEST_OUTPUT_FILE, true));
+            out.write(report.toString());
+            out.close();
+        } catch (Exception e) {
+            fail("Camera write output to file");
+        }
+    }
+
+    /**
+     * Creates a new CameraActivity for every launch. The process stays
+     * up, so only the first launch builds SettingsManager; a process cold
+     * start is covered by testFirstLaunchWithoutCapabilityCache.
+     */
+    public void testColdLaunchTimeline() throws Exception {
+        List<StartupTimeline.Launch> launches = new ArrayList<StartupTimeline.Launch>();
+        for (int i = 0; i < TOTAL_NUMBER_OF_STARTUP; i++) {
+            int sequence = StartupTimeline.getSequence();
+            Activity cameraActivity = getInstrumentation().startActivitySync(getCameraIntent());
+            StartupTimeline.Launch launch = waitForFirstFrame(sequence);
+            assertEquals(StartupTimeline.COLD, launch.getKind());
+            launches.add(launch);
+            cameraActivity.finish();
+            Thread.sleep(2 * 1000); //sleep for 2 seconds.
+        }
+        writeTimelineToOutputFile("Cold", launches);
+    }
+
+    /**
+     * Sends the camera to the background behind the launcher and brings
+     * the same CameraActivity back, which goes through onRestart() rather
+     * than onCreate().
+     */
+    public void testWarmLaunchTimeline() throws Exception {
+        Context context = getInstrumentation().getTargetContext();
+        Intent home = new Intent(Intent.ACTION_MAIN);
+        home.addCategory(Intent.CATEGORY_HOME);
+        home.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        int sequence = StartupTimeline.getSequence();
+        Activity cameraActivity = getInstrumentation().startActivitySync(getCameraIntent());
+        waitForFirstFrame(sequence);
+        List<StartupTimeline.Launch> launches = new ArrayList<StartupTimeline.Launch>();
+        try {
+            for (int i = 0; i < TOTAL_NUMBER_OF_STARTUP; i++) {
+                context.startActivity(home);
+                // Wait for onStop() so the relaunch is a restart.
+                Thread.sleep(2 * 1000); //sleep for 2 seconds.
+                sequence = StartupTimeline.getSequence();
+                context.startActivity(getCameraIntent());
+                StartupTimeline.Launch launch = waitForFirstFrame(sequence);
+                assertEquals(StartupTimeline.WARM, launch.getKind());
+                launches.add(launch);
+                Thread.sleep(WAIT_TIME_FOR_PREVIEW);
+            }
+        } finally {
+            cameraActivity.finish();
+        }
+        writeTimelineToOutputFile("Warm", launches);
+    }
+
     public void testLaunchVideo() throws Exception {
         String individualStartupTime;
         individualStartupTime = "Individual Video Startup Time = ";
@@ -133,6 +261,18 @@ public class CameraStartUp extends InstrumentationTestCase {
         writeToOutputFile(totalStartupTime, individualStartupTime, false, "Video");
     }
 
+    /**
+     * Only the first launch in a process builds SettingsManager, so run this
+     * on its own to compare with the first startup of testLaunchCamera:
+     * adb shell am instrument -e class
+     *   com.android.camera.stress.CameraStartUp#testFirstLaunchWithoutCapabilityCache ...
+     */
+    public void testFirstLaunchWithoutCapabilityCache() throws Exception {
+        CameraCapabilities.getCacheFile(getInstrumentation().getTargetContext()).delete();
+        long startupTime = launchCamera();
+        writeToOutputFile(startupTime, "na", true, "Camera (no capability cache)");
+    }
+
     public void testLaunchCamera() throws Exception {
         String individualStartupTime;
         individualStartupTime = "Individual Camera Startup Time = ";
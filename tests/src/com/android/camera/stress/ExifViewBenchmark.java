@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.ExifTag;
+import com.android.camera.exif.ExifView;
+import com.android.camera.tests.R;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Compares reading the orientation and location of a capture with
+ * ExifInterface.readExif and with ExifView, and checks that both agree on
+ * every tag of the test images.
+ */
+@LargeTest
+public class ExifViewBenchmark extends BenchmarkTestCase {
+    private static final int ITERATIONS = 2000;
+
+    private byte[] readRaw(int id) throws IOException {
+        InputStream in = getInstrumentation().getContext().getResources().openRawResource(id);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // jpeg_control has no EXIF; give it what a HAL capture would carry.
+    private byte[] buildCapture() throws IOException {
+        byte[] jpeg = readRaw(R.raw.jpeg_control);
+        ExifInterface exif = new ExifInterface();
+        exif.addMakeAndModelTag();
+        exif.addOrientationTag(90);
+        exif.addGpsTags(37.422, -122.084);
+        exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
+                TimeZone.getDefault());
+        return exif.spliceExif(jpeg);
+    }
+
+    private void benchmark(String name, final byte[] jpeg) throws Exception {
+        final int[] full = new int[1];
+        final int[] view = new int[1];
+        long fullNs = time(new Block() {
+            public void run() throws IOException {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    ExifInterface exif = new ExifInterface();
+                    exif.readExif(jpeg);
+                    Integer value = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+                    full[0] = value == null ? 0
+                            : ExifInterface.getRotationForOrientationValue(value.shortValue());
+                    exif.getLatLongAsDoubles();
+                }
+            }
+        });
+        long viewNs = time(new Block() {
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    ExifView exif = new ExifView(jpeg);
+                    view[0] = exif.getOrientation();
+                    exif.getLatLong();
+                }
+            }
+        });
+        report(name + " size=" + jpeg.length
+                + " readExif=" + (fullNs / ITERATIONS / 1000) + "us"
+                + " view=" + (viewNs / ITERATIONS / 1000) + "us");
+        assertEquals(full[0], view[0]);
+    }
+
+    public void testCapture() throws Exception {
+        benchmark("capture", buildCapture());
+    }
+
+    public void testCameraWithThumbnail() throws Exception {
+        benchmark("galaxy_nexus", readRaw(R.raw.galaxy_nexus));
+    }
+
+    private void assertSameTags(byte[] jpeg) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(jpeg);
+        ExifView view = new ExifView(ByteBuffer.wrap(jpeg));
+        List<ExifTag> tags = exif.getAllTags();
+        assertNotNull(tags);
+        assertEquals(tags.size(), view.getTagCount());
+        for (ExifTag t : tags) {
+            int tag = ExifInterface.defineTag(t.getIfd(), t.getTagId());
+            assertTrue(view.hasTag(tag));
+            switch (t.getDataType()) {
+                case ExifTag.TYPE_UNSIGNED_BYTE:
+                case ExifTag.TYPE_UNSIGNED_SHORT:
+                case ExifTag.TYPE_UNSIGNED_LONG:
+                case ExifTag.TYPE_LONG:
+                    assertEquals(t.getValueAsLong(-1), view.getTagInt(tag, -1) & 0xffffffffL);
+                    break;
+                case ExifTag.TYPE_UNSIGNED_RATIONAL:
+                case ExifTag.TYPE_RATIONAL:
+                    if (t.getValueAsRational(0).getDenominator() != 0) {
+                        assertEquals(t.getValueAsRational(0).toDouble(),
+                                view.getTagRational(tag, 0, Double.NaN), 1e-9);
+                    }
+                    break;
+                case ExifTag.TYPE_ASCII:
+                    String value = t.getValueAsString();
+                    int end = value.length();
+                    while (end > 0 && value.charAt(end - 1) == 0) end--;
+                    assertEquals(value.substring(0, end), view.getTagString(tag));
+                    break;
+            }
+        }
+        byte[] thumbnail = exif.getThumbnail();
+        if (thumbnail == null) {
+            assertEquals(0, view.getThumbnailLength());
+        } else {
+            assertEquals(thumbnail.length, view.getThumbnailLength());
+            int offset = view.getThumbnailOffset();
+            for (int i = 0; i < thumbnail.length; i++) {
+                assertEquals(thumbnail[i], jpeg[offset + i]);
+            }
+        }
+    }
+
+    public void testMatchesExifInterface() throws IOException {
+        assertSameTags(buildCapture());
+        assertSameTags(readRaw(R.raw.galaxy_nexus));
+        assertFalse(new ExifView(readRaw(R.raw.jpeg_control)).hasExif());
+    }
+
+    public void testLocation() throws IOException {
+        double[] latlng = new ExifView(buildCapture()).getLatLong();
+        assertNotNull(latlng);
+        assertEquals(37.422, latlng[0], 1e-4);
+        assertEquals(-122.084, latlng[1], 1e-4);
+    }
+}
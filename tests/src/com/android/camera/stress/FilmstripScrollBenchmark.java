@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.data.CameraDataAdapter;
+import com.android.camera.data.LocalData;
+import com.android.camera.data.LocalMediaData;
+import com.android.camera.ui.FilmStripView.DataAdapter;
+import com.android.camera.ui.FilmStripView.ImageData;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.util.Random;
+
+/**
+ * Scrolls a synthetic 50k item camera roll through CameraDataAdapter the
+ * way the filmstrip walks it: every item plus its neighbours on each side,
+ * a content uri lookup per step, and deletes undone near the front.
+ */
+@LargeTest
+public class FilmstripScrollBenchmark extends BenchmarkTestCase {
+    private static final int ITEMS = 50000;
+    private static final int NEIGHBOURS = 2;
+    private static final int LOOKUPS = 20000;
+    private static final int REMOVALS = 2000;
+
+    private CameraDataAdapter mAdapter;
+    private Uri[] mUris;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAdapter = new CameraDataAdapter(null);
+        mAdapter.setListener(new DataAdapter.Listener() {
+            @Override
+            public void onDataLoaded() {
+            }
+
+            @Override
+            public void onDataUpdated(DataAdapter.UpdateReporter reporter) {
+            }
+
+            @Override
+            public void onDataInserted(int dataID, ImageData data) {
+            }
+
+            @Override
+            public void onDataRemoved(int dataID, ImageData data) {
+            }
+        });
+
+        mUris = new Uri[ITEMS];
+        // Oldest first, so every insert lands at the front like a new capture.
+        long elapsed = timeOnce(new Block() {
+            public void run() {
+                for (int i = 0; i < ITEMS; i++) {
+                    LocalData data = new LocalMediaData.PhotoData(i + 1, "IMG_" + i,
+                            LocalData.MIME_TYPE_JPEG, 1000000L + i, 1000000L + i,
+                            "/sdcard/DCIM/Camera/IMG_" + i + ".jpg", 0, 4000, 3000,
+                            3000000L, 0, 0);
+                    mUris[i] = data.getContentUri();
+                    mAdapter.insertData(data);
+                }
+            }
+        });
+        report("insert " + ITEMS + " items: " + elapsed / ITEMS + "ns/item");
+    }
+
+    public void testScroll() throws Exception {
+        final int total = mAdapter.getTotalNumber();
+        assertEquals(ITEMS, total);
+        final long[] visited = new long[1];
+        long elapsed = time(new Block() {
+            public void run() {
+                visited[0] = 0;
+                for (int i = 0; i < total; i++) {
+                    for (int j = i - NEIGHBOURS; j <= i + NEIGHBOURS; j++) {
+                        if (mAdapter.getLocalData(j) != null) visited[0]++;
+                    }
+                }
+            }
+        });
+        report("scroll: " + elapsed / visited[0] + "ns/access over " + visited[0]);
+        // Newest first.
+        assertEquals(ITEMS, mAdapter.getLocalData(0).getContentId());
+        assertEquals(1, mAdapter.getLocalData(total - 1).getContentId());
+    }
+
+    public void testFindByContentUri() throws Exception {
+        long elapsed = time(new Block() {
+            public void run() {
+                Random random = new Random(1);
+                for (int n = 0; n < LOOKUPS; n++) {
+                    int i = random.nextInt(ITEMS);
+                    assertEquals(ITEMS - 1 - i, mAdapter.findDataByContentUri(mUris[i]));
+                }
+            }
+        });
+        report("findDataByContentUri: " + elapsed / LOOKUPS + "ns/lookup");
+    }
+
+    public void testRemoveAndUndoNearFront() throws Exception {
+        long elapsed = time(new Block() {
+            public void run() {
+                Random random = new Random(2);
+                for (int n = 0; n < REMOVALS; n++) {
+                    int pos = random.nextInt(100);
+                    LocalData removed = mAdapter.getLocalData(pos);
+                    mAdapter.removeData(null, pos);
+                    assertTrue(mAdapter.undoDataRemoval());
+                    assertEquals(removed, mAdapter.getLocalData(pos));
+                }
+            }
+        });
+        report("remove+undo: " + elapsed / REMOVALS + "ns/op");
+        assertEquals(ITEMS, mAdapter.getTotalNumber());
+    }
+}
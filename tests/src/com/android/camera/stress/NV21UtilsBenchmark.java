@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.imageprocessor.NV21Utils;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the native NV21 kernels against the Java reference versions and
+ * times both at common sensor sizes. Runs on the device like the other
+ * stress tests; without the native library only the Java timings are
+ * reported. The reference kernels themselves are covered on the host by
+ * NV21UtilsTest.
+ */
+@LargeTest
+public class NV21UtilsBenchmark extends BenchmarkTestCase {
+
+    // 12, 48 and 64 MP sensor outputs.
+    private static final int[][] SIZES = {{4000, 3000}, {8000, 6000}, {9248, 6936}};
+    // Extra bytes per row on top of the width; 0 is a tightly packed frame.
+    private static final int[] STRIDE_PADDING = {0, 64};
+
+    private static byte[] randomFrame(int stride, int height, long seed) {
+        byte[] frame = new byte[stride * height * 3 / 2];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    private static ByteBuffer direct(byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data);
+        buf.rewind();
+        return buf;
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] data = new byte[buf.capacity()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = buf.get(i);
+        }
+        return data;
+    }
+
+    private static long timeMs(Block kernel) throws Exception {
+        return time(kernel) / 1000000;
+    }
+
+    private void report(String name, int width, int height, int stride,
+            long nativeMs, long javaMs) {
+        report(name + " " + width + "x" + height + " stride=" + stride
+                + " native=" + (nativeMs < 0 ? "n/a" : nativeMs + "ms")
+                + " java=" + javaMs + "ms");
+    }
+
+    public void testRotateMatchesReference() {
+        int width = 642;
+        int height = 482;
+        byte[] src = randomFrame(width, height, 1);
+        for (int degree : new int[] {90, 180, 270}) {
+            ByteBuffer expected = ByteBuffer.allocate(src.length);
+            NV21Utils.rotateJava(ByteBuffer.wrap(src), width, height, degree, expected);
+            ByteBuffer actual = ByteBuffer.allocateDirect(src.length);
+            NV21Utils.rotate(direct(src), width, height, degree, actual);
+            assertTrue("rotate " + degree, Arrays.equals(expected.array(), bytes(actual)));
+        }
+        // A quarter turn each way is the identity.
+        ByteBuffer turned = ByteBuffer.allocate(src.length);
+        ByteBuffer back = ByteBuffer.allocate(src.length);
+        NV21Utils.rotateJava(ByteBuffer.wrap(src), width, height, 90, turned);
+        NV21Utils.rotateJava(turned, height, width, 270, back);
+        assertTrue(Arrays.equals(src, back.array()));
+    }
+
+    public void testFlipMatchesReference() {
+        int width = 640;
+        int stride = 704;
+        int height = 480;
+        byte[] src = randomFrame(stride, height, 2);
+        for (boolean vertical : new boolean[] {true, false}) {
+            byte[] expected = src.clone();
+            NV21Utils.flipJava(expected, stride, height, stride - width, vertical);
+            byte[] actual = src.clone();
+            NV21Utils.flip(actual, stride, height, stride - width, vertical);
+            assertTrue("flip vertical=" + vertical, Arrays.equals(expected, actual));
+            NV21Utils.flip(actual, stride, height, stride - width, vertical);
+            assertTrue(Arrays.equals(src, actual));
+        }
+    }
+
+    public void testSplitMatchesReference() {
+        int width = 640;
+        int height = 480;
+        int dstStride = 704;
+        byte[] src = randomFrame(width, height, 3);
+        ByteBuffer expectedY = ByteBuffer.allocate(dstStride * height);
+        ByteBuffer expectedVu = ByteBuffer.allocate(dstStride * height / 2);
+        NV21Utils.splitJava(src, expectedY, expectedVu, width, height, width, dstStride);
+        ByteBuffer y = ByteBuffer.allocateDirect(dstStride * height);
+        ByteBuffer vu = ByteBuffer.allocateDirect(dstStride * height / 2);
+        NV21Utils.split(src, y, vu, width, height, width, dstStride);
+        assertTrue(Arrays.equals(expectedY.array(), bytes(y)));
+        assertTrue(Arrays.equals(expectedVu.array(), bytes(vu)));
+    }
+
+    public void testResizeMatchesReference() {
+        int width = 640;
+        int height = 480;
+        byte[] src = randomFrame(width, height, 4);
+        // 213x160 leaves the last chroma block hanging over the frame edge.
+        int[][] targets = {{160, 120}, {213, 160}, {100, 100}};
+        for (int[] target : targets) {
+            int size = target[0] * target[1] + (target[0] + 1) / 2 * 2 * ((target[1] + 1) / 2);
+            byte[] expected = new byte[size];
+            byte[] actual = new byte[size];
+            int expectedScale = NV21Utils.resizeJava(src, expected, width, height, width,
+                    target[0], target[1]);
+            int scale = NV21Utils.resize(src, actual, width, height, width,
+                    target[0], target[1]);
+            assertEquals(expectedScale, scale);
+            assertTrue("resize " + target[0] + "x" + target[1], Arrays.equals(expected, actual));
+        }
+    }
+
+    public void testToRgbaMatchesReference() {
+        int width = 640;
+        int stride = 704;
+        int height = 480;
+        byte[] src = randomFrame(stride, height, 5);
+        ByteBuffer expected = ByteBuffer.allocate(width * height * 4);
+        NV21Utils.toRgbaJava(ByteBuffer.wrap(src), expected, width, height, stride);
+        ByteBuffer actual = ByteBuffer.allocateDirect(width * height * 4);
+        NV21Utils.toRgba(direct(src), actual, width, height, stride);
+        assertTrue(Arrays.equals(expected.array(), bytes(actual)));
+    }
+
+    public void testKernelThroughput() throws Exception {
+        report("native kernels " + (NV21Utils.isNativeAvailable() ? "loaded" : "missing"));
+        for (int[] size : SIZES) {
+            for (int padding : STRIDE_PADDING) {
+                try {
+                    benchmark(size[0], size[1], size[0] + padding);
+                } catch (OutOfMemoryError e) {
+                    // 64 MP frames do not fit every test heap; report and keep going.
+                    report("Skipping " + size[0] + "x" + size[1] + ": " + e);
+                }
+                System.gc();
+            }
+        }
+    }
+
+    private void benchmark(final int width, final int height, final int stride)
+            throws Exception {
+        final boolean hasNative = NV21Utils.isNativeAvailable();
+        final byte[] frame = randomFrame(stride, height, width);
+        final int gap = stride - width;
+
+        long nativeMs = !hasNative ? -1 : timeMs(new Block() {
+            public void run() {
+                NV21Utils.flip(frame, stride, height, gap, false);
+            }
+        });
+        long javaMs = timeMs(new Block() {
+            public void run() {
+                NV21Utils.flipJava(frame, stride, height, gap, false);
+            }
+        });
+        report("flip", width, height, stride, nativeMs, javaMs);
+
+        final ByteBuffer y = ByteBuffer.allocateDirect(stride * height);
+        final ByteBuffer vu = ByteBuffer.allocateDirect(stride * height / 2);
+        nativeMs = !hasNative ? -1 : timeMs(new Block() {
+            public void run() {
+                NV21Utils.split(frame, y, vu, width, height, stride, stride);
+            }
+        });
+        javaMs = timeMs(new Block() {
+            public void run() {
+                NV21Utils.splitJava(frame, y, vu, width, height, stride, stride);
+            }
+        });
+        report("split", width, height, stride, nativeMs, javaMs);
+
+        final byte[] small = new byte[(width / 4) * (height / 4) * 3 / 2];
+        nativeMs = !hasNative ? -1 : timeMs(new Block() {
+            public void run() {
+                NV21Utils.resize(frame, small, width, height, stride, width / 4, height / 4);
+            }
+        });
+        javaMs = timeMs(new Block() {
+            public void run() {
+                NV21Utils.resizeJava(frame, small, width, height, stride, width / 4, height / 4);
+            }
+        });
+        report("resize/4", width, height, stride, nativeMs, javaMs);
+
+        // The RGBA output is 4 bytes per pixel, so only convert the 12 MP frames.
+        if (width * height <= SIZES[0][0] * SIZES[0][1]) {
+            final ByteBuffer yvu = direct(frame);
+            final ByteBuffer rgba = ByteBuffer.allocateDirect(width * height * 4);
+            nativeMs = !hasNative ? -1 : timeMs(new Block() {
+                public void run() {
+                    NV21Utils.toRgba(yvu, rgba, width, height, stride);
+                }
+            });
+            javaMs = timeMs(new Block() {
+                public void run() {
+                    NV21Utils.toRgbaJava(yvu, rgba, width, height, stride);
+                }
+            });
+            report("rgba", width, height, stride, nativeMs, javaMs);
+        }
+
+        // Rotation only takes tightly packed frames.
+        if (stride != width) {
+            return;
+        }
+        final ByteBuffer in = direct(frame);
+        final ByteBuffer out = ByteBuffer.allocateDirect(frame.length);
+        nativeMs = !hasNative ? -1 : timeMs(new Block() {
+            public void run() {
+                NV21Utils.rotate(in, width, height, 90, out);
+            }
+        });
+        javaMs = timeMs(new Block() {
+            public void run() {
+                NV21Utils.rotateJava(in, width, height, 90, out);
+            }
+        });
+        report("rotate90", width, height, stride, nativeMs, javaMs);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.tinyplanet.TinyPlanetNative;
+
+import android.graphics.Bitmap;
+import android.test.suitebuilder.annotation.LargeTest;
+
+/**
+ * Checks the native tiny planet projection against a plain Java version of
+ * the same math and times the preview paths the editor uses: a cold render
+ * that builds the polar table, angle changes that reuse it, the coarse first
+ * pass, and a full resolution render that does without the table.
+ */
+@LargeTest
+public class TinyPlanetBenchmark extends BenchmarkTestCase {
+    private static final int PANO_WIDTH = 4096;
+    private static final int PANO_HEIGHT = 2048;
+    private static final int PREVIEW_SIZE = 1080;
+    private static final int FULL_SIZE = PANO_WIDTH / 2;
+    private static final float ZOOM = 0.5f;
+    private static final int ANGLE_STEPS = 10;
+    private static final int TOLERANCE = 2;
+
+    private static Bitmap createPanorama(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255) / width;
+                int g = (y * 255) / height;
+                int b = ((x / 64 + y / 64) & 1) * 255;
+                pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    private static float wrap(float value, float dimension) {
+        return value - (dimension * (float) Math.floor(value / dimension));
+    }
+
+    /** Single threaded, column by column, like the original native loop. */
+    private static int[] javaProjection(int[] in, int width, int height, int size,
+            float scale, float angle) {
+        int[] out = new int[size * size];
+        float imageScale = size * scale;
+        for (int x = 0; x < size; x++) {
+            float xf = (x - size / 2.0f) / imageScale;
+            for (int y = 0; y < size; y++) {
+                float yf = (y - size / 2.0f) / imageScale;
+                float r = (float) Math.hypot(xf, yf);
+                float theta = angle + (float) Math.atan2(yf, xf);
+                float phi = 2 * (float) Math.atan(1 / r);
+                float px = wrap((theta / (2 * (float) Math.PI)) * width, width);
+                float py = wrap((phi / (float) Math.PI) * height, height);
+                out[y * size + x] = interpolate(in, width, height, px, py);
+            }
+        }
+        return out;
+    }
+
+    private static int interpolate(int[] in, int width, int height, float x, float y) {
+        int x0 = Math.min((int) x, width - 1);
+        int y0 = Math.min((int) y, height - 1);
+        int x1 = x0 + 1 < width ? x0 + 1 : 0;
+        int y1 = y0 + 1 < height ? y0 + 1 : y0;
+        float ax = x - x0;
+        float ay = y - y0;
+        int p = in[y0 * width + x0];
+        int px = in[y0 * width + x1];
+        int p2 = in[y1 * width + x0];
+        int p2x = in[y1 * width + x1];
+        int result = 0xff000000;
+        for (int shift = 0; shift < 24; shift += 8) {
+            float c = (1 - ax) * (1 - ay) * ((p >> shift) & 0xff)
+                    + ax * (1 - ay) * ((px >> shift) & 0xff)
+                    + ax * ay * ((p2x >> shift) & 0xff)
+                    + (1 - ax) * ay * ((p2 >> shift) & 0xff);
+            result |= ((int) (c + 0.5f) & 0xff) << shift;
+        }
+        return result;
+    }
+
+    private static int[] pixels(Bitmap bitmap) {
+        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(),
+                bitmap.getHeight());
+        return pixels;
+    }
+
+    private static int maxChannelDiff(int a, int b) {
+        int max = 0;
+        for (int shift = 0; shift < 24; shift += 8) {
+            max = Math.max(max, Math.abs(((a >> shift) & 0xff) - ((b >> shift) & 0xff)));
+        }
+        return max;
+    }
+
+    private static void render(Bitmap pano, Bitmap out, float angle, int step) {
+        TinyPlanetNative.render(pano, pano.getWidth(), pano.getHeight(), out, out.getWidth(),
+                ZOOM, angle, step);
+    }
+
+    // Renders a full turn in ANGLE_STEPS steps, like dragging the angle slider.
+    private static Block angleSweep(final Bitmap pano, final Bitmap out, final int step) {
+        return new Block() {
+            public void run() {
+                for (int i = 1; i <= ANGLE_STEPS; i++) {
+                    render(pano, out, (float) (2 * Math.PI * i / ANGLE_STEPS), step);
+                }
+            }
+        };
+    }
+
+    public void testMatchesJavaProjection() {
+        Bitmap pano = createPanorama(1024, 512);
+        Bitmap out = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        TinyPlanetNative.releaseLookupTable();
+        // Once building the table, once reusing it with another angle.
+        float[] angles = {0.7f, 2.9f};
+        for (float angle : angles) {
+            render(pano, out, angle, 1);
+            int[] expected = javaProjection(pixels(pano), 1024, 512, 256, ZOOM, angle);
+            int[] actual = pixels(out);
+            int mismatches = 0;
+            for (int i = 0; i < expected.length; i++) {
+                if (maxChannelDiff(expected[i], actual[i]) > TOLERANCE) {
+                    mismatches++;
+                }
+            }
+            // Float rounding may pick a neighbouring source pixel on a few
+            // outputs right on a checker edge.
+            assertTrue("angle " + angle + ": " + mismatches + " mismatches",
+                    mismatches < expected.length / 1000);
+        }
+        TinyPlanetNative.releaseLookupTable();
+    }
+
+    public void testCoarsePassFillsBlocks() {
+        Bitmap pano = createPanorama(1024, 512);
+        Bitmap coarse = Bitmap.createBitmap(250, 250, Bitmap.Config.ARGB_8888);
+        Bitmap full = Bitmap.createBitmap(250, 250, Bitmap.Config.ARGB_8888);
+        render(pano, coarse, 1.0f, 4);
+        render(pano, full, 1.0f, 1);
+        int[] coarsePixels = pixels(coarse);
+        int[] fullPixels = pixels(full);
+        for (int y = 0; y < 250; y++) {
+            for (int x = 0; x < 250; x++) {
+                int sample = (y - y % 4) * 250 + (x - x % 4);
+                assertEquals("pixel " + x + "," + y, fullPixels[sample],
+                        coarsePixels[y * 250 + x]);
+            }
+        }
+        TinyPlanetNative.releaseLookupTable();
+    }
+
+    public void testPreviewTiming() throws Exception {
+        final Bitmap pano = createPanorama(PANO_WIDTH, PANO_HEIGHT);
+        final Bitmap out = Bitmap.createBitmap(PREVIEW_SIZE, PREVIEW_SIZE,
+                Bitmap.Config.ARGB_8888);
+        final int[] panoPixels = pixels(pano);
+
+        long javaNs = time(new Block() {
+            public void run() {
+                javaProjection(panoPixels, PANO_WIDTH, PANO_HEIGHT, PREVIEW_SIZE, ZOOM, 0);
+            }
+        });
+
+        TinyPlanetNative.releaseLookupTable();
+        long coldNs = timeOnce(new Block() {
+            public void run() {
+                render(pano, out, 0, 1);
+            }
+        });
+        long coarseNs = time(angleSweep(pano, out, 4));
+        long warmNs = time(angleSweep(pano, out, 1));
+        TinyPlanetNative.releaseLookupTable();
+
+        report("preview " + PREVIEW_SIZE + " from " + PANO_WIDTH + "x" + PANO_HEIGHT
+                + " java=" + javaNs / 1000000 + "ms"
+                + " cold=" + coldNs / 1000000 + "ms"
+                + " warm=" + warmNs / ANGLE_STEPS / 1000000 + "ms"
+                + " coarse=" + coarseNs / ANGLE_STEPS / 1000000 + "ms");
+    }
+
+    public void testFullResolutionTiming() throws Exception {
+        final Bitmap pano = createPanorama(PANO_WIDTH, PANO_HEIGHT);
+        final Bitmap out = Bitmap.createBitmap(FULL_SIZE, FULL_SIZE, Bitmap.Config.ARGB_8888);
+        final int[] panoPixels = pixels(pano);
+
+        long javaNs = time(new Block() {
+            public void run() {
+                javaProjection(panoPixels, PANO_WIDTH, PANO_HEIGHT, FULL_SIZE, ZOOM, 0);
+            }
+        });
+        long nativeNs = time(new Block() {
+            public void run() {
+                TinyPlanetNative.process(pano, PANO_WIDTH, PANO_HEIGHT, out, FULL_SIZE, ZOOM, 0);
+            }
+        });
+
+        report("full " + FULL_SIZE + " from " + PANO_WIDTH + "x" + PANO_HEIGHT
+                + " java=" + javaNs / 1000000 + "ms native=" + nativeNs / 1000000 + "ms");
+    }
+}
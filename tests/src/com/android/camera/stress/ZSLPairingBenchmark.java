@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stress;
+
+import com.android.camera.imageprocessor.TimestampIndex;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Replays synthetic image/metadata timestamp streams through the old
+ * linear-scan ZSL pairing and the timestamp indexed pairing used by
+ * ZSLQueue. Plain JUnit with no android dependency, so it runs on the host
+ * as well as under the instrumentation runner.
+ */
+public class ZSLPairingBenchmark extends TestCase {
+    private static final String TAG = "ZSLPairingBenchmark";
+    private static final int FRAMES = 200000;
+    private static final long FRAME_DURATION_NS = 33333333L;
+    private static final int[] BUFFER_SIZES = {5, 16, 32, 64};
+
+    // Each event is a timestamp; positive for an image, negated for metadata.
+    private static long[] buildStream(long seed, int dropPercent, int swapPercent) {
+        Random random = new Random(seed);
+        long[] events = new long[FRAMES * 2];
+        int n = 0;
+        long timestamp = 1000000000L;
+        for (int i = 0; i < FRAMES; i++) {
+            timestamp += FRAME_DURATION_NS;
+            boolean dropImage = random.nextInt(100) < dropPercent;
+            boolean dropMeta = !dropImage && random.nextInt(100) < dropPercent;
+            if (random.nextBoolean()) {
+                if (!dropMeta) events[n++] = -timestamp;
+                if (!dropImage) events[n++] = timestamp;
+            } else {
+                if (!dropImage) events[n++] = timestamp;
+                if (!dropMeta) events[n++] = -timestamp;
+            }
+        }
+        // Deliver some events late by swapping them with a neighbour a few frames on.
+        for (int i = 0; i + 6 < n; i++) {
+            if (random.nextInt(100) < swapPercent) {
+                int j = i + 1 + random.nextInt(6);
+                long tmp = events[i];
+                events[i] = events[j];
+                events[j] = tmp;
+            }
+        }
+        long[] result = new long[n];
+        System.arraycopy(events, 0, result, 0, n);
+        return result;
+    }
+
+    private interface Pairing {
+        int replay(long[] events);
+    }
+
+    /** Mirrors the findMeta/findImage scans ZSLQueue used to do. */
+    private static class LinearPairing implements Pairing {
+        private final long[] mImage;
+        private final long[] mMeta;
+        private int mHead;
+
+        LinearPairing(int size) {
+            mImage = new long[size];
+            mMeta = new long[size];
+        }
+
+        private int find(long[] column, long timestamp) {
+            int index = mHead;
+            do {
+                if (column[index] == timestamp) {
+                    return index;
+                }
+                index = (index + 1) % column.length;
+            } while (index != mHead);
+            return -1;
+        }
+
+        public int replay(long[] events) {
+            int pairs = 0;
+            for (long event : events) {
+                boolean isImage = event > 0;
+                long timestamp = isImage ? event : -event;
+                int i = find(isImage ? mMeta : mImage, timestamp);
+                if (i == -1) {
+                    i = mHead;
+                    mImage[i] = 0;
+                    mMeta[i] = 0;
+                    mHead = (mHead + 1) % mImage.length;
+                } else {
+                    pairs++;
+                }
+                if (isImage) {
+                    mImage[i] = timestamp;
+                } else {
+                    mMeta[i] = timestamp;
+                }
+            }
+            return pairs;
+        }
+    }
+
+    /** Same slot policy as ZSLQueue.acquireSlot. */
+    private static class IndexedPairing implements Pairing {
+        private final long[] mSlotTimestamp;
+        private final TimestampIndex mIndex;
+        private int mHead;
+
+        IndexedPairing(int size) {
+            mSlotTimestamp = new long[size];
+            mIndex = new TimestampIndex(size);
+        }
+
+        public int replay(long[] events) {
+            int pairs = 0;
+            for (long event : events) {
+                long timestamp = event > 0 ? event : -event;
+                int i = mIndex.get(timestamp);
+                if (i != TimestampIndex.NOT_FOUND) {
+                    pairs++;
+                    continue;
+                }
+                if (mSlotTimestamp[mHead] != 0) {
+                    if (mSlotTimestamp[mHead] > timestamp) {
+                        // Older than everything retained, ZSLQueue drops it.
+                        continue;
+                    }
+                    mIndex.remove(mSlotTimestamp[mHead]);
+                }
+                mSlotTimestamp[mHead] = timestamp;
+                mIndex.put(timestamp, mHead);
+                mHead = (mHead + 1) % mSlotTimestamp.length;
+            }
+            return pairs;
+        }
+    }
+
+    private void benchmark(String name, final long[] events) throws Exception {
+        final int[] linearPairs = new int[1];
+        final int[] indexedPairs = new int[1];
+        for (final int size : BUFFER_SIZES) {
+            long linear = BenchmarkTimer.time(new BenchmarkTimer.Block() {
+                public void run() {
+                    linearPairs[0] = new LinearPairing(size).replay(events);
+                }
+            });
+            long indexed = BenchmarkTimer.time(new BenchmarkTimer.Block() {
+                public void run() {
+                    indexedPairs[0] = new IndexedPairing(size).replay(events);
+                }
+            });
+            System.out.println(TAG + ": " + name + " buffer=" + size
+                    + " linear=" + (linear / events.length) + "ns/event"
+                    + " indexed=" + (indexed / events.length) + "ns/event"
+                    + " pairs=" + indexedPairs[0] + "/" + linearPairs[0]);
+            assertTrue(indexedPairs[0] > 0);
+        }
+    }
+
+    public void testInOrderStream() throws Exception {
+        benchmark("in-order", buildStream(1, 0, 0));
+    }
+
+    public void testOutOfOrderStream() throws Exception {
+        benchmark("out-of-order", buildStream(2, 0, 20));
+    }
+
+    public void testDroppedFrameStream() throws Exception {
+        benchmark("dropped", buildStream(3, 10, 5));
+    }
+
+    public void testIndexMatchesLinearScan() {
+        long[] events = buildStream(4, 0, 0);
+        int linearPairs = new LinearPairing(8).replay(events);
+        int indexedPairs = new IndexedPairing(8).replay(events);
+        assertEquals(FRAMES, indexedPairs);
+        assertEquals(linearPairs, indexedPairs);
+    }
+
+    public void testIndexRemoval() {
+        TimestampIndex index = new TimestampIndex(4);
+        for (int i = 0; i < 1000; i++) {
+            index.put(i * FRAME_DURATION_NS, i % 4);
+            if (i >= 4) {
+                assertTrue(index.remove((i - 4) * FRAME_DURATION_NS));
+            }
+            assertTrue(index.size() <= 4);
+        }
+        assertEquals(999 % 4, index.get(999 * FRAME_DURATION_NS));
+        assertEquals(TimestampIndex.NOT_FOUND, index.get(0));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.imageprocessor.NV21Utils;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks the Java reference NV21 kernels, which the native ones are
+ * compared against in NV21UtilsBenchmark. Uses nothing from the
+ * framework, so it also runs on a host JVM.
+ */
+public class NV21UtilsTest extends TestCase {
+
+    private static byte[] frame(int stride, int height, long seed) {
+        byte[] frame = new byte[stride * height * 3 / 2];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    private static byte[] sequence(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static byte[] rotate(byte[] src, int width, int height, int degree) {
+        ByteBuffer out = ByteBuffer.allocate(src.length);
+        NV21Utils.rotateJava(ByteBuffer.wrap(src), width, height, degree, out);
+        return out.array();
+    }
+
+    public void testRotateQuarterTurn() {
+        // 4x2 luma followed by one row of two VU pairs.
+        byte[] src = sequence(12);
+        byte[] expected = {4, 0, 5, 1, 6, 2, 7, 3, 8, 9, 10, 11};
+        assertTrue(Arrays.equals(expected, rotate(src, 4, 2, 90)));
+    }
+
+    public void testRotateRoundTrips() {
+        int width = 64;
+        int height = 48;
+        byte[] src = frame(width, height, 1);
+        assertTrue(Arrays.equals(src, rotate(rotate(src, width, height, 90), height, width, 270)));
+        assertTrue(Arrays.equals(src, rotate(rotate(src, width, height, 270), height, width, 90)));
+        assertTrue(Arrays.equals(src, rotate(rotate(src, width, height, 180), width, height, 180)));
+    }
+
+    public void testFlipVerticalSwapsRows() {
+        // 2x4 luma followed by two rows of one VU pair.
+        byte[] buf = sequence(12);
+        NV21Utils.flipJava(buf, 2, 4, 0, true);
+        byte[] expected = {6, 7, 4, 5, 2, 3, 0, 1, 10, 11, 8, 9};
+        assertTrue(Arrays.equals(expected, buf));
+    }
+
+    public void testFlipHorizontalKeepsPairsAndPadding() {
+        // 4 wide in a stride of 6, 2 rows tall.
+        byte[] buf = sequence(18);
+        NV21Utils.flipJava(buf, 6, 2, 2, false);
+        byte[] expected = {3, 2, 1, 0, 4, 5, 9, 8, 7, 6, 10, 11, 14, 15, 12, 13, 16, 17};
+        assertTrue(Arrays.equals(expected, buf));
+    }
+
+    public void testFlipTwiceIsIdentity() {
+        int width = 60;
+        int stride = 64;
+        int height = 48;
+        byte[] src = frame(stride, height, 2);
+        for (boolean vertical : new boolean[] {true, false}) {
+            byte[] buf = src.clone();
+            NV21Utils.flipJava(buf, stride, height, stride - width, vertical);
+            assertFalse(Arrays.equals(src, buf));
+            NV21Utils.flipJava(buf, stride, height, stride - width, vertical);
+            assertTrue("vertical=" + vertical, Arrays.equals(src, buf));
+        }
+    }
+
+    public void testSplitRestridesPlanes() {
+        int width = 6;
+        int height = 4;
+        int srcStride = 8;
+        int dstStride = 10;
+        byte[] src = frame(srcStride, height, 3);
+        ByteBuffer y = ByteBuffer.allocate(dstStride * height);
+        ByteBuffer vu = ByteBuffer.allocate(dstStride * height / 2);
+        NV21Utils.splitJava(src, y, vu, width, height, srcStride, dstStride);
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                assertEquals(src[row * srcStride + col], y.get(row * dstStride + col));
+                if (row < height / 2) {
+                    assertEquals(src[srcStride * height + row * srcStride + col],
+                            vu.get(row * dstStride + col));
+                }
+            }
+        }
+    }
+
+    public void testResizeAveragesBlocks() {
+        int width = 8;
+        int height = 8;
+        byte[] src = new byte[width * height * 3 / 2];
+        for (int i = 0; i < width * height; i++) {
+            // Each 2x2 block averages to its block index times ten plus 1.5.
+            int row = i / width;
+            int col = i % width;
+            src[i] = (byte) (((row / 2) * 4 + col / 2) * 10 + (row % 2) * 2 + col % 2);
+        }
+        for (int i = width * height; i < src.length; i += 2) {
+            src[i] = (byte) 60;
+            src[i + 1] = (byte) 200;
+        }
+        byte[] dst = new byte[4 * 4 * 3 / 2];
+        assertEquals(2, NV21Utils.resizeJava(src, dst, width, height, width, 4, 4));
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i * 10 + 1, dst[i] & 0xFF);
+        }
+        for (int i = 16; i < dst.length; i += 2) {
+            assertEquals(60, dst[i] & 0xFF);
+            assertEquals(200, dst[i + 1] & 0xFF);
+        }
+    }
+
+    public void testResizeRejectsUpscale() {
+        byte[] src = new byte[4 * 4 * 3 / 2];
+        assertEquals(0, NV21Utils.resizeJava(src, new byte[8 * 8 * 3 / 2], 4, 4, 4, 8, 8));
+    }
+
+    public void testToRgbaGreyAndClamp() {
+        // 2x2 frame: neutral chroma, then saturated red on the second pass.
+        byte[] yvu = {(byte) 128, (byte) 128, (byte) 128, (byte) 128, (byte) 128, (byte) 128};
+        ByteBuffer rgba = ByteBuffer.allocate(2 * 2 * 4);
+        NV21Utils.toRgbaJava(ByteBuffer.wrap(yvu), rgba, 2, 2, 2);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(149, rgba.get(i * 4) & 0xFF);
+            assertEquals(149, rgba.get(i * 4 + 1) & 0xFF);
+            assertEquals(149, rgba.get(i * 4 + 2) & 0xFF);
+            assertEquals(255, rgba.get(i * 4 + 3) & 0xFF);
+        }
+
+        yvu[4] = (byte) 255;
+        yvu[5] = 0;
+        NV21Utils.toRgbaJava(ByteBuffer.wrap(yvu), rgba, 2, 2, 2);
+        assertEquals(255, rgba.get(0) & 0xFF);
+        assertEquals(0, rgba.get(2) & 0xFF);
+    }
+}